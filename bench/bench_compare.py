@@ -0,0 +1,59 @@
+#!/usr/bin/env python3
+
+'''
+Compare two JMH json result files (java -jar target/benchmarks.jar -rf json -rff <file>),
+e.g. from two commits, printing the score of each benchmark in both and the % change.
+
+Usage:
+    python3 bench_compare.py [--threshold 10] <baseline.json> <new.json>
+
+Exits with status 1 if any benchmark is slower than the baseline by more than threshold %
+(and by more than the combined score error), so the comparison can be used as a regression
+check. The benchmarks report AverageTime (time per op), so a higher score is slower.
+'''
+
+import json
+import sys
+
+def load(path):
+    results = {}
+    with open(path) as f:
+        for r in json.load(f):
+            params = r.get("params", {})
+            key = r["benchmark"] + "".join("[%s=%s]" % (k, params[k]) for k in sorted(params))
+            results[key] = r["primaryMetric"]
+    return results
+
+def main(args):
+    threshold = 10.0
+    if len(args) >= 2 and args[0] == "--threshold":
+        threshold = float(args[1])
+        args = args[2:]
+    if len(args) != 2:
+        print("Usage: bench_compare.py [--threshold <percent>] <baseline.json> <new.json>")
+        return 2
+
+    old = load(args[0])
+    new = load(args[1])
+
+    regressions = 0
+    print("%-80s %14s %14s %9s" % ("Benchmark", "baseline", "new", "change"))
+    for key in sorted(set(old) | set(new)):
+        if key not in old or key not in new:
+            print("%-80s %s" % (key, "only in " + (args[0] if key in old else args[1])))
+            continue
+        o = old[key]
+        n = new[key]
+        change = (n["score"] - o["score"]) / o["score"] * 100 if o["score"] else 0.0
+        error = (abs(o.get("scoreError") or 0) + abs(n.get("scoreError") or 0)) / o["score"] * 100 if o["score"] else 0.0
+        flag = ""
+        if change > threshold and change > error:
+            flag = " REGRESSION"
+            regressions += 1
+        print("%-80s %10.3f %-3s %10.3f %-3s %+8.1f%%%s" %
+              (key, o["score"], o["scoreUnit"].split("/")[0], n["score"], n["scoreUnit"].split("/")[0], change, flag))
+
+    return 1 if regressions > 0 else 0
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv[1:]))
@@ -0,0 +1,113 @@
+package uk.ac.cam.tfc_server.bench;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// Fixtures.java
+//
+// Loads the recorded feed data used as benchmark inputs from the classpath 'fixtures/' directory
+// (bench/src/main/resources/fixtures, plus the feedmaker/examples and feedhandler sample files
+// copied in by bench/pom.xml), so the benchmarks run offline and on the same data every time.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Position;
+
+public class Fixtures {
+
+    // SiriVM XML, 120 VehicleActivity records
+    public static final String SIRIVM_XML = "sirivm.xml";
+    // GTFS realtime VehiclePositions protobuf, as POSTed to FeedHandler
+    public static final String GTFS_BIN = "post_data.bin";
+    // Drakewell BlueTruth sites/links json
+    public static final String BTJOURNEY_LOCATIONS = "drakewell_locations.json";
+    // Drakewell BlueTruth livejourneytimes json array
+    public static final String BTJOURNEY_JOURNEYTIMES = "drakewell_livejourneytimes.json";
+    // Cambridge car park pages for ParseFeedText templates
+    public static final String CAM_PARK_LOCAL = "cam_park_local.html";
+    public static final String CAM_PARK_RSS = "cam_park_rss.xml";
+
+    // Return the contents of fixtures/<name>
+    public static Buffer load(String name)
+    {
+        return Buffer.buffer(read_resource("fixtures/"+name));
+    }
+
+    // Return 'page' with its <tag_record>..</tag_record> records repeated 'copies' times, e.g. a
+    // larger SiriVM page from the 120 records of sirivm.xml
+    public static Buffer repeat_records(Buffer page, String tag_record, int copies)
+    {
+        String s = page.toString();
+        int start = s.indexOf("<"+tag_record+">");
+        int end = s.lastIndexOf("</"+tag_record+">");
+        if (start < 0 || end < 0)
+        {
+            throw new IllegalStateException("Fixtures: no "+tag_record+" records to repeat");
+        }
+        end += tag_record.length() + 3;
+        StringBuilder sb = new StringBuilder(s.length() * copies);
+        sb.append(s, 0, end);
+        for (int i=1; i<copies; i++)
+        {
+            sb.append(s, start, end);
+        }
+        sb.append(s, end, s.length());
+        return Buffer.buffer(sb.toString());
+    }
+
+    // Return the 'config' of a service descriptor on the classpath, e.g.
+    // "uk.ac.cam.tfc_server.zone.madingley_road_in.json"
+    public static JsonObject service_config(String name)
+    {
+        JsonObject service = new JsonObject(new String(read_resource(name), StandardCharsets.UTF_8));
+        return service.getJsonObject("options").getJsonObject("config");
+    }
+
+    private static byte[] read_resource(String name)
+    {
+        try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(name))
+        {
+            if (in == null)
+            {
+                throw new IllegalStateException("Fixtures: "+name+" not found");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) > 0)
+            {
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Fixtures: error reading "+name, e);
+        }
+    }
+
+    // ***************************************************************************
+    // track()
+    // 'steps' positions evenly spaced on a straight line from 'from' to 'to',
+    // e.g. a vehicle track through a zone
+    // ***************************************************************************
+    public static Position[] track(Position from, Position to, int steps)
+    {
+        Position[] positions = new Position[steps];
+        for (int i=0; i<steps; i++)
+        {
+            double f = (double) i / (steps - 1);
+            positions[i] = new Position(from.lat + f * (to.lat - from.lat),
+                                        from.lng + f * (to.lng - from.lng));
+        }
+        return positions;
+    }
+
+} // end class Fixtures
@@ -0,0 +1,157 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FeedParserBenchmark.java
+//
+// JMH benchmark for FeedParser.parse() of each FeedMaker parser on a recorded sample input,
+// selected with the 'feed' parameter (e.g. -p feed=sirivm_xml):
+//
+//   sirivm_xml             ParseFeedXMLFlat, SiriVM feed config from feedmaker.A.json
+//   sirivm_xml_fields      ParseFeedXMLFlat, as sirivm_xml with "tag_fields" limiting the record properties
+//   sirivm_xml_large       ParseFeedXMLFlat, as sirivm_xml on a page of 6000 records (~7MB)
+//   gtfs                   ParseFeedGTFS, feedhandler/post_data.bin
+//   btjourney_locations    ParseBTJourneyLocations, feedmaker/examples/drakewell_locations.json
+//   btjourney_journeytimes ParseBTJourneyTimes, feedmaker/examples/drakewell_livejourneytimes.json
+//   json                   ParseJson, feedmaker/examples/drakewell_locations.json
+//   eventbus_msg           ParseFeedEventbusMsg, drakewell_locations.json
+//   plain                  ParseFeedPlain, sirivm.xml
+//   cam_park_local         ParseFeedText, cam_park_local templates
+//   cam_park_rss           ParseFeedText, cam_park_rss templates
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedParserBenchmark {
+
+    @Param({ "sirivm_xml", "sirivm_xml_fields", "sirivm_xml_large", "gtfs", "btjourney_locations", "btjourney_journeytimes", "json",
+             "eventbus_msg", "plain", "cam_park_local", "cam_park_rss" })
+    public String feed;
+
+    FeedParser parser;
+    Buffer buf;
+
+    @Setup
+    public void setup()
+    {
+        Log logger = new Log(Constants.LOG_WARN);
+
+        JsonObject config = new JsonObject().put("feed_id", "bench").put("area_id", "cam");
+
+        switch (feed)
+        {
+            case "sirivm_xml":
+                config.put("feed_type", Constants.FEED_XML_FLAT)
+                      .put("tag_record", "VehicleActivity")
+                      .put("tag_map", sirivm_tag_map());
+                parser = new ParseFeedXMLFlat(config, logger);
+                buf = Fixtures.load(Fixtures.SIRIVM_XML);
+                break;
+
+            case "sirivm_xml_fields":
+                config.put("feed_type", Constants.FEED_XML_FLAT)
+                      .put("tag_record", "VehicleActivity")
+                      .put("tag_map", sirivm_tag_map())
+                      .put("tag_fields", new JsonArray().add("VehicleRef").add("LineRef").add("DirectionRef"));
+                parser = new ParseFeedXMLFlat(config, logger);
+                buf = Fixtures.load(Fixtures.SIRIVM_XML);
+                break;
+
+            case "sirivm_xml_large":
+                config.put("feed_type", Constants.FEED_XML_FLAT)
+                      .put("tag_record", "VehicleActivity")
+                      .put("tag_map", sirivm_tag_map());
+                parser = new ParseFeedXMLFlat(config, logger);
+                buf = Fixtures.repeat_records(Fixtures.load(Fixtures.SIRIVM_XML), "VehicleActivity", 50);
+                break;
+
+            case "gtfs":
+                parser = new ParseFeedGTFS(config.put("feed_type", Constants.FEED_GTFS), logger);
+                buf = Fixtures.load(Fixtures.GTFS_BIN);
+                break;
+
+            case "btjourney_locations":
+                parser = new ParseBTJourneyLocations(config.put("feed_type", Constants.FEED_BTJOURNEY_LOCATIONS), logger);
+                buf = Fixtures.load(Fixtures.BTJOURNEY_LOCATIONS);
+                break;
+
+            case "btjourney_journeytimes":
+                parser = new ParseBTJourneyTimes(config.put("feed_type", Constants.FEED_BTJOURNEY_JOURNEYTIMES), logger);
+                buf = Fixtures.load(Fixtures.BTJOURNEY_JOURNEYTIMES);
+                break;
+
+            case "json":
+                parser = new ParseJson(config.put("feed_type", Constants.FEED_JSON), logger);
+                buf = Fixtures.load(Fixtures.BTJOURNEY_LOCATIONS);
+                break;
+
+            case "eventbus_msg":
+                parser = new ParseFeedEventbusMsg(config.put("feed_type", Constants.FEED_EVENTBUS_MSG), logger);
+                buf = Fixtures.load(Fixtures.BTJOURNEY_LOCATIONS);
+                break;
+
+            case "plain":
+                parser = new ParseFeedPlain(config.put("feed_type", Constants.FEED_PLAIN), logger);
+                buf = Fixtures.load(Fixtures.SIRIVM_XML);
+                break;
+
+            case "cam_park_local":
+                parser = new ParseFeedText(config.put("feed_type", "cam_park_local"), logger);
+                buf = Fixtures.load(Fixtures.CAM_PARK_LOCAL);
+                break;
+
+            case "cam_park_rss":
+                parser = new ParseFeedText(config.put("feed_type", "cam_park_rss"), logger);
+                buf = Fixtures.load(Fixtures.CAM_PARK_RSS);
+                break;
+
+            default:
+                throw new IllegalArgumentException("FeedParserBenchmark: unknown feed "+feed);
+        }
+    }
+
+    // the SiriVM tag_map as in uk.ac.cam.tfc_server.feedmaker.A.json
+    static JsonArray sirivm_tag_map()
+    {
+        return new JsonArray()
+            .add(new JsonObject().put("original_tag", "RecordedAtTime").put("new_tag", "acp_ts")
+                                 .put("format", "datetime_iso_to_int_utc_seconds"))
+            .add(new JsonObject().put("original_tag", "Latitude").put("new_tag", "acp_lat").put("format", "float"))
+            .add(new JsonObject().put("original_tag", "Longitude").put("new_tag", "acp_lng").put("format", "float"))
+            .add(new JsonObject().put("original_tag", "VehicleMonitoringRef").put("new_tag", "acp_id").put("format", "string"));
+    }
+
+    @Benchmark
+    public JsonObject parse() throws Exception
+    {
+        return parser.parse(buf);
+    }
+
+} // end class FeedParserBenchmark
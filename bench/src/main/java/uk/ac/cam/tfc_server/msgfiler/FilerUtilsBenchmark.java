@@ -0,0 +1,83 @@
+package uk.ac.cam.tfc_server.msgfiler;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FilerUtilsBenchmark.java
+//
+// JMH benchmarks for FilerUtils.build_string(), which MsgFiler runs twice (store_path and
+// store_name) for every message stored, with the patterns from the msgfiler README examples.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilerUtilsBenchmark {
+
+    static final String STORE_PATH = "/media/tfc/vix/data_zone/{{ts|yyyy}}/{{ts|MM}}/{{ts|dd}}";
+    static final String STORE_NAME = "{{module_id}}_{{ts|yyyy}}-{{ts|MM}}-{{ts|dd}}.txt";
+    static final String BIN_PATH = "/media/tfc/cloudamber/sirivm/data_bin_json/{{filepath}}";
+    static final String BIN_NAME = "{{filename}}.json";
+
+    FilerUtils filer_utils;
+    JsonObject msg;
+
+    @Setup
+    public void setup()
+    {
+        JsonObject config = new JsonObject()
+            .put("source_address", "tfc.zone")
+            .put("store_path", STORE_PATH)
+            .put("store_name", STORE_NAME)
+            .put("store_mode", "append");
+
+        // build_string() does not use vertx
+        filer_utils = new FilerUtils(null, new FilerConfig(config));
+
+        // a zone completion message
+        msg = new JsonObject()
+            .put("module_name", "zone")
+            .put("module_id", "madingley_road_in")
+            .put("msg_type", Constants.ZONE_COMPLETION)
+            .put("vehicle_id", "SCNH-35224")
+            .put("route_id", "CITI4")
+            .put("ts", 1511170200L)
+            .put("ts_delta", 22)
+            .put("duration", 184)
+            .put("filename", "1511170200_2017-11-20-09-30-00")
+            .put("filepath", "2017/11/20");
+    }
+
+    @Benchmark
+    public String build_string_date()
+    {
+        return filer_utils.build_string(STORE_PATH, msg) + filer_utils.build_string(STORE_NAME, msg);
+    }
+
+    @Benchmark
+    public String build_string_fields()
+    {
+        return filer_utils.build_string(BIN_PATH, msg) + filer_utils.build_string(BIN_NAME, msg);
+    }
+
+} // end class FilerUtilsBenchmark
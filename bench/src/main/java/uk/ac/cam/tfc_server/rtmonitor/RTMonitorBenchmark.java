@@ -0,0 +1,106 @@
+package uk.ac.cam.tfc_server.rtmonitor;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// RTMonitorBenchmark.java
+//
+// JMH benchmarks for the RTMonitor per-message and per-record work, on the position records of
+// the recorded GTFS file feedhandler/post_data.bin (as published by FeedHandler):
+//
+//   update_state   Monitor.update_state() for a whole feed_bus_position message
+//   filters_equals Filters.test() of one record against a { "test": "=" } filter
+//   filters_inside Filters.test() of one record against a { "test": "inside" } polygon filter
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.GTFS;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTMonitorBenchmark {
+
+    Monitor monitor;
+    JsonObject msg;
+    JsonObject[] records;
+
+    Filters filters_equals;
+    Filters filters_inside;
+
+    int index = 0;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        // Monitor and Filter loggers use the RTMonitor log level
+        RTMonitor.LOG_LEVEL = Constants.LOG_WARN;
+
+        msg = GTFS.buf_to_json(Fixtures.load(Fixtures.GTFS_BIN), "1459762951_2016-04-04-10-42-31", "2016/04/04");
+        msg.put("module_name", "feedhandler");
+        msg.put("module_id", "bench");
+        msg.put("msg_type", Constants.FEED_BUS_POSITION);
+
+        JsonArray entities = msg.getJsonArray("entities");
+        records = new JsonObject[entities.size()];
+        for (int i=0; i<records.length; i++)
+        {
+            records[i] = entities.getJsonObject(i);
+        }
+
+        monitor = new Monitor("tfc.feedhandler.bench", "entities", "vehicle_id");
+
+        filters_equals = new Filters(new JsonArray()
+            .add(new JsonObject().put("test", "=").put("key", "vehicle_id").put("value", records[0].getString("vehicle_id"))));
+
+        // central Cambridge, as in the Filter.test_inside() example
+        filters_inside = new Filters(new JsonArray()
+            .add(new JsonObject().put("test", "inside")
+                                 .put("points", new JsonArray()
+                                     .add(new JsonObject().put("lat", 52.21411510).put("lng", 0.09916394948))
+                                     .add(new JsonObject().put("lat", 52.20885583).put("lng", 0.14877408742))
+                                     .add(new JsonObject().put("lat", 52.19170630).put("lng", 0.13778775930))
+                                     .add(new JsonObject().put("lat", 52.19496839).put("lng", 0.10053724050)))));
+    }
+
+    @Benchmark
+    public void update_state()
+    {
+        monitor.update_state(msg);
+    }
+
+    @Benchmark
+    public boolean filters_equals()
+    {
+        index = (index + 1) % records.length;
+        return filters_equals.test(records[index]);
+    }
+
+    @Benchmark
+    public boolean filters_inside()
+    {
+        index = (index + 1) % records.length;
+        return filters_inside.test(records[index]);
+    }
+
+} // end class RTMonitorBenchmark
@@ -0,0 +1,64 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FeedMessageCodecBenchmark.java
+//
+// JMH benchmarks for the clustered eventbus encoding of a FeedHandler message (the GTFS.buf_to_json()
+// message of feedhandler/post_data.bin): FeedMessageCodec encode + decode, against the JSON text the
+// default JsonObject codec sends and the consumers then parsed again.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedMessageCodecBenchmark {
+
+    JsonObject msg;
+
+    FeedMessageCodec codec;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        msg = GTFS.buf_to_json(Fixtures.load(Fixtures.GTFS_BIN), "1459762951_2016-04-04-10-42-31", "2016/04/04");
+        codec = new FeedMessageCodec();
+    }
+
+    @Benchmark
+    public JsonObject codec_wire()
+    {
+        Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, msg);
+        return codec.decodeFromWire(0, buffer);
+    }
+
+    @Benchmark
+    public JsonObject json_wire()
+    {
+        return new JsonObject(new JsonObject(msg.toBuffer()).toString());
+    }
+
+} // end class FeedMessageCodecBenchmark
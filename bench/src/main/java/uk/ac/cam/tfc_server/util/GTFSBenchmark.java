@@ -0,0 +1,52 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// GTFSBenchmark.java
+//
+// JMH benchmark for GTFS.buf_to_json(), i.e. the FeedHandler protobuf -> eventbus JSON conversion,
+// on the recorded GTFS realtime file feedhandler/post_data.bin.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GTFSBenchmark {
+
+    Buffer buf;
+
+    @Setup
+    public void setup()
+    {
+        buf = Fixtures.load(Fixtures.GTFS_BIN);
+    }
+
+    @Benchmark
+    public JsonObject buf_to_json() throws Exception
+    {
+        return GTFS.buf_to_json(buf, "1459762951_2016-04-04-10-42-31", "2016/04/04");
+    }
+
+} // end class GTFSBenchmark
@@ -0,0 +1,92 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// IsoTimestampBenchmark.java
+//
+// JMH benchmarks for IsoTimestamp against the java.time parse it replaces
+// (Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(s))), on the RecordedAtTime values of
+// the SiriVM sample page, e.g. "2017-11-20T09:30:40.000+00:00".
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsoTimestampBenchmark {
+
+    String[] timestamps;
+
+    IsoTimestamp iso_timestamp;
+
+    int index = 0;
+
+    @Setup
+    public void setup()
+    {
+        String page = Fixtures.load(Fixtures.SIRIVM_XML).toString();
+        Matcher m = Pattern.compile("<RecordedAtTime>([^<]*)</RecordedAtTime>").matcher(page);
+        ArrayList<String> values = new ArrayList<String>();
+        while (m.find())
+        {
+            values.add(m.group(1));
+        }
+        timestamps = values.toArray(new String[0]);
+
+        iso_timestamp = new IsoTimestamp();
+    }
+
+    private String next()
+    {
+        index = (index + 1) % timestamps.length;
+        return timestamps[index];
+    }
+
+    @Benchmark
+    public long epoch_second()
+    {
+        return iso_timestamp.epoch_second(next());
+    }
+
+    @Benchmark
+    public long epoch_second_java_time()
+    {
+        return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(next())).getEpochSecond();
+    }
+
+    @Benchmark
+    public Instant instant()
+    {
+        return iso_timestamp.instant(next());
+    }
+
+    @Benchmark
+    public Instant instant_java_time()
+    {
+        return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(next()));
+    }
+
+} // end class IsoTimestampBenchmark
@@ -0,0 +1,119 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// PositionBenchmark.java
+//
+// JMH benchmarks for Position.distance() and Position.inside(), on positions along a track
+// through the madingley_road_in zone polygon.
+//
+//   distance        Position.distance() (haversine) of successive track positions
+//   distance_local  LocalDistance.distance() of the same, referenced to the zone center
+//   inside          Position.inside() of the polygon as an ArrayList<Position> (prepared per call)
+//   inside_polygon  Position.inside() of the prepared Polygon
+//   inside_batch    Polygon.contains() of all TRACK_STEPS track positions in one call (time per call)
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonArray;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PositionBenchmark {
+
+    static final int TRACK_STEPS = 100;
+
+    Position[] track;
+    ArrayList<Position> polygon;
+    Polygon prepared_polygon;
+    LocalDistance local_distance;
+
+    double[] track_lats;
+    double[] track_lngs;
+    boolean[] track_inside;
+
+    int index = 0;
+
+    @Setup
+    public void setup()
+    {
+        JsonArray path = Fixtures.service_config("uk.ac.cam.tfc_server.zone.madingley_road_in.json")
+                                 .getJsonArray("zone.path");
+        polygon = new ArrayList<Position>();
+        for (int i=0; i<path.size(); i++)
+        {
+            polygon.add(new Position(path.getJsonObject(i)));
+        }
+
+        prepared_polygon = new Polygon(polygon);
+
+        local_distance = LocalDistance.of(new Position(Fixtures.service_config("uk.ac.cam.tfc_server.zone.madingley_road_in.json")
+                                                               .getJsonObject("zone.center")));
+
+        track = Fixtures.track(new Position(52.2138, 0.0780), new Position(52.2110, 0.1130), TRACK_STEPS);
+
+        track_lats = new double[TRACK_STEPS];
+        track_lngs = new double[TRACK_STEPS];
+        track_inside = new boolean[TRACK_STEPS];
+        for (int i=0; i<TRACK_STEPS; i++)
+        {
+            track_lats[i] = track[i].lat;
+            track_lngs[i] = track[i].lng;
+        }
+    }
+
+    @Benchmark
+    public double distance()
+    {
+        index = (index + 1) % (TRACK_STEPS - 1);
+        return track[index].distance(track[index + 1]);
+    }
+
+    @Benchmark
+    public double distance_local()
+    {
+        index = (index + 1) % (TRACK_STEPS - 1);
+        return local_distance.distance(track[index], track[index + 1]);
+    }
+
+    @Benchmark
+    public boolean inside()
+    {
+        index = (index + 1) % TRACK_STEPS;
+        return track[index].inside(polygon);
+    }
+
+    @Benchmark
+    public boolean inside_polygon()
+    {
+        index = (index + 1) % TRACK_STEPS;
+        return track[index].inside(prepared_polygon);
+    }
+
+    @Benchmark
+    public int inside_batch()
+    {
+        return prepared_polygon.contains(track_lats, track_lngs, TRACK_STEPS, track_inside);
+    }
+
+} // end class PositionBenchmark
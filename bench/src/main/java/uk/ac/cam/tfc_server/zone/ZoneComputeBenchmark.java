@@ -0,0 +1,118 @@
+package uk.ac.cam.tfc_server.zone;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// ZoneComputeBenchmark.java
+//
+// JMH benchmarks for the per-position-record Zone computation, using the madingley_road_in zone
+// config from src/main/resources and vehicles driving along a track through the zone.
+//
+//   update_vehicle  ZoneCompute.update_vehicle() for one record (includes building the record,
+//                   as the timestamp must advance), cycling through VEHICLES vehicles
+//   inside          ZoneCompute.inside() for a position on the track (inside and outside the zone)
+//   intersect       ZoneCompute.intersect() of one track segment with the zone start line
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.bench.Fixtures;
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Position;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZoneComputeBenchmark {
+
+    static final String ZONE_CONFIG = "uk.ac.cam.tfc_server.zone.madingley_road_in.json";
+
+    static final int VEHICLES = 50;
+    static final int TRACK_STEPS = 100; // positions along the track, the zone is crossed mid-track
+    static final long TRACK_INTERVAL = 10; // seconds between positions
+
+    ZoneCompute zc;
+    Position[] track;
+    Vehicle[] segments; // vehicles with prev_position..position = successive track points
+
+    long ts = 1511170200; // 2017-11-20 09:30:00 UTC
+    int step = 0;
+    int index = 0;
+
+    @Setup
+    public void setup()
+    {
+        JsonObject config = Fixtures.service_config(ZONE_CONFIG);
+        config.put("zone.log_level", Constants.LOG_WARN);
+
+        ZoneConfig zone_config = new ZoneConfig(config);
+
+        // zone completion messages are discarded
+        zc = new ZoneCompute(zone_config, msg -> { });
+
+        // track from west of the start line to east of the finish line
+        track = Fixtures.track(new Position(52.2138, 0.0780), new Position(52.2110, 0.1130), TRACK_STEPS);
+
+        segments = new Vehicle[TRACK_STEPS - 1];
+        for (int i=0; i<TRACK_STEPS-1; i++)
+        {
+            Vehicle v = new Vehicle("bench_"+i, record("bench_"+i, track[i], ts));
+            v.update(record("bench_"+i, track[i+1], ts + TRACK_INTERVAL));
+            segments[i] = v;
+        }
+    }
+
+    static JsonObject record(String vehicle_id, Position p, long ts)
+    {
+        return new JsonObject()
+            .put("acp_id", vehicle_id)
+            .put("acp_lat", p.lat)
+            .put("acp_lng", p.lng)
+            .put("acp_ts", ts);
+    }
+
+    @Benchmark
+    public void update_vehicle()
+    {
+        int vehicle = step % VEHICLES;
+        // each vehicle starts at a different point on the track
+        int position = (step / VEHICLES + vehicle * 7) % TRACK_STEPS;
+        if (vehicle == 0)
+        {
+            ts += TRACK_INTERVAL;
+        }
+        step++;
+        zc.update_vehicle(record("bench_"+vehicle, track[position], ts));
+    }
+
+    @Benchmark
+    public boolean inside()
+    {
+        index = (index + 1) % TRACK_STEPS;
+        return zc.inside(track[index]);
+    }
+
+    @Benchmark
+    public ZoneCompute.Intersect intersect()
+    {
+        index = (index + 1) % segments.length;
+        return zc.intersect(0, segments[index]);
+    }
+
+} // end class ZoneComputeBenchmark
@@ -0,0 +1,25 @@
+#!/bin/bash
+#
+# Clustered test deployment on one host: three JVMs joined by Hazelcast on 127.0.0.1 (see cluster.xml)
+#
+#   zones_0, zones_1  ZoneManagers each launching half of the zones, subscribed to the "grid"
+#                     partitions of tfc.loadgen.cluster around their zones
+#   ingest            LoadGen publishing synthetic bus positions within 20km of Cambridge to tfc.loadgen.cluster
+#                     and its grid partitions, with a local MsgFiler of the whole feed
+#
+# Usage: dev_configs/cluster_run.sh [jar], from the tfc_server directory.
+# The zone JVMs are stopped when LoadGen exits, and each JVM's log is in /tmp/cluster_<name>.log.
+
+TFC_JAR=${1:-target/tfc_server-3.6.3-fat.jar}
+
+java -cp "$TFC_JAR:dev_configs" -Xmx300m io.vertx.core.Launcher run "service:cluster_zones_0" -cluster >/tmp/cluster_zones_0.log 2>&1 &
+ZONES_0=$!
+java -cp "$TFC_JAR:dev_configs" -Xmx300m io.vertx.core.Launcher run "service:cluster_zones_1" -cluster >/tmp/cluster_zones_1.log 2>&1 &
+ZONES_1=$!
+
+# let the zone nodes join the cluster and subscribe before the load starts
+sleep 15
+
+java -cp "$TFC_JAR:dev_configs" -Xmx500m io.vertx.core.Launcher run "service:cluster_ingest" -cluster 2>&1 | tee /tmp/cluster_ingest.log
+
+kill $ZONES_0 $ZONES_1
@@ -0,0 +1 @@
+java -cp "target/tfc_server-3.6.3-fat.jar:dev_configs:secrets" -Xmx500m -Xms100m io.vertx.core.Launcher run "service:loadgen"
@@ -40,6 +40,7 @@ import java.util.*;
 import java.text.SimpleDateFormat;
     
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
@@ -75,6 +76,9 @@ public class Batcher extends AbstractVerticle {
     private Log logger;
     
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("worker");
     
     @Override
     public void start(Future<Void> fut) throws Exception
@@ -106,6 +110,7 @@ public class Batcher extends AbstractVerticle {
                      "{ \"module_name\": \""+MODULE_NAME+"\"," +
                        "\"module_id\": \""+MODULE_ID+"\"," +
                        "\"status\": \"UP\"," +
+                       "\"metrics\": "+metrics.to_json()+"," +
                        "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                        "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                      "}" );
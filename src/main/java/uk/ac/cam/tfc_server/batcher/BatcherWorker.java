@@ -4,7 +4,7 @@ package uk.ac.cam.tfc_server.batcher;
 // *************************************************************************************************
 // *************************************************************************************************
 // BatcherWorker.java
-// Version 0.03
+// Version 0.04
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
@@ -13,6 +13,9 @@ package uk.ac.cam.tfc_server.batcher;
 // historical position data, e.g. to run the data through Zones to produce the transit-time data.
 //
 // Reads GTFS-format binary files from the filesystem, Zones will write corresponding transit data.
+// A day directory may hold individual files and/or daily/hourly segment files (see util/BinDir).
+// Files are read ahead on a separate I/O thread (util/BinPrefetcher), and throughput (files/sec,
+// MB/s) with the io_wait/compute split is logged at the end of each day and of the batch.
 //
 // BatcherWorker is similar to FeedPlayer, *without* the requirement to broadcast the feed data onto
 // the message bus.  The 'synchronous' interlocking of the data processing allows the processing
@@ -44,6 +47,7 @@ import java.nio.file.*;
 import java.util.stream.Collectors;
 
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.BinPrefetcher;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.zone.ZoneConfig; // Config to be passed to Zone
@@ -74,6 +78,7 @@ public class BatcherWorker extends AbstractVerticle {
     private Long   FINISH_TS;  // UTC timestamp to end feed
     private ArrayList<String> ZONE_NAMES; // from config() MODULE_NAME.zones
     private ArrayList<FilerConfig> FILERS; // config() MODULE_NAME.filers parameters
+    private int    PREFETCH;   // config() MODULE_NAME.prefetch, number of files to read ahead
     private int    LOG_LEVEL;
     
     private HashMap<String, ZoneCompute> zones; // zones to run against bin gtfs records
@@ -210,6 +215,8 @@ public class BatcherWorker extends AbstractVerticle {
     }
 
     // iterate through the filesystem, processing files between start_ts and finish_ts
+    // The files are read ahead on a separate I/O thread (BinPrefetcher) into a queue of up to
+    // PREFETCH items, so reading the next files overlaps the zone/filer processing of this one.
     void process_bin_files(Long start_ts, Long finish_ts) throws Exception
     {
         // next_start_ts will increment through the days, starting with start_ts
@@ -217,6 +224,8 @@ public class BatcherWorker extends AbstractVerticle {
         
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
+        ArrayList<String> bin_paths = new ArrayList<String>();
+
         while (next_start_ts < finish_ts)
             {
                 Instant i = Instant.ofEpochSecond(next_start_ts); // convert UNIX ts to java Instant
@@ -225,10 +234,8 @@ public class BatcherWorker extends AbstractVerticle {
                 
                 String yyyymmdd =  zoned_datetime.format(formatter);
 
-                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": processing date "+yyyymmdd);
-
-                // iterate through current bin file directory, (will skip if if doesn't exist)
-                process_bin_dir(next_start_ts, finish_ts, TFC_DATA_BIN+"/"+yyyymmdd);
+                // current bin file directory, (will be skipped if it doesn't exist)
+                bin_paths.add(TFC_DATA_BIN+"/"+yyyymmdd);
                 
                 ZonedDateTime next_day = zoned_datetime.plusDays(1L).withHour(0).withMinute(0).withSecond(0); // add a day
 
@@ -236,85 +243,98 @@ public class BatcherWorker extends AbstractVerticle {
 
             }
 
-        logger.log(Constants.LOG_INFO, "finished at "+next_start_ts);
-
-    } // end process_bin_files()
+        BinPrefetcher prefetcher = new BinPrefetcher(bin_paths, start_ts, finish_ts, PREFETCH);
+        prefetcher.start();
 
-    // iterate through bin files in directory <bin_path>
-    void process_bin_dir(long start_ts, Long finish_ts, String bin_path) throws Exception
-    {
+        long start_nanos = System.nanoTime();
+        long wait_nanos = 0; // time spent waiting for the prefetcher, i.e. I/O bound
+        long items = 0;
+        long bytes = 0;
+        String current_date = null;
 
-        //logger.log(Constants.LOG_DEBUG, "BatcherWorker."+MODULE_ID+" processing "+bin_path);
+        try
+        {
+            while (true)
+            {
+                long t0 = System.nanoTime();
+                BinPrefetcher.Item item = prefetcher.take();
+                wait_nanos += System.nanoTime() - t0;
 
-        List<Path> file_paths;
-        
-        try {
-              file_paths = Files.walk(Paths.get(bin_path))
-                .filter(Files::isRegularFile)
-                .collect(Collectors.toList());
-        } catch (Exception e) {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": process_bin_dir skipping dir "+bin_path);
-            return;
-        }
-        
-        Collections.sort(file_paths);
-        
-        file_paths.forEach(file_path -> {
-        
-                // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
-                // with the hh_mm_ss in local time
+                if (item == null)
+                {
+                    break;
+                }
 
-                // get UTC timestamp from filename
-                Long file_ts = get_ts(file_path.toString());
-                
-                if (start_ts < file_ts && finish_ts > file_ts)
+                if (!item.yyyymmdd.equals(current_date))
+                {
+                    if (current_date != null)
                     {
-                        try
-                            {
-                                if (MSG_TYPE.equals("sirivm_json"))
-                                {
-                                    process_sirivm_file(file_path);
-                                }
-                                else if (MSG_TYPE.equals("gtfs_bin"))
-                                {
-                                    process_gtfs_file(file_path);
-                                }
-                            }
-                        catch (Exception e)
-                            {
-                                System.err.println(MODULE_NAME+"."+MODULE_ID+
-                                                       ": process_file exception "+file_path.toString());
-                            }
+                        log_stats(current_date+" done", items, bytes, System.nanoTime() - start_nanos, wait_nanos, prefetcher);
                     }
-        
-            });
-        
-      } // end process_gtfs_dir()
+                    current_date = item.yyyymmdd;
+                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": processing date "+current_date);
+                }
 
-    void process_sirivm_file(Path file_path) throws Exception
-    {
-        Buffer file_data;
+                // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
+                // with the hh_mm_ss in local time
+                // segment records carry the same timestamp and name
+                if (MSG_TYPE.equals("sirivm_json"))
+                {
+                    process_sirivm_data(item.data, item.entry.name, item.yyyymmdd);
+                }
+                else if (MSG_TYPE.equals("gtfs_bin"))
+                {
+                    process_gtfs_data(item.data, item.entry.name, item.yyyymmdd);
+                }
 
-        //System.err.println(MODULE_NAME+"."+MODULE_ID+": reading sirivm_json "+file_path.toString());
-        // Read the file
-        try
-            {
-                file_data = vertx.fileSystem().readFileBlocking(file_path.toString());
+                items++;
+                bytes += item.data.length();
             }
+        }
         catch (Exception e)
-            {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": error reading "+file_path.toString());
-                e.printStackTrace();
-                return;
-            }
+        {
+            prefetcher.stop();
+            throw e;
+        }
 
-        try
+        log_stats("finished", items, bytes, System.nanoTime() - start_nanos, wait_nanos, prefetcher);
+
+        for (String zone_id : zones.keySet())
         {
-            String fs = file_path.toString();
-            String basename = get_basename(fs);
-            String yyyymmdd = get_date(fs);
+            ZoneCompute zc = zones.get(zone_id);
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": ZoneCompute("+zone_id+") vehicles="+
+                       zc.vehicle_count()+" evicted="+zc.evicted_count);
+        }
 
-            //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": processing gtfs file "+yyyymmdd+"/"+basename);
+        logger.log(Constants.LOG_INFO, "finished at "+next_start_ts);
+
+    } // end process_bin_files()
+
+    // log batch throughput (files/sec, MB/s) and the split between waiting for I/O and processing
+    void log_stats(String label, long items, long bytes, long elapsed_nanos, long wait_nanos, BinPrefetcher prefetcher)
+    {
+        double elapsed_secs = Math.max(elapsed_nanos, 1) / 1e9;
+
+        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": "+label+
+                   String.format(" files=%d MB=%.1f elapsed=%.1fs files/sec=%.1f MB/s=%.2f"+
+                                 " io_wait=%.1fs compute=%.1fs read=%.1fs read_errors=%d",
+                                 items,
+                                 bytes / 1e6,
+                                 elapsed_secs,
+                                 items / elapsed_secs,
+                                 bytes / 1e6 / elapsed_secs,
+                                 wait_nanos / 1e9,
+                                 (elapsed_nanos - wait_nanos) / 1e9,
+                                 prefetcher.read_nanos.get() / 1e9,
+                                 prefetcher.read_errors.get()));
+    }
+
+    // process the content of a single sirivm_json file
+    void process_sirivm_data(Buffer file_data, String basename, String yyyymmdd)
+    {
+        try
+        {
+            //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": processing sirivm file "+yyyymmdd+"/"+basename);
 
             JsonObject msg = new JsonObject(file_data);
 
@@ -338,33 +358,15 @@ public class BatcherWorker extends AbstractVerticle {
           //logger.log(Constants.LOG_DEBUG, "BatcherWorker: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
         } catch (Exception e)
         {
-            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing sirivm_json file "+file_path.toString());
+            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing sirivm_json file "+yyyymmdd+"/"+basename);
         }
     }
 
-    // process single gtfs binary file
-    void process_gtfs_file(Path file_path) throws Exception
+    // process the content of a single gtfs binary file
+    void process_gtfs_data(Buffer file_data, String basename, String yyyymmdd)
     {
-        Buffer file_data;
-        
-        // Read the file
-        try
-            {
-                file_data = vertx.fileSystem().readFileBlocking(file_path.toString());
-            }
-        catch (Exception e)
-            {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": error reading "+file_path.toString());
-                e.printStackTrace();
-                return;
-            }
-
         try
         {
-            String fs = file_path.toString();
-            String basename = get_basename(fs);
-            String yyyymmdd = get_date(fs);
-
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": processing gtfs file "+yyyymmdd+"/"+basename);
 
             JsonObject msg = GTFS.buf_to_json(file_data, basename, yyyymmdd);
@@ -393,56 +395,11 @@ public class BatcherWorker extends AbstractVerticle {
           //logger.log(Constants.LOG_DEBUG, "BatcherWorker: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
         } catch (Exception e)
         {
-            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing gtfs file "+file_path.toString());
+            System.err.println(MODULE_NAME+"."+MODULE_ID+": exception processing gtfs file "+yyyymmdd+"/"+basename);
         }
         
-    } // end process_gtfs_file()
-  
-    // pick out the Long timestamp embedded in the file name
-    // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
-    Long get_ts(String fs)
-    {
-        // starting char index of timestamp (either index after last '/', or 0)
-        int ts_start = fs.lastIndexOf('/') + 1;
-
-        // length of utc timestamp e.g. "1457334014" = 10
-        int ts_length = fs.lastIndexOf('_') - ts_start;
-
-        // extract substring i.e. "1457334014"
-        String ts_string = fs.substring(ts_start, ts_start+ts_length);
-        
-        // if ts_string has a '.' then trim to a long int
-        int point_position = ts_string.indexOf('.');
-
-        if (point_position > 0)
-        {
-            ts_string = ts_string.substring(0, point_position);
-        }
-        return Long.parseLong(ts_string);
-    }
-
-    // get base filename from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "1457334014_2016-03-07-07-00-14"
-    String get_basename(String fs)
-    {
-        String[] parts = fs.split("/");
-
-        String filename_bin = parts[parts.length - 1];
-
-        int dot_index = filename_bin.lastIndexOf('.');
-
-        return filename_bin.substring(0, dot_index);
-    }
+    } // end process_gtfs_data()
 
-    // get YYYY/MM/DD from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "2016/03/07"
-    String get_date(String fs)
-    {
-        String [] parts = fs.split("/");
-        return parts[parts.length-4]+"/"+parts[parts.length-3]+"/"+parts[parts.length-2];
-    }
-
-    
     // Load initialization global constants defining this Zone from config()
     private boolean get_config()
     {
@@ -491,6 +448,9 @@ public class BatcherWorker extends AbstractVerticle {
 
         FINISH_TS = config().getLong(MODULE_NAME+".finish_ts");
 
+        // number of files (or segment records) read ahead of processing, default 64
+        PREFETCH = config().getInteger(MODULE_NAME+".prefetch", BinPrefetcher.DEFAULT_QUEUE_SIZE);
+
         ZONE_NAMES = new ArrayList<String>();
         
         JsonArray zone_list = config().getJsonArray(MODULE_NAME+".zones");
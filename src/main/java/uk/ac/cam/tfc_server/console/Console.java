@@ -20,9 +20,17 @@ package uk.ac.cam.tfc_server.console;
 //     "status_msg": "UP",
 //     "status_amber_seconds": 35,// optional
 //     "status_red_seconds": 65,  // optional
+//     "metrics": { ... },        // optional, see util/Metrics.java
 //     "ts": 1475138945           // optional in source, will be added by Console if missing
 //   }
 //   where the status_amber-seconds and status_red_seconds are optional
+//
+// The "metrics" of all modules are aggregated at /api/<BASE_URI>/metrics (json) and served in
+// Prometheus text format at /<BASE_URI>/metrics.
+//
+// Console also keeps a bounded history of the status of each module (see ModuleHistory.java),
+// returned downsampled by /api/<BASE_URI>/history, and pushes each status update as a diff
+// against the previous status of that module to clients of the SockJS socket /<BASE_URI>/ws.
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -46,20 +54,25 @@ import io.vertx.core.json.JsonArray;
 // vertx web
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.StaticHandler;
+import io.vertx.ext.web.handler.sockjs.SockJSHandler;
+import io.vertx.ext.web.handler.sockjs.SockJSHandlerOptions;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
 
 import java.io.*;
 import java.time.*;
 import java.time.format.*;
+import java.util.HashMap;
 
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
 
 public class Console extends AbstractVerticle {
 
-    private final String VERSION = "1.09";
+    private final String VERSION = "1.11";
     
     public int LOG_LEVEL; // optional in config(), defaults to Constants.LOG_INFO
 
@@ -73,14 +86,25 @@ public class Console extends AbstractVerticle {
     private final int SYSTEM_STATUS_AMBER_SECONDS = 15;
     private final int SYSTEM_STATUS_RED_SECONDS = 25;
 
+    private final int HISTORY_SIZE_DEFAULT = 360;  // status samples kept per module, i.e. ~1 hour at 10 s
+    private final int HISTORY_STEP_DEFAULT = 60;   // default downsampling step (seconds) of /api/console/history
+
+    private int HISTORY_SIZE; // from config(), optional
+
     private String BASE_URI; // e.g. "/console", currently derived from MODULE_NAME in config
     private Log logger; // tfc module to handle logging
 
     // declare EventBus object
     private EventBus eb;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("source_module");
+
     // declare object to hold latest status message from each active module
     private StatusCache status_cache;
+
+    // SockJS clients receiving status diffs, keyed on writeHandlerID
+    private HashMap<String, SockJSSocket> status_sockets = new HashMap<String, SockJSSocket>();
     
   @Override
   public void start(Future<Void> fut) throws Exception {
@@ -130,9 +154,14 @@ public class Console extends AbstractVerticle {
     eb.consumer(EB_SYSTEM_STATUS, message -> {
             logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": received status "+
                        message.body().toString());
-            status_cache.add( new JsonObject(message.body().toString()) );
+            JsonObject status_msg = new JsonObject(message.body().toString());
+            metrics.inc("msgs_in", status_msg.getString("module_name"));
+            JsonObject diff = status_cache.add(status_msg);
+            push_status_diff(status_msg, diff);
                 });
 
+    metrics.gauge("sockets", "", () -> status_sockets.size());
+
     // **********************************************************************************************
     // here is the 'API' handler for /console/status which returns JSON packet of all status messages
     // **********************************************************************************************
@@ -150,6 +179,106 @@ public class Console extends AbstractVerticle {
         response.end(jo.toString());
     });
 
+    // **********************************************************************************************
+    // /api/console/metrics returns the metrics of all modules, with the counters summed per module_name
+    // **********************************************************************************************
+    router.route(HttpMethod.GET, "/api/"+BASE_URI+"/metrics").handler( ctx -> {
+
+        HttpServerResponse response = ctx.response();
+        response.putHeader("content-type", "application/json");
+        response.putHeader("Access-Control-Allow-Origin", "*");
+
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", MODULE_NAME);
+        jo.put("module_id", MODULE_ID);
+        jo.put("metrics", status_cache.metrics());
+        response.end(jo.toString());
+    });
+
+    // **********************************************************************************************
+    // /api/console/history returns the recent status history of each module, downsampled into
+    // 'step' second buckets, optionally filtered by module_name, module_id and since (UTC seconds), e.g.
+    // /api/console/history?module_name=feedmaker&step=300
+    // **********************************************************************************************
+    router.route(HttpMethod.GET, "/api/"+BASE_URI+"/history").handler( ctx -> {
+
+        HttpServerResponse response = ctx.response();
+        response.putHeader("content-type", "application/json");
+        response.putHeader("Access-Control-Allow-Origin", "*");
+
+        long step;
+        long since;
+        try {
+            step = Long.parseLong(ctx.request().getParam("step") == null ?
+                                  String.valueOf(HISTORY_STEP_DEFAULT) : ctx.request().getParam("step"));
+            since = Long.parseLong(ctx.request().getParam("since") == null ?
+                                   "0" : ctx.request().getParam("since"));
+        } catch (NumberFormatException e) {
+            response.setStatusCode(400).end("{ \"error\": \"bad step or since parameter\" }");
+            return;
+        }
+        if (step < 1)
+        {
+            step = 1;
+        }
+
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", MODULE_NAME);
+        jo.put("module_id", MODULE_ID);
+        jo.put("step", step);
+        jo.put("history", status_cache.history(ctx.request().getParam("module_name"),
+                                               ctx.request().getParam("module_id"),
+                                               since, step));
+        response.end(jo.toString());
+    });
+
+    // **********************************************************************************************
+    // SockJS socket /console/ws: on connection the client is sent
+    //   { "msg_type": "status_snapshot", "status": [ <latest status of each module> ] }
+    // followed by a message for each status received by Console,
+    //   { "msg_type": "status_diff", "module_name": .., "module_id": .., "diff": { .. } }
+    // where "diff" holds the properties that changed since the previous status of that module (see
+    // StatusCache.diff()). The client can send { "msg_type": "status_snapshot" } to resynchronize.
+    // **********************************************************************************************
+    SockJSHandler sock_handler = SockJSHandler.create(vertx, new SockJSHandlerOptions().setHeartbeatInterval(2000));
+
+    sock_handler.socketHandler( sock -> {
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                       ": status socket connected "+sock.writeHandlerID());
+
+            status_sockets.put(sock.writeHandlerID(), sock);
+            send_status_snapshot(sock);
+
+            sock.handler( buf -> {
+                    try {
+                        JsonObject sock_msg = new JsonObject(buf.toString());
+                        if ("status_snapshot".equals(sock_msg.getString("msg_type")))
+                        {
+                            send_status_snapshot(sock);
+                        }
+                    } catch (Exception e) {
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                   ": status socket non-Json message from "+sock.writeHandlerID());
+                    }
+                });
+
+            sock.endHandler( (Void v) -> {
+                    status_sockets.remove(sock.writeHandlerID());
+                });
+        });
+
+    router.route("/"+BASE_URI+"/ws/*").handler(sock_handler);
+
+    // **********************************************************************************************
+    // /console/metrics returns the metrics of all modules in Prometheus text format, for scraping
+    // **********************************************************************************************
+    router.route(HttpMethod.GET, "/"+BASE_URI+"/metrics").handler( ctx -> {
+
+        HttpServerResponse response = ctx.response();
+        response.putHeader("content-type", PrometheusText.CONTENT_TYPE);
+        response.end(PrometheusText.format(status_cache.status(), System.currentTimeMillis() / 1000));
+    });
+
 
       // general logging of get requests that didn't match proper requests
       router.route(HttpMethod.GET,"/*").handler(ctx -> {
@@ -167,6 +296,34 @@ public class Console extends AbstractVerticle {
 
   } // end start()
 
+    // send the latest status of all modules to a status socket client
+    private void send_status_snapshot(SockJSSocket sock)
+    {
+        JsonObject sock_msg = new JsonObject();
+        sock_msg.put("msg_type", "status_snapshot");
+        sock_msg.put("status", status_cache.status());
+        sock.write(Buffer.buffer(sock_msg.toString()));
+    }
+
+    // send the changes in the status of a module to all status socket clients
+    private void push_status_diff(JsonObject status_msg, JsonObject diff)
+    {
+        if (status_sockets.isEmpty())
+        {
+            return;
+        }
+        JsonObject sock_msg = new JsonObject();
+        sock_msg.put("msg_type", "status_diff");
+        sock_msg.put("module_name", status_msg.getString("module_name"));
+        sock_msg.put("module_id", status_msg.getString("module_id"));
+        sock_msg.put("diff", diff);
+        Buffer buf = Buffer.buffer(sock_msg.toString());
+        for (SockJSSocket sock : status_sockets.values())
+        {
+            sock.write(buf);
+        }
+    }
+
     // send UP status to the EventBus
     private void send_status()
     {
@@ -175,6 +332,7 @@ public class Console extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -235,6 +393,14 @@ public class Console extends AbstractVerticle {
                 return false;
             }
 
+        // number of status messages kept per module for /api/console/history
+        HISTORY_SIZE = config().getInteger(MODULE_NAME+".history_size", HISTORY_SIZE_DEFAULT);
+        if (HISTORY_SIZE < 1)
+            {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".history_size must be > 0");
+                return false;
+            }
+
         return true;
     }
 
@@ -245,12 +411,18 @@ public class Console extends AbstractVerticle {
         
         JsonArray status_messages;
 
+        // recent status history of each module, keyed on module_name.module_id
+        HashMap<String, ModuleHistory> histories;
+
         StatusCache() {
             status_messages = new JsonArray();
+            histories = new HashMap<String, ModuleHistory>();
         }
 
-        void add(JsonObject jo)
+        // add latest status 'jo', returning its differences from the previous status of that module
+        JsonObject add(JsonObject jo)
         {
+            JsonObject prev = null;
             // delete the status of current module if that is in cache
             for (int i=0; i<status_messages.size(); i++)
                 {
@@ -258,7 +430,9 @@ public class Console extends AbstractVerticle {
                     if (msg.getString("module_name").equals(jo.getString("module_name")) &&
                         msg.getString("module_id").equals(jo.getString("module_id")))
                         {
+                            prev = msg;
                             status_messages.remove(i);
+                            break;
                         }
                 }
             // add UTC timestamp "ts" to system status message if it is not already in there from source
@@ -268,11 +442,125 @@ public class Console extends AbstractVerticle {
                 }
             // now add latest status as received to the JsonArray
             status_messages.add(jo);
+
+            histories.computeIfAbsent(jo.getString("module_name")+"."+jo.getString("module_id"),
+                                      k -> new ModuleHistory(HISTORY_SIZE))
+                     .add(jo);
+
+            return prev == null ? jo.copy() : diff(prev, jo);
+        }
+
+        // Properties of 'next' that differ from 'prev', recursing into JsonObject values,
+        // with null for properties that have been removed. E.g. for a module heartbeat with one
+        // more msgs_in: { "ts": 1553163311, "metrics": { "counters": { "msgs_in": { "A": 43 } } } }
+        JsonObject diff(JsonObject prev, JsonObject next)
+        {
+            JsonObject d = new JsonObject();
+            for (String k : next.fieldNames())
+            {
+                Object v = next.getValue(k);
+                Object p = prev.getValue(k);
+                if (v instanceof JsonObject && p instanceof JsonObject)
+                {
+                    JsonObject sub = diff((JsonObject) p, (JsonObject) v);
+                    if (sub.size() > 0)
+                    {
+                        d.put(k, sub);
+                    }
+                }
+                else if (v == null ? p != null || !prev.containsKey(k) : !v.equals(p))
+                {
+                    d.put(k, v);
+                }
+            }
+            for (String k : prev.fieldNames())
+            {
+                if (!next.containsKey(k))
+                {
+                    d.putNull(k);
+                }
+            }
+            return d;
+        }
+
+        // Downsampled history of the modules matching module_name and module_id (null matches all)
+        JsonArray history(String module_name, String module_id, long since, long step)
+        {
+            JsonArray result = new JsonArray();
+            for (int i=0; i<status_messages.size(); i++)
+            {
+                JsonObject msg = status_messages.getJsonObject(i);
+                String name = msg.getString("module_name");
+                String id = msg.getString("module_id");
+                if ((module_name != null && !module_name.equals(name)) ||
+                    (module_id != null && !module_id.equals(id)))
+                {
+                    continue;
+                }
+                result.add(new JsonObject()
+                           .put("module_name", name)
+                           .put("module_id", id)
+                           .put("samples", histories.get(name+"."+id).downsample(since, step)));
+            }
+            return result;
         }
 
         JsonArray status()
         {
             return status_messages;
         }
+
+        // Aggregate the "metrics" of the cached status messages, summing the counters of all
+        // instances of each module_name:
+        // { "<module_name>": { "modules": <count of module_ids>,
+        //                      "label": "feed_id",
+        //                      "counters": { "msgs_in": { "<key>": total, ... }, ... },
+        //                      "instances": { "<module_id>": <metrics as sent by that module>, ... }
+        //                    }, ...
+        // }
+        JsonObject metrics()
+        {
+            JsonObject result = new JsonObject();
+            for (int i=0; i<status_messages.size(); i++)
+            {
+                JsonObject msg = status_messages.getJsonObject(i);
+                JsonObject module_metrics = msg.getJsonObject("metrics");
+                if (module_metrics == null)
+                {
+                    continue;
+                }
+                String module_name = msg.getString("module_name");
+                JsonObject agg = result.getJsonObject(module_name);
+                if (agg == null)
+                {
+                    agg = new JsonObject()
+                        .put("modules", 0)
+                        .put("label", module_metrics.getString("label"))
+                        .put("counters", new JsonObject())
+                        .put("instances", new JsonObject());
+                    result.put(module_name, agg);
+                }
+                agg.put("modules", agg.getInteger("modules") + 1);
+                agg.getJsonObject("instances").put(msg.getString("module_id"), module_metrics);
+
+                JsonObject counters = module_metrics.getJsonObject("counters", new JsonObject());
+                JsonObject totals = agg.getJsonObject("counters");
+                for (String name : counters.fieldNames())
+                {
+                    JsonObject values = counters.getJsonObject(name);
+                    JsonObject total_values = totals.getJsonObject(name);
+                    if (total_values == null)
+                    {
+                        total_values = new JsonObject();
+                        totals.put(name, total_values);
+                    }
+                    for (String key : values.fieldNames())
+                    {
+                        total_values.put(key, total_values.getLong(key, 0L) + values.getLong(key));
+                    }
+                }
+            }
+            return result;
+        }
     }
 } // end class Console
@@ -0,0 +1,196 @@
+package uk.ac.cam.tfc_server.console;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// ModuleHistory.java
+//
+// Bounded ring of recent status samples for a single module (module_name, module_id), held by the
+// Console StatusCache so /api/<BASE_URI>/history can return throughput trends without an external
+// time-series database.
+//
+// Each status message is reduced to a compact sample:
+//   { "ts": 1553163301,
+//     "up": 1,
+//     "counters": { "msgs_in/cam_park_rss": 1234, ... },  // "<name>/<key>" from the "metrics" property
+//     "gauges":   { "in_flight/loadgen.http": 2, ... },
+//     "timers":   { "parse/cam_park_rss": 1.9, ... }       // p99_ms of the status interval
+//   }
+// and the oldest sample is overwritten once 'capacity' samples are held.
+//
+// downsample() returns the samples grouped into buckets of 'step' seconds, with counter rates
+// (per second, from the difference across the bucket and the preceding sample), gauge means and
+// timer maximums.
+// *************************************************************************************************
+// *************************************************************************************************
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+class ModuleHistory {
+
+    private final JsonObject[] samples;
+    private int next = 0;   // index of the slot for the next sample
+    private int count = 0;  // number of samples held
+
+    ModuleHistory(int capacity)
+    {
+        samples = new JsonObject[capacity];
+    }
+
+    // add the status message 'status' (with "ts" already set) as a sample
+    void add(JsonObject status)
+    {
+        JsonObject sample = new JsonObject();
+        sample.put("ts", status.getLong("ts"));
+        sample.put("up", "UP".equals(status.getString("status")) ? 1 : 0);
+
+        JsonObject metrics = status.getJsonObject("metrics");
+        JsonObject counters = new JsonObject();
+        JsonObject gauges = new JsonObject();
+        JsonObject timers = new JsonObject();
+        if (metrics != null)
+        {
+            flatten(metrics.getJsonObject("counters"), counters, null);
+            flatten(metrics.getJsonObject("gauges"), gauges, null);
+            flatten(metrics.getJsonObject("timers"), timers, "p99_ms");
+        }
+        sample.put("counters", counters);
+        sample.put("gauges", gauges);
+        sample.put("timers", timers);
+
+        samples[next] = sample;
+        next = (next + 1) % samples.length;
+        if (count < samples.length)
+        {
+            count++;
+        }
+    }
+
+    // copy { name: { key: value } } into 'into' as { "name/key": value },
+    // where value is the 'field' of a JsonObject value if field is not null
+    private static void flatten(JsonObject metric, JsonObject into, String field)
+    {
+        if (metric == null)
+        {
+            return;
+        }
+        for (String name : metric.fieldNames())
+        {
+            JsonObject values = metric.getJsonObject(name);
+            for (String key : values.fieldNames())
+            {
+                Object v = field == null ? values.getValue(key) : values.getJsonObject(key).getValue(field);
+                if (v instanceof Number)
+                {
+                    into.put(name+"/"+key, v);
+                }
+            }
+        }
+    }
+
+    // i'th oldest sample
+    private JsonObject get(int i)
+    {
+        return samples[(next - count + i + samples.length) % samples.length];
+    }
+
+    // ***********************************************************************************
+    // downsample()
+    // Samples since 'since_ts' (seconds) in buckets of 'step' seconds:
+    // [ { "ts": <bucket start>, "samples": n, "up": <min up>,
+    //     "rates": { "msgs_in/cam_park_rss": <per second>, ... },
+    //     "counters": { <last value in bucket> },
+    //     "gauges": { <mean> },
+    //     "timers": { <max p99_ms> } }, ... ]
+    // ***********************************************************************************
+    JsonArray downsample(long since_ts, long step)
+    {
+        JsonArray result = new JsonArray();
+
+        JsonObject bucket = null;
+        long bucket_ts = 0;
+        JsonObject bucket_first = null; // sample preceding the bucket, for counter rates
+        JsonObject prev = null;
+        JsonObject gauge_sums = null;
+
+        for (int i=0; i<count; i++)
+        {
+            JsonObject s = get(i);
+            long ts = s.getLong("ts");
+            if (ts < since_ts)
+            {
+                prev = s;
+                continue;
+            }
+            long b = ts - ts % step;
+            if (bucket == null || b != bucket_ts)
+            {
+                if (bucket != null)
+                {
+                    finish_bucket(bucket, bucket_first, prev, gauge_sums);
+                    result.add(bucket);
+                }
+                bucket_ts = b;
+                bucket_first = prev != null ? prev : s;
+                gauge_sums = new JsonObject();
+                bucket = new JsonObject()
+                    .put("ts", b)
+                    .put("samples", 0)
+                    .put("up", 1)
+                    .put("timers", new JsonObject());
+            }
+            bucket.put("samples", bucket.getInteger("samples") + 1);
+            bucket.put("up", Math.min(bucket.getInteger("up"), s.getInteger("up")));
+
+            JsonObject gauges = s.getJsonObject("gauges");
+            for (String k : gauges.fieldNames())
+            {
+                gauge_sums.put(k, gauge_sums.getDouble(k, 0.0) + gauges.getDouble(k));
+            }
+            JsonObject timers = s.getJsonObject("timers");
+            JsonObject bucket_timers = bucket.getJsonObject("timers");
+            for (String k : timers.fieldNames())
+            {
+                bucket_timers.put(k, Math.max(bucket_timers.getDouble(k, 0.0), timers.getDouble(k)));
+            }
+            prev = s;
+        }
+        if (bucket != null)
+        {
+            finish_bucket(bucket, bucket_first, prev, gauge_sums);
+            result.add(bucket);
+        }
+        return result;
+    }
+
+    // add counters, rates and gauge means to 'bucket', which ends with sample 'last'
+    private static void finish_bucket(JsonObject bucket, JsonObject first, JsonObject last, JsonObject gauge_sums)
+    {
+        JsonObject counters = last.getJsonObject("counters");
+        bucket.put("counters", counters);
+
+        JsonObject rates = new JsonObject();
+        long dt = last.getLong("ts") - first.getLong("ts");
+        JsonObject first_counters = first.getJsonObject("counters");
+        for (String k : counters.fieldNames())
+        {
+            long delta = counters.getLong(k) - first_counters.getLong(k, 0L);
+            // a counter that went down means the module restarted, so count from zero
+            if (delta < 0)
+            {
+                delta = counters.getLong(k);
+            }
+            rates.put(k, dt > 0 ? Math.round(delta * 1000.0 / dt) / 1000.0 : 0.0);
+        }
+        bucket.put("rates", rates);
+
+        int n = bucket.getInteger("samples");
+        JsonObject gauges = new JsonObject();
+        for (String k : gauge_sums.fieldNames())
+        {
+            gauges.put(k, Math.round(gauge_sums.getDouble(k) * 1000.0 / n) / 1000.0);
+        }
+        bucket.put("gauges", gauges);
+    }
+
+} // end class ModuleHistory
@@ -0,0 +1,189 @@
+package uk.ac.cam.tfc_server.console;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// PrometheusText.java
+//
+// Formats the latest status messages held by the Console StatusCache in the Prometheus text
+// exposition format (version 0.0.4), served by Console at /<BASE_URI>/metrics.
+//
+// For each module instance (module_name, module_id):
+//   tfc_module_up                          1 if the module status is UP and not yet 'red'
+//   tfc_module_last_seen_timestamp_seconds the "ts" of the latest status message
+// and for the "metrics" property of the status message (see util/Metrics.java):
+//   counters  tfc_<name>_total                        counter
+//   gauges    tfc_<name>                              gauge
+//   timers    tfc_<name>_seconds{quantile="0.5"|"0.99"}, _seconds_count, _seconds_sum   summary
+//             tfc_<name>_seconds_max                  gauge
+// each labelled with module_name, module_id and the registry's key label (e.g. feed_id).
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+class PrometheusText {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "tfc_";
+
+    // metric family name -> TYPE and sample lines, so each family is written as one block
+    private final TreeMap<String, Family> families = new TreeMap<String, Family>();
+
+    private static class Family {
+        String type;
+        List<String> samples = new ArrayList<String>();
+
+        Family(String type)
+        {
+            this.type = type;
+        }
+    }
+
+    // Build the text exposition for 'status_messages' as held in the StatusCache
+    static String format(JsonArray status_messages, long now_seconds)
+    {
+        PrometheusText p = new PrometheusText();
+        for (int i=0; i<status_messages.size(); i++)
+        {
+            p.add_status(status_messages.getJsonObject(i), now_seconds);
+        }
+        return p.toString();
+    }
+
+    private void add_status(JsonObject status, long now_seconds)
+    {
+        String module_labels = "module_name=\""+escape(status.getString("module_name",""))+"\","+
+                               "module_id=\""+escape(status.getString("module_id",""))+"\"";
+
+        long ts = status.getLong("ts", 0L);
+        long red_seconds = status.getLong("status_red_seconds", 0L);
+        boolean up = "UP".equals(status.getString("status")) &&
+                     (red_seconds == 0 || now_seconds - ts < red_seconds);
+
+        sample("module_up", "gauge", "{"+module_labels+"}", up ? 1 : 0);
+        sample("module_last_seen_timestamp_seconds", "gauge", "{"+module_labels+"}", ts);
+
+        JsonObject metrics = status.getJsonObject("metrics");
+        if (metrics == null)
+        {
+            return;
+        }
+        String key_label = label_name(metrics.getString("label", "key"));
+        if (key_label.equals("module_name") || key_label.equals("module_id") || key_label.equals("quantile"))
+        {
+            key_label = "key_"+key_label;
+        }
+
+        for (Map.Entry<String, Object> m : entries(metrics.getJsonObject("counters")))
+        {
+            for (Map.Entry<String, Object> v : entries((JsonObject) m.getValue()))
+            {
+                sample(m.getKey()+"_total", "counter", labels(module_labels, key_label, v.getKey(), null),
+                       (Number) v.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Object> m : entries(metrics.getJsonObject("gauges")))
+        {
+            for (Map.Entry<String, Object> v : entries((JsonObject) m.getValue()))
+            {
+                sample(m.getKey(), "gauge", labels(module_labels, key_label, v.getKey(), null),
+                       (Number) v.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Object> m : entries(metrics.getJsonObject("timers")))
+        {
+            String name = m.getKey()+"_seconds";
+            for (Map.Entry<String, Object> v : entries((JsonObject) m.getValue()))
+            {
+                JsonObject t = (JsonObject) v.getValue();
+                String key = v.getKey();
+                sample(name, "summary", labels(module_labels, key_label, key, "0.5"),
+                       seconds(t.getDouble("p50_ms", 0.0)));
+                sample(name, "summary", labels(module_labels, key_label, key, "0.99"),
+                       seconds(t.getDouble("p99_ms", 0.0)));
+                sample_suffix(name, "_sum", labels(module_labels, key_label, key, null),
+                              seconds(t.getDouble("sum_ms", 0.0)));
+                sample_suffix(name, "_count", labels(module_labels, key_label, key, null),
+                              t.getLong("count", 0L));
+                sample(name+"_max", "gauge", labels(module_labels, key_label, key, null),
+                       seconds(t.getDouble("max_ms", 0.0)));
+            }
+        }
+    }
+
+    // add sample 'name' (without prefix) of 'type'
+    private void sample(String name, String type, String labels, Number value)
+    {
+        String family = PREFIX+metric_name(name);
+        families.computeIfAbsent(family, k -> new Family(type))
+                .samples.add(family+labels+" "+value);
+    }
+
+    // add a sample to the existing family 'name' with the name suffix, i.e. the _sum and _count of a summary
+    private void sample_suffix(String name, String suffix, String labels, Number value)
+    {
+        String family = PREFIX+metric_name(name);
+        families.get(family).samples.add(family+suffix+labels+" "+value);
+    }
+
+    // convert the (rounded) milliseconds in the metrics to seconds without adding float noise
+    private static BigDecimal seconds(double ms)
+    {
+        return BigDecimal.valueOf(ms).movePointLeft(3).stripTrailingZeros();
+    }
+
+    private static String labels(String module_labels, String key_label, String key, String quantile)
+    {
+        return "{"+module_labels+","+key_label+"=\""+escape(key)+"\""+
+               (quantile == null ? "" : ",quantile=\""+quantile+"\"")+"}";
+    }
+
+    private static Iterable<Map.Entry<String, Object>> entries(JsonObject jo)
+    {
+        return jo == null ? new JsonObject() : jo;
+    }
+
+    // metric names are [a-zA-Z_:][a-zA-Z0-9_:]*
+    private static String metric_name(String s)
+    {
+        return s.replaceAll("[^a-zA-Z0-9_:]", "_");
+    }
+
+    // label names are [a-zA-Z_][a-zA-Z0-9_]*
+    private static String label_name(String s)
+    {
+        String name = s.replaceAll("[^a-zA-Z0-9_]", "_");
+        return name.isEmpty() || Character.isDigit(name.charAt(0)) ? "_"+name : name;
+    }
+
+    // label values escape backslash, double-quote and newline
+    private static String escape(String s)
+    {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> e : families.entrySet())
+        {
+            sb.append("# TYPE ").append(e.getKey()).append(' ').append(e.getValue().type).append('\n');
+            for (String line : e.getValue().samples)
+            {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+} // end class PrometheusText
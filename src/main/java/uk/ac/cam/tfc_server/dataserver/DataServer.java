@@ -48,6 +48,7 @@ import java.util.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Log;
 
 public class DataServer extends AbstractVerticle {
@@ -67,6 +68,8 @@ public class DataServer extends AbstractVerticle {
     public String DATA_PATH; // from config() base filesystem path to data
 
     public String FEED_ID = "vix"; //debug until we manage alternative feeds properly
+
+    public String ZONE_STATS_ADDRESS; // from config(), optional zone.address to collect zone_stats messages from
     
     // Globals
     public String BASE_URI; // used as template parameter for web pages, built from config()
@@ -80,6 +83,9 @@ public class DataServer extends AbstractVerticle {
     // Vertx event bus
     private EventBus eb = null; // at least for system_status messages, not for the browser
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("uri");
+
     @Override
     public void start(Future<Void> fut) throws Exception
     {
@@ -169,6 +175,7 @@ public class DataServer extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -245,6 +252,9 @@ public class DataServer extends AbstractVerticle {
                 return false;
             }
 
+        // optional, the Zones' zone.address, to serve their latest zone_stats via the ZoneAPI
+        ZONE_STATS_ADDRESS = config().getString(MODULE_NAME+".zone_stats_address");
+
         // where the built-in webserver will find static files
         GOOGLE_MAP_API_KEY = config().getString(MODULE_NAME+".google_map_api_key");
         if (GOOGLE_MAP_API_KEY==null)
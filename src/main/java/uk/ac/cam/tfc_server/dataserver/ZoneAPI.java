@@ -7,6 +7,7 @@ package uk.ac.cam.tfc_server.dataserver;
 //   /api/dataserver/zone/list
 //   /api/dataserver/zone/config/madingley_road_in
 //   /api/dataserver/zone/transits/madingley_road_in/2016/10/01
+//   /api/dataserver/zone/stats/madingley_road_in
 //
 
 import java.util.ArrayList;
@@ -28,6 +29,7 @@ import io.vertx.ext.web.RoutingContext;
 
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class ZoneAPI {
 
@@ -41,6 +43,9 @@ public class ZoneAPI {
 
     private DataServer parent;
 
+    // latest zone_stats message from each zone (by zone_id), if dataserver.zone_stats_address is set
+    private HashMap<String, JsonObject> zone_stats = new HashMap<String, JsonObject>();
+
     public ZoneAPI(Vertx vertx, DataServer caller, Router router)
     {
 	parent = caller;
@@ -89,6 +94,39 @@ public class ZoneAPI {
                 serve_config(vertx, ctx, zone_id);
             });
 
+        // ZONE STATS API e.g. /api/dataserver/zone/stats/madingley_road_in
+        // or /api/dataserver/zone/stats for all zones
+
+        if (parent.ZONE_STATS_ADDRESS != null)
+        {
+            vertx.eventBus().consumer(parent.ZONE_STATS_ADDRESS, message -> {
+                    // only the zone_stats messages are kept, of all those on the zone.address
+                    JsonObject msg = FeedMessageCodec.json_body(message.body());
+                    if (Constants.ZONE_STATS.equals(msg.getString("msg_type")))
+                    {
+                        zone_stats.put(msg.getString("module_id"), msg);
+                    }
+                });
+
+            router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/stats/:zoneid").handler( ctx -> {
+                    String zone_id =  ctx.request().getParam("zoneid");
+                    parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                               ": API zone/stats/"+zone_id);
+                    serve_stats(ctx, zone_stats.get(zone_id));
+                });
+
+            router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/stats").handler( ctx -> {
+                    parent.logger.log(Constants.LOG_DEBUG, parent.MODULE_NAME+"."+parent.MODULE_ID+
+                               ": API zone/stats");
+                    JsonObject all_stats = new JsonObject();
+                    for (Map.Entry<String, JsonObject> entry : zone_stats.entrySet())
+                    {
+                        all_stats.put(entry.getKey(), entry.getValue());
+                    }
+                    serve_stats(ctx, all_stats);
+                });
+        }
+
         // ZONE LIST API e.g. /api/dataserver/zone/list
         
         router.route(HttpMethod.GET, "/api/"+parent.MODULE_NAME+"/zone/list").handler( ctx -> {
@@ -121,6 +159,25 @@ public class ZoneAPI {
         }
     }
 
+    // Serve the latest zone/stats json data (received from the zone.address)
+    void serve_stats(RoutingContext ctx, JsonObject stats)
+    {
+        if (stats == null)
+        {
+            ctx.response().setStatusCode(404).end();
+            return;
+        }
+
+        HttpServerResponse response = ctx.response();
+        response.putHeader("content-type", "text/plain");
+
+        JsonObject jo = new JsonObject();
+        jo.put("module_name", parent.MODULE_NAME);
+        jo.put("module_id", parent.MODULE_ID);
+        jo.put("request_data", stats);
+        response.end(jo.toString());
+    }
+
     // Serve the zone/config json data
     void serve_config(Vertx vertx, RoutingContext ctx,
                       String zone_id)
@@ -10,16 +10,19 @@ package uk.ac.cam.tfc_server.everynet_feed;
 //
 //
 // Will WRITE the raw binary post data into:
-//   TFC_DATA_MONITOR/<filename>
-//   TFC_DATA_BIN/YYYY/MM/DD/<filename>
+//   TFC_DATA_MONITOR/<dev_eui>/post_data.bin
+//   TFC_DATA_BIN/<dev_eui>/YYYY/MM/DD/<filename>
 //
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// and post_data.bin is atomically replaced on each message (see util/LatestFileWriter)
 //
 // Config values are read from provided vertx config() json file, e.g. see README.md
 //
 // Will publish the feed data as a JSON string on eventbus.
 //
+// With feed config "batch_ms" > 0, uplinks received within batch_ms (up to "batch_max" uplinks)
+// are published as a single eventbus message (see README.md).
+//
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -56,11 +59,16 @@ import java.util.Base64;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.LatestFileWriter;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.FeedBatcher;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class EverynetFeed extends AbstractVerticle {
 
-    private final String VERSION = "0.07";
+    private final String VERSION = "0.10";
     
     // from config()
     private String MODULE_NAME;       // config module.name - normally "feedscraper"
@@ -79,11 +87,21 @@ public class EverynetFeed extends AbstractVerticle {
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
+    private final int BATCH_MAX_DEFAULT = 100; // feed config batch_max, when batch_ms > 0
+
+    // data_bin filename and path formats (local time)
+    private static final DateTimeFormatter FILENAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+    private static final DateTimeFormatter FILEPATH_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
     // global vars
     private HashMap<String,HttpClient> http_clients; // used to store a HttpClient for each feed_id
+    private HashMap<String,LatestFileWriter> monitor_writers; // data_monitor file writer for each device path
+    private HashMap<String,FeedBatcher<Uplink>> batchers; // micro-batcher for feeds with batch_ms > 0
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("feed_id");
+
     private Log logger;
     
   @Override
@@ -96,6 +114,12 @@ public class EverynetFeed extends AbstractVerticle {
     // create holder for HttpClients
     http_clients = new HashMap<String,HttpClient>();
 
+    // create holder for data_monitor file writers
+    monitor_writers = new HashMap<String,LatestFileWriter>();
+
+    // create holder for feed micro-batchers, indexed on feed_id
+    batchers = new HashMap<String,FeedBatcher<Uplink>>();
+
     // load initialization values from config()
     if (!get_config())
           {
@@ -110,6 +134,8 @@ public class EverynetFeed extends AbstractVerticle {
 
     // create link to EventBus
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
 
     // send periodic "system_status" messages
     vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
@@ -133,9 +159,31 @@ public class EverynetFeed extends AbstractVerticle {
     // connect router to http_server, including the feed POST handlers added
     http_server.requestHandler(router).listen(HTTP_PORT);
     logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": http server started on port "+ HTTP_PORT);
-    
+
+    // complete the deployment, so stop() is called when the verticle is undeployed
+    fut.complete();
+
   } // end start()
 
+    // ****************************************************************************
+    // stop()
+    // Flush the micro-batches when the verticle is undeployed (e.g. on vertx.close()),
+    // so the uplinks waiting in a batch are still written to data_monitor and published.
+    // (Each uplink has already been written to data_bin as it was received.)
+    // ****************************************************************************
+  @Override
+  public void stop() throws Exception
+  {
+    for (String feed_id : batchers.keySet())
+        {
+            try {
+                batchers.get(feed_id).flush();
+            } catch (Exception e) {
+                Log.log_err(MODULE_NAME+"."+MODULE_ID+"."+feed_id+": stop() error flushing batch "+e);
+            }
+        }
+  } // end stop()
+
     // *************************************
     // start a feed maker with a given config
     private void start_maker(JsonObject config, Router router, String BASE_URI)
@@ -161,6 +209,14 @@ public class EverynetFeed extends AbstractVerticle {
                      ": starting "+MODULE_NAME+" for "+
                      config.getString("feed_id"));
 
+          // optional micro-batching of the uplinks received within batch_ms
+          if (config.getInteger("batch_ms") > 0)
+          {
+              batchers.put(config.getString("feed_id"),
+                           new FeedBatcher<Uplink>(vertx, config.getInteger("batch_ms"), config.getInteger("batch_max"),
+                                                   uplinks -> { process_batch(uplinks, config); }));
+          }
+
           add_feed_handler(router, BASE_URI, config);
 
     }
@@ -174,6 +230,7 @@ public class EverynetFeed extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -199,8 +256,8 @@ public class EverynetFeed extends AbstractVerticle {
                         try {
                             // read the head value "X-Auth-Token" from the POST
                             String post_token = ctx.request().getHeader("X-Auth-Token");
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                                       ": X-Auth-Token="+post_token);
+                            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                             ": X-Auth-Token="+post_token);
                             // if the token matches the config(), or config() http.token is null
                             // then parse this assumed gtfs-realtime POST data
                             if (HTTP_TOKEN==null || HTTP_TOKEN.equals(post_token))
@@ -225,7 +282,7 @@ public class EverynetFeed extends AbstractVerticle {
     private String local_datetime_string()
     {
         LocalDateTime local_time = LocalDateTime.now();
-        return local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
+        return local_time.format(FILENAME_FORMAT);
     }
 
   // *****************************************************************
@@ -236,10 +293,18 @@ public class EverynetFeed extends AbstractVerticle {
     JsonArray request_data = new JsonArray();
     JsonObject params; 
     String dev_eui; // unique identifier from CSN device, contained in json "params>dev_eui"
-    String utc_ts = String.valueOf(System.currentTimeMillis() / 1000);
+    long utc_milliseconds = System.currentTimeMillis();
+    String utc_ts = String.valueOf(utc_milliseconds / 1000);
+
+    final String feed_id = config.getString("feed_id");
+
+    metrics.inc("msgs_in", feed_id);
+    metrics.add("bytes_in", feed_id, buf.length());
 
     try {
+           long parse_start = System.nanoTime();
            JsonObject jo = new JsonObject(buf.toString());
+           metrics.time("parse", feed_id, System.nanoTime() - parse_start);
            request_data.add(jo);
            params = request_data.getJsonObject(0).getJsonObject("params");
            dev_eui = params.getString("dev_eui");
@@ -248,39 +313,43 @@ public class EverynetFeed extends AbstractVerticle {
            // *****************************************************************************
            if (!request_data.getJsonObject(0).getString("method").equals("uplink"))
            {
-               logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": skipping non-uplink msg "+utc_ts);
+               logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": skipping non-uplink msg "+utc_ts);
                return;
            }
     }
     catch (Exception e) {
+        metrics.inc("errors", feed_id);
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+                   ": exception raised during parsing of feed "+feed_id+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
         return;
     }
 
 
-    LocalDateTime local_time = LocalDateTime.now();
-    
-    String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
-    String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
-    String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
+    LocalDateTime local_time = LocalDateTime.ofInstant(Instant.ofEpochMilli(utc_milliseconds), ZoneId.systemDefault());
 
     // filename without the suffix
-    String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
+    String filename = utc_ts+"_"+local_time.format(FILENAME_FORMAT);
     // sub-dir structure to store the file
-    String filepath = year+"/"+month+"/"+day;
-    
+    String filepath = local_time.format(FILEPATH_FORMAT);
+
+    Uplink uplink = new Uplink(buf, request_data.getJsonObject(0), dev_eui, utc_milliseconds, filename, filepath);
+
     // Write file to DATA_BIN
     //
-    final String bin_path = config.getString("data_bin")+"/"+dev_eui+"/"+filepath;
-    final String file_suffix = config.getString("file_suffix");
-    write_bin_file(buf, bin_path, filename, file_suffix);
+    store_uplink(uplink, config);
+
+    // With batching, the uplink is written to DATA_MONITOR and published with the others of its batch
+    FeedBatcher<Uplink> batcher = batchers.get(feed_id);
+    if (batcher != null)
+    {
+        batcher.add(uplink);
+        return;
+    }
 
     // Write file to DATA_MONITOR
     //
-    final String monitor_path = config.getString("data_monitor")+"/"+dev_eui;
-    write_monitor_file(buf, monitor_path, filename, file_suffix);
+    write_monitor_file(buf, config.getString("data_monitor")+"/"+dev_eui, config);
 
     // Place the received data into a suitable EventBus JsonObject message
     JsonObject msg = new JsonObject();
@@ -288,7 +357,7 @@ public class EverynetFeed extends AbstractVerticle {
     msg.put("module_name", MODULE_NAME);
     msg.put("module_id", MODULE_ID);
     msg.put("msg_type", config.getString("msg_type"));
-    msg.put("feed_id", config.getString("feed_id"));
+    msg.put("feed_id", feed_id);
     msg.put("filename", filename);
     msg.put("filepath", filepath);
     msg.put("ts", Integer.parseInt(utc_ts));
@@ -298,52 +367,161 @@ public class EverynetFeed extends AbstractVerticle {
 
     try {            
 
-        // *****************************************************************************
-        // **** Only send 'uplink' messages to the eventbus
-        // *****************************************************************************
-        if (!request_data.getJsonObject(0).getString("method").equals("uplink"))
-        {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": skipping non-uplink msg "+utc_ts);
-            return;
-        }
-
-        if (config.getString("msg_type").equals(Constants.EVERYNET_ASCII_DECIMAL))
-        {
-            msg.put("decoded_payload", new String(Base64.getDecoder().decode(params.getString("payload"))));
-        } else if (config.getString("msg_type").equals(Constants.EVERYNET_ASCII_HEX))
-        {
-            msg.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
-        } else if (config.getString("msg_type").equals(Constants.EVERYNET_ADEUNIS_TEST))
-        {
-            JsonObject adeunis = parse_adeunis_test(params.getString("payload"));
-            msg.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
-            msg.put("lat", adeunis.getFloat("lat"));
-            msg.put("lng", adeunis.getFloat("lng"));
-        } else
-        {
-            msg.put("decoded_payload", params.getString("payload"));
-        }
+        decode_payload(msg, params, config.getString("msg_type"));
 
         msg.put("request_data", request_data);
     
         // debug print out the JsonObject message
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
-        logger.log(Constants.LOG_DEBUG, msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+        logger.log(Constants.LOG_DEBUG, () -> msg.toString());
 
         String feed_address = config.getString("address");
 
-        eb.publish(feed_address, msg);
+        eb.publish(feed_address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+        metrics.inc("msgs_out", feed_id);
+        metrics.inc("records_out", feed_id);
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": published latest GET data to "+feed_address);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": published latest GET data to "+feed_address);
     }
     catch (Exception e) {
+        metrics.inc("errors", feed_id);
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+                   ": exception raised during parsing of feed "+feed_id+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
     }
   } // end process_feed()
 
+  // *****************************************************************
+  // process a micro-batch of uplinks (feeds with batch_ms > 0)
+  // Each uplink has already been written to data_bin. The latest uplink of each device is written
+  // to its data_monitor directory, and the batch is published as one eventbus message with a
+  // 'request_data' record per uplink, each with its own "sensor_id", decoded payload, "filename"
+  // and "received_ms". The message properties are those of the first uplink, as for a single uplink
+  // (MsgRouter splits the batch into a message per uplink, see MsgRouter.unbatch()).
+  private void process_batch(List<Uplink> uplinks, JsonObject config)
+  {
+    final String feed_id = config.getString("feed_id");
+    final String msg_type = config.getString("msg_type");
+
+    // Write the latest data of each device to DATA_MONITOR
+    LinkedHashMap<String,Buffer> latest = new LinkedHashMap<String,Buffer>();
+    for (Uplink u : uplinks)
+    {
+        latest.put(u.dev_eui, u.buf);
+    }
+    for (Map.Entry<String,Buffer> entry : latest.entrySet())
+    {
+        write_monitor_file(entry.getValue(), config.getString("data_monitor")+"/"+entry.getKey(), config);
+    }
+
+    JsonObject msg = null;
+    JsonArray request_data = new JsonArray();
+    for (Uplink u : uplinks)
+    {
+        try {
+            JsonObject record = u.jo;
+            decode_payload(record, record.getJsonObject("params"), msg_type);
+            record.put("sensor_id", u.dev_eui);
+            record.put("filename", u.filename);
+            record.put("received_ms", u.ts_ms);
+
+            if (msg == null)
+            {
+                msg = new JsonObject();
+                msg.put("module_name", MODULE_NAME);
+                msg.put("module_id", MODULE_ID);
+                msg.put("msg_type", msg_type);
+                msg.put("feed_id", feed_id);
+                msg.put("filename", u.filename);
+                msg.put("filepath", u.filepath);
+                msg.put("ts", u.ts_ms / 1000);
+                msg.put("sensor_id", u.dev_eui);
+                msg.put("sensor_type", Constants.SENSOR_TYPE_LORAWAN);
+                decode_payload(msg, record.getJsonObject("params"), msg_type);
+            }
+            request_data.add(record);
+        }
+        catch (Exception e) {
+            metrics.inc("errors", feed_id);
+            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                       ": exception raised during parsing of feed "+feed_id+": "+e.getMessage());
+        }
+    }
+
+    if (msg == null)
+    {
+        return;
+    }
+
+    msg.put("request_data", request_data);
+
+    final JsonObject batch_msg = msg;
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+    logger.log(Constants.LOG_DEBUG, () -> batch_msg.toString());
+
+    String feed_address = config.getString("address");
+
+    eb.publish(feed_address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+    metrics.inc("msgs_out", feed_id);
+    metrics.add("records_out", feed_id, request_data.size());
+
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": published batch of "+request_data.size()+" uplinks to "+feed_address);
+  } // end process_batch()
+
+  // write an uplink to DATA_BIN/<dev_eui>/yyyy/MM/dd
+  private void store_uplink(Uplink uplink, JsonObject config)
+  {
+    final String bin_path = config.getString("data_bin")+"/"+uplink.dev_eui+"/"+uplink.filepath;
+    // data_bin/<dev_eui>/yyyy/MM/dd is per device, so not registered with DirCache.add_daily()
+    // (that would create an empty directory for every device every day), DirCache.write_file()
+    // creates it with the device's first uplink of the day
+    write_bin_file(uplink.buf, bin_path, uplink.filename, config.getString("file_suffix"), config.getString("feed_id"));
+  }
+
+  // put the "decoded_payload" (and for the Adeunis test device "lat", "lng") of the uplink
+  // 'params' into 'jo', according to the feed msg_type
+  private void decode_payload(JsonObject jo, JsonObject params, String msg_type)
+  {
+    if (msg_type.equals(Constants.EVERYNET_ASCII_DECIMAL))
+    {
+        jo.put("decoded_payload", new String(Base64.getDecoder().decode(params.getString("payload"))));
+    } else if (msg_type.equals(Constants.EVERYNET_ASCII_HEX))
+    {
+        jo.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
+    } else if (msg_type.equals(Constants.EVERYNET_ADEUNIS_TEST))
+    {
+        JsonObject adeunis = parse_adeunis_test(params.getString("payload"));
+        jo.put("decoded_payload", to_hex(Base64.getDecoder().decode(params.getString("payload"))));
+        jo.put("lat", adeunis.getFloat("lat"));
+        jo.put("lng", adeunis.getFloat("lng"));
+    } else
+    {
+        jo.put("decoded_payload", params.getString("payload"));
+    }
+  }
+
+  // An uplink waiting in a micro-batch
+  private static class Uplink {
+    final Buffer buf;
+    final JsonObject jo;      // parsed uplink
+    final String dev_eui;
+    final long ts_ms;         // receive time, UTC milliseconds
+    final String filename;    // data_bin filename without suffix
+    final String filepath;    // data_bin yyyy/MM/dd
+
+    Uplink(Buffer buf, JsonObject jo, String dev_eui, long ts_ms, String filename, String filepath)
+    {
+        this.buf = buf;
+        this.jo = jo;
+        this.dev_eui = dev_eui;
+        this.ts_ms = ts_ms;
+        this.filename = filename;
+        this.filepath = filepath;
+    }
+  }
+
     // Parse the payload from the Adeunis test device
     // http://www.adeunis-rf.com/en/products/lorawan-products/field_test_device_lorawan_868
     // 0  1  2  3  4  5  6  7  8  9  10 11 12 13
@@ -376,8 +554,8 @@ public class EverynetFeed extends AbstractVerticle {
         // bit indicating record included GPS is bit 4 (where bit 0 is lsb) of first byte in record
         if (byte_0[4])
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis record contains GPS "+to_hex(buf));
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": adeunis record contains GPS "+to_hex(buf));
 
             // Parse Latitude
             
@@ -432,8 +610,8 @@ public class EverynetFeed extends AbstractVerticle {
 
         } else
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": adeunis record does NOT contain GPS");
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": adeunis record does NOT contain GPS");
         }            
         return jo;
     }
@@ -470,37 +648,28 @@ public class EverynetFeed extends AbstractVerticle {
     //
     // Write the 'buf' (i.e. the binary data as received) into a file at
     // 'bin_path/filename/file_suffix'
+    // The time to completion is recorded as the "write" metric for feed_id.
     //
-    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix)
+    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix,
+                                String feed_id)
     {
-        FileSystem fs = vertx.fileSystem();
-        // if full directory path exists, then write file
-        // otherwise create full path first
+        // DirCache only creates the full directory path if it is not already known to exist
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": Writing "+bin_path+"/"+filename + file_suffix);
-        fs.exists(bin_path, result -> {
-                if (result.succeeded() && result.result())
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": Writing "+bin_path+"/"+filename + file_suffix);
+        long write_start = System.nanoTime();
+        DirCache.write_file(vertx, bin_path, bin_path+"/"+filename+ file_suffix, buf, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (result.succeeded())
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": process_feed: path "+bin_path+" exists");
-                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": File "+bin_path+"/"+filename+ file_suffix+" written");
                     }
                 else
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Creating directory "+bin_path);
-                        fs.mkdirs(bin_path, mkdirs_result -> {
-                                if (mkdirs_result.succeeded())
-                                    {
-                                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                                    }
-                                else
-                                    {
-                                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
-                                                    ": error creating tfc_data_bin path "+bin_path);
-                                    }
-                            });
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_bin_file error "+bin_path+" ..." + result.cause());
                     }
         });
     }        
@@ -508,68 +677,34 @@ public class EverynetFeed extends AbstractVerticle {
     // ************************************************************************************
     // write_monitor_file()
     //
-    // Write 'buf' to file in the filesystem, deleting previous files in the same directory
-    // This is convenient for a separate 'inotifywait' process to listen for file-close-write
-    // events on that directory and trigger separate processes, e.g. to POST the file onward.
+    // Write 'buf' as the latest file in the device's data_monitor directory (via LatestFileWriter,
+    // which writes a temp file and renames it over a stable name, coalescing bursts if configured).
+    // This is convenient for a separate 'inotifywait' process to listen for events on
+    // that directory and trigger separate processes, e.g. to POST the file onward.
+    // A LatestFileWriter is created on the first message from each device, and will create
+    // the monitor_path directory if necessary.
     //
-    private void write_monitor_file(Buffer buf, String monitor_path, String filename, String file_suffix)
+    private void write_monitor_file(Buffer buf, String monitor_path, JsonObject config)
     {
-        FileSystem fs = vertx.fileSystem();
+        LatestFileWriter monitor_writer = monitor_writers.get(monitor_path);
+
+        if (monitor_writer == null)
+        {
+            monitor_writer = new LatestFileWriter(vertx,
+                                                  monitor_path,
+                                                  config.getString("data_monitor_name"),
+                                                  config.getString("file_suffix"),
+                                                  config.getInteger("data_monitor_coalesce"),
+                                                  logger,
+                                                  MODULE_NAME+"."+MODULE_ID+"."+config.getString("feed_id"));
+            monitor_writers.put(monitor_path, monitor_writer);
+        }
 
         logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+monitor_path+"/"+filename+ file_suffix);
-        fs.readDir(monitor_path, ".*\\"+file_suffix, monitor_result -> {
-            if (monitor_result.succeeded())
-                {
-                    // directory exists, delete previous files of same suffix
-                    for (String f: monitor_result.result())
-                        {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": Deleting "+f);
-                            fs.delete(f, delete_result -> {
-                                    if (!delete_result.succeeded())
-                                        {
-                                          logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                      ": write_monitor_file error deleting file: "+f);
-                                        }
-                                });
-                        }
-                    write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                ": error reading data_monitor path: "+
-                                monitor_path);
-                    logger.log(Constants.LOG_WARN, monitor_result.cause().getMessage());
-                    try {
-                        fs.mkdirsBlocking(monitor_path);
-                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
-                                   ": write_monitor_file created monitor path "+monitor_path);
-                        write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                    } catch (Exception e) {
-                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                   ": write_monitor_file FAIL: error creating monitor path "+monitor_path);
-                    }
-                }
-        });
-    }
+               ": Writing "+monitor_writer.get_path());
 
-  // ***************************************************
-  // Write the 'buf' as a file 'filepath' (non-blocking)
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
-  {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
+        monitor_writer.write(buf);
+    }
 
     // validate_feeds() will validate a feeds config, and insert default values
     // The config is kept as a JsonArray
@@ -614,6 +749,42 @@ public class EverynetFeed extends AbstractVerticle {
                         config.put("file_suffix",".bin");
                     }
 
+                // stable filename (without suffix) of the latest file in data_monitor/<dev_eui>
+                if (config.getString("data_monitor_name")==null)
+                    {
+                        config.put("data_monitor_name", LatestFileWriter.DEFAULT_NAME);
+                    }
+
+                // window (ms) within which successive data_monitor writes are coalesced, 0 = none
+                if (config.getInteger("data_monitor_coalesce")==null)
+                    {
+                        config.put("data_monitor_coalesce", 0);
+                    }
+
+                // micro-batching window (ms) for the eventbus messages, 0 = a message per uplink
+                if (config.getInteger("batch_ms")==null)
+                    {
+                        config.put("batch_ms", 0);
+                    }
+                if (config.getInteger("batch_ms") < 0)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": batch_ms must be >= 0");
+                        return false;
+                    }
+
+                // maximum uplinks in a batch
+                if (config.getInteger("batch_max")==null)
+                    {
+                        config.put("batch_max", BATCH_MAX_DEFAULT);
+                    }
+                if (config.getInteger("batch_max") < 1)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": batch_max must be >= 1");
+                        return false;
+                    }
+
             }
 
         return true; // if we got to here then we can return ok, error would have exitted earlier
@@ -4,7 +4,7 @@ package uk.ac.cam.tfc_server.feedcsv;
 // *************************************************************************************************
 // *************************************************************************************************
 // FeedCSV.java
-// Version 0.10
+// Version 0.11
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
@@ -36,6 +36,9 @@ import java.time.format.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class FeedCSV extends AbstractVerticle {
     // from config()
@@ -53,6 +56,9 @@ public class FeedCSV extends AbstractVerticle {
     private final int SYSTEM_STATUS_RED_SECONDS = 25;
     
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("address");
     
     private final String CSV_FILE_HEADER = "timestamp,vehicle_id,label,route_id,trip_id,latitude,longitude,bearing,current_stop_sequence,stop_id";
      
@@ -69,12 +75,18 @@ public class FeedCSV extends AbstractVerticle {
       
     System.out.println("FeedCSV: " + MODULE_ID + " started, listening to "+FEEDHANDLER_ADDRESS);
 
+    // TFC_DATA_CSV/yyyy/MM/dd directories will be created ahead of each day
+    DirCache.add_daily(vertx, TFC_DATA_CSV);
+
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
 
     eb.consumer(FEEDHANDLER_ADDRESS, message -> {
       System.out.println("FeedCSV got message from " + FEEDHANDLER_ADDRESS);
       //debug
-      JsonObject feed_message = new JsonObject(message.body().toString());
+      metrics.inc("msgs_in", FEEDHANDLER_ADDRESS);
+      JsonObject feed_message = FeedMessageCodec.json_body(message.body());
       JsonArray entities = feed_message.getJsonArray("entities");
       System.out.println("FeedCSV feed_vehicle message #records: "+String.valueOf(entities.size()));
 
@@ -87,13 +99,21 @@ public class FeedCSV extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
     });
 
+    fut.complete();
+
   } // end start()
 
+  @Override
+  public void stop() throws Exception {
+    DirCache.remove_daily(vertx);
+  }
+
     // Load initialization global constants defining this Zone from config()
     private boolean get_config()
     {
@@ -156,8 +176,6 @@ public class FeedCSV extends AbstractVerticle {
         String filename = feed_message.getString("filename");
         String filepath = feed_message.getString("filepath");
 
-        FileSystem fs = vertx.fileSystem();
-        
         Buffer buf = Buffer.buffer();
 
         // add csv header to buf
@@ -173,31 +191,10 @@ public class FeedCSV extends AbstractVerticle {
         // where TFC_DATA_CSV is given in config() as "feedcsv.tfc_data_csv"
         // and   FILENAME = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.csv
         //
-        // if full directory path exists, then write file
-        // otherwise create full path first
+        // DirCache only creates the full directory path if it is not already known to exist
         final String csv_path = TFC_DATA_CSV+"/"+filepath;
         System.out.println("Writing "+csv_path+"/"+filename+".csv");
-        fs.exists(csv_path, result -> {
-            if (result.succeeded() && result.result())
-                {
-                    System.out.println("FeedCSV: path "+csv_path+" exists");
-                    write_file(fs, buf, csv_path+"/"+filename+".csv");
-                }
-            else
-                {
-                    System.out.println("FeedCSV: Creating directory "+csv_path);
-                    fs.mkdirs(csv_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, csv_path+"/"+filename+".csv");
-                                }
-                            else
-                                {
-                                    System.err.println("FeedCSV."+MODULE_ID+": error creating path "+csv_path);
-                                }
-                        });
-                }
-        });
+        write_file(csv_path, buf, csv_path+"/"+filename+".csv");
     }
 
     private String entity_to_csv(JsonObject entity)
@@ -217,11 +214,13 @@ public class FeedCSV extends AbstractVerticle {
         return csv;
     }
     
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
+  private void write_file(String csv_path, Buffer buf, String file_path)
   {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
+    DirCache.write_file(vertx,
+                        csv_path,
+                        file_path, 
+                        buf, 
+                        result -> {
       if (result.succeeded()) {
         System.out.println("FeedCSV: File "+file_path+" written");
       } else {
@@ -15,11 +15,11 @@ package uk.ac.cam.tfc_server.feedhandler;
 // every 30 seconds for approx 1200 vehicles
 //
 // FeedHandler will WRITE the raw binary post data into:
-//   TFC_DATA_MONITOR/<filename>
+//   TFC_DATA_MONITOR/post_data.bin
 //   TFC_DATA_BIN/YYYY/MM/DD/<filename>
 //   TFC_DATA_CACHE/YYYY/MM-DD/<filename>
 // where <filename> = <UTC TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// except TFC_DATA_MONITOR/post_data.bin is atomically replaced (see util/LatestFileWriter)
 //
 // Config values are read from provided vertx config() json file, e.g.
 /*
@@ -78,12 +78,19 @@ import java.util.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.LatestFileWriter;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.SegmentWriter;
+import uk.ac.cam.tfc_server.util.BinIndex;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
 
 public class FeedHandler extends AbstractVerticle {
 
-    private final String VERSION = "1.12";
+    private final String VERSION = "1.17";
     
     // from config()
     private String MODULE_NAME;       // config module.name - normally "feedhandler"
@@ -100,6 +107,12 @@ public class FeedHandler extends AbstractVerticle {
     private String TFC_DATA_CACHE = null;   // MODULE_NAME.tfc_data_cache
     private String TFC_DATA_BIN = null;     // MODULE_NAME.tfc_data_bin
     private String TFC_DATA_MONITOR = null; // MODULE_NAME.tfc_data_monitor
+    private String TFC_DATA_MONITOR_NAME;   // MODULE_NAME.tfc_data_monitor_name, default "post_data"
+    private int    TFC_DATA_MONITOR_COALESCE; // MODULE_NAME.tfc_data_monitor_coalesce (ms), default 0
+    private String DATA_SEGMENT = null;     // MODULE_NAME.data_segment, "daily" | "hourly", default null (file per message)
+    private boolean DATA_INDEX;             // MODULE_NAME.data_index, maintain TFC_DATA_BIN day index, default true
+    private String PARTITION;               // MODULE_NAME.partition, eventbus partitioning (see FeedPartitioner), default "none"
+    private double PARTITION_GRID_DEG;      // MODULE_NAME.partition_grid_deg, for "grid"
 
     private String FILE_SUFFIX;             // MODULE_NAME.file_suffix, default ".bin"
     
@@ -114,6 +127,14 @@ public class FeedHandler extends AbstractVerticle {
     private HttpServer http_server = null;
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("feed_id");
+
+    private LatestFileWriter monitor_writer; // writes latest data to TFC_DATA_MONITOR
+    private SegmentWriter segment_writer = null; // appends data to TFC_DATA_BIN segments if DATA_SEGMENT set
+    private BinIndex bin_index = null; // TFC_DATA_BIN day index writer if DATA_INDEX
+    private FeedPartitioner partitioner; // also publishes to the partition addresses if PARTITION set
+
     private Log logger;
     
     
@@ -136,6 +157,32 @@ public class FeedHandler extends AbstractVerticle {
 
     // create link to EventBus
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
+
+    monitor_writer = new LatestFileWriter(vertx,
+                                          TFC_DATA_MONITOR,
+                                          TFC_DATA_MONITOR_NAME,
+                                          FILE_SUFFIX,
+                                          TFC_DATA_MONITOR_COALESCE,
+                                          logger,
+                                          MODULE_NAME+"."+MODULE_ID);
+
+    if (DATA_SEGMENT != null)
+    {
+        segment_writer = new SegmentWriter(TFC_DATA_BIN, DATA_SEGMENT, DATA_INDEX);
+    }
+
+    if (DATA_INDEX)
+    {
+        bin_index = new BinIndex();
+    }
+
+    partitioner = new FeedPartitioner(PARTITION, PARTITION_GRID_DEG);
+
+    // yyyy/MM/dd directories will be created ahead of each day
+    DirCache.add_daily(vertx, TFC_DATA_BIN);
+    DirCache.add_daily(vertx, TFC_DATA_CACHE);
 
     // create webserver
     http_server = vertx.createHttpServer();
@@ -170,8 +217,8 @@ public class FeedHandler extends AbstractVerticle {
                 try {
                     // read the head value "X-Auth-Token" from the POST
                     String post_token = ctx.request().getHeader("X-Auth-Token");
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": X-Auth-Token="+post_token);
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": X-Auth-Token="+post_token);
                     // if the token matches the config(), or config() http.token is null
                     // then parse this assumed gtfs-realtime POST data
                     if (HTTP_TOKEN==null || HTTP_TOKEN.equals(post_token))
@@ -180,6 +227,7 @@ public class FeedHandler extends AbstractVerticle {
                         }
                 }
                 catch (Exception ex) {
+                  metrics.inc("errors", MODULE_ID);
                   Log.log_err(MODULE_NAME+"."+MODULE_ID+": process_gtfs Exception");
                   Log.log_err(ex.getMessage());
                 }
@@ -200,13 +248,44 @@ public class FeedHandler extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
       });
 
+    // complete the deployment, so stop() is called when the verticle is undeployed
+    fut.complete();
+
   } // end start()
 
+    // ****************************************************************************
+    // stop()
+    // Close the data_bin segment writer, i.e. write the index footer of the current
+    // segment, when the verticle is undeployed (e.g. on vertx.close()). The close is
+    // queued on this verticle's ordered executeBlocking, after any append_async()
+    // still in flight.
+    // ****************************************************************************
+  @Override
+  public void stop(Future<Void> fut) throws Exception
+  {
+    DirCache.remove_daily(vertx);
+
+    if (segment_writer == null)
+        {
+            fut.complete();
+            return;
+        }
+    vertx.<Void>executeBlocking(close_fut -> {
+        try {
+            segment_writer.close();
+        } catch (IOException e) {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": stop() error closing segment "+e.getMessage());
+        }
+        close_fut.complete();
+    }, res -> fut.complete());
+  } // end stop()
+
     // get current local time as "YYYY-MM-DD-hh-mm-ss"
   private String local_datetime_string()
     {
@@ -221,14 +300,19 @@ public class FeedHandler extends AbstractVerticle {
     }
     
   // process the POST gtfs binary data
+  // metrics are keyed on MODULE_ID, as a FeedHandler handles a single feed
   private void process_gtfs(Buffer buf) throws Exception {
 
+    metrics.inc("msgs_in", MODULE_ID);
+    metrics.add("bytes_in", MODULE_ID, buf.length());
+
     LocalDateTime local_time = LocalDateTime.now();
     
     String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
     String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
     String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
-    String utc_ts = String.valueOf(System.currentTimeMillis() / 1000);
+    long utc_milliseconds = System.currentTimeMillis();
+    String utc_ts = String.valueOf(utc_milliseconds / 1000);
 
     // filename without the suffix
     String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
@@ -236,121 +320,73 @@ public class FeedHandler extends AbstractVerticle {
     String filepath = year+"/"+month+"/"+day;
     // First just save the binary file to $TFC_DATA_MONITOR
 
-    // Vert.x non-blocking file write...
-    FileSystem fs = vertx.fileSystem();
-
-    // Write file to $TFC_DATA_BIN
+    // Write file to $TFC_DATA_BIN, or append to the current segment if DATA_SEGMENT is set
     //
-    // if full directory path exists, then write file
-    // otherwise create full path first
-    final String bin_path = TFC_DATA_BIN+"/"+filepath;
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+bin_path+"/"+filename + FILE_SUFFIX);
-    fs.exists(bin_path, result -> {
-            if (result.succeeded() && result.result())
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": process_gtfs: path "+bin_path+" exists");
-                    write_file(fs, buf, bin_path+"/"+filename+ FILE_SUFFIX);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Creating directory "+bin_path);
-                    fs.mkdirs(bin_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, bin_path+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error creating tfc_data_bin path "+bin_path);
-                                }
-                        });
-                }
+    // DirCache only creates the full directory path if it is not already known to exist
+    if (segment_writer != null)
+    {
+        long write_start = System.nanoTime();
+        segment_writer.append_async(vertx, utc_milliseconds, filename, buf, result -> {
+            metrics.time("write", MODULE_ID, System.nanoTime() - write_start);
+            if (!result.succeeded()) {
+                metrics.inc("errors", MODULE_ID);
+                Log.log_err("FeedHandler."+MODULE_ID+": write_segment error "+filename+" ..." + result.cause());
+            }
         });
+    }
+    else
+    {
+        final String bin_path = TFC_DATA_BIN+"/"+filepath;
+        write_file(bin_path, filename+FILE_SUFFIX, buf, bin_index, utc_milliseconds);
+    }
 
     // Write file to $TFC_DATA_CACHE
     //
     final String cache_path = TFC_DATA_CACHE+"/"+filepath;
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+cache_path+"/"+filename+ FILE_SUFFIX);
-    // if full directory path exists, then write file
-    // otherwise create full path first
-    fs.exists(cache_path, result -> {
-            if (result.succeeded() && result.result())
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": process_gtfs: path "+cache_path+" exists");
-                    write_file(fs, buf, cache_path+"/"+filename+ FILE_SUFFIX);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Creating directory "+cache_path);
-                    fs.mkdirs(cache_path, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(fs, buf, cache_path+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error creating tfc_data_cache path "+cache_path);
-                                }
-                        });
-                }
-        });
+    write_file(cache_path, filename+FILE_SUFFIX, buf, null, 0);
 
     // Write file to $TFC_DATA_MONITOR
     //
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+TFC_DATA_MONITOR+"/"+filename+ FILE_SUFFIX);
-    fs.readDir(TFC_DATA_MONITOR, ".*\\"+FILE_SUFFIX, monitor_result -> {
-                            if (monitor_result.succeeded())
-                                {
-                                    // directory exists, delete previous files of same suffix
-                                    for (String f: monitor_result.result())
-                                        {
-                                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"Deleting "+f);
-                                            fs.delete(f, delete_result -> {
-                                                    if (!delete_result.succeeded())
-                                                        {
-                                                          Log.log_err("FeedHandler."+MODULE_ID+": error tfc_data_monitor delete: "+f);
-                                                        }
-                                                });
-                                        }
-                                    write_file(fs, buf, TFC_DATA_MONITOR+"/"+filename+ FILE_SUFFIX);
-                                }
-                            else
-                                {
-                                    Log.log_err("FeedHandler."+MODULE_ID+": error reading tfc_data_monitor path: "+TFC_DATA_MONITOR);
-                                    Log.log_err(monitor_result.cause().getMessage());
-                                }
-    });
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": Writing "+monitor_writer.get_path());
+    monitor_writer.write(buf);
 
     // Here is where we process the individual position records
+    long parse_start = System.nanoTime();
     JsonObject msg = GTFS.buf_to_json(buf, filename, filepath);
+    metrics.time("parse", MODULE_ID, System.nanoTime() - parse_start);
 
     msg.put("module_name", MODULE_NAME);
     msg.put("module_id", MODULE_ID);
     msg.put("msg_type", Constants.FEED_BUS_POSITION);
 
-    eb.publish(FEEDHANDLER_ADDRESS, msg);
+    int partition_msgs = partitioner.publish(eb, FEEDHANDLER_ADDRESS, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+    metrics.inc("msgs_out", MODULE_ID);
+    metrics.add("partition_msgs_out", MODULE_ID, partition_msgs);
     
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": FeedHandler published (feed_vehicle, pos_records)");
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": FeedHandler published (feed_vehicle, pos_records)");
     
   } // end process_gtfs()
 
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
+  // Write 'buf' as file dir_path/file_name (non-blocking), creating dir_path if needed,
+  // then add it to the day directory time index if index is not null
+  private void write_file(String dir_path, String file_name, Buffer buf, BinIndex index, long ts_ms)
   {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
+    final String file_path = dir_path+"/"+file_name;
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": Writing "+file_path);
+    long write_start = System.nanoTime();
+    DirCache.write_file(vertx, dir_path, file_path, buf, result -> {
+      metrics.time("write", MODULE_ID, System.nanoTime() - write_start);
       if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
+          logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                           ": File "+file_path+" written");
+          if (index != null) {
+              index.append_async(vertx, dir_path, ts_ms, file_name);
+          }
       } else {
+        metrics.inc("errors", MODULE_ID);
         Log.log_err("FeedHandler."+MODULE_ID+": write_file error ..." + result.cause());
       }
     });
@@ -454,6 +490,37 @@ public class FeedHandler extends AbstractVerticle {
           return false;
         }
         
+        // stable filename (without suffix) of the latest file in TFC_DATA_MONITOR
+        TFC_DATA_MONITOR_NAME = config().getString(MODULE_NAME+".tfc_data_monitor_name", LatestFileWriter.DEFAULT_NAME);
+
+        // window (ms) within which successive TFC_DATA_MONITOR writes are coalesced, 0 = none
+        TFC_DATA_MONITOR_COALESCE = config().getInteger(MODULE_NAME+".tfc_data_monitor_coalesce", 0);
+
+        // optional "daily" | "hourly" TFC_DATA_BIN segment files instead of a file per message
+        DATA_SEGMENT = config().getString(MODULE_NAME+".data_segment");
+        if (DATA_SEGMENT != null && !SegmentWriter.valid_period(DATA_SEGMENT))
+        {
+          Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".data_segment must be \"daily\" or \"hourly\"");
+          return false;
+        }
+
+        // maintain TFC_DATA_BIN/yyyy/MM/dd/.index time index (see util/BinIndex), default true
+        DATA_INDEX = config().getBoolean(MODULE_NAME+".data_index", true);
+
+        // optional eventbus partitioning of the messages, "none" | "feed_id" | "grid"
+        PARTITION = config().getString(MODULE_NAME+".partition", FeedPartitioner.NONE);
+        if (!FeedPartitioner.valid_mode(PARTITION))
+        {
+          Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".partition must be \"none\", \"feed_id\" or \"grid\"");
+          return false;
+        }
+        PARTITION_GRID_DEG = config().getDouble(MODULE_NAME+".partition_grid_deg", FeedPartitioner.GRID_DEG_DEFAULT);
+        if (PARTITION_GRID_DEG <= 0)
+        {
+          Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".partition_grid_deg must be > 0");
+          return false;
+        }
+
         // filename suffix for file, default '.bin'
         FILE_SUFFIX = config().getString(MODULE_NAME+".file_suffix");
         if (FILE_SUFFIX == null)
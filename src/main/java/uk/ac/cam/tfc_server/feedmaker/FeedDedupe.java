@@ -0,0 +1,125 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// FeedDedupe.java
+//
+// Change detection for a FeedMaker feed with config "dedupe": true.
+//
+// Holds the ETag / Last-Modified of the last GET response (sent back as If-None-Match /
+// If-Modified-Since so the source can reply 304 Not Modified) and a SHA-256 hash of the last data
+// received, so FeedMaker can skip storing and publishing data identical to the previous poll or POST.
+//
+// With "dedupe_heartbeat": N (seconds), the last data is kept so it can still be published at least
+// every N seconds while unchanged, for consumers that expect a regular message.
+//
+// The savings (polls skipped, disk writes, bytes, messages) are counted per day so FeedMaker can
+// log a daily summary.
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import io.vertx.core.buffer.Buffer;
+
+class FeedDedupe {
+
+    final int heartbeat_ms;       // publish unchanged data at least this often, 0 = never
+
+    String etag;                  // ETag header of the last GET response
+    String last_modified;         // Last-Modified header of the last GET response
+
+    private byte[] hash;          // SHA-256 of the last data received
+
+    // last data stored, republished as the heartbeat
+    Buffer last_buf;
+    String last_filename;
+    String last_filepath;
+    long last_length;
+
+    long last_publish_ms;         // time the feed was last published
+
+    // savings since the start of 'day'
+    String day = "";
+    long skipped;
+    long writes_saved;
+    long bytes_saved;
+    long msgs_saved;
+
+    FeedDedupe(int heartbeat_seconds)
+    {
+        heartbeat_ms = heartbeat_seconds * 1000;
+    }
+
+    // true if 'buf' is identical to the last data received, else 'buf' becomes the last data
+    boolean is_duplicate(Buffer buf)
+    {
+        byte[] h = sha256(buf);
+        if (hash != null && Arrays.equals(h, hash))
+        {
+            return true;
+        }
+        hash = h;
+        return false;
+    }
+
+    // record 'buf' as stored in filepath/filename and published at ts_ms
+    void stored(Buffer buf, String filename, String filepath, long ts_ms)
+    {
+        last_buf = heartbeat_ms > 0 ? buf : null;
+        last_filename = filename;
+        last_filepath = filepath;
+        last_length = buf.length();
+        last_publish_ms = ts_ms;
+    }
+
+    // true if unchanged data should be published now as a heartbeat
+    boolean heartbeat_due(long now_ms)
+    {
+        return heartbeat_ms > 0 && last_buf != null && now_ms - last_publish_ms >= heartbeat_ms;
+    }
+
+    // count a skipped duplicate of the last data, with 'writes' disk writes saved
+    void skip(int writes, boolean published)
+    {
+        skipped++;
+        writes_saved += writes;
+        bytes_saved += last_length;
+        if (!published)
+        {
+            msgs_saved++;
+        }
+    }
+
+    // if 'today' is a new day, return the summary of the previous day (or null if nothing
+    // was skipped) and reset the counts
+    String roll_day(String today)
+    {
+        if (today.equals(day))
+        {
+            return null;
+        }
+        String summary = day.isEmpty() || skipped == 0 ? null :
+            day+" skipped "+skipped+" duplicates, saved "+writes_saved+" disk writes ("+bytes_saved+
+            " bytes) and "+msgs_saved+" messages";
+        day = today;
+        skipped = 0;
+        writes_saved = 0;
+        bytes_saved = 0;
+        msgs_saved = 0;
+        return summary;
+    }
+
+    private static byte[] sha256(Buffer buf)
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(buf.getBytes());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+} // end class FeedDedupe
@@ -19,12 +19,24 @@ package uk.ac.cam.tfc_server.feedmaker;
 //   {{feed_config.data_bin}}//YYYY/MM/DD/<filename>
 //
 // where <filename> = <UTC MILLISECOND TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// and the latest data will also be written to {{feed_config.data_monitor}}/post_data.bin
+// (see util/LatestFileWriter)
 //
 // Config values are read from provided vertx config() json file, e.g. see README.md
 //
 // FeedMaker will publish the feed data as a JSON string on eventbus (feed_config.address).
 //
+// With feed config "dedupe": true, FeedMaker sends conditional GETs (If-None-Match / If-Modified-Since)
+// and skips storing and publishing data identical to the previous data for the feed (see FeedDedupe).
+//
+// GET feeds are polled by an adaptive scheduler (see PollSchedule) which spreads the polls of the feeds
+// across their periods, backs off after failures or unchanged data, and limits the number of
+// concurrent GET requests to feedmaker.max_requests.
+//
+// The raw data is archived on the event loop, but parsed on a worker pool (feedmaker.parse_threads)
+// so a large page for one feed does not delay the timers and HTTP responses of the others. Each feed
+// has its own ParseQueue, so the messages of a feed are parsed and published in the order received.
+//
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -33,6 +45,7 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -61,11 +74,18 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.LatestFileWriter;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.SegmentWriter;
+import uk.ac.cam.tfc_server.util.BinIndex;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
 
 public class FeedMaker extends AbstractVerticle {
 
-    private final String VERSION = "0.54";
+    private final String VERSION = "0.63";
     
     // from config()
     private String MODULE_NAME;       // config module.name - normally "feedscraper"
@@ -80,15 +100,44 @@ public class FeedMaker extends AbstractVerticle {
 
     private int HTTP_PORT;            // config feedmaker.http.port
 
+    private int PARSE_THREADS;        // config feedmaker.parse_threads, worker threads shared by all feeds
+    private int PARSE_QUEUE_MAX;      // config feedmaker.parse_queue_max, max data buffers waiting per feed
+    private int MAX_REQUESTS;         // config feedmaker.max_requests, max concurrent GET requests
+
     // local constants
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
 
+    private final int PARSE_THREADS_DEFAULT = 4;
+    private final int PARSE_QUEUE_MAX_DEFAULT = 4;
+    private final long LOOP_LAG_PERIOD = 100; // check event loop latency every 100 ms
+    private final int MAX_REQUESTS_DEFAULT = 8;
+    private final int REQUEST_TIMEOUT = 60000; // GET requests fail after 60 seconds
+    private final double PERIOD_JITTER_DEFAULT = 0.1; // +/- 10% random variation of poll intervals
+
+    // data_bin filename and path formats (local time)
+    private static final DateTimeFormatter FILENAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+    private static final DateTimeFormatter FILEPATH_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+
     // global vars
     private HashMap<String,WebClient> web_clients; // used to store a WebClient for each feed_id
+    private HashMap<String,LatestFileWriter> monitor_writers; // data_monitor file writer for each feed_id
+    private HashMap<String,SegmentWriter> segment_writers; // data_bin segment writer for feeds with data_segment
+    private HashMap<String,BinIndex> bin_indexes; // data_bin day index writer for feeds with data_index
+    private HashMap<String,ParseQueue> parse_queues; // pending data to be parsed for each feed_id
+    private HashMap<String,FeedDedupe> dedupes; // change detection for feeds with config dedupe
+    private HashMap<String,PollSchedule> poll_schedules; // adaptive polling interval of each GET feed
+    private HashMap<String,FeedPartitioner> partitioners; // eventbus partitioning of each feed's messages
+    private ArrayDeque<JsonObject> polls_waiting; // configs of GET feeds waiting for a request slot
+    private int requests_in_flight = 0; // current GET requests, up to MAX_REQUESTS
+    private int get_feed_count = 0; // number of GET feeds, to spread their first polls
+    private WorkerExecutor parse_executor; // worker pool for parser.parse()
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("feed_id");
+
     private Log logger;
     
   @Override
@@ -101,6 +150,28 @@ public class FeedMaker extends AbstractVerticle {
     // create holder for WebClients
     web_clients = new HashMap<String,WebClient>();
 
+    // create holder for data_monitor file writers
+    monitor_writers = new HashMap<String,LatestFileWriter>();
+
+    // create holder for data_bin segment writers
+    segment_writers = new HashMap<String,SegmentWriter>();
+
+    // create holder for data_bin day index writers
+    bin_indexes = new HashMap<String,BinIndex>();
+
+    // create holder for per-feed parse queues
+    parse_queues = new HashMap<String,ParseQueue>();
+
+    // create holder for per-feed change detection
+    dedupes = new HashMap<String,FeedDedupe>();
+
+    // create holders for the GET polling scheduler
+    poll_schedules = new HashMap<String,PollSchedule>();
+    polls_waiting = new ArrayDeque<JsonObject>();
+
+    // create holder for the per-feed eventbus partitioning
+    partitioners = new HashMap<String,FeedPartitioner>();
+
     // load FeedMaker initialization values from config()
     if (!get_config())
           {
@@ -115,10 +186,21 @@ public class FeedMaker extends AbstractVerticle {
 
     // create link to EventBus
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
 
     // send periodic "system_status" messages
     vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
 
+    // feed data is parsed on these worker threads, not the event loop
+    parse_executor = vertx.createSharedWorkerExecutor(MODULE_NAME+"."+MODULE_ID+".parse", PARSE_THREADS);
+
+    // record the event loop latency as the "loop_lag" metric
+    check_loop_lag(System.nanoTime());
+
+    metrics.gauge("requests_in_flight", "", () -> requests_in_flight);
+    metrics.gauge("polls_waiting", "", () -> polls_waiting.size());
+
     // create webserver
     HttpServer http_server = vertx.createHttpServer();
 
@@ -131,7 +213,7 @@ public class FeedMaker extends AbstractVerticle {
         }
 
     // iterate through all the feedmakers to be started
-    // This will start the 'setPeriodic' GET pollers and also add the required
+    // This will start the scheduled GET pollers and also add the required
     // BASE_URI/FEED_ID http POST handlers to the router
     for (int i=0; i<START_FEEDS.size(); i++)
         {
@@ -145,9 +227,37 @@ public class FeedMaker extends AbstractVerticle {
             http_server.requestHandler(router).listen(HTTP_PORT);
             logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": http server started");
         }
-    
+
+    // complete the deployment, so stop() is called when the verticle is undeployed
+    fut.complete();
+
   } // end start()
 
+    // ****************************************************************************
+    // stop()
+    // Close the data_bin segment writers, i.e. write the index footer of the current
+    // segment, when the verticle is undeployed (e.g. on vertx.close()). The close is
+    // queued on this verticle's ordered executeBlocking, after any append_async()
+    // still in flight.
+    // ****************************************************************************
+  @Override
+  public void stop(Future<Void> fut) throws Exception
+  {
+    DirCache.remove_daily(vertx);
+
+    vertx.<Void>executeBlocking(close_fut -> {
+        for (String feed_id : segment_writers.keySet())
+            {
+                try {
+                    segment_writers.get(feed_id).close();
+                } catch (IOException e) {
+                    Log.log_err(MODULE_NAME+"."+MODULE_ID+"."+feed_id+": stop() error closing segment "+e.getMessage());
+                }
+            }
+        close_fut.complete();
+    }, res -> fut.complete());
+  } // end stop()
+
     // **************************************************************************************
     // create handler for GET from uri - for general web access (diagnostics?) not feed data
     // **************************************************************************************
@@ -224,6 +334,47 @@ public class FeedMaker extends AbstractVerticle {
           }
           // monitor_path now exists
 
+          // data_bin/yyyy/MM/dd directories will be created ahead of each day
+          DirCache.add_daily(vertx, config.getString("data_bin"));
+
+          monitor_writers.put(config.getString("feed_id"),
+                              new LatestFileWriter(vertx,
+                                                   monitor_path,
+                                                   config.getString("data_monitor_name"),
+                                                   config.getString("file_suffix"),
+                                                   config.getInteger("data_monitor_coalesce"),
+                                                   logger,
+                                                   MODULE_NAME+"."+MODULE_ID+"."+config.getString("feed_id")));
+
+          // data_bin/yyyy/MM/dd/.index time index is maintained as each file is written
+          if (config.getBoolean("data_index"))
+          {
+              bin_indexes.put(config.getString("feed_id"), new BinIndex());
+          }
+
+          // if configured, data_bin records are appended to daily/hourly segment files
+          if (config.getString("data_segment") != null)
+          {
+              segment_writers.put(config.getString("feed_id"),
+                                  new SegmentWriter(config.getString("data_bin"),
+                                                    config.getString("data_segment"),
+                                                    config.getBoolean("data_index")));
+          }
+
+          // messages are also published to the feed's partition addresses, if configured
+          partitioners.put(config.getString("feed_id"),
+                           new FeedPartitioner(config.getString("partition"), config.getDouble("partition_grid_deg")));
+
+          ParseQueue parse_queue = new ParseQueue(config, parser);
+          parse_queues.put(config.getString("feed_id"), parse_queue);
+          metrics.gauge("parse_queue", config.getString("feed_id"), () -> parse_queue.size());
+
+          // if configured, unchanged data is not stored or published
+          if (config.getBoolean("dedupe"))
+          {
+              dedupes.put(config.getString("feed_id"), new FeedDedupe(config.getInteger("dedupe_heartbeat")));
+          }
+
         // ************************************************************************************
         // if 'POST' feedmaker create a HTTP POST 'listener' for this feed at BASE_URI/FEED_ID
         // ************************************************************************************
@@ -231,7 +382,7 @@ public class FeedMaker extends AbstractVerticle {
               {
                   //logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+
                   //           config.getString("feed_id")+": starting POST listener");
-                  add_feed_handler(router, BASE_URI, config, parser);
+                  add_feed_handler(router, BASE_URI, config);
               }
 
         // *********************************************************************************
@@ -239,27 +390,77 @@ public class FeedMaker extends AbstractVerticle {
         // *********************************************************************************
           if (config.getBoolean("http.get", false))
               {
+                  PollSchedule schedule = new PollSchedule(config.getInteger("period") * 1000L,
+                                                           config.getInteger("period_min") * 1000L,
+                                                           config.getInteger("period_max") * 1000L,
+                                                           config.getInteger("period_fail_max") * 1000L,
+                                                           config.getDouble("period_jitter"));
+                  poll_schedules.put(config.getString("feed_id"), schedule);
+                  metrics.gauge("poll_interval", config.getString("feed_id"),
+                                () -> schedule.get_interval_ms() / 1000.0);
+
+                  // the first polls of the GET feeds are spread across their periods
+                  long first_delay = schedule.first_delay(poll_schedules.size() - 1, get_feed_count);
+
                   logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+
-                             config.getString("feed_id")+": GET poller started");
-                  // call immediately, then every 'period' seconds
-                  get_feed(config, parser);
-
-                  // set up periodic 'GET' requests for data (.setPeriodic requires milliseconds)
-                  vertx.setPeriodic( config.getInteger("period") * 1000,
-                                     id -> { get_feed(config, parser);
-                                     });
+                             config.getString("feed_id")+": GET poller started, first poll in "+first_delay+"ms");
+
+                  vertx.setTimer(first_delay, id -> { poll(config); });
               }
     }
 
+    // ************************************************************************************
+    // poll()
+    //
+    // GET the feed now if fewer than MAX_REQUESTS are in flight, else queue it until a request
+    // completes. When the GET completes, the feed's PollSchedule is updated with the outcome and
+    // the next poll is set.
+    //
+    private void poll(JsonObject config)
+    {
+        if (requests_in_flight >= MAX_REQUESTS)
+        {
+            polls_waiting.add(config);
+            return;
+        }
+
+        final String FEED_ID = config.getString("feed_id");
+        final long poll_start = System.currentTimeMillis();
+
+        requests_in_flight++;
+
+        get_feed(config, outcome -> {
+                requests_in_flight--;
+
+                PollSchedule schedule = poll_schedules.get(FEED_ID);
+                schedule.update(outcome);
+
+                long delay = schedule.next_delay(System.currentTimeMillis() - poll_start);
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                           ": poll "+outcome+", interval "+schedule.get_interval_ms()+"ms, next in "+delay+"ms");
+                vertx.setTimer(delay, id -> { poll(config); });
+
+                // start the next waiting poll, if any
+                JsonObject waiting = polls_waiting.poll();
+                if (waiting != null)
+                {
+                    poll(waiting);
+                }
+            });
+    }
+
     // ******************************
     // send UP status to the EventBus
     private void send_status()
     {
+      log_dedupe_days();
+
       eb.publish(EB_SYSTEM_STATUS,
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -273,33 +474,32 @@ public class FeedMaker extends AbstractVerticle {
     // ************************************************
     private void add_feed_handler(Router router, 
                                   String BASE_URI,
-                                  JsonObject config,
-                                  FeedParser parser)
+                                  JsonObject config)
     {
         final String HTTP_TOKEN = config.getString("http.token");
         final String FEED_ID = config.getString("feed_id");
 
         final String URI = config.getString("http.uri", "/"+BASE_URI+"/"+FEED_ID);
         
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                   ": setting up POST listener on localhost:"+HTTP_PORT+URI);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                         ": setting up POST listener on localhost:"+HTTP_PORT+URI);
         router.route(HttpMethod.POST,URI).handler( ctx -> {
                 ctx.request().bodyHandler( buffer -> {
                         try {
                             // read the head value "X-Auth-Token" from the POST
                             String post_token = ctx.request().getHeader("X-Auth-Token");
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                                       ": X-Auth-Token="+post_token);
+                            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                             ": X-Auth-Token="+post_token);
                             // if the token matches the config(), or config() http.token is null
                             // then parse this assumed gtfs-realtime POST data
                             if (HTTP_TOKEN==null || HTTP_TOKEN.equals(post_token))
                             {
-                                process_feed(buffer, config, parser);
+                                process_feed(buffer, config);
                             }
                             else
                             { 
-                                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                                       ": token error "+post_token+"/"+HTTP_TOKEN);
+                                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                             ": token error "+post_token+"/"+HTTP_TOKEN);
                             }
                         } catch (Exception e) {
                             logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
@@ -318,45 +518,93 @@ public class FeedMaker extends AbstractVerticle {
     // get_feed()
     //
     // This is the routine called periodically to GET the feed from the defined web address.
-    // it will pass the data to 'parser' to convert to a JsonObject to send on the EventBus
+    // it will pass the data to process_feed() to archive, parse and send on the EventBus
     //
-    private void get_feed(JsonObject config, FeedParser parser)
+    private void get_feed(JsonObject config, Handler<PollSchedule.Outcome> done)
     {
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": get_feed "+config.getString("http.host")+config.getString("http.uri"));
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": get_feed "+config.getString("http.host")+config.getString("http.uri"));
 
         final String FEED_ID = config.getString("feed_id");
 
         // get the WebClient pre-configured for this feed id
-        web_clients.get(FEED_ID)
+        HttpRequest<Buffer> request = web_clients.get(FEED_ID)
             // apply methods to this WebClient
             .get(config.getString("http.uri"))
             .putHeader("Accept-Encoding", "identity")
-            .send( async_response -> {
+            .timeout(REQUEST_TIMEOUT);
+
+        // for a dedupe feed, ask the source to reply 304 Not Modified if the data is unchanged
+        FeedDedupe dedupe = dedupes.get(FEED_ID);
+        if (dedupe != null)
+        {
+            if (dedupe.etag != null)
+            {
+                request.putHeader("If-None-Match", dedupe.etag);
+            }
+            if (dedupe.last_modified != null)
+            {
+                request.putHeader("If-Modified-Since", dedupe.last_modified);
+            }
+        }
+
+        request.send( async_response -> {
                 if (async_response.succeeded())
                 {
-                        Buffer buffer = async_response.result().body();
+                        HttpResponse<Buffer> response = async_response.result();
+
+                        if (dedupe != null)
+                        {
+                            if (response.statusCode() == 304)
+                            {
+                                metrics.inc("not_modified", FEED_ID);
+                                skip_duplicate(config, dedupe);
+                                done.handle(PollSchedule.Outcome.UNCHANGED);
+                                return;
+                            }
+                            dedupe.etag = response.getHeader("ETag");
+                            dedupe.last_modified = response.getHeader("Last-Modified");
+                        }
+
+                        Buffer buffer = response.body();
 
                         // print out the received GET data for LOG_LEVEL=1 (debug)
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                                   ": GET "+ async_response.result().statusCode() +
-                                   " response length=" + buffer.length() );
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                         ": GET "+ async_response.result().statusCode() +
+                                         " response length=" + buffer.length() );
+
+                        PollSchedule.Outcome outcome = PollSchedule.Outcome.OK;
 
                         // Now send the buffer to be processed, which may cause exception if bad data
                         try {
-                          process_feed(buffer, config, parser);
+                          boolean changed = process_feed(buffer, config);
+                          if (dedupe != null)
+                          {
+                              outcome = changed ? PollSchedule.Outcome.CHANGED : PollSchedule.Outcome.UNCHANGED;
+                          }
                         }
                         catch (Exception e) {
                             logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
                                        ": proceed_feed error");
                             logger.log(Constants.LOG_WARN, e.getMessage());
                         }
+
+                        // an error status is still archived as received, but backs off the polling
+                        if (response.statusCode() >= 400)
+                        {
+                            metrics.inc("errors", FEED_ID);
+                            outcome = PollSchedule.Outcome.FAILED;
+                        }
+
+                        done.handle(outcome);
                 }
                 else // async_response failed
                 {
                     // print out the received GET data for LOG_LEVEL=1 (debug)
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
-                               ": GET FAILED " + async_response.cause().getMessage() );
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+FEED_ID+
+                                     ": GET FAILED " + async_response.cause().getMessage() );
+                    metrics.inc("errors", FEED_ID);
+                    done.handle(PollSchedule.Outcome.FAILED);
                 }
             }); // end .send
 
@@ -367,19 +615,27 @@ public class FeedMaker extends AbstractVerticle {
     private String local_datetime_string()
     {
         LocalDateTime local_time = LocalDateTime.now();
-        return local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
+        return local_time.format(FILENAME_FORMAT);
     }
 
   // *****************************************************************
-  // process the received raw data
-  private void process_feed(Buffer buf, JsonObject config, FeedParser parser) throws Exception 
+  // process the received raw data, returning false if it was skipped as unchanged (dedupe)
+  private boolean process_feed(Buffer buf, JsonObject config) throws Exception 
   {
+    final String feed_id = config.getString("feed_id");
+
+    metrics.inc("msgs_in", feed_id);
+    metrics.add("bytes_in", feed_id, buf.length());
+
+    // for a dedupe feed, data identical to the previous data is not stored or published
+    FeedDedupe dedupe = dedupes.get(feed_id);
+    if (dedupe != null && dedupe.is_duplicate(buf))
+    {
+        skip_duplicate(config, dedupe);
+        return false;
+    }
 
     LocalDateTime local_time = LocalDateTime.now();
-    
-    String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
-    String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
-    String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
 
     Instant now = Instant.now();
     long utc_milliseconds = now.toEpochMilli();
@@ -396,37 +652,111 @@ public class FeedMaker extends AbstractVerticle {
     //String utc_datetime = now.toString();
 
     // filename without the suffix
-    String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
-    // sub-dir structure to store the file
-    String filepath = year+"/"+month+"/"+day;
+    String filename = utc_ts+"_"+local_time.format(FILENAME_FORMAT);
+    // sub-dir structure to store the file, yyyy/MM/dd
+    String filepath = local_time.format(FILEPATH_FORMAT);
     
     // Write file to DATA_BIN
     //
     final String bin_path = config.getString("data_bin")+"/"+filepath;
     final String file_suffix = config.getString("file_suffix");
-    write_bin_file(buf, bin_path, filename, file_suffix);
+    SegmentWriter segment_writer = segment_writers.get(feed_id);
+    if (segment_writer != null)
+    {
+        write_segment(segment_writer, buf, utc_milliseconds, filename, feed_id);
+    }
+    else
+    {
+        write_bin_file(buf, bin_path, filename, file_suffix,
+                       bin_indexes.get(feed_id), utc_milliseconds, feed_id);
 
-    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": write_bin_file "+bin_path+" "+filename+"."+file_suffix);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                             ": write_bin_file "+bin_path+" "+filename+"."+file_suffix);
+    }
     // Write file to DATA_MONITOR
     //
-    final String monitor_path = config.getString("data_monitor");
-    write_monitor_file(buf, monitor_path, filename, file_suffix);
+    write_monitor_file(buf, feed_id);
 
     // ********************************************************************************************
-    // Finally, here is where we PARSE the incoming data and put it in the 'request_data' property
+    // Finally, here is where we PARSE the incoming data, on the worker pool via the feed's ParseQueue,
+    // which will call publish_feed() with the result
     // ********************************************************************************************
 
-    try {            
-        // Parse the received data into a suitable EventBus JsonObject message
-        JsonObject msg = parser.parse(buf);
+    parse_queues.get(feed_id).add(new ParseJob(buf, filename, filepath, utc_seconds));
+
+    if (dedupe != null)
+    {
+        dedupe.stored(buf, filename, filepath, utc_milliseconds);
+    }
+
+    return true;
+  } // end process_feed()
+
+  // *****************************************************************
+  // skip_duplicate()
+  //
+  // Called for a dedupe feed when the data received (or the 304 response) is unchanged from the
+  // last data stored, which is then not written to data_bin or data_monitor, and not published unless
+  // the dedupe_heartbeat period has passed, in which case the last data is published again
+  // with the current "ts".
+  //
+  private void skip_duplicate(JsonObject config, FeedDedupe dedupe)
+  {
+    final String feed_id = config.getString("feed_id");
+
+    long now_ms = System.currentTimeMillis();
+
+    boolean heartbeat = dedupe.heartbeat_due(now_ms);
+
+    // the data_bin file (or segment record) and data_monitor file are not written
+    dedupe.skip(2, heartbeat);
+    metrics.inc("dedupe_skipped", feed_id);
+    metrics.add("dedupe_writes_saved", feed_id, 2);
+    metrics.add("dedupe_bytes_saved", feed_id, dedupe.last_length);
+
+    if (heartbeat)
+    {
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+feed_id+
+                   ": unchanged, publishing heartbeat");
+        dedupe.last_publish_ms = now_ms;
+        parse_queues.get(feed_id).add(new ParseJob(dedupe.last_buf, dedupe.last_filename,
+                                                   dedupe.last_filepath, now_ms / 1000));
+    }
+    else
+    {
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+"."+feed_id+
+                   ": unchanged, not published");
+        metrics.inc("dedupe_msgs_saved", feed_id);
+    }
+  }
+
+  // log the daily dedupe savings of each feed when the day changes
+  private void log_dedupe_days()
+  {
+    String today = LocalDate.now().toString();
+    for (Map.Entry<String,FeedDedupe> entry : dedupes.entrySet())
+    {
+        String summary = entry.getValue().roll_day(today);
+        if (summary != null)
+        {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+"."+entry.getKey()+": dedupe "+summary);
+        }
+    }
+  }
+
+  // *****************************************************************
+  // publish the parsed message 'msg' (from ParseQueue) on the EventBus
+  private void publish_feed(JsonObject msg, ParseJob job, JsonObject config)
+  {
+    final String feed_id = config.getString("feed_id");
 
+    try {
         msg.put("module_name", MODULE_NAME);
         msg.put("module_id", MODULE_ID);
-        msg.put("feed_id", config.getString("feed_id"));
-        msg.put("filename", filename);
-        msg.put("filepath", filepath);
-        msg.put("ts", utc_seconds);
+        msg.put("feed_id", feed_id);
+        msg.put("filename", job.filename);
+        msg.put("filepath", job.filepath);
+        msg.put("ts", job.utc_seconds);
 
         // if a FEED_EVENTBUS_MSG then increment hop_count
         if (config.getString("feed_type").equals(Constants.FEED_EVENTBUS_MSG))
@@ -445,119 +775,223 @@ public class FeedMaker extends AbstractVerticle {
         //msg.put("request_data", request_data);
     
         // debug print out the JsonObject message
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
-        logger.log(Constants.LOG_DEBUG, msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+        logger.log(Constants.LOG_DEBUG, () -> msg.toString());
 
         String feedmaker_address = config.getString("address");
 
-        eb.publish(feedmaker_address, msg);
+        int partition_msgs = partitioners.get(feed_id).publish(eb, feedmaker_address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+        metrics.inc("msgs_out", feed_id);
+        metrics.add("partition_msgs_out", feed_id, partition_msgs);
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": published latest feed data to "+feedmaker_address);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": published latest feed data to "+feedmaker_address);
     }
     catch (Exception e) {
+        metrics.inc("errors", feed_id);
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+                   ": exception raised during publishing of feed "+feed_id+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
     }
-  } // end process_feed()
+  } // end publish_feed()
+
+    // ******************************************************************
+    // ParseJob: received data waiting to be parsed, with the values from
+    // process_feed() to be added to the published message
+    private static class ParseJob {
+        final Buffer buf;
+        final String filename;
+        final String filepath;
+        final long utc_seconds;
+        final long queued_nanos;
+
+        ParseJob(Buffer buf, String filename, String filepath, long utc_seconds)
+        {
+            this.buf = buf;
+            this.filename = filename;
+            this.filepath = filepath;
+            this.utc_seconds = utc_seconds;
+            this.queued_nanos = System.nanoTime();
+        }
+    }
+
+    // ******************************************************************
+    // ParseQueue
+    //
+    // Pending ParseJobs of one feed. At most one job per feed is on the worker pool at a time, so
+    // the feed's messages are published in the order received and its FeedParser (which may hold
+    // state) is never called concurrently, while different feeds are parsed in parallel.
+    // The queue is only accessed on the event loop. If more than PARSE_QUEUE_MAX jobs are waiting
+    // (i.e. the feed arrives faster than it can be parsed) the oldest is dropped, as the raw data
+    // has already been archived in data_bin.
+    //
+    // Metrics per feed_id: "parse" (worker time), "parse_wait" (time queued), "parse_queue" gauge
+    // and the "parse_dropped" counter.
+    //
+    private class ParseQueue {
+        private final JsonObject config;
+        private final FeedParser parser;
+        private final String feed_id;
+
+        private final ArrayDeque<ParseJob> pending = new ArrayDeque<ParseJob>();
+        private boolean parsing = false; // true while a job of this feed is on the worker pool
+
+        ParseQueue(JsonObject config, FeedParser parser)
+        {
+            this.config = config;
+            this.parser = parser;
+            this.feed_id = config.getString("feed_id");
+        }
+
+        int size()
+        {
+            return pending.size() + (parsing ? 1 : 0);
+        }
+
+        void add(ParseJob job)
+        {
+            if (pending.size() >= PARSE_QUEUE_MAX)
+            {
+                pending.poll();
+                metrics.inc("parse_dropped", feed_id);
+                logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+"."+feed_id+
+                           ": parse queue full, oldest data not published");
+            }
+            pending.add(job);
+            next();
+        }
+
+        // start parsing the next pending job, if this feed is not already being parsed
+        private void next()
+        {
+            if (parsing || pending.isEmpty())
+            {
+                return;
+            }
+            ParseJob job = pending.poll();
+            parsing = true;
+
+            parse_executor.<JsonObject>executeBlocking( fut -> {
+                    long parse_start = System.nanoTime();
+                    metrics.time("parse_wait", feed_id, parse_start - job.queued_nanos);
+                    try {
+                        // Parse the received data into a suitable EventBus JsonObject message
+                        JsonObject msg = parser.parse(job.buf);
+                        metrics.time("parse", feed_id, System.nanoTime() - parse_start);
+                        fut.complete(msg);
+                    } catch (Exception e) {
+                        fut.fail(e);
+                    }
+                },
+                false, // jobs of different feeds can run in parallel, this ParseQueue orders each feed
+                res -> {
+                    parsing = false;
+                    if (res.succeeded())
+                    {
+                        publish_feed(res.result(), job, config);
+                    }
+                    else
+                    {
+                        metrics.inc("errors", feed_id);
+                        logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                                   ": exception raised during parsing of feed "+feed_id+":");
+                        logger.log(Constants.LOG_WARN, res.cause().getMessage());
+                    }
+                    next();
+                });
+        }
+    } // end class ParseQueue
+
+    // ******************************************************************
+    // check_loop_lag()
+    //
+    // Record how late a LOOP_LAG_PERIOD timer fires (i.e. how long the event loop was
+    // blocked or busy) as the "loop_lag" timer metric, then set the next timer.
+    //
+    private void check_loop_lag(long set_nanos)
+    {
+        vertx.setTimer(LOOP_LAG_PERIOD, id -> {
+                long now = System.nanoTime();
+                metrics.time("loop_lag", "", Math.max(0L, now - set_nanos - LOOP_LAG_PERIOD * 1000000L));
+                check_loop_lag(now);
+            });
+    }
 
     // ******************************************************************
     // write_bin_file()
     //
     // Write the 'buf' (i.e. the binary data as received) into a file at
     // 'bin_path/filename/file_suffix'
+    // If bin_index is not null, the file is then added to the day directory's time index.
+    // The time to completion is recorded as the "write" metric for feed_id.
     //
-    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix)
+    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix,
+                                BinIndex bin_index, long ts_ms, String feed_id)
     {
-        FileSystem fs = vertx.fileSystem();
-        // if full directory path exists, then write file
-        // otherwise create full path first
+        long write_start = System.nanoTime();
+
+        // DirCache only creates the full directory path if it is not already known to exist
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": Writing "+bin_path+"/"+filename + file_suffix);
-        fs.exists(bin_path, result -> {
-                if (result.succeeded() && result.result())
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": Writing "+bin_path+"/"+filename + file_suffix);
+        DirCache.write_file(vertx, bin_path, bin_path+"/"+filename+ file_suffix, buf, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (result.succeeded())
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": process_feed: path "+bin_path+" exists");
-                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": File "+bin_path+"/"+filename+ file_suffix+" written");
+                        if (bin_index != null)
+                        {
+                            bin_index.append_async(vertx, bin_path, ts_ms, filename + file_suffix);
+                        }
                     }
                 else
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Creating directory "+bin_path);
-                        fs.mkdirs(bin_path, mkdirs_result -> {
-                                if (mkdirs_result.succeeded())
-                                    {
-                                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                                    }
-                                else
-                                    {
-                                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
-                                                    ": error creating tfc_data_bin path "+bin_path);
-                                    }
-                            });
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_bin_file error "+bin_path+" ..." + result.cause());
                     }
         });
     }        
 
+    // ******************************************************************
+    // write_segment()
+    //
+    // Append the 'buf' (i.e. the binary data as received) as a record in
+    // the current data_bin segment file, instead of as a separate file
+    //
+    private void write_segment(SegmentWriter segment_writer, Buffer buf, long ts_ms, String filename,
+                               String feed_id)
+    {
+        long write_start = System.nanoTime();
+        segment_writer.append_async(vertx, ts_ms, filename, buf, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (!result.succeeded())
+                    {
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_segment error "+filename+" ..." + result.cause());
+                    }
+        });
+    }
+
     // ************************************************************************************
     // write_monitor_file()
     //
-    // Write 'buf' to file in the filesystem, deleting previous files in the same directory
-    // This is convenient for a separate 'inotifywait' process to listen for file-close-write
-    // events on that directory and trigger separate processes, e.g. to POST the file onward.
+    // Write 'buf' as the latest file in the feed's data_monitor directory (via LatestFileWriter,
+    // which writes a temp file and renames it over a stable name, coalescing bursts if configured).
+    // This is convenient for a separate 'inotifywait' process to listen for events on
+    // that directory and trigger separate processes, e.g. to POST the file onward.
     //
-    private void write_monitor_file(Buffer buf, String monitor_path, String filename, String file_suffix)
+    private void write_monitor_file(Buffer buf, String feed_id)
     {
-        FileSystem fs = vertx.fileSystem();
+        LatestFileWriter monitor_writer = monitor_writers.get(feed_id);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+monitor_path+"/"+filename+ file_suffix);
-        fs.readDir(monitor_path, ".*\\"+file_suffix, monitor_result -> {
-            if (monitor_result.succeeded())
-                {
-                    // directory exists, delete previous files of same suffix
-                    for (String f: monitor_result.result())
-                        {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": Deleting "+f);
-                            fs.delete(f, delete_result -> {
-                                    if (!delete_result.succeeded())
-                                        {
-                                          logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                      ": error tfc_data_monitor delete: "+f);
-                                        }
-                                });
-                        }
-                    write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                ": error reading data_monitor path: "+
-                                monitor_path);
-                    logger.log(Constants.LOG_WARN, monitor_result.cause().getMessage());
-                }
-        });
-    }
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": Writing "+monitor_writer.get_path());
 
-  // ***************************************************
-  // Write the 'buf' as a file 'filepath' (non-blocking)
-  private void write_file(FileSystem fs, Buffer buf, String file_path)
-  {
-    fs.writeFile(file_path, 
-                 buf, 
-                 result -> {
-      if (result.succeeded()) {
-          logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                     ": File "+file_path+" written");
-      } else {
-        Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-      }
-    });
-  } // end write_file
+        monitor_writer.write(buf);
+    }
 
     // validate_feeds() will validate a FeedMaker feeds config, and insert default values
     // The config is kept as a JsonArray
@@ -627,6 +1061,35 @@ public class FeedMaker extends AbstractVerticle {
                         return false;
                     }
 
+                // adaptive polling limits (seconds, see PollSchedule):
+                // period_min (default period) when data is changing, period_max (default 4 x period)
+                // when data is unchanged, period_fail_max (default 8 x period, at least period_max)
+                // after repeated failures, plus a random period_jitter (default 0.1) of each interval
+                if (http_get)
+                    {
+                        int period = config.getInteger("period");
+                        config.put("period_min", config.getInteger("period_min", period));
+                        config.put("period_max", config.getInteger("period_max", 4 * period));
+                        config.put("period_fail_max", config.getInteger("period_fail_max",
+                                                                        Math.max(8 * period, config.getInteger("period_max"))));
+                        config.put("period_jitter", config.getDouble("period_jitter", PERIOD_JITTER_DEFAULT));
+
+                        if (config.getInteger("period_min") < 1 ||
+                            config.getInteger("period_min") > period ||
+                            config.getInteger("period_max") < period ||
+                            config.getInteger("period_fail_max") < period ||
+                            config.getDouble("period_jitter") < 0.0 ||
+                            config.getDouble("period_jitter") >= 1.0)
+                            {
+                                Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                            ": require 1 <= period_min <= period <= period_max, period_fail_max"+
+                                            " and 0 <= period_jitter < 1");
+                                return false;
+                            }
+
+                        get_feed_count++;
+                    }
+
                 if (config.getString("data_bin")==null)
                     {
                         Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
@@ -648,6 +1111,64 @@ public class FeedMaker extends AbstractVerticle {
                         config.put("file_suffix",".bin");
                     }
 
+                // stable filename (without suffix) of the latest file in data_monitor
+                if (config.getString("data_monitor_name")==null)
+                    {
+                        config.put("data_monitor_name", LatestFileWriter.DEFAULT_NAME);
+                    }
+
+                // window (ms) within which successive data_monitor writes are coalesced, 0 = none
+                if (config.getInteger("data_monitor_coalesce")==null)
+                    {
+                        config.put("data_monitor_coalesce", 0);
+                    }
+
+                // maintain data_bin day time index (see util/BinIndex), default true
+                if (config.getBoolean("data_index")==null)
+                    {
+                        config.put("data_index", true);
+                    }
+
+                // optional "daily" | "hourly" data_bin segment files instead of a file per message
+                if (config.getString("data_segment")!=null &&
+                    !SegmentWriter.valid_period(config.getString("data_segment")))
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": data_segment must be \"daily\" or \"hourly\"");
+                        return false;
+                    }
+
+                // skip storing and publishing unchanged data, default false
+                if (config.getBoolean("dedupe")==null)
+                    {
+                        config.put("dedupe", false);
+                    }
+
+                // with dedupe, still publish unchanged data every dedupe_heartbeat seconds, 0 = never
+                if (config.getInteger("dedupe_heartbeat", 0) < 0)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": dedupe_heartbeat must be >= 0");
+                        return false;
+                    }
+                config.put("dedupe_heartbeat", config.getInteger("dedupe_heartbeat", 0));
+
+                // optional eventbus partitioning of the messages (see util/FeedPartitioner), default "none"
+                if (!FeedPartitioner.valid_mode(config.getString("partition")))
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": partition must be \"none\", \"feed_id\" or \"grid\"");
+                        return false;
+                    }
+                config.put("partition", config.getString("partition", FeedPartitioner.NONE));
+                config.put("partition_grid_deg", config.getDouble("partition_grid_deg", FeedPartitioner.GRID_DEG_DEFAULT));
+                if (config.getDouble("partition_grid_deg") <= 0)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+FEED_ID+
+                                    ": partition_grid_deg must be > 0");
+                        return false;
+                    }
+
                 // create a new WebClient for this feed, and add to web_clients list
                 if (http_get)
                     {
@@ -714,6 +1235,30 @@ public class FeedMaker extends AbstractVerticle {
         // web address for this FeedHandler to receive POST data messages from original source
         HTTP_PORT = config().getInteger(MODULE_NAME+".http.port",0);
 
+        // max concurrent GET requests across all feeds
+        MAX_REQUESTS = config().getInteger(MODULE_NAME+".max_requests", MAX_REQUESTS_DEFAULT);
+        if (MAX_REQUESTS < 1)
+            {
+                Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".max_requests must be > 0");
+                return false;
+            }
+
+        // worker threads for parsing, shared by all feeds
+        PARSE_THREADS = config().getInteger(MODULE_NAME+".parse_threads", PARSE_THREADS_DEFAULT);
+        if (PARSE_THREADS < 1)
+            {
+                Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".parse_threads must be > 0");
+                return false;
+            }
+
+        // max received data buffers waiting to be parsed for each feed
+        PARSE_QUEUE_MAX = config().getInteger(MODULE_NAME+".parse_queue_max", PARSE_QUEUE_MAX_DEFAULT);
+        if (PARSE_QUEUE_MAX < 1)
+            {
+                Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".parse_queue_max must be > 0");
+                return false;
+            }
+
         START_FEEDS = config().getJsonArray(MODULE_NAME+".feeds");
         
         if (!validate_feeds())
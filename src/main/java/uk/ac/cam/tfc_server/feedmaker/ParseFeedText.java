@@ -55,6 +55,9 @@ The FeedMaker will add the following properties to the eventbus message:
 // ParseFeed will iterate through the defined RecordTemplates picking out the required data as instructed by each.
 // Each RecordTemplate results in a JsonObject, which are accumulated in a JsonArray that is the returned result.
 //
+// The RecordTemplates are compiled once (see TemplateScanner.java), with the field types as int codes and
+// the field values extracted into a typed record buffer before the JsonObject of each record is built.
+//
 
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
@@ -85,6 +88,9 @@ public class ParseFeedText implements FeedParser {
     // structure holding templates for each feed type
     // i.e. record_templates["cam_park_local"] gives templates for that feed type
     HashMap<String, ArrayList<RecordTemplate>> record_templates;
+
+    // record_templates[feed_type] compiled for parse()
+    private TemplateScanner scanner;
     
     ParseFeedText(JsonObject config, Log logger)
     {
@@ -98,190 +104,26 @@ public class ParseFeedText implements FeedParser {
 
        record_templates = init_templates();
 
-       logger.log(Constants.LOG_DEBUG, "ParseFeed started for "+feed_type);
+       // compile the templates for this feed_type
+       ArrayList<RecordTemplate> templates = record_templates.get(feed_type);
+       if (templates == null)
+       {
+           logger.log(Constants.LOG_WARN, "ParseFeed: no templates for feed type "+feed_type);
+           templates = new ArrayList<RecordTemplate>();
+       }
+       scanner = new TemplateScanner(templates, logger);
+
+       logger.log(Constants.LOG_DEBUG, () -> "ParseFeed started for "+feed_type);
     }
 
     // Here is where we try and parse the page and return a JsonObject
     public JsonObject parse(Buffer buf)
     {
 
-        logger.log(Constants.LOG_DEBUG, "ParseFeed.parse() called for feed type "+feed_type);
-
-        String page = buf.toString();
-
-        JsonArray records = new JsonArray();
-
-        // otherwise try and match each known car park to the data
-        for (int i=0; i<record_templates.get(feed_type).size(); i++)
-            {
-                RecordTemplate record_template = record_templates.get(feed_type).get(i);
-
-                logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array trying template "+record_template.tag_start);
-
-                // ...grafton-east-car-park...<strong>384 spaces...
-                int rec_start = page.indexOf(record_template.tag_start); // find start of record 
-                if (rec_start < 0) continue;  // if not found then skip current record_template
-
-                int rec_end = page.indexOf(record_template.tag_end, rec_start); // find end of record 
-                if (rec_end < 0) continue;  // if not found then skip current record_template
-
-                String record = page.substring(rec_start, rec_end);
-
-                logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array matched template "+
-                           record_template.tag_start+
-                           " (length "+record.length()+")"+
-                           "["+record_template.fields.size()+"]");
-
-                logger.log(Constants.LOG_DEBUG, "record=\""+record+"\"");
-
-                JsonObject json_record = new JsonObject();
-
-                boolean record_ok = true;  // this flag will be set to false if a 'required' field is missing
-
-                for (int j=0; j<record_template.fields.size(); j++)
-                {
-                    FieldTemplate field_template = record_template.fields.get(j);
-
-                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array trying field "+field_template.field_name);
-
-                    // if field value already in field template, just use that
-                    if (field_template.field_type == "fixed_int")
-                    {
-                      json_record.put(field_template.field_name, field_template.fixed_int);
-                      //logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array "+
-                      //                                field_template.field_name+" fixed_int = "+
-                      //                                field_template.fixed_int
-                      //          );
-                      continue;
-                    }
-                    else if (field_template.field_type == "conditional_fixed_int")
-                    {
-                      int field_start = record.indexOf(field_template.s1);
-                      if (field_start >= 0)
-                      {
-                        json_record.put(field_template.field_name, field_template.fixed_int);
-                        logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array using conditional_fixed_int "+
-                                   field_template.field_name+" "+field_template.s1);
-                      }
-                      continue;
-                    }
-                    else if (field_template.field_type == "fixed_string")
-                    {
-                      json_record.put(field_template.field_name, field_template.fixed_string);
-                      //logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array "+
-                      //                                field_template.field_name+" fixed_string = "+
-                      //                                field_template.fixed_string
-                      //          );
-                      continue;
-                    }
-
-                    else if (field_template.field_type == "calc_minus")
-                    {
-                        try {
-                        int v1 = json_record.getInteger(field_template.s1);
-                        int v2 = json_record.getInteger(field_template.s2);
-                        json_record.put(field_template.field_name, v1-v2);
-                        } catch (Exception e) {
-                            if (field_template.required)
-                                {
-                                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping due to "+
-                                               field_template.field_name);
-                                    record_ok = false;
-                                    break;
-                                }
-                        }
-                        continue;
-                    }
-                    else if (field_template.field_type == "calc_plus")
-                    {
-                        try {
-                        int v1 = json_record.getInteger(field_template.s1);
-                        int v2 = json_record.getInteger(field_template.s2);
-                        json_record.put(field_template.field_name, v1+v2);
-                        } catch (Exception e) {
-                            if (field_template.required)
-                                {
-                                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping due to "+
-                                               field_template.field_name);
-                                    record_ok = false;
-                                    break;
-                                }
-                        }
-                        continue;
-                    }
-                    // field value was not in template, so parse from record
-
-                    // find index of start of field, or skip this record_template
-                    int field_start = record.indexOf(field_template.s1);
-                    if (field_start < 0)
-                        { 
-                            if (field_template.required)
-                                {
-                                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping due to "+
-                                    field_template.field_name);
-                                    record_ok = false;
-                                    break;
-                                }
-                            continue;
-                        }
-                    field_start = field_start + field_template.s1.length();
-
-                    // find index of end of field, or skip this record_template
-                    int field_end = record.indexOf(field_template.s2, field_start);
-                    if (field_end < 0)
-                        { 
-                            if (field_template.required)
-                                {
-                                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping due to "+
-                                    field_template.field_name);
-                                    record_ok = false;
-                                    break;
-                                }
-                            continue;
-                        }
-                    if (field_end - field_start > MAX_TAG_SIZE) continue;
-
-                    // pick out the field value, or skip if not recognized
-                    String field_string = record.substring(field_start, field_end);
-                    if (field_template.field_type == "int")
-                    {
-                        try {
-                            int int_value = Integer.parseInt(field_string);
-                            json_record.put(field_template.field_name, int_value);
-                        } catch (NumberFormatException e) {
-                            if (field_template.required)
-                                {
-                                    logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping due to "+
-                                               field_template.field_name);
-                                    record_ok = false;
-                                    break;
-                                }
-                            continue;
-                        }
-                        continue;
-                    }
-                    else if (field_template.field_type == "string")
-                    {
-                        json_record.put(field_template.field_name, field_string);
-                        continue;
-                    }
-                }
-
-                if (record_ok)
-                    {
-                        logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array found "+json_record);
-
-                        records.add(json_record);
-                    }
-                else
-                    {
-                        logger.log(Constants.LOG_DEBUG, "ParseFeed.parse_array skipping matched template "+
-                                   record_template.tag_start);
-                    }
-            }
+        logger.log(Constants.LOG_DEBUG, () -> "ParseFeed.parse() called for feed type "+feed_type);
 
         JsonObject msg = new JsonObject();
-        msg.put("request_data", records);
+        msg.put("request_data", scanner.parse(buf.toString()));
         return msg;
 
     }
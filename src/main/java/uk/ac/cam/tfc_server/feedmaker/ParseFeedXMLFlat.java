@@ -29,14 +29,22 @@ package uk.ac.cam.tfc_server.feedmaker;
 //    string: original value string is unchanged
 //    datetime_utc_millis: original value (ISO string datetime) is converted to a UTC ISO string including milliseconds
 //
+// The config may also include
+//                                         "tag_fields": [ "VehicleRef", "LineRef" ]
+// to limit the properties copied unchanged from each record to those tags (the 'tag_map' properties are
+// still added). Without "tag_fields" every tag in the record becomes a property.
+//
+// The page is parsed in a single pass over its UTF-8 bytes. Tag names are interned in a table held by the
+// parser, so each distinct tag name is only converted to a String (and matched against 'tag_map' and
+// 'tag_fields') once per feed, and a value String is only created for a tag that will be output.
+//
 // ******************************************************************************************
 // ******************************************************************************************
 
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.TemporalAccessor;
+import java.util.HashSet;
 
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
@@ -45,9 +53,14 @@ import io.vertx.core.buffer.Buffer;
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.IsoTimestamp;
 
 public class ParseFeedXMLFlat implements FeedParser {
 
+    // Limit on the distinct tag names interned per feed, beyond which tag names are still
+    // parsed but not added to the table (so a page of junk cannot grow it without bound)
+    private static final int MAX_TAGS = 4096;
+
     private String feed_type; // e.g. Constants.FEED_XML_FLAT
 
     private String area_id;
@@ -60,6 +73,18 @@ public class ParseFeedXMLFlat implements FeedParser {
 
     private HashMap<String, TagTransform> tag_map; // mappings of data fields e.g. "RecordedAtTime" -> "acp_ts"
 
+    private HashSet<String> tag_fields; // tags to copy into each record, null for all tags
+
+    private byte[] tag_record_bytes;
+
+    private IsoTimestamp iso_timestamp = new IsoTimestamp(); // for the datetime_iso_* tag_map formats
+
+    // Interned tag names, open addressing with linear probing (size a power of 2)
+    // A ParseFeedXMLFlat is only called by one thread at a time (see FeedMaker ParseQueue)
+    private Tag[] tags = new Tag[64];
+
+    private int tag_count = 0;
+
     // Constructor
 
     ParseFeedXMLFlat(JsonObject config, Log logger)
@@ -72,6 +97,8 @@ public class ParseFeedXMLFlat implements FeedParser {
 
        this.tag_record = config.getString("tag_record","");
 
+       this.tag_record_bytes = tag_record.getBytes(StandardCharsets.UTF_8);
+
        this.logger = logger;
 
        tag_map = new HashMap<String,TagTransform>();
@@ -86,160 +113,139 @@ public class ParseFeedXMLFlat implements FeedParser {
            tag_map.put(tag_config.getString("original_tag"), new TagTransform(tag_config));
        }
 
-       logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat started for feed_type "+feed_type+", "+
-                  tag_map.size()+" tags to transform");
+       // Optional projection of the record properties
+       JsonArray config_fields = config.getJsonArray("tag_fields");
+       if (config_fields != null)
+       {
+           tag_fields = new HashSet<String>();
+           for (int i=0; i<config_fields.size(); i++)
+           {
+               tag_fields.add(config_fields.getString(i));
+           }
+       }
+
+       logger.log(Constants.LOG_DEBUG, () -> "ParseFeedXMLFlat started for feed_type "+feed_type+", "+
+                        tag_map.size()+" tags to transform"+
+                        (tag_fields == null ? "" : ", "+tag_fields.size()+" tag_fields"));
     }
 
     // Here is where we try and parse the page and return a JsonObject
     public JsonObject parse(Buffer buf)
     {
+        byte[] page = buf.getBytes();
 
-        String page = buf.toString();
-
-        logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() called for feed type "+feed_type);
+        logger.log(Constants.LOG_DEBUG, () -> "ParseFeedXMLFlat.parse() called for feed type "+feed_type);
 
         JsonArray records = new JsonArray();
 
-        //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat searching for "+tag_record);
-        // <tag_record>..</tag_record> is the flattenable XML object that possibly repeats in the page 
-        // cursor is our current position on the page as we step through parsing records
-        int record_cursor = 0;
-        // While we have some page left, continue parsing records
-        while (record_cursor < page.length()) // this could be 'while (true)' as a 'break' should always occur anyway
+        // We accumulate the flat Json from the XML of each <tag_record>..</tag_record> into json_record,
+        // i.e. each XML <Foo>xyz</Foo> becomes "Foo": "xyz" and any nesting of XML objects is ignored.
+        // This assumes the flattenable XML does NOT contain duplicate XML tags WITHIN records
+        // although the records themselves can be repeated. This works for e.g. Siri-VM.
+        // json_record is null while we are outside a tag_record.
+        JsonObject json_record = null;
+
+        // Basic technique is to step through the tags, and only make a Json property out of
+        // consecutive opening and closing tags that match.
+        // current_tag is the opening tag immediately before the cursor (inside a record), else null,
+        // and value_start is the index after its '>'.
+        Tag current_tag = null;
+        int value_start = 0;
+
+        int cursor = 0;
+        while (true)
         {
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat searching for record from index "+record_cursor);
-            // We will accumulate the flat Json from the XML into json_record
-            // I.e. each XML <Foo>xyz</Foo>
-            // becomes "Foo": "xyz"
-            // and any nesting of XML objects is ignored.
-            // This assumes the flattenable XML does NOT contain duplicate XML tags WITHIN records
-            // although the records themselves can be repeated. This works for e.g. Siri-VM.
-            JsonObject json_record = new JsonObject();
-            // Move cursor forwards to the next occurrence of the tag_record
-            record_cursor = page.indexOf("<"+tag_record+">", record_cursor);
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat "+tag_record+" search result "+record_cursor);
-            if (record_cursor < 0)
+            // find the next <..> or </..> tag
+            int tag_open = index_of(page, (byte) '<', cursor);
+            if (tag_open < 0)
             {
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() no more "+tag_record+" records");
-                // no more tag_record objects so finish
-                break; // quit outermost records loop
+                break; // end of page
             }
-            int record_end = page.indexOf("</"+tag_record+">", record_cursor);
-            if (record_end < 0)
+            // tag_close is index of the closing '>'
+            // (a stray '<' in the text before it means the tag starts at the last '<')
+            int tag_close = tag_open + 1;
+            while (tag_close < page.length && page[tag_close] != '>')
             {
-                // wtf, we got an opening tag_record but not a closing one, finish anyway
-                logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse incomplete "+tag_record+" XML object");
-                break; // quit outermost records loop
+                if (page[tag_close] == '<')
+                {
+                    tag_open = tag_close;
+                }
+                tag_close++;
             }
-            // Ok, we think we have a record between 'record_cursor' and 'record_end'
-            // record_cursor is currently pointing at opening '<' of '<tag_record>'
-            //logger.log(Constants.LOG_DEBUG, "ParseFeed xml_flat record at "+record_cursor);
-
-            // Now loop within this tag_record object picking out the atomic objects <foo>X</foo>
-
-            // Basic technique is to step through the tags, and only make a Json property out of
-            // consecutive opening and closing tags that match.
-            String current_tag = "";
-
-            while (record_cursor < record_end)
+            if (tag_close == page.length)
             {
-                // Searching forwards inside the 'tag_record' XML object
-                // We will find the next <..> or </..> tag
-                // Note we are moving the cursor forward each time at the earliest opportunity
-                int next_cursor = page.indexOf("<", record_cursor);
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() next_cursor at "+next_cursor);
-                // This could be the tag_record closing tag
-                if (next_cursor >= record_end)
+                // wtf, we got a '<' but no '>'
+                if (json_record != null)
                 {
-                    //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() no more properties in this "+tag_record);
-                    record_cursor = record_end;
-                    break;
+                    logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse() incomplete tag in "+tag_record+" XML object");
                 }
-                // tag could be <foo> or <foo route=66>, either way we want the "foo"
-                // tag_close is index of the closing '>'
-                int tag_close = page.indexOf(">", next_cursor);
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() tag_close at "+tag_close);
-                if (tag_close < 0)
+                break;
+            }
+            cursor = tag_close + 1;
+
+            // tag could be <foo>, </foo> or <foo route=66>, in each case we want the "foo"
+            boolean closing = page[tag_open + 1] == '/';
+            int name_start = closing ? tag_open + 2 : tag_open + 1;
+            int name_end = name_start;
+            int hash = 0;
+            while (name_end < tag_close)
+            {
+                byte b = page[name_end];
+                if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '/')
                 {
-                    // wtf, we got a '<' but no '>'
-                    logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse() incomplete tag in "+tag_record+" XML object");
-                    record_cursor = page.length(); // force completion of this page
                     break;
                 }
+                hash = 31 * hash + b;
+                name_end++;
+            }
 
-                // We found '<'...'>' but if that's actually '<'...'/>' then skip this self-closed object
-                if (page.substring(tag_close - 1, tag_close).equals("/"))
+            if (json_record == null)
+            {
+                // Outside a record, we are only looking for the next <tag_record>
+                if (!closing && page[tag_close - 1] != '/' && name_equals(page, name_start, name_end, tag_record_bytes))
                 {
-                    logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                               "skipping self-closed "+page.substring(record_cursor, tag_close+1));
-                    record_cursor = tag_close;
-                    break;
+                    json_record = new JsonObject();
+                    current_tag = null;
                 }
+                continue;
+            }
 
-                // See if we find a space character inside the tag (e.g. <foo route=66>)
-                int tag_space = page.indexOf(" ", next_cursor);
-                
-                int tag_end = (tag_space > 0) && (tag_space < tag_close) ? tag_space : tag_close;
-                //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() tag_end at "+tag_end);
-                // Note we KNOW we at least have a '>' at the end of the tag_record object from the code above
-                // So check the tag we found is still within the current tag_record object
-                if (tag_end < record_end)
+            if (closing)
+            {
+                if (name_equals(page, name_start, name_end, tag_record_bytes))
                 {
-                    // Given a '<'..'>' (but not '<'..'/>')
-                    String next_tag = page.substring(++next_cursor, tag_end);
-                    //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                    //           "found tag "+next_tag);
-                    // Process tag here...
-                    if (next_tag.equals("/"+current_tag))
-                    {
-                        //logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                        //           "found atomic tag "+current_tag+".."+tag_close);
-                        // *************************************************************************
-                        // ************* OK HERE WE FOUND A TAG WITH A VALUE ***********************
-                        // *************************************************************************
-                        String current_value = page.substring(record_cursor+1, next_cursor-1);
-                        // So name of the tag is 'current_tag'
-                        // And the string value is 'current_value'
-
-                        // Add a new property to the current json record with this tag/value
-                        json_record.put(current_tag, current_value);
-
-                        // Now we'll see if we want to add *another* 'standard' property 
-                        // because there's an entry in the HashMap 'tag_map'
-
-                        if (tag_map.containsKey(current_tag))
-                        {
-                            // Yup, this is a 'tag' of interest, so transform to a new Json property
-                            JsonObject new_property = tag_map.get(current_tag).transform(current_value);
-                            logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() transformed "+
-                                       current_tag+"/"+current_value+" to "+new_property);
-
-                            // Now we add this new property to the json_record we're building
-                            json_record.mergeIn(new_property);
-                        }
-                        // *************************************************************************
-                        // *************************************************************************
-                        // *************************************************************************
-                    }
-
-                    current_tag = next_tag;
-                    record_cursor = tag_close;
+                    // end of this record, so add it to the 'records' result list
+                    records.add(json_record);
+                    json_record = null;
                 }
-                else
+                else if (current_tag != null && name_equals(page, name_start, name_end, current_tag.name))
                 {
-                    logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() "+
-                               "at record end");
-                    record_cursor = record_end;
-                } // end if
-            } // end while loop for properties within current record
-
-            //json_record.put("feed_data", page);
-            // Add the current record to the 'records' result list
-            records.add(json_record);
-            // shift cursor to the end of the current record before we loop to look for the next record
-            record_cursor = record_end;
+                    // *************************************************************************
+                    // ************* OK HERE WE FOUND A TAG WITH A VALUE ***********************
+                    // *************************************************************************
+                    add_property(json_record, current_tag, page, value_start, tag_open);
+                }
+                current_tag = null;
+            }
+            else if (page[tag_close - 1] == '/')
+            {
+                // skip self-closed <foo/> which has no value
+                current_tag = null;
+            }
+            else
+            {
+                current_tag = intern(page, name_start, name_end, hash);
+                value_start = tag_close + 1;
+            }
+        } // end while loop through tags
+
+        if (json_record != null)
+        {
+            // wtf, we got an opening tag_record but not a closing one, finish anyway
+            logger.log(Constants.LOG_WARN, "ParseFeedXMLFlat.parse incomplete "+tag_record+" XML object");
         }
-        logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat parse() completed for "+records.size()+" records");
+
+        logger.log(Constants.LOG_DEBUG, () -> "ParseFeedXMLFlat parse() completed for "+records.size()+" records");
 
         JsonObject msg = new JsonObject();
         msg.put("request_data", records);
@@ -247,6 +253,136 @@ public class ParseFeedXMLFlat implements FeedParser {
 
     } // end parse
 
+    // Add the property (or properties) for the value page[start..end) of tag to json_record
+    private void add_property(JsonObject json_record, Tag tag, byte[] page, int start, int end)
+    {
+        if (!tag.keep && tag.transform == null)
+        {
+            return; // projected out
+        }
+
+        String current_value = new String(page, start, end - start, StandardCharsets.UTF_8);
+
+        // Add a new property to the current json record with this tag/value
+        if (tag.keep)
+        {
+            json_record.put(tag.name_string, current_value);
+        }
+
+        // Now we'll see if we want to add *another* 'standard' property
+        // because there's an entry in the HashMap 'tag_map'
+        if (tag.transform != null)
+        {
+            tag.transform.transform(current_value, json_record);
+            if (logger.is_enabled(Constants.LOG_DEBUG))
+            {
+                logger.log(Constants.LOG_DEBUG, "ParseFeedXMLFlat.parse() transformed "+
+                           tag.name_string+"/"+current_value+" to "+
+                           tag.transform.output_tag+"/"+json_record.getValue(tag.transform.output_tag));
+            }
+        }
+    }
+
+    // index of the first b in page at or after 'from', or -1
+    private static int index_of(byte[] page, byte b, int from)
+    {
+        for (int i=from; i<page.length; i++)
+        {
+            if (page[i] == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // true if page[start..end) is the tag name 'name'
+    private static boolean name_equals(byte[] page, int start, int end, byte[] name)
+    {
+        if (end - start != name.length)
+        {
+            return false;
+        }
+        for (int i=0; i<name.length; i++)
+        {
+            if (page[start + i] != name[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the interned Tag for the name page[start..end) with the given hash, adding it if new
+    private Tag intern(byte[] page, int start, int end, int hash)
+    {
+        int mask = tags.length - 1;
+        int i = hash & mask;
+        Tag tag;
+        while ((tag = tags[i]) != null)
+        {
+            if (tag.hash == hash && name_equals(page, start, end, tag.name))
+            {
+                return tag;
+            }
+            i = (i + 1) & mask;
+        }
+
+        tag = new Tag(Arrays.copyOfRange(page, start, end), hash);
+
+        if (tag_count >= MAX_TAGS)
+        {
+            return tag; // not interned
+        }
+
+        tags[i] = tag;
+        tag_count++;
+
+        // keep the table at most half full
+        if (tag_count * 2 > tags.length)
+        {
+            Tag[] old_tags = tags;
+            tags = new Tag[old_tags.length * 2];
+            mask = tags.length - 1;
+            for (Tag t : old_tags)
+            {
+                if (t != null)
+                {
+                    int j = t.hash & mask;
+                    while (tags[j] != null)
+                    {
+                        j = (j + 1) & mask;
+                    }
+                    tags[j] = t;
+                }
+            }
+        }
+        return tag;
+    }
+
+    // An interned XML tag name, with what the parser does with its values
+    private class Tag {
+
+        final byte[] name;
+
+        final int hash;
+
+        final String name_string;
+
+        final boolean keep;            // copy the value to a property 'name_string'
+
+        final TagTransform transform;  // from tag_map, or null
+
+        Tag(byte[] name, int hash)
+        {
+            this.name = name;
+            this.hash = hash;
+            this.name_string = new String(name, StandardCharsets.UTF_8);
+            this.keep = tag_fields == null || tag_fields.contains(name_string);
+            this.transform = tag_map.get(name_string);
+        }
+    } // end Tag
+
     // This class is used to hold the mapping of an XML tag (e.g. "RecordedAtTime") to
     // a 'standard' property for this platform (i.e. "acp_ts")
     class TagTransform {
@@ -265,40 +401,39 @@ public class ParseFeedXMLFlat implements FeedParser {
             this.format = tag_config.getString("format");
         }
 
-        public JsonObject transform(String input_value)
+        // put the transformed input_value into json_record as property 'output_tag'
+        // (nothing is added if input_value cannot be converted to 'format')
+        public void transform(String input_value, JsonObject json_record)
         {
-            JsonObject jo = new JsonObject();
             try {
                 // here is where we transform the input value based on 'format'
                 switch (format)
                     {
                     case "int":
-                        jo.put(output_tag, Long.parseLong(input_value));
+                        json_record.put(output_tag, Long.parseLong(input_value));
                         break;
                     case "float":
-                        jo.put(output_tag, Double.parseDouble(input_value));
+                        json_record.put(output_tag, Double.parseDouble(input_value));
                         break;
                     case "datetime_iso_to_utc":
                         // input  "2017-09-29T09:45:38+01:00"
                         // output "2017-09-29T09:45:38.000Z"
-                        String iso_ts = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).toString();
-                        jo.put(output_tag, iso_ts);
+                        String iso_ts = iso_timestamp.instant(input_value).toString();
+                        json_record.put(output_tag, iso_ts);
                         break;
                     case "datetime_iso_to_int_utc_seconds":
                         // input  "2017-09-29T09:45:38+01:00"
                         // output "1507125081"
-                        long ts_seconds = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).getEpochSecond();
-                        jo.put(output_tag, ts_seconds);
+                        long ts_seconds = iso_timestamp.epoch_second(input_value);
+                        json_record.put(output_tag, ts_seconds);
                         break;
                     default:
-                        jo.put(output_tag, input_value);
+                        json_record.put(output_tag, input_value);
                         break;
                     }
             }
             catch (Exception e){;}
-            return jo;
         }
     } // end TagTransform
 
 } // end ParseFeedXMLFlat
-
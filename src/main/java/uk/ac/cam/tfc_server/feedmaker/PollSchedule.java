@@ -0,0 +1,96 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// PollSchedule.java
+//
+// The adaptive GET polling interval of a FeedMaker feed, updated from the outcome of each poll:
+//
+//   FAILED     consecutive failures double the interval from 'period', up to 'period_fail_max'
+//   UNCHANGED  (dedupe feeds) unchanged data stretches the interval by 1.5x, up to 'period_max'
+//   CHANGED    (dedupe feeds) changed data shortens the interval by 0.75x, down to 'period_min'
+//   OK         (feeds without change detection) the interval returns to 'period'
+//
+// Each delay has a random jitter of +/- 'jitter' (a fraction of the interval), and the first poll
+// of each feed is given a phase within its period, so the polls of many feeds are spread out rather
+// than synchronized.
+// *************************************************************************************************
+// *************************************************************************************************
+
+import java.util.Random;
+
+class PollSchedule {
+
+    enum Outcome { OK, CHANGED, UNCHANGED, FAILED }
+
+    private static final double UNCHANGED_FACTOR = 1.5;
+    private static final double CHANGED_FACTOR = 0.75;
+
+    final long period_ms;
+    final long period_min_ms;
+    final long period_max_ms;
+    final long period_fail_max_ms;
+    final double jitter;
+
+    private long interval_ms;   // current effective interval
+    private int failures = 0;   // consecutive failed polls
+
+    private final Random random = new Random();
+
+    PollSchedule(long period_ms, long period_min_ms, long period_max_ms, long period_fail_max_ms, double jitter)
+    {
+        this.period_ms = period_ms;
+        this.period_min_ms = period_min_ms;
+        this.period_max_ms = period_max_ms;
+        this.period_fail_max_ms = period_fail_max_ms;
+        this.jitter = jitter;
+        interval_ms = period_ms;
+    }
+
+    long get_interval_ms()
+    {
+        return interval_ms;
+    }
+
+    // delay before the first poll of the index'th of 'count' polled feeds, spreading them evenly
+    // across the period (plus jitter)
+    long first_delay(int index, int count)
+    {
+        long phase = count > 0 ? period_ms * index / count : 0;
+        return Math.max(1, phase + (long) (period_ms * jitter * random.nextDouble()));
+    }
+
+    // delay until the next poll, for a poll that started 'elapsed_ms' ago
+    long next_delay(long elapsed_ms)
+    {
+        double j = 1.0 + jitter * (2.0 * random.nextDouble() - 1.0);
+        return Math.max(1, (long) (interval_ms * j) - elapsed_ms);
+    }
+
+    // update the interval with the outcome of a poll
+    void update(Outcome outcome)
+    {
+        if (outcome == Outcome.FAILED)
+        {
+            failures++;
+            // period * 2^failures (the shift is limited so a long run of failures cannot overflow)
+            interval_ms = Math.min(period_fail_max_ms, Math.max(interval_ms, period_ms << Math.min(failures, 20)));
+            return;
+        }
+
+        failures = 0;
+        if (outcome == Outcome.UNCHANGED)
+        {
+            interval_ms = Math.min(period_max_ms, (long) (Math.max(interval_ms, period_ms) * UNCHANGED_FACTOR));
+        }
+        else if (outcome == Outcome.CHANGED)
+        {
+            interval_ms = Math.max(period_min_ms, (long) (Math.min(interval_ms, period_ms) * CHANGED_FACTOR));
+        }
+        else
+        {
+            interval_ms = period_ms;
+        }
+    }
+
+} // end class PollSchedule
@@ -0,0 +1,338 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+//**********************************************************************
+//**********************************************************************
+//   TemplateScanner.java
+//
+//   The RecordTemplates of a ParseFeedText feed_type, compiled once so each page is parsed with:
+//
+//   * one search of the page for each distinct record 'tag_start'
+//   * field searches limited to the record text (tag_start .. tag_end)
+//   * field types compiled to int codes (rather than compared as Strings) and field values held in a
+//     typed record buffer (int or String per field name), so calc_minus / calc_plus read the values
+//     directly, with a JsonObject only built for each complete record.
+//
+//   The result is the same as applying each RecordTemplate in turn (see ParseFeedText): records in
+//   template order, fields in the order first set, later fields overwriting earlier ones of the same name.
+//
+//   The searches use String.indexOf(), which the JVM vectorizes. A single-pass Aho-Corasick automaton
+//   of all the tag_start strings was tried, but on the car park pages (~10 tags, a few KB) its
+//   char-by-char table lookups were several times slower than the separate indexOf() searches.
+//**********************************************************************
+//**********************************************************************
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+// other tfc_server classes
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Constants;
+
+class TemplateScanner {
+
+    // compiled FieldTemplate.field_type
+    private static final int FIELD_INT = 0;
+    private static final int FIELD_STRING = 1;
+    private static final int FIELD_FIXED_INT = 2;
+    private static final int FIELD_FIXED_STRING = 3;
+    private static final int FIELD_CONDITIONAL_FIXED_INT = 4;
+    private static final int FIELD_CALC_MINUS = 5;
+    private static final int FIELD_CALC_PLUS = 6;
+    private static final int FIELD_OTHER = 7; // unrecognized type, searched for but no value stored
+
+    // kinds of value held in a record buffer slot
+    private static final byte EMPTY = 0;
+    private static final byte INT = 1;
+    private static final byte STRING = 2;
+
+    private static class Field {
+        int type;
+        int slot;          // record buffer slot of field_name
+        int slot1;         // calc_*: slots of the two operand fields
+        int slot2;
+        String s1;
+        String s2;
+        int fixed_int;
+        String fixed_string;
+        boolean required;
+    }
+
+    private static class Record {
+        String tag_start;
+        int tag_id;        // index of tag_start in 'tags', -1 if null
+        String tag_end;
+        Field[] fields;
+    }
+
+    private final Log logger;
+
+    private final Record[] records;
+
+    // JSON property name of each record buffer slot
+    private final String[] slot_names;
+
+    // distinct tag_start strings
+    private final String[] tags;
+
+    // ********************************************************************
+    // record buffer, reused for each record (a ParseFeedText is only called by one thread at a time)
+    private final byte[] kinds;
+    private final int[] ints;
+    private final String[] strings;
+    private final int[] order;  // slots in the order first set
+    private int order_size;
+
+    TemplateScanner(List<ParseFeedText.RecordTemplate> record_templates, Log logger)
+    {
+        this.logger = logger;
+
+        HashMap<String,Integer> slot_ids = new HashMap<String,Integer>();
+        ArrayList<String> slot_list = new ArrayList<String>();
+        HashMap<String,Integer> tag_ids = new HashMap<String,Integer>();
+        ArrayList<String> tag_list = new ArrayList<String>();
+
+        records = new Record[record_templates.size()];
+        for (int i=0; i<records.length; i++)
+        {
+            ParseFeedText.RecordTemplate rt = record_templates.get(i);
+            Record r = new Record();
+            r.tag_start = rt.tag_start;
+            r.tag_end = rt.tag_end;
+            r.tag_id = -1;
+            if (rt.tag_start != null)
+            {
+                Integer id = tag_ids.get(rt.tag_start);
+                if (id == null)
+                {
+                    id = tag_list.size();
+                    tag_ids.put(rt.tag_start, id);
+                    tag_list.add(rt.tag_start);
+                }
+                r.tag_id = id;
+            }
+            r.fields = new Field[rt.fields.size()];
+            for (int j=0; j<r.fields.length; j++)
+            {
+                ParseFeedText.FieldTemplate ft = rt.fields.get(j);
+                Field f = new Field();
+                f.type = field_type(ft.field_type);
+                f.slot = slot(ft.field_name, slot_ids, slot_list);
+                f.s1 = ft.s1;
+                f.s2 = ft.s2;
+                if (f.type == FIELD_CALC_MINUS || f.type == FIELD_CALC_PLUS)
+                {
+                    f.slot1 = slot(ft.s1, slot_ids, slot_list);
+                    f.slot2 = slot(ft.s2, slot_ids, slot_list);
+                }
+                f.fixed_int = ft.fixed_int;
+                f.fixed_string = ft.fixed_string;
+                f.required = ft.required;
+                r.fields[j] = f;
+            }
+            records[i] = r;
+        }
+
+        slot_names = slot_list.toArray(new String[0]);
+        kinds = new byte[slot_names.length];
+        ints = new int[slot_names.length];
+        strings = new String[slot_names.length];
+        order = new int[slot_names.length];
+
+        tags = tag_list.toArray(new String[0]);
+    }
+
+    private static int field_type(String field_type)
+    {
+        if (field_type == null)
+        {
+            return FIELD_OTHER;
+        }
+        switch (field_type)
+        {
+            case "int":                   return FIELD_INT;
+            case "string":                return FIELD_STRING;
+            case "fixed_int":             return FIELD_FIXED_INT;
+            case "fixed_string":          return FIELD_FIXED_STRING;
+            case "conditional_fixed_int": return FIELD_CONDITIONAL_FIXED_INT;
+            case "calc_minus":            return FIELD_CALC_MINUS;
+            case "calc_plus":             return FIELD_CALC_PLUS;
+            default:                      return FIELD_OTHER;
+        }
+    }
+
+    private static int slot(String name, HashMap<String,Integer> slot_ids, ArrayList<String> slot_list)
+    {
+        Integer id = slot_ids.get(name);
+        if (id == null)
+        {
+            id = slot_list.size();
+            slot_ids.put(name, id);
+            slot_list.add(name);
+        }
+        return id;
+    }
+
+    // ********************************************************************
+    // parse()
+    // Return the records found in 'page'
+    // ********************************************************************
+    JsonArray parse(String page)
+    {
+        // find the first occurrence of each tag_start
+        int[] tag_pos = new int[tags.length];
+        for (int t=0; t<tags.length; t++)
+        {
+            tag_pos[t] = page.indexOf(tags[t]);
+        }
+
+        JsonArray result = new JsonArray();
+
+        for (Record record : records)
+        {
+            // ...grafton-east-car-park...<strong>384 spaces...
+            int rec_start = record.tag_id < 0 ? -1 : tag_pos[record.tag_id];
+            if (rec_start < 0) continue;  // if not found then skip current record
+
+            int rec_end = page.indexOf(record.tag_end, rec_start); // find end of record
+            if (rec_end < 0) continue;  // if not found then skip current record
+
+            JsonObject json_record = parse_record(page.substring(rec_start, rec_end), record);
+            if (json_record != null)
+            {
+                logger.log(Constants.LOG_DEBUG, () -> "ParseFeed.parse_array found "+json_record);
+                result.add(json_record);
+            }
+            else
+            {
+                logger.log(Constants.LOG_DEBUG, () -> "ParseFeed.parse_array skipping matched template "+
+                           record.tag_start);
+            }
+        }
+        return result;
+    }
+
+    // extract the fields of 'record' from its 'text', or return null if a required field is missing
+    private JsonObject parse_record(String text, Record record)
+    {
+        // clear the record buffer
+        for (int i=0; i<order_size; i++)
+        {
+            kinds[order[i]] = EMPTY;
+            strings[order[i]] = null;
+        }
+        order_size = 0;
+
+        for (Field field : record.fields)
+        {
+            switch (field.type)
+            {
+                case FIELD_FIXED_INT:
+                    set_int(field.slot, field.fixed_int);
+                    continue;
+
+                case FIELD_FIXED_STRING:
+                    set_string(field.slot, field.fixed_string);
+                    continue;
+
+                case FIELD_CONDITIONAL_FIXED_INT:
+                    if (text.indexOf(field.s1) >= 0)
+                    {
+                        set_int(field.slot, field.fixed_int);
+                    }
+                    continue;
+
+                case FIELD_CALC_MINUS:
+                case FIELD_CALC_PLUS:
+                    if (kinds[field.slot1] == INT && kinds[field.slot2] == INT)
+                    {
+                        set_int(field.slot, field.type == FIELD_CALC_MINUS ?
+                                            ints[field.slot1] - ints[field.slot2] :
+                                            ints[field.slot1] + ints[field.slot2]);
+                    }
+                    else if (field.required)
+                    {
+                        return null;
+                    }
+                    continue;
+
+                default:
+                    break;
+            }
+
+            // field value was not in template, so parse from record
+
+            // find index of start of field, or skip this record
+            int field_start = text.indexOf(field.s1);
+            if (field_start < 0)
+            {
+                if (field.required) return null;
+                continue;
+            }
+            field_start = field_start + field.s1.length();
+
+            // find index of end of field, or skip this record
+            int field_end = text.indexOf(field.s2, field_start);
+            if (field_end < 0)
+            {
+                if (field.required) return null;
+                continue;
+            }
+            if (field_end - field_start > ParseFeedText.MAX_TAG_SIZE) continue;
+
+            if (field.type == FIELD_INT)
+            {
+                try {
+                    set_int(field.slot, Integer.parseInt(text.substring(field_start, field_end)));
+                } catch (NumberFormatException e) {
+                    if (field.required) return null;
+                }
+            }
+            else if (field.type == FIELD_STRING)
+            {
+                set_string(field.slot, text.substring(field_start, field_end));
+            }
+        }
+
+        // convert the record buffer to Json
+        JsonObject json_record = new JsonObject();
+        for (int i=0; i<order_size; i++)
+        {
+            int slot = order[i];
+            if (kinds[slot] == INT)
+            {
+                json_record.put(slot_names[slot], ints[slot]);
+            }
+            else
+            {
+                json_record.put(slot_names[slot], strings[slot]);
+            }
+        }
+        return json_record;
+    }
+
+    private void set_int(int slot, int value)
+    {
+        if (kinds[slot] == EMPTY)
+        {
+            order[order_size++] = slot;
+        }
+        kinds[slot] = INT;
+        ints[slot] = value;
+        strings[slot] = null;
+    }
+
+    private void set_string(int slot, String value)
+    {
+        if (kinds[slot] == EMPTY)
+        {
+            order[order_size++] = slot;
+        }
+        kinds[slot] = STRING;
+        strings[slot] = value;
+    }
+
+} // end TemplateScanner
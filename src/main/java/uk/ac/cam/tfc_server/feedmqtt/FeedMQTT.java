@@ -11,16 +11,19 @@ package uk.ac.cam.tfc_server.feedmqtt;
 // Receives data from a remote MQTT server.
 //
 // FeedMQTT will WRITE the raw binary post data into:
-//   {{feed_config.data_monitor}}/<filename>
+//   {{feed_config.data_monitor}}/post_data.bin
 //   {{feed_config.data_bin}//YYYY/MM/DD/<filename>
 //
 // where <filename> = <UTC MILLISECOND TIMESTAMP>_YYYY-MM-DD-hh-mm-ss.bin
-// and any prior '.bin' files in TFC_DATA_MONITOR will be deleted
+// and post_data.bin is atomically replaced on each message (see util/LatestFileWriter)
 //
 // Config values are read from provided vertx config() json file, e.g. see README.md
 //
 // FeedMQTT will publish the feed data as a JSON string on eventbus (feed_config.address).
 //
+// With feed config "batch_ms" > 0, messages received within batch_ms (up to "batch_max" messages)
+// are published as a single eventbus message, with one data_bin segment append (see README.md).
+//
 // * this verticle is a derivative of the FeedMaker verticle.
 //
 // *************************************************************************************************
@@ -49,11 +52,18 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.LatestFileWriter;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.SegmentWriter;
+import uk.ac.cam.tfc_server.util.BinIndex;
+import uk.ac.cam.tfc_server.util.FeedBatcher;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class FeedMQTT extends AbstractVerticle {
 
-    private final String VERSION = "0.03";
+    private final String VERSION = "0.08";
     
     // from config()
     private String MODULE_NAME;       // config module.name - normally "feedscraper"
@@ -73,11 +83,25 @@ public class FeedMQTT extends AbstractVerticle {
     private final int SYSTEM_STATUS_AMBER_SECONDS = 25;
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
     private final int SYSTEM_WATCHDOG_PERIOD = 15000; // check connect @ 15 seconds
+    private final int BATCH_MAX_DEFAULT = 100; // feed config batch_max, when batch_ms > 0
+
+    // data_bin filename and path formats (local time)
+    private static final DateTimeFormatter FILENAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+    private static final DateTimeFormatter FILEPATH_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
     // global vars
     private HashMap<String,MqttFeed> mqtt_feeds; // store an MqttClient per feed_id
+    private HashMap<String,LatestFileWriter> monitor_writers; // data_monitor file writer per feed_id
+    private HashMap<String,SegmentWriter> segment_writers; // data_bin segment writer for feeds with data_segment
+    private HashMap<String,BinIndex> bin_indexes; // data_bin day index writer for feeds with data_index
+    private HashMap<String,FeedBatcher<MqttRecord>> batchers; // micro-batcher for feeds with batch_ms > 0
     private EventBus eb = null;
 
+    private boolean stopping = false; // set by stop(), data_bin files are then written synchronously
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("feed_id");
+
     private Log logger;
     
     @Override
@@ -86,6 +110,18 @@ public class FeedMQTT extends AbstractVerticle {
         // create holder for MqttClients, indexed on feed_id
         mqtt_feeds = new HashMap<String,MqttFeed>();
 
+        // create holder for data_monitor file writers, indexed on feed_id
+        monitor_writers = new HashMap<String,LatestFileWriter>();
+
+        // create holder for data_bin segment writers, indexed on feed_id
+        segment_writers = new HashMap<String,SegmentWriter>();
+
+        // create holder for data_bin day index writers, indexed on feed_id
+        bin_indexes = new HashMap<String,BinIndex>();
+
+        // create holder for feed micro-batchers, indexed on feed_id
+        batchers = new HashMap<String,FeedBatcher<MqttRecord>>();
+
         // load FeedMaker initialization values from config()
         if (!get_config())
               {
@@ -100,6 +136,8 @@ public class FeedMQTT extends AbstractVerticle {
 
         // create link to EventBus
         eb = vertx.eventBus();
+        // feed messages use the FeedMessageCodec on the eventbus
+        FeedMessageCodec.register(vertx);
 
         // send periodic "system_status" messages
         vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> { send_status();  });
@@ -110,8 +148,49 @@ public class FeedMQTT extends AbstractVerticle {
               start_client(START_FEEDS.getJsonObject(i));
             }
 
+        // complete the deployment, so stop() is called when the verticle is undeployed
+        fut.complete();
+
     } // end start()
 
+    // ****************************************************************************
+    // stop()
+    // When the verticle is undeployed (e.g. on vertx.close()), flush the micro-batches,
+    // then close the data_bin segment writers, i.e. write the index footer of the current
+    // segment. Flushed records without data_segment are written synchronously. Segment
+    // appends (append_async(), append_all_async()) are on this verticle's ordered
+    // executeBlocking queue, so the close is queued after them, including those of the
+    // flush, and stop() completes when the close has been done.
+    // ****************************************************************************
+    @Override
+    public void stop(Future<Void> fut) throws Exception
+    {
+        stopping = true;
+
+        DirCache.remove_daily(vertx);
+
+        for (String feed_id : batchers.keySet())
+        {
+            try {
+                batchers.get(feed_id).flush();
+            } catch (Exception e) {
+                Log.log_err(MODULE_NAME+"."+MODULE_ID+"."+feed_id+": stop() error flushing batch "+e);
+            }
+        }
+
+        vertx.<Void>executeBlocking(close_fut -> {
+            for (String feed_id : segment_writers.keySet())
+            {
+                try {
+                    segment_writers.get(feed_id).close();
+                } catch (IOException e) {
+                    Log.log_err(MODULE_NAME+"."+MODULE_ID+"."+feed_id+": stop() error closing segment "+e.getMessage());
+                }
+            }
+            close_fut.complete();
+        }, res -> fut.complete());
+    } // end stop()
+
 
     // *******************************************************************
     // *****  FeedMQTT config can contain multiple feed configs
@@ -138,6 +217,45 @@ public class FeedMQTT extends AbstractVerticle {
         }
           // monitor_path now exists
 
+        // data_bin/yyyy/MM/dd directories will be created ahead of each day
+        DirCache.add_daily(vertx, config.getString("data_bin"));
+
+        // stable filename (without suffix) for the latest file in data_monitor, and the window (ms)
+        // within which successive data_monitor writes are coalesced (0 = write every message)
+        monitor_writers.put(config.getString("feed_id"),
+                            new LatestFileWriter(vertx,
+                                                 monitor_path,
+                                                 config.getString("data_monitor_name", LatestFileWriter.DEFAULT_NAME),
+                                                 config.getString("file_suffix"),
+                                                 config.getInteger("data_monitor_coalesce", 0),
+                                                 logger,
+                                                 MODULE_NAME+"."+MODULE_ID+"."+config.getString("feed_id")));
+
+        // data_bin/yyyy/MM/dd/.index time index is maintained as each file is written (default true)
+        if (config.getBoolean("data_index", true))
+        {
+            bin_indexes.put(config.getString("feed_id"), new BinIndex());
+        }
+
+        // optional "daily" | "hourly" data_bin segment files instead of a file per message
+        // (validated in get_config())
+        String data_segment = config.getString("data_segment");
+        if (data_segment != null)
+        {
+            segment_writers.put(config.getString("feed_id"),
+                                new SegmentWriter(config.getString("data_bin"),
+                                                  data_segment,
+                                                  config.getBoolean("data_index", true)));
+        }
+
+        // optional micro-batching of the messages received within batch_ms (validated in get_config())
+        if (config.getInteger("batch_ms") > 0)
+        {
+            batchers.put(config.getString("feed_id"),
+                         new FeedBatcher<MqttRecord>(vertx, config.getInteger("batch_ms"), config.getInteger("batch_max"),
+                                                     records -> { process_batch(records, config); }));
+        }
+
         // ************************************************************************************
         // Create MQTT client subscriber as per feed config
         // ************************************************************************************
@@ -157,6 +275,7 @@ public class FeedMQTT extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -202,7 +321,7 @@ public class FeedMQTT extends AbstractVerticle {
     private String local_datetime_string()
     {
         LocalDateTime local_time = LocalDateTime.now();
-        return local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
+        return local_time.format(FILENAME_FORMAT);
     }
 
   // *****************************************************************
@@ -213,14 +332,14 @@ public class FeedMQTT extends AbstractVerticle {
     // Extract the actual MQTT message data (as Buffer)
     Buffer buf = mqtt_msg.payload();
 
-    LocalDateTime local_time = LocalDateTime.now();
-    
-    String day = local_time.format(DateTimeFormatter.ofPattern("dd"));
-    String month = local_time.format(DateTimeFormatter.ofPattern("MM"));
-    String year = local_time.format(DateTimeFormatter.ofPattern("yyyy"));
+    final String feed_id = config.getString("feed_id");
+
+    metrics.inc("msgs_in", feed_id);
+    metrics.add("bytes_in", feed_id, buf.length());
+
+    long utc_milliseconds = System.currentTimeMillis();
 
-    Instant now = Instant.now();
-    long utc_milliseconds = now.toEpochMilli();
+    LocalDateTime local_time = LocalDateTime.ofInstant(Instant.ofEpochMilli(utc_milliseconds), ZoneId.systemDefault());
 
     // The object sent i the messagebus will include "ts": utc_seconds
     long utc_seconds = utc_milliseconds / 1000;
@@ -234,20 +353,36 @@ public class FeedMQTT extends AbstractVerticle {
     //String utc_datetime = now.toString();
 
     // filename without the suffix
-    String filename = utc_ts+"_"+local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss"));
+    String filename = utc_ts+"_"+local_time.format(FILENAME_FORMAT);
     // sub-dir structure to store the file
-    String filepath = year+"/"+month+"/"+day;
+    String filepath = local_time.format(FILEPATH_FORMAT);
+
+    // With batching, the message is stored and published with the others of its batch
+    FeedBatcher<MqttRecord> batcher = batchers.get(feed_id);
+    if (batcher != null)
+    {
+        batcher.add(new MqttRecord(buf, utc_milliseconds, filename, filepath));
+        return;
+    }
     
     // Write file to DATA_BIN
     //
     final String bin_path = config.getString("data_bin")+"/"+filepath;
     final String file_suffix = config.getString("file_suffix");
-    write_bin_file(buf, bin_path, filename, file_suffix);
+    SegmentWriter segment_writer = segment_writers.get(feed_id);
+    if (segment_writer != null)
+    {
+        write_segment(segment_writer, buf, utc_milliseconds, filename, feed_id);
+    }
+    else
+    {
+        write_bin_file(buf, bin_path, filename, file_suffix,
+                       bin_indexes.get(feed_id), utc_milliseconds, feed_id);
+    }
 
     // Write file to DATA_MONITOR
     //
-    final String monitor_path = config.getString("data_monitor");
-    write_monitor_file(buf, monitor_path, filename, file_suffix);
+    write_monitor_file(buf, feed_id);
 
     // ********************************************************************************************
     // Finally, here is where we PARSE the incoming data and put it in the 'request_data' property
@@ -260,7 +395,9 @@ public class FeedMQTT extends AbstractVerticle {
         // Parse the received data into a suitable EventBus JsonObject message
 
         // The actual MQTT data will be the single element of the eventbus message "request_data" property
+        long parse_start = System.nanoTime();
         JsonObject mqtt_data = new JsonObject(buf);
+        metrics.time("parse", feed_id, System.nanoTime() - parse_start);
 
         JsonArray request_data = new JsonArray();
 
@@ -270,7 +407,7 @@ public class FeedMQTT extends AbstractVerticle {
 
         msg.put("module_name", MODULE_NAME);
         msg.put("module_id", MODULE_ID);
-        msg.put("feed_id", config.getString("feed_id"));
+        msg.put("feed_id", feed_id);
         msg.put("filename", filename);
         msg.put("filepath", filepath);
         msg.put("ts", utc_seconds);
@@ -278,119 +415,231 @@ public class FeedMQTT extends AbstractVerticle {
         msg.put("msg_type", config.getString("msg_type"));
   
         // debug print out the JsonObject message
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
-        logger.log(Constants.LOG_DEBUG, msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+        logger.log(Constants.LOG_DEBUG, () -> msg.toString());
 
         String eventbus_address = config.getString("address");
 
-        eb.publish(eventbus_address, msg);
+        eb.publish(eventbus_address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+        metrics.inc("msgs_out", feed_id);
+        metrics.inc("records_out", feed_id);
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": published latest MQTT feed data to "+eventbus_address);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": published latest MQTT feed data to "+eventbus_address);
     }
     catch (Exception e) {
+        metrics.inc("errors", feed_id);
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                   ": exception raised during parsing of feed "+config.getString("feed_id")+":");
+                   ": exception raised during parsing of feed "+feed_id+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
     }
   } // end process_feed()
 
+  // *****************************************************************
+  // process a micro-batch of received messages (feeds with batch_ms > 0)
+  // The batch is stored with one data_bin segment append (or a file per message if the feed has
+  // no data_segment) and one data_monitor write of the latest message, and published as one
+  // eventbus message with a 'request_data' record per message, each with its "received_ms".
+  private void process_batch(List<MqttRecord> records, JsonObject config)
+  {
+    final String feed_id = config.getString("feed_id");
+
+    int count = records.size();
+    MqttRecord first = records.get(0);
+
+    // Write the batch to DATA_BIN
+    SegmentWriter segment_writer = segment_writers.get(feed_id);
+    if (segment_writer != null)
+    {
+        long[] ts_ms = new long[count];
+        String[] names = new String[count];
+        Buffer[] data = new Buffer[count];
+        for (int i=0; i<count; i++)
+        {
+            MqttRecord r = records.get(i);
+            ts_ms[i] = r.ts_ms;
+            names[i] = r.filename;
+            data[i] = r.buf;
+        }
+        // (in stop() this is still queued ahead of the segment close, see stop())
+        long write_start = System.nanoTime();
+        segment_writer.append_all_async(vertx, ts_ms, names, data, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (!result.succeeded())
+                    {
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_segment error "+first.filename+" (batch of "+count+") ..." + result.cause());
+                    }
+        });
+    }
+    else
+    {
+        String file_suffix = config.getString("file_suffix");
+        for (MqttRecord r : records)
+        {
+            String bin_path = config.getString("data_bin")+"/"+r.filepath;
+            if (stopping)
+            {
+                write_bin_fileBlocking(r.buf, bin_path, r.filename, file_suffix,
+                                       bin_indexes.get(feed_id), r.ts_ms, feed_id);
+            }
+            else
+            {
+                write_bin_file(r.buf, bin_path, r.filename, file_suffix,
+                               bin_indexes.get(feed_id), r.ts_ms, feed_id);
+            }
+        }
+    }
+
+    // Write the latest data to DATA_MONITOR
+    write_monitor_file(records.get(count - 1).buf, feed_id);
+
+    // Parse each message into a 'request_data' record
+    JsonArray request_data = new JsonArray();
+    long parse_start = System.nanoTime();
+    for (MqttRecord r : records)
+    {
+        try {
+            JsonObject mqtt_data = new JsonObject(r.buf);
+            mqtt_data.put("received_ms", r.ts_ms);
+            request_data.add(mqtt_data);
+        }
+        catch (Exception e) {
+            metrics.inc("errors", feed_id);
+            logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
+                       ": exception raised during parsing of feed "+feed_id+": "+e.getMessage());
+        }
+    }
+    metrics.time("parse", feed_id, System.nanoTime() - parse_start);
+
+    if (request_data.size() == 0)
+    {
+        return;
+    }
+
+    JsonObject msg = new JsonObject();
+
+    msg.put("request_data", request_data);
+
+    msg.put("module_name", MODULE_NAME);
+    msg.put("module_id", MODULE_ID);
+    msg.put("feed_id", feed_id);
+    msg.put("filename", first.filename);
+    msg.put("filepath", first.filepath);
+    msg.put("ts", first.ts_ms / 1000);
+
+    msg.put("msg_type", config.getString("msg_type"));
+
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": prepared EventBus msg:");
+    logger.log(Constants.LOG_DEBUG, () -> msg.toString());
+
+    String eventbus_address = config.getString("address");
+
+    eb.publish(eventbus_address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+    metrics.inc("msgs_out", feed_id);
+    metrics.add("records_out", feed_id, request_data.size());
+
+    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": published batch of "+request_data.size()+" MQTT messages to "+eventbus_address);
+  } // end process_batch()
+
     // ******************************************************************
     // write_bin_file()
     //
     // Write the 'buf' (i.e. the binary data as received) into a file at
     // 'bin_path/filename/file_suffix'
+    // If bin_index is not null, the file is then added to the day directory's time index.
+    // The time to completion is recorded as the "write" metric for feed_id.
     //
-    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix)
+    private void write_bin_file(Buffer buf, String bin_path, String filename, String file_suffix,
+                                BinIndex bin_index, long ts_ms, String feed_id)
     {
-        FileSystem fs = vertx.fileSystem();
-        // if full directory path exists, then write file
-        // otherwise create full path first
+        long write_start = System.nanoTime();
+
+        // DirCache only creates the full directory path if it is not already known to exist
     
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": Writing "+bin_path+"/"+filename + file_suffix);
-        fs.exists(bin_path, result -> {
-                if (result.succeeded() && result.result())
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": Writing "+bin_path+"/"+filename + file_suffix);
+        DirCache.write_file(vertx, bin_path, bin_path+"/"+filename+ file_suffix, buf, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (result.succeeded())
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": process_feed: path "+bin_path+" exists");
-                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": File "+bin_path+"/"+filename+ file_suffix+" written");
+                        if (bin_index != null)
+                        {
+                            bin_index.append_async(vertx, bin_path, ts_ms, filename + file_suffix);
+                        }
                     }
                 else
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Creating directory "+bin_path);
-                        fs.mkdirs(bin_path, mkdirs_result -> {
-                                if (mkdirs_result.succeeded())
-                                    {
-                                        write_file(fs, buf, bin_path+"/"+filename+ file_suffix);
-                                    }
-                                else
-                                    {
-                                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
-                                                    ": error creating tfc_data_bin path "+bin_path);
-                                    }
-                            });
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_bin_file error "+bin_path+" ..." + result.cause());
                     }
         });
     }        
 
-    // ************************************************************************************
-    // write_monitor_file()
+    // ******************************************************************
+    // write_bin_fileBlocking()
     //
-    // Write 'buf' to file in the filesystem, deleting previous files in the same directory
-    // This is convenient for a separate 'inotifywait' process to listen for file-close-write
-    // events on that directory and trigger separate processes, e.g. to POST the file onward.
+    // SYNCHRONOUS version of write_bin_file(), used by stop()
     //
-    private void write_monitor_file(Buffer buf, String monitor_path, String filename, String file_suffix)
+    private void write_bin_fileBlocking(Buffer buf, String bin_path, String filename, String file_suffix,
+                                        BinIndex bin_index, long ts_ms, String feed_id)
     {
-        FileSystem fs = vertx.fileSystem();
+        try {
+            DirCache.write_fileBlocking(vertx, bin_path, bin_path+"/"+filename+ file_suffix, buf);
+            if (bin_index != null)
+            {
+                bin_index.append(bin_path, ts_ms, filename + file_suffix);
+            }
+        } catch (Exception e) {
+            metrics.inc("errors", feed_id);
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                        ": write_bin_file error "+bin_path+" ..." + e);
+        }
+    }
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-               ": Writing "+monitor_path+"/"+filename+ file_suffix);
-        fs.readDir(monitor_path, ".*\\"+file_suffix, monitor_result -> {
-            if (monitor_result.succeeded())
-                {
-                    // directory exists, delete previous files of same suffix
-                    for (String f: monitor_result.result())
-                        {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": Deleting "+f);
-                            fs.delete(f, delete_result -> {
-                                    if (!delete_result.succeeded())
-                                        {
-                                          logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                                      ": error tfc_data_monitor delete: "+f);
-                                        }
-                                });
-                        }
-                    write_file(fs, buf, monitor_path+"/"+filename+ file_suffix);
-                }
-            else
-                {
-                    logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
-                                ": error reading data_monitor path: "+
-                                monitor_path);
-                    logger.log(Constants.LOG_WARN, monitor_result.cause().getMessage());
-                }
+    // ******************************************************************
+    // write_segment()
+    //
+    // Append the 'buf' (i.e. the binary data as received) as a record in
+    // the current data_bin segment file, instead of as a separate file
+    //
+    private void write_segment(SegmentWriter segment_writer, Buffer buf, long ts_ms, String filename,
+                               String feed_id)
+    {
+        long write_start = System.nanoTime();
+        segment_writer.append_async(vertx, ts_ms, filename, buf, result -> {
+                metrics.time("write", feed_id, System.nanoTime() - write_start);
+                if (!result.succeeded())
+                    {
+                        metrics.inc("errors", feed_id);
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+
+                                    ": write_segment error "+filename+" ..." + result.cause());
+                    }
         });
     }
 
-    // ***************************************************
-    // Write the 'buf' as a file 'filepath' (non-blocking)
-    private void write_file(FileSystem fs, Buffer buf, String file_path)
+    // ************************************************************************************
+    // write_monitor_file()
+    //
+    // Write 'buf' as the latest file in the feed's data_monitor directory (via LatestFileWriter,
+    // which writes a temp file and renames it over a stable name, coalescing bursts if configured).
+    // This is convenient for a separate 'inotifywait' process to listen for events on
+    // that directory and trigger separate processes, e.g. to POST the file onward.
+    //
+    private void write_monitor_file(Buffer buf, String feed_id)
     {
-        fs.writeFile(file_path, 
-                     buf, 
-                     result -> {
-            if (result.succeeded()) {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                             ": File "+file_path+" written");
-            } else {
-                Log.log_err(MODULE_NAME+"."+MODULE_ID+": write_file error ..." + result.cause());
-            }
-        });
-    } // end write_file
+        LatestFileWriter monitor_writer = monitor_writers.get(feed_id);
+
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                     ": Writing "+monitor_writer.get_path());
+
+        monitor_writer.write(buf);
+    }
 
     // Load initialization global constants defining this FeedMaker from config()
     private boolean get_config()
@@ -436,10 +685,67 @@ public class FeedMQTT extends AbstractVerticle {
             }
 
         START_FEEDS = config().getJsonArray(MODULE_NAME+".feeds");
-        
+
+        for (int i=0; START_FEEDS != null && i<START_FEEDS.size(); i++)
+            {
+                JsonObject config = START_FEEDS.getJsonObject(i);
+
+                // optional "daily" | "hourly" data_bin segment files instead of a file per message
+                if (config.getString("data_segment")!=null &&
+                    !SegmentWriter.valid_period(config.getString("data_segment")))
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+config.getString("feed_id")+
+                                    ": data_segment must be \"daily\" or \"hourly\"");
+                        return false;
+                    }
+
+                // micro-batching window (ms) for the eventbus messages, 0 = a message per MQTT message
+                if (config.getInteger("batch_ms")==null)
+                    {
+                        config.put("batch_ms", 0);
+                    }
+                if (config.getInteger("batch_ms") < 0)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+config.getString("feed_id")+
+                                    ": batch_ms must be >= 0");
+                        return false;
+                    }
+
+                // maximum messages in a batch
+                if (config.getInteger("batch_max")==null)
+                    {
+                        config.put("batch_max", BATCH_MAX_DEFAULT);
+                    }
+                if (config.getInteger("batch_max") < 1)
+                    {
+                        Log.log_err(MODULE_NAME+"."+MODULE_ID+".feeds."+config.getString("feed_id")+
+                                    ": batch_max must be >= 1");
+                        return false;
+                    }
+            }
+
         return true;
     }
 
+    // **********************************************************
+    // ****  CLASS MqttRecord
+    // ****  A received message waiting in a micro-batch
+    // **********************************************************
+    private static class MqttRecord {
+        final Buffer buf;
+        final long ts_ms;      // receive time, UTC milliseconds
+        final String filename; // data_bin filename without suffix
+        final String filepath; // data_bin yyyy/MM/dd
+
+        MqttRecord(Buffer buf, long ts_ms, String filename, String filepath)
+        {
+            this.buf = buf;
+            this.ts_ms = ts_ms;
+            this.filename = filename;
+            this.filepath = filepath;
+        }
+    }
+
     // **********************************************************
     // ****  CLASS MqttFeed
     // **********************************************************
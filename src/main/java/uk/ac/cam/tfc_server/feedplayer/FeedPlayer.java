@@ -10,6 +10,12 @@ package uk.ac.cam.tfc_server.feedplayer;
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
 //
 // Reads GTFS-format binary files from the filesystem, broadcasts messages to eventbus
+// A day directory may hold individual files and/or daily/hourly segment files (see util/BinDir).
+//
+// Files are published every feedplayer.rate milliseconds, or, if feedplayer.speed is set, at
+// their original receive times scaled by that speed factor (0 = as fast as possible), so FeedPlayer
+// can be used as a realistic load generator. The achieved speed and the lag behind the target
+// schedule are logged at the end of each day and included in the system_status messages.
 //
 // FeedHandler will publish the feed data as a JSON string on eventbus "feedplayer.address"
 // For the spec of the eventbus messages see README.md in the feedplayer directory
@@ -19,6 +25,7 @@ package uk.ac.cam.tfc_server.feedplayer;
 // *************************************************************************************************
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
@@ -35,8 +42,11 @@ import java.util.*;
 import java.text.SimpleDateFormat;
     
 import uk.ac.cam.tfc_server.util.GTFS;
+import uk.ac.cam.tfc_server.util.Metrics;
+import uk.ac.cam.tfc_server.util.BinDir;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 // ********************************************************************************************
 // ********************************************************************************************
@@ -59,6 +69,8 @@ public class FeedPlayer extends AbstractVerticle {
     private Long   START_TS;   // UTC timestamp for first position record file to publish
     private Long   FINISH_TS;  // UTC timestamp to end feed
     private int    RATE; // milliseconds between each published feed message
+    private Double SPEED; // optional replay speed factor, e.g. 1, 10, 100, or 0 = as fast as possible
+    private int    PREFETCH; // number of files read ahead of publishing, default 8
     
     private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
     private final int SYSTEM_STATUS_AMBER_SECONDS = 15; // delay before flagging system as AMBER
@@ -68,6 +80,21 @@ public class FeedPlayer extends AbstractVerticle {
     private Log logger;
    
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("feed_id");
+
+    // files being read ahead, indexed on position in reads_dir.entries
+    private HashMap<Integer, Future<Buffer>> reads = new HashMap<Integer, Future<Buffer>>();
+    private BinDir reads_dir = null;
+
+    // replay clock and stats
+    private long replay_start_ts = -1;   // data timestamp (ms) of first file replayed
+    private long replay_start_time;      // System.currentTimeMillis() when first file replayed
+    private long published_count = 0;
+    private double replay_speed = 0;     // achieved speed, data ms per wall ms
+    private long replay_lag = 0;         // ms behind schedule at the latest publish (SPEED mode)
+    private long replay_max_lag = 0;
     
     @Override
     public void start(Future<Void> fut) throws Exception
@@ -87,6 +114,8 @@ public class FeedPlayer extends AbstractVerticle {
         logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": started on "+FEEDPLAYER_ADDRESS );
 
         eb = vertx.eventBus();
+        // feed messages use the FeedMessageCodec on the eventbus
+        FeedMessageCodec.register(vertx);
 
         // send periodic "system_status" messages
         vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> {
@@ -94,6 +123,11 @@ public class FeedPlayer extends AbstractVerticle {
                      "{ \"module_name\": \""+MODULE_NAME+"\"," +
                        "\"module_id\": \""+MODULE_ID+"\"," +
                        "\"status\": \"UP\"," +
+                       "\"published\": "+published_count+"," +
+                       "\"replay_speed\": "+String.format("%.2f", replay_speed)+"," +
+                       "\"replay_lag_ms\": "+replay_lag+"," +
+                       "\"replay_max_lag_ms\": "+replay_max_lag+"," +
+                       "\"metrics\": "+metrics.to_json()+"," +
                        "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                        "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                      "}" );
@@ -137,8 +171,17 @@ public class FeedPlayer extends AbstractVerticle {
                 return;
             }
         
-        // read list of days filenames from directory
-        vertx.fileSystem().readDir(bin_path, res -> {
+        // read list of days files (and segment records) from directory
+        vertx.<BinDir>executeBlocking(list_fut -> {
+                try
+                    {
+                        list_fut.complete(new BinDir(bin_path));
+                    }
+                catch (IOException e)
+                    {
+                        list_fut.fail(e);
+                    }
+            }, res -> {
                 if (res.succeeded())
                     {
                         // process the gtfs binary files, starting at file 0
@@ -146,22 +189,15 @@ public class FeedPlayer extends AbstractVerticle {
                             {
                                 // filenames are <UTC-TS>_YYYY_MM_DD_hh_mm_ss.bin
                                 // with the hh_mm_ss in local time
-                                
-                                // sort the files from the directory into timestamp order
-                                Collections.sort(res.result());
-
-                                // skip forward to first file newer than start_ts
-                                int file_index = 0;
-                                while (file_index < res.result().size() &&
-                                       start_ts > get_ts(res.result().get(file_index))
-                                      )
-                                    {
-                                        file_index++;
-                                    }
+                                // BinDir has already sorted the entries into timestamp order
+                                BinDir bin_dir = res.result();
+
+                                // binary search for first file at or after start_ts
+                                int file_index = bin_dir.seek(start_ts * 1000);
                                 logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
                                            ": starting with "+bin_path+" file #"+file_index);
                                 // process files starting with start_ts or newer
-                                process_gtfs_files( res.result(), file_index, finish_ts);
+                                process_gtfs_files( bin_dir, file_index, finish_ts);
                             }
                         catch (Exception e)
                             {
@@ -179,17 +215,24 @@ public class FeedPlayer extends AbstractVerticle {
     // Iterate through the list of files
     // Note this procedure is tail-recursive
     // i.e. the style is "process first file".. "set timer to process remaining files"
-    void process_gtfs_files(List<String> files, int i, Long finish_ts) throws Exception
+    //
+    // With a fixed RATE each file is published RATE milliseconds after the previous one.
+    // With SPEED set, each file is published at its original receive time (relative to the first
+    // file replayed) divided by SPEED, i.e. preserving the original gaps between files, or as fast
+    // as possible if SPEED is 0. The next PREFETCH files are read ahead in either case.
+    void process_gtfs_files(BinDir bin_dir, int i, Long finish_ts) throws Exception
     {
 
         // test if we've reached end of files for current day
-        if (i >= files.size())
+        if (i >= bin_dir.entries.size())
             {
+                close_bin_dir(bin_dir);
                 try
                   {
                     // at end of files in current directory, so move on to next day
-                    String yyyymmdd = get_date(files.get(0));
-                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": " + yyyymmdd + " file list completed");
+                    String yyyymmdd = bin_dir.yyyymmdd;
+                    logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": " + yyyymmdd + " file list completed"+
+                               replay_stats());
 
                     DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd");
 
@@ -213,92 +256,193 @@ public class FeedPlayer extends AbstractVerticle {
                   }
                 return;
             }
-        if (get_ts(files.get(i)) > finish_ts)
+        BinDir.Entry entry = bin_dir.entries.get(i);
+
+        if (entry.ts / 1000 > finish_ts)
             {
-                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, file replay reached finish time "+finish_ts);
+                close_bin_dir(bin_dir);
+                logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" ending, file replay reached finish time "+finish_ts+
+                           replay_stats());
                 return;
             }
-        // process current file
-        
-        process_gtfs_file(files.get(i));
 
-        // process remaining files
-        vertx.setTimer(RATE, id -> {
-                try
-                    {
-                        process_gtfs_files(files, i + 1, finish_ts);
-                    }
-                catch (Exception e)
+        // start reading this and the following files
+        prefetch(bin_dir, i);
+
+        Future<Buffer> data = reads.remove(i);
+
+        // time (ms) until this file is due, in SPEED mode
+        long delay = SPEED == null ? 0 : replay_delay(entry.ts);
+
+        Handler<Long> publish = id -> {
+            data.setHandler(res -> {
+                    // process current file
+                    process_gtfs_file(bin_dir, entry, res);
+
+                    // process remaining files, after RATE ms, or when due if SPEED is set
+                    // (runOnContext so a run of files that are already due does not recurse)
+                    Handler<Void> next = v -> {
+                        try
+                            {
+                                process_gtfs_files(bin_dir, i + 1, finish_ts);
+                            }
+                        catch (Exception e)
+                            {
+                                System.err.println("FeedPlayer: "+MODULE_ID+" exception in process_gtfs_files()");
+                            }
+                    };
+                    if (SPEED == null)
+                        {
+                            vertx.setTimer(RATE, timer_id -> next.handle(null));
+                        }
+                    else
+                        {
+                            vertx.runOnContext(next);
+                        }
+                });
+        };
+
+        if (delay > 0)
+            {
+                vertx.setTimer(delay, publish);
+            }
+        else
+            {
+                publish.handle(null);
+            }
+    }
+
+    // Start reading files i .. i+PREFETCH-1 of bin_dir that have not already been requested
+    // (ordered, so the reads complete in file order)
+    void prefetch(BinDir bin_dir, int i)
+    {
+        if (bin_dir != reads_dir)
+            {
+                reads.clear();
+                reads_dir = bin_dir;
+            }
+
+        int last = Math.min(i + Math.max(PREFETCH, 1), bin_dir.entries.size());
+
+        for (int j = i; j < last; j++)
+            {
+                if (reads.containsKey(j))
                     {
-                        System.err.println("FeedPlayer: "+MODULE_ID+" exception in process_gtfs_files()");
+                        continue;
                     }
-            });
+                BinDir.Entry entry = bin_dir.entries.get(j);
+                Future<Buffer> read_fut = Future.future();
+                reads.put(j, read_fut);
+                vertx.<Buffer>executeBlocking(fut -> {
+                        try
+                            {
+                                fut.complete(bin_dir.read(entry));
+                            }
+                        catch (IOException e)
+                            {
+                                fut.fail(e);
+                            }
+                    }, read_fut.completer());
+            }
     }
-    
-    // publish single file as message
-    void process_gtfs_file(String filepath) throws Exception
+
+    // Return ms until data timestamp ts_ms is due in SPEED mode (<= 0 if due now),
+    // starting the replay clock on the first file replayed
+    long replay_delay(long ts_ms)
+    {
+        long now = System.currentTimeMillis();
+
+        if (replay_start_ts < 0)
+            {
+                replay_start_ts = ts_ms;
+                replay_start_time = now;
+            }
+
+        long due = SPEED == 0 ? now : replay_start_time + (long) ((ts_ms - replay_start_ts) / SPEED);
+
+        return due - now;
+    }
+
+    // publish single file (or segment record) as message
+    void process_gtfs_file(BinDir bin_dir, BinDir.Entry entry, AsyncResult<Buffer> res)
     {
-        // Read a file
-        vertx.fileSystem().readFile(filepath, res -> {
                 if (res.succeeded())
                 {
                     try
                     {
-                        String basename = get_basename(filepath);
-                        String yyyymmdd = get_date(filepath);
+                        String basename = entry.name;
+                        String yyyymmdd = bin_dir.yyyymmdd;
                         
-                        logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+" publishing "+yyyymmdd+"/"+basename);
+                        logger.log(Constants.LOG_INFO, () -> MODULE_NAME+"."+MODULE_ID+" publishing "+yyyymmdd+"/"+basename);
                         
+                      metrics.inc("msgs_in", MODULE_ID);
+                      metrics.add("bytes_in", MODULE_ID, res.result().length());
+
+                      long parse_start = System.nanoTime();
                       JsonObject msg = GTFS.buf_to_json(res.result(), basename, yyyymmdd);
+                      metrics.time("parse", MODULE_ID, System.nanoTime() - parse_start);
 
                       msg.put("module_name", MODULE_NAME);
                       msg.put("module_id", MODULE_ID);
                       msg.put("msg_type", Constants.FEED_BUS_POSITION);
         
-                      eb.publish(FEEDPLAYER_ADDRESS, msg);
+                      eb.publish(FEEDPLAYER_ADDRESS, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+                      metrics.inc("msgs_out", MODULE_ID);
                       //System.out.println("FeedPlayer: ."+MODULE_ID+" published to "+FEEDPLAYER_ADDRESS);
                     } catch (Exception e)
                     {
+                        metrics.inc("errors", MODULE_ID);
                         System.err.println("FeedPlayer: exception in GTFS.buf_to_json()");
                     }
                 } else
                 {
+                    metrics.inc("errors", MODULE_ID);
                     System.err.println("FeedPlayer: " + res.cause());
                 }
-            });
+
+        update_replay_stats(entry.ts);
         
     } // end process_gtfs_file()
-  
-    // pick out the Long timestamp embedded in the file name
-    // e.g. <bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin -> 1457334014
-    Long get_ts(String filepath)
-    {
 
-        // starting char index of timestamp (either index after last '/', or 0)
-        int ts_start = filepath.lastIndexOf('/') + 1;
+    // update published count, achieved speed and lag after publishing data with timestamp ts_ms
+    void update_replay_stats(long ts_ms)
+    {
+        long now = System.currentTimeMillis();
 
-        // length of utc timestamp e.g. "1457334014" = 10
-        int ts_length = filepath.lastIndexOf('_') - ts_start;
+        if (replay_start_ts < 0)
+            {
+                replay_start_ts = ts_ms;
+                replay_start_time = now;
+            }
 
-        // extract substring i.e. "1457334014"
-        String ts_string = filepath.substring(ts_start, ts_start+ts_length);
-        
-        return Long.parseLong(ts_string);
-    }
+        published_count++;
 
-    // get base filename from filepath
-    //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "1457334014_2016-03-07-07-00-14"
-    String get_basename(String filepath)
-    {
-        String[] parts = filepath.split("/");
+        long elapsed = now - replay_start_time;
 
-        String filename_bin = parts[parts.length - 1];
+        // data time covered / wall time taken
+        replay_speed = elapsed > 0 ? (double) (ts_ms - replay_start_ts) / elapsed : 0;
 
-        int dot_index = filename_bin.lastIndexOf('.');
+        // how late this file was published compared to when it was due
+        replay_lag = (SPEED == null || SPEED == 0) ? 0 : Math.max(0, -replay_delay(ts_ms));
+        replay_max_lag = Math.max(replay_max_lag, replay_lag);
+    }
 
-        return filename_bin.substring(0, dot_index);
+    // replay stats for logging
+    String replay_stats()
+    {
+        return String.format(" (published=%d speed=%.1fx lag=%dms max_lag=%dms)",
+                             published_count, replay_speed, replay_lag, replay_max_lag);
     }
 
+    // close any segment files held open by bin_dir, after any pending reads
+    void close_bin_dir(BinDir bin_dir)
+    {
+        vertx.executeBlocking(close_fut -> {
+                bin_dir.close();
+                close_fut.complete();
+            }, res -> { });
+    }
+  
     // get YYYY/MM/DD from filepath
     //  e.g. "<bin_path>/2016/03/07/1457334014_2016-03-07-07-00-14.bin" -> "2016/03/07"
     String get_date(String filepath)
@@ -370,13 +514,24 @@ public class FeedPlayer extends AbstractVerticle {
                 return false;
             }
 
+        // replay speed factor, if set the files are published at their original receive times scaled
+        // by this factor (0 = as fast as possible), otherwise every 'rate' milliseconds
+        SPEED = config().getDouble(MODULE_NAME+".speed");
+        if (SPEED!=null && SPEED < 0)
+            {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".speed must be >= 0");
+                return false;
+            }
+
         RATE = config().getInteger(MODULE_NAME+".rate", 0);
-        if (RATE==0)
+        if (RATE==0 && SPEED==null)
             {
-                System.err.println(MODULE_NAME+"."+MODULE_ID+": no "+MODULE_NAME+".rate in config()");
+                System.err.println(MODULE_NAME+"."+MODULE_ID+": no "+MODULE_NAME+".rate or "+MODULE_NAME+".speed in config()");
                 return false;
             }
 
+        PREFETCH = config().getInteger(MODULE_NAME+".prefetch", 8);
+
         return true;
     }
     
@@ -49,6 +49,7 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Constants;
 
 public class HttpMsg extends AbstractVerticle {
@@ -76,6 +77,9 @@ public class HttpMsg extends AbstractVerticle {
     // global vars
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("address");
+
     private Log logger;
     
   @Override
@@ -160,6 +164,7 @@ public class HttpMsg extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -178,8 +183,8 @@ public class HttpMsg extends AbstractVerticle {
         final String HTTP_TOKEN = config.getString("http.token");
         final String ADDRESS = config.getString("address");
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": setting up POST listener on "+"/"+BASE_URI+"/"+ADDRESS);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                             ": setting up POST listener on "+"/"+BASE_URI+"/"+ADDRESS);
         router
             .route(HttpMethod.POST,"/"+BASE_URI+"/"+ADDRESS+"/:to_module_name/:to_module_id")
             .handler(ctx -> handle_httpmsg(ctx, ADDRESS, HTTP_TOKEN, config));
@@ -199,8 +204,8 @@ public class HttpMsg extends AbstractVerticle {
                 try {
                     // read the head value "X-Auth-Token" from the POST
                     String post_token = ctx.request().getHeader("X-Auth-Token");
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": "+ADDRESS+ " POST X-Auth-Token="+post_token);
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": "+ADDRESS+ " POST X-Auth-Token="+post_token);
                     // if the token matches the config(), or config() http.token is null
                     // then process this particular post
                     if (HTTP_TOKEN==null || HTTP_TOKEN.equals(post_token))
@@ -231,13 +236,16 @@ public class HttpMsg extends AbstractVerticle {
     // Copy the received data into a suitable EventBus JsonObject message
     JsonObject msg;
 
+    // get the destination EventBus address from the module config
+    String address = config.getString("address");
+
+    metrics.inc("msgs_in", address);
+    metrics.add("bytes_in", address, buf.length());
+
     try {            
         // try parsing the POST message as JSON, exception on fail
         msg = new JsonObject(buf.toString());
 
-        // get the destination EventBus address from the module config
-        String address = config.getString("address");
-
         // Embed module_name and module_id for THIS module into the EventBus message
         msg.put("module_name", MODULE_NAME);
         msg.put("module_id", MODULE_ID);
@@ -253,17 +261,19 @@ public class HttpMsg extends AbstractVerticle {
         }
         
         // debug print out the JsonObject message
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": prepared EventBus msg for "+address+":");
-        logger.log(Constants.LOG_DEBUG, msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": prepared EventBus msg for "+address+":");
+        logger.log(Constants.LOG_DEBUG, () -> msg.toString());
 
         // ******************************************************************
         // ******  SEND THE POST DATA ON EVENTBUS   *************************
         // ******************************************************************
         eb.publish(address, msg);
+        metrics.inc("msgs_out", address);
     
     }
     catch (Exception e) {
+        metrics.inc("errors", address);
         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                    ": exception raised during processing of http post "+config.getString("address")+":");
         logger.log(Constants.LOG_WARN, e.getMessage());
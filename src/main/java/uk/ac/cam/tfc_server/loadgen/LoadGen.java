@@ -0,0 +1,532 @@
+package uk.ac.cam.tfc_server.loadgen;
+
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+// LoadGen.java
+// Version 0.01
+//
+// Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
+//
+// Eventbus load generator and end-to-end latency harness.
+//
+// LoadGen (optionally) deploys the modules under test (e.g. Zone, MsgFiler, MsgRouter, RTMonitor)
+// in its own Vertx instance, then publishes synthetic feed_bus_position (as FeedHandler) or
+// feed_sirivm (as FeedMaker) messages on loadgen.address at loadgen.rate messages per second,
+// each holding loadgen.vehicles position records for vehicles circling loadgen.center.
+//
+// Each message is stamped with System.nanoTime() (util/LatencyProbe.SEND_NANOS) immediately before
+// it is published, and the sink modules record (now - stamp) in a per-sink LatencyHistogram once
+// they have processed the message. LoadGen itself records the raw eventbus delivery latency
+// ("eventbus" sink) and, if loadgen.http.port is set, the latency of messages POSTed back to it
+// (e.g. by MsgRouter, "http" sink).
+//
+// After loadgen.warmup seconds the histograms are reset, and after a further loadgen.duration
+// seconds publishing stops, the histograms are reported (logged, and written to
+// loadgen.report_file) and each sink's p99 is checked against the limits in loadgen.max_p99_ms,
+// giving an overall PASS/FAIL result (and exit status, if loadgen.exit is true) for regression gating.
+//
+// For the config parameters and report format see README.md in the loadgen directory
+//
+// *************************************************************************************************
+// *************************************************************************************************
+// *************************************************************************************************
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Random;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Metrics;
+import uk.ac.cam.tfc_server.util.LatencyHistogram;
+import uk.ac.cam.tfc_server.util.LatencyProbe;
+import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
+
+public class LoadGen extends AbstractVerticle {
+
+    // Config vars
+    private String MODULE_NAME; // from config()
+    private String MODULE_ID; // from config()
+    private String EB_SYSTEM_STATUS; // eventbus status reporting address
+    private int    LOG_LEVEL;
+
+    private String LOADGEN_ADDRESS; // eventbus address to publish the synthetic feed messages to
+    private String MSG_TYPE;        // Constants.FEED_BUS_POSITION or Constants.FEED_SIRIVM
+    private double RATE;            // messages per second
+    private int    VEHICLES;        // position records per message
+    private int    WARMUP;          // seconds before histograms are reset
+    private int    DURATION;        // seconds of measured load after warmup
+    private double CENTER_LAT;      // vehicles circle this point
+    private double CENTER_LNG;
+    private double RADIUS;          // meters, maximum radius of vehicle orbits
+    private int    HTTP_PORT;       // optional port to receive POSTed messages (0 = none)
+    private FeedPartitioner PARTITIONER; // optional eventbus partitioning, loadgen.partition / partition_grid_deg
+    private JsonArray DEPLOY;       // optional module configs to deploy before starting
+    private String REPORT_FILE;     // optional path for json report
+    private JsonObject MAX_P99_MS;  // optional { sink: max p99 ms } limits
+    private boolean EXIT;           // exit the JVM when the report is complete
+
+    private final int SYSTEM_STATUS_PERIOD = 10000; // publish status heartbeat every 10 s
+    private final int SYSTEM_STATUS_AMBER_SECONDS = 15; // delay before flagging system as AMBER
+    private final int SYSTEM_STATUS_RED_SECONDS = 25; // delay before flagging system as RED
+
+    private final int TICK_PERIOD = 5; // milliseconds between publishing bursts
+    private final int DRAIN_DELAY = 2000; // milliseconds allowed for sinks to finish after last message
+    private final int DEPLOY_DELAY = 2000; // milliseconds allowed for deployed modules to start
+
+    private final double VEHICLE_SPEED = 10; // meters per second
+
+    // Log
+    private Log logger;
+
+    private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("address");
+
+    // load state
+    private long load_start_time;  // System.currentTimeMillis() when publishing started
+    private long sent_count = 0;
+    private long measured_start_count = 0; // sent_count at end of warmup
+    private boolean measuring = false;
+
+    // simulated vehicles
+    private double[] orbit_radius;  // meters
+    private double[] orbit_phase;   // radians
+    private String[] vehicle_ids;
+
+    @Override
+    public void start(Future<Void> fut) throws Exception
+    {
+        // load initialization values from config()
+        if (!get_config())
+        {
+            Log.log_err("LoadGen: failed to load initial config()");
+            fut.fail("LoadGen: failed to load initial config()");
+            return;
+        }
+
+        logger = new Log(LOG_LEVEL);
+
+        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": config()=");
+        logger.log(Constants.LOG_DEBUG, config().toString());
+
+        eb = vertx.eventBus();
+        // feed messages use the FeedMessageCodec on the eventbus
+        FeedMessageCodec.register(vertx);
+
+        init_vehicles();
+
+        LatencyProbe.enable();
+        LatencyProbe.reset();
+
+        // baseline: eventbus delivery and json parse, with no processing
+        eb.consumer(LOADGEN_ADDRESS, message -> {
+            LatencyProbe.record("eventbus", FeedMessageCodec.json_body(message.body()));
+        });
+
+        // optional http sink, e.g. for MsgRouter destinations
+        if (HTTP_PORT > 0)
+        {
+            vertx.createHttpServer()
+                .requestHandler(request -> {
+                    request.bodyHandler(body -> {
+                        try
+                        {
+                            LatencyProbe.record("http", new JsonObject(body.toString()));
+                        }
+                        catch (Exception e)
+                        {
+                            // not json, ignore
+                        }
+                        request.response().end();
+                    });
+                })
+                .listen(HTTP_PORT);
+        }
+
+        // send periodic "system_status" messages
+        vertx.setPeriodic(SYSTEM_STATUS_PERIOD, id -> {
+            eb.publish(EB_SYSTEM_STATUS,
+                       "{ \"module_name\": \""+MODULE_NAME+"\"," +
+                         "\"module_id\": \""+MODULE_ID+"\"," +
+                         "\"status\": \"UP\"," +
+                         "\"sent\": "+sent_count+"," +
+                         "\"metrics\": "+metrics.to_json()+"," +
+                         "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
+                         "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
+                       "}" );
+        });
+
+        // deploy the modules under test, then start the load
+        deploy_modules(fut);
+
+    } // end start()
+
+    // ********************************************************************************
+    // deploy_modules()
+    // Deploy each DEPLOY module { "main": ..., "options": { "config": ... } }, as in a
+    // service descriptor file, then start publishing after DEPLOY_DELAY ms.
+    // The tfc modules do not complete their start() futures, so LoadGen cannot wait
+    // for the deployments to complete, and any failure is only logged.
+    // ********************************************************************************
+    private void deploy_modules(Future<Void> fut)
+    {
+        for (int i=0; i<DEPLOY.size(); i++)
+        {
+            JsonObject module = DEPLOY.getJsonObject(i);
+            String main = module.getString("main");
+            DeploymentOptions options = new DeploymentOptions(module.getJsonObject("options", new JsonObject()));
+
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": deploying "+main);
+
+            vertx.deployVerticle(main, options, res -> {
+                if (res.failed())
+                {
+                    Log.log_err(MODULE_NAME+"."+MODULE_ID+": failed to deploy "+main+" "+res.cause());
+                }
+            });
+        }
+
+        fut.complete();
+
+        vertx.setTimer(DEPLOY.size() == 0 ? 1 : DEPLOY_DELAY, id -> {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                       ": started, publishing "+MSG_TYPE+" to "+LOADGEN_ADDRESS+" at "+RATE+
+                       " msgs/sec x "+VEHICLES+" records, warmup "+WARMUP+"s, duration "+DURATION+"s");
+            start_load();
+        });
+    }
+
+    // *************************************************************************************
+    // start_load()
+    // Publish messages in short bursts, every TICK_PERIOD ms, keeping the total sent in step
+    // with RATE since the start (so a late tick catches up rather than lowering the rate)
+    // *************************************************************************************
+    private void start_load()
+    {
+        load_start_time = System.currentTimeMillis();
+
+        long tick_id = vertx.setPeriodic(TICK_PERIOD, id -> {
+            long elapsed = System.currentTimeMillis() - load_start_time;
+            long due = (long) (elapsed * RATE / 1000);
+            while (sent_count < due)
+            {
+                publish_msg();
+            }
+        });
+
+        vertx.setTimer(Math.max(WARMUP * 1000L, 1), id -> {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                       ": warmup complete after "+sent_count+" messages, measuring");
+            LatencyProbe.reset();
+            measured_start_count = sent_count;
+            measuring = true;
+        });
+
+        vertx.setTimer((WARMUP + DURATION) * 1000L, id -> {
+            vertx.cancelTimer(tick_id);
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+
+                       ": load complete, "+sent_count+" messages sent");
+            // allow the sinks to finish processing the messages already sent
+            vertx.setTimer(DRAIN_DELAY, drain_id -> report());
+        });
+    }
+
+    // publish a single stamped message
+    private void publish_msg()
+    {
+        long ts_ms = System.currentTimeMillis();
+
+        JsonArray records = new JsonArray();
+        for (int i=0; i<VEHICLES; i++)
+        {
+            records.add(MSG_TYPE.equals(Constants.FEED_SIRIVM) ? sirivm_record(i, ts_ms) : bus_position_record(i, ts_ms));
+        }
+
+        String filename = (ts_ms / 1000)+"."+(ts_ms % 1000)+"_loadgen";
+
+        JsonObject msg = new JsonObject();
+        msg.put("module_name", MODULE_NAME);
+        msg.put("module_id", MODULE_ID);
+        msg.put("msg_type", MSG_TYPE);
+        msg.put("feed_id", MODULE_ID);
+        msg.put("filename", filename);
+        msg.put("filepath", "loadgen");
+        msg.put("ts", ts_ms / 1000);
+        msg.put(MSG_TYPE.equals(Constants.FEED_SIRIVM) ? "request_data" : "entities", records);
+
+        // stamp last of all, so the latency excludes building the message
+        msg.put(LatencyProbe.SEND_NANOS, System.nanoTime());
+
+        int partition_msgs = PARTITIONER.publish(eb, LOADGEN_ADDRESS, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+        metrics.inc("msgs_out", LOADGEN_ADDRESS);
+        metrics.add("partition_msgs_out", LOADGEN_ADDRESS, partition_msgs);
+
+        sent_count++;
+    }
+
+    // ***********************************************************************
+    // Simulated vehicles each circle the center at VEHICLE_SPEED, on orbits of
+    // random radius up to RADIUS, so they regularly cross any zone nearby
+    // ***********************************************************************
+    private void init_vehicles()
+    {
+        Random random = new Random(1);
+        orbit_radius = new double[VEHICLES];
+        orbit_phase = new double[VEHICLES];
+        vehicle_ids = new String[VEHICLES];
+        for (int i=0; i<VEHICLES; i++)
+        {
+            orbit_radius[i] = RADIUS * (0.1 + 0.9 * random.nextDouble());
+            orbit_phase[i] = 2 * Math.PI * random.nextDouble();
+            vehicle_ids[i] = "loadgen_"+i;
+        }
+    }
+
+    // { lat, lng, bearing } of vehicle i at time ts_ms
+    private double[] vehicle_position(int i, long ts_ms)
+    {
+        double angle = orbit_phase[i] + VEHICLE_SPEED * (ts_ms / 1000.0) / orbit_radius[i];
+        double north = orbit_radius[i] * Math.cos(angle);
+        double east = orbit_radius[i] * Math.sin(angle);
+        double lat = CENTER_LAT + north / 111320.0;
+        double lng = CENTER_LNG + east / (111320.0 * Math.cos(Math.toRadians(CENTER_LAT)));
+        // direction of travel is perpendicular to the radius, anticlockwise viewed on a map
+        double bearing = (Math.toDegrees(angle) + 90) % 360;
+        return new double[] { lat, lng, bearing };
+    }
+
+    // position record as produced by GTFS.buf_to_json()
+    private JsonObject bus_position_record(int i, long ts_ms)
+    {
+        double[] p = vehicle_position(i, ts_ms);
+        long ts = ts_ms / 1000;
+        JsonObject record = new JsonObject();
+        record.put("vehicle_id", vehicle_ids[i]);
+        record.put("label", vehicle_ids[i]);
+        record.put("latitude", p[0]);
+        record.put("longitude", p[1]);
+        record.put("bearing", p[2]);
+        record.put("timestamp", ts);
+        record.put("trip_id", "loadgen_trip_"+i);
+        record.put("route_id", "loadgen_route_"+(i % 10));
+        record.put("acp_id", vehicle_ids[i]);
+        record.put("acp_lat", p[0]);
+        record.put("acp_lng", p[1]);
+        record.put("acp_ts", ts);
+        return record;
+    }
+
+    // position record as produced by the FeedMaker SiriVM parser
+    private JsonObject sirivm_record(int i, long ts_ms)
+    {
+        double[] p = vehicle_position(i, ts_ms);
+        long ts = ts_ms / 1000;
+        JsonObject record = new JsonObject();
+        record.put("RecordedAtTime", Instant.ofEpochSecond(ts).toString());
+        record.put("VehicleMonitoringRef", vehicle_ids[i]);
+        record.put("VehicleRef", vehicle_ids[i]);
+        record.put("LineRef", "loadgen_route_"+(i % 10));
+        record.put("Latitude", p[0]);
+        record.put("Longitude", p[1]);
+        record.put("Bearing", p[2]);
+        record.put("acp_id", vehicle_ids[i]);
+        record.put("acp_lat", p[0]);
+        record.put("acp_lng", p[1]);
+        record.put("acp_ts", ts);
+        return record;
+    }
+
+    // ***************************************************************************************
+    // report()
+    // Log the latency histograms, write the json report (and a HdrHistogram-format .hgrm file
+    // per sink) and check the p99 limits
+    // ***************************************************************************************
+    private void report()
+    {
+        LatencyProbe.disable();
+
+        long measured_count = sent_count - measured_start_count;
+
+        JsonObject report = new JsonObject();
+        report.put("module_name", MODULE_NAME);
+        report.put("module_id", MODULE_ID);
+        report.put("msg_type", MSG_TYPE);
+        report.put("rate", RATE);
+        report.put("vehicles", VEHICLES);
+        report.put("duration", DURATION);
+        report.put("sent", measured_count);
+        report.put("achieved_rate", measuring ? (double) measured_count / DURATION : 0);
+        report.put("ts", System.currentTimeMillis() / 1000);
+
+        JsonObject sinks = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> entry : LatencyProbe.get_histograms().entrySet())
+        {
+            String sink = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+
+            sinks.put(sink, histogram.to_json());
+
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": latency (ms) at "+sink+" "+
+                       histogram.to_json().toString()+"\n"+histogram.percentile_distribution(5));
+
+            if (REPORT_FILE != null)
+            {
+                write_file(REPORT_FILE+"."+sink+".hgrm", histogram.percentile_distribution(5));
+            }
+        }
+        report.put("sinks", sinks);
+
+        // check each limit against the measured p99
+        JsonArray failures = new JsonArray();
+        for (String sink : MAX_P99_MS.fieldNames())
+        {
+            double limit = MAX_P99_MS.getDouble(sink);
+            JsonObject stats = sinks.getJsonObject(sink);
+            if (stats == null || stats.getLong("count") == 0)
+            {
+                failures.add(sink+": no messages received");
+            }
+            else if (stats.getDouble("p99_ms") > limit)
+            {
+                failures.add(sink+": p99 "+stats.getDouble("p99_ms")+" ms > "+limit+" ms");
+            }
+        }
+        boolean pass = failures.size() == 0;
+        report.put("result", pass ? "PASS" : "FAIL");
+        report.put("failures", failures);
+
+        if (pass)
+        {
+            logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": PASS "+report.toString());
+        }
+        else
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": FAIL "+failures.toString());
+        }
+
+        if (REPORT_FILE != null)
+        {
+            write_file(REPORT_FILE, report.encodePrettily());
+        }
+
+        if (EXIT)
+        {
+            // the report files are written synchronously above, so safe to exit
+            vertx.close(res -> System.exit(pass ? 0 : 1));
+        }
+    }
+
+    // BLOCKING write, used only once at the end of the run
+    private void write_file(String path, String content)
+    {
+        try
+        {
+            vertx.fileSystem().writeFileBlocking(path, Buffer.buffer(content));
+        }
+        catch (Exception e)
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": error writing "+path+" "+e.getMessage());
+        }
+    }
+
+    // Load initialization global constants defining this LoadGen from config()
+    private boolean get_config()
+    {
+        // config() values needed by all TFC modules are:
+        //   module.name - usually "loadgen"
+        //   module.id - unique module reference to be used by this verticle
+        //   eb.system_status - String eventbus address for system status messages
+
+        MODULE_NAME = config().getString("module.name");
+        if (MODULE_NAME == null)
+        {
+            Log.log_err("LoadGen: module.name config() not set");
+            return false;
+        }
+
+        MODULE_ID = config().getString("module.id");
+        if (MODULE_ID == null)
+        {
+            Log.log_err(MODULE_NAME+": module.id config() not set");
+            return false;
+        }
+
+        LOG_LEVEL = config().getInteger(MODULE_NAME+".log_level", 0);
+        if (LOG_LEVEL==0)
+        {
+            LOG_LEVEL = Constants.LOG_INFO;
+        }
+
+        EB_SYSTEM_STATUS = config().getString("eb.system_status");
+        if (EB_SYSTEM_STATUS == null)
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": eb.system_status config() not set");
+            return false;
+        }
+
+        LOADGEN_ADDRESS = config().getString(MODULE_NAME+".address");
+        if (LOADGEN_ADDRESS == null)
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".address config() not set");
+            return false;
+        }
+
+        MSG_TYPE = config().getString(MODULE_NAME+".msg_type", Constants.FEED_BUS_POSITION);
+        if (!MSG_TYPE.equals(Constants.FEED_BUS_POSITION) && !MSG_TYPE.equals(Constants.FEED_SIRIVM))
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": "+MODULE_NAME+".msg_type must be "+
+                        Constants.FEED_BUS_POSITION+" or "+Constants.FEED_SIRIVM);
+            return false;
+        }
+
+        RATE = config().getDouble(MODULE_NAME+".rate", 10.0);
+        VEHICLES = config().getInteger(MODULE_NAME+".vehicles", 100);
+        WARMUP = config().getInteger(MODULE_NAME+".warmup", 10);
+        DURATION = config().getInteger(MODULE_NAME+".duration", 60);
+        if (RATE <= 0 || VEHICLES < 1 || WARMUP < 0 || DURATION < 1)
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": bad rate, vehicles, warmup or duration config()");
+            return false;
+        }
+
+        // default center is central Cambridge
+        JsonObject center = config().getJsonObject(MODULE_NAME+".center", new JsonObject());
+        CENTER_LAT = center.getDouble("lat", 52.2053);
+        CENTER_LNG = center.getDouble("lng", 0.1218);
+        RADIUS = config().getDouble(MODULE_NAME+".radius", 3000.0);
+
+        HTTP_PORT = config().getInteger(MODULE_NAME+".http.port", 0);
+
+        String partition = config().getString(MODULE_NAME+".partition", FeedPartitioner.NONE);
+        if (!FeedPartitioner.valid_mode(partition))
+        {
+            Log.log_err(MODULE_NAME+"."+MODULE_ID+": bad "+MODULE_NAME+".partition "+partition);
+            return false;
+        }
+        PARTITIONER = new FeedPartitioner(partition,
+                                          config().getDouble(MODULE_NAME+".partition_grid_deg", FeedPartitioner.GRID_DEG_DEFAULT));
+
+        DEPLOY = config().getJsonArray(MODULE_NAME+".deploy", new JsonArray());
+
+        REPORT_FILE = config().getString(MODULE_NAME+".report_file");
+
+        MAX_P99_MS = config().getJsonObject(MODULE_NAME+".max_p99_ms", new JsonObject());
+
+        EXIT = config().getBoolean(MODULE_NAME+".exit", false);
+
+        return true;
+    }
+
+} // end class LoadGen
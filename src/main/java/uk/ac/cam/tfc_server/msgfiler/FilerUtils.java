@@ -4,7 +4,7 @@ package uk.ac.cam.tfc_server.msgfiler;
 // *************************************************************************************************
 // *************************************************************************************************
 // FilerUtils.java
-// Version 0.12
+// Version 0.13
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
@@ -48,6 +48,8 @@ import io.vertx.core.file.FileSystemException;
 
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.DirCache;
+import uk.ac.cam.tfc_server.util.IsoTimestamp;
 
 public class FilerUtils {
 
@@ -60,6 +62,9 @@ public class FilerUtils {
     // the original message.
     private RecordsFinder records_finder;
 
+    // parser for ISO 8601 string timestamps in build_string() patterns
+    private IsoTimestamp iso_timestamp = new IsoTimestamp();
+
     public FilerUtils (Vertx v, FilerConfig fc)
     {
         filer_config = fc;
@@ -172,31 +177,17 @@ public class FilerUtils {
 
         String msg_str = msg.toString();
         
-        FileSystem fs = vertx.fileSystem();
-        
-        // if full directory path exists, then write file
-        // otherwise create full path first
+        // DirCache only creates the full directory path if it is not already known to exist
         
-        fs.exists(filepath, result -> {
-            if (result.succeeded() && result.result())
+        DirCache.mkdirs(vertx, filepath, mkdirs_result -> {
+            if (mkdirs_result.succeeded())
                 {
-                    //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
+                    write_file(msg_str, filepath, filepath+"/"+filename, filer_config.store_mode);
                 }
             else
                 {
-                    System.out.println("MsgFiler."+filer_config.module_id+": creating directory "+filepath);
-                    fs.mkdirs(filepath, mkdirs_result -> {
-                            if (mkdirs_result.succeeded())
-                                {
-                                    write_file(msg_str, filepath+"/"+filename, filer_config.store_mode);
-                                }
-                            else
-                                {
-                                    Log.log_err("MsgFiler."+filer_config.module_id+
-                                                ": error creating path "+filepath);
-                                }
-                        });
+                    Log.log_err("MsgFiler."+filer_config.module_id+
+                                ": error creating path "+filepath);
                 }
         });
     } // end store_msg()
@@ -226,27 +217,16 @@ public class FilerUtils {
 
         String msg_str = msg.toString();
         
-        FileSystem fs = vertx.fileSystem();
+        // DirCache only creates the full directory path if it is not already known to exist
         
-        // if full directory path exists, then write file
-        // otherwise create full path first
-        
-        if (fs.existsBlocking(filepath))
-        {
-            //System.out.println("MsgFiler."+filer_config.module_id+": path "+filepath+" exists");
-            write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
+        try {
+            DirCache.mkdirsBlocking(vertx, filepath);
         }
-        else
-        {
-            try {
-                System.out.println("MsgFiler."+filer_config.module_id+": creating directory "+filepath);
-                fs.mkdirsBlocking(filepath);
-                write_fileBlocking(msg_str, filepath+"/"+filename, filer_config.store_mode);
-            }
-            catch (Exception e) {
-                Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+filepath);
-            }
+        catch (Exception e) {
+            Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+filepath);
+            return;
         }
+        write_fileBlocking(msg_str, filepath, filepath+"/"+filename, filer_config.store_mode);
 
     } // end store_msg()
 
@@ -261,7 +241,8 @@ public class FilerUtils {
     //     {{<field_name>|yyyy}}, get msg.getLong(field_name), parse it as a Unix timestamp, return year as "yyyy"
     //     {{<field_name>|MM}}, get msg.getLong(field_name), parse it as a Unix timestamp, return month as "MM"
     //     {{<field_name>|dd}}, get msg.getLong(field_name), parse it as a Unix timestamp, return day of month as "dd"
-    private String build_string(String pattern, JsonObject msg)
+    // (package-private for the bench/ FilerUtilsBenchmark)
+    String build_string(String pattern, JsonObject msg)
     {
         final String PATTERN_START = "{{";
         final String PATTERN_END = "}}";
@@ -368,29 +349,29 @@ public class FilerUtils {
     // Convert EITHER unix timestamp or ISO 8601 string to an Instant
     private Instant field_to_instant(JsonObject msg, String field_name)
     {
-        try
-        {
-            return  Instant.ofEpochSecond(msg.getLong(field_name, 0L));
-        }
-        catch (java.lang.ClassCastException e)
+        Object value = msg.getValue(field_name);
+        if (value instanceof String)
         {
-            return Instant.parse(msg.getString(field_name));
+            return iso_timestamp.instant((String) value);
         }
+        return Instant.ofEpochSecond(msg.getLong(field_name, 0L));
     }
 
     // *****************************************************************
     // write_file()
     // either overwrite (ASYNC) or append(SYNC) according to config_mode
-    private void write_file(String msg, String file_path, String config_mode)
+    // 'dir' is the directory of file_path, as cached by DirCache: if it has been removed since
+    // (e.g. a day directory archived) it is re-created and the write retried once
+    private void write_file(String msg, String dir, String file_path, String config_mode)
     {
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_file(msg, file_path);
+                overwrite_file(msg, dir, file_path);
             }
         else // append - this is a SYNCHRONOUS operation...
             {
                 vertx.executeBlocking(fut -> {
-                        append_file(msg, file_path);
+                        append_file(msg, dir, file_path);
                         fut.complete();
                     }, res -> { }
                     );
@@ -400,15 +381,15 @@ public class FilerUtils {
     // *****************************************************************
     // write_fileBlocking()
     // either overwrite or append in SYNCHRONOUS mode
-    private void write_fileBlocking(String msg, String file_path, String config_mode)
+    private void write_fileBlocking(String msg, String dir, String file_path, String config_mode)
     {
         if (config_mode.equals(Constants.FILE_WRITE))
             {
-                overwrite_fileBlocking(msg, file_path);
+                overwrite_fileBlocking(msg, dir, file_path);
             }
         else // append - this is a SYNCHRONOUS operation...
             {
-                append_file(msg, file_path); // is always SYNCHRONOUS anyway
+                append_file(msg, dir, file_path); // is always SYNCHRONOUS anyway
             }
     }        
         
@@ -418,7 +399,7 @@ public class FilerUtils {
     // Note: to extend the data API to 'now and previous' data sets,
     // this function SYNCHRONOUSLY moves any existing data file 'x' to 'x.prev'
     // before writing the new file.
-    private void overwrite_file(String msg, String file_path)
+    private void overwrite_file(String msg, String dir, String file_path)
     {
         FileSystem fs = vertx.fileSystem();
 
@@ -445,9 +426,12 @@ public class FilerUtils {
         }
 
         Buffer buf = Buffer.buffer(msg);
-        fs.writeFile(file_path, 
-                     buf, 
-                     result -> {
+        // DirCache re-creates 'dir' and retries if it has been removed since it was cached
+        DirCache.write_file(vertx,
+                            dir,
+                            file_path,
+                            buf,
+                            result -> {
           if (result.succeeded()) {
               //System.out.println("MsgFiler: File "+file_path+" written");
           } else {
@@ -459,7 +443,7 @@ public class FilerUtils {
     // **********************************************************
     // overwrite_fileBlocking()
     // will do a SYNCHRONOUS operation
-    private void overwrite_fileBlocking(String msg, String file_path)
+    private void overwrite_fileBlocking(String msg, String dir, String file_path)
     {
         FileSystem fs = vertx.fileSystem();
         Buffer buf = Buffer.buffer(msg);
@@ -467,7 +451,14 @@ public class FilerUtils {
             fs.writeFileBlocking(file_path, buf);
             //System.out.println("MsgFiler: File "+file_path+" written");
         } catch (Exception e) {
-            Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_fileBlocking error");
+            // the directory may have been removed since it was cached, so re-create and retry once
+            try {
+                DirCache.forget(dir);
+                DirCache.mkdirsBlocking(vertx, dir);
+                fs.writeFileBlocking(file_path, buf);
+            } catch (Exception e2) {
+                Log.log_err("MsgFiler."+filer_config.module_id+": overwrite_fileBlocking error");
+            }
         }
 
     } // end overwrite_fileBlocking
@@ -475,7 +466,28 @@ public class FilerUtils {
     // *********************************************************************
     // append_file()
     // BLOCKING code that will open and append 'msg'+'\n' to file 'filepath'
-    public void append_file(String msg, String file_path)
+    // in directory 'dir', re-creating 'dir' and retrying once if it has been
+    // removed since DirCache cached it
+    public void append_file(String msg, String dir, String file_path)
+    {
+        if (!append_line(msg, file_path))
+        {
+            try {
+                DirCache.forget(dir);
+                DirCache.mkdirsBlocking(vertx, dir);
+            } catch (Exception e) {
+                Log.log_err("MsgFiler."+filer_config.module_id+": error creating path "+dir);
+                return;
+            }
+            if (!append_line(msg, file_path))
+            {
+                Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+file_path);
+            }
+        }
+    } // end append_file
+
+    // append 'msg'+'\n' to file_path, returning false on error
+    private boolean append_line(String msg, String file_path)
     {
         //System.out.println("MsgFiler."+filer_config.module_id+": append_file "+ file_path);
  
@@ -488,7 +500,7 @@ public class FilerUtils {
             bw.newLine();
             bw.flush();
         } catch (IOException ioe) {
-            Log.log_err("MsgFiler."+filer_config.module_id+": append_file failed for "+file_path);
+            return false;
         } finally {                       // always close the file
             if (bw != null) try {
                     bw.close();
@@ -496,8 +508,9 @@ public class FilerUtils {
                     // just ignore it
                 }
         } // end try/catch/finally
+        return true;
 
-    } // end append_file
+    } // end append_line
 
     // Helper class to provide JsonArray from source object given a records_data
     // e.g. records_data = "foo>request_data[0]>sites"
@@ -47,6 +47,9 @@ import java.util.ArrayList;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
+import uk.ac.cam.tfc_server.util.LatencyProbe;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class MsgFiler extends AbstractVerticle {
     // from config()
@@ -62,6 +65,9 @@ public class MsgFiler extends AbstractVerticle {
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
 
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("source_address");
     
   @Override
   public void start(Future<Void> fut) throws Exception {
@@ -77,6 +83,8 @@ public class MsgFiler extends AbstractVerticle {
     System.out.println("MsgFiler." + MODULE_ID + ": started");
 
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
 
     // iterate through all the filers to be started
     for (int i=0; i<START_FILERS.size(); i++)
@@ -100,6 +108,7 @@ public class MsgFiler extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -127,14 +136,29 @@ public class MsgFiler extends AbstractVerticle {
         // register to filer_config.source_address,
         // test messages with filer_config.source_filter
         // and call store_msg if current message passes filter
+        // metrics are keyed on the source_address
+        final String key = filer_config.source_address;
+
         eb.consumer(filer_config.source_address, message -> {
             //System.out.println("MsgFiler."+MODULE_ID+": got message from " + filer_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
-            
+            metrics.inc("msgs_in", key);
+
+            JsonObject msg = FeedMessageCodec.json_body(message.body());
+
             //System.out.println(msg.toString());
 
             // store this message if it matches the filter within the FilerConfig
-            filer_utils.store_msg(msg);
+            // ("write" time is the time spent in store_msg on the event loop)
+            long write_start = System.nanoTime();
+            try {
+                filer_utils.store_msg(msg);
+            } catch (Exception e) {
+                metrics.inc("errors", key);
+                Log.log_err("MsgFiler."+MODULE_ID+": store_msg error for "+key+" "+e.getMessage());
+            }
+            metrics.time("write", key, System.nanoTime() - write_start);
+
+            LatencyProbe.record("msgfiler", msg);
 
         });
     
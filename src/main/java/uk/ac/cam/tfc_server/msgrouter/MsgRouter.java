@@ -35,14 +35,21 @@ import java.io.*;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.LatencyProbe;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
 
 public class MsgRouter extends AbstractVerticle {
 
-    private final String VERSION = "0.21";
+    private final String VERSION = "0.22";
 
     // from config()
     public int LOG_LEVEL;             // optional in config(), defaults to Constants.LOG_INFO
@@ -56,6 +63,10 @@ public class MsgRouter extends AbstractVerticle {
     private final int SYSTEM_STATUS_RED_SECONDS = 35;
 
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("destination_id");
+
     private Log logger;
 
     private ArrayList<JsonObject> START_ROUTERS; // config msgrouters.routers parameters
@@ -83,6 +94,8 @@ public class MsgRouter extends AbstractVerticle {
         logger.log(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": Version "+VERSION+" started with log_level "+LOG_LEVEL);
 
         eb = vertx.eventBus();
+        // feed messages use the FeedMessageCodec on the eventbus
+        FeedMessageCodec.register(vertx);
 
         // create holder for WebClients, one per router
         web_clients = new HashMap<String,WebClient>();
@@ -386,6 +399,7 @@ public class MsgRouter extends AbstractVerticle {
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
                    "\"status_msg\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -451,10 +465,31 @@ public class MsgRouter extends AbstractVerticle {
         // register to router_config.source_address,
         // test messages with router_config.source_filter
         // and call store_msg if current message passes filter
+        // msgs_in are keyed on the configured destination_id, or "" for sensor-mapped routing
+        final String metrics_key = router_config.getString("destination_id", "");
+
+        final Handler<JsonObject> route_msg = router_handler(router_config, has_filter, source_filter, has_destination);
+
         eb.consumer(router_config.getString("source_address"), message -> {
             //System.out.println("MsgRouter."+MODULE_ID+": got message from " + router_config.source_address);
-            JsonObject msg = new JsonObject(message.body().toString());
+            metrics.inc("msgs_in", metrics_key);
+
+            // a batched message (e.g. EverynetFeed batch_ms) is routed as one message per uplink
+            for (JsonObject msg : unbatch(FeedMessageCodec.json_body(message.body())))
+            {
+                route_msg.handle(msg);
+            }
+        });
+
+    } // end start_router
 
+    // handle_msg for start_router(), routing a single message
+    private Handler<JsonObject> router_handler(JsonObject router_config,
+                                               boolean has_filter,
+                                               RouterFilter source_filter,
+                                               boolean has_destination)
+    {
+        return msg -> {
             //**************************************************************************
             //**************************************************************************
             // Route the message onwards via POST to destination
@@ -462,14 +497,16 @@ public class MsgRouter extends AbstractVerticle {
             //**************************************************************************
             if (!has_filter || source_filter.match(msg))
             {
+                LatencyProbe.record("msgrouter", msg);
+
                 // route this message if it matches the filter within the RouterConfig
                 //route_msg(web_client, router_config, msg);
                 if (has_destination)
                 {
                     String destination_type = router_config.getString("destination_type");
                     String destination_id = router_config.getString("destination_id");
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": sending message to type/id: "+destination_type+"/"+destination_id+", url="+router_config.getString("url"));
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": sending message to type/id: "+destination_type+"/"+destination_id+", url="+router_config.getString("url"));
                     try
                     {
                         switch (destination_type)
@@ -478,8 +515,8 @@ public class MsgRouter extends AbstractVerticle {
                                 Destination d = destinations.get(destination_type, destination_id);
 
                                 String send_msg = msg.toString();
-                                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                           ": (destination "+ (d!=null ? "ok)":"null)")+" sending message");// \n"+send_msg);
+                                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                                 ": (destination "+ (d!=null ? "ok)":"null)")+" sending message");// \n"+send_msg);
                                 d.send(send_msg);
                                 break;
 
@@ -500,6 +537,7 @@ public class MsgRouter extends AbstractVerticle {
                     }
                     catch (Exception e)
                     {
+                        metrics.inc("errors", destination_id);
                         logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                                    ": send error for "+destination_type+"/"+destination_id);
                         e.printStackTrace();
@@ -519,8 +557,8 @@ public class MsgRouter extends AbstractVerticle {
                                    ": skipping message (no sensor_id or sensor_type) ");
                         return;
                     }
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": handling sensor data from "+msg_sensor_type+"/"+msg_sensor_id);
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": handling sensor data from "+msg_sensor_type+"/"+msg_sensor_id);
 
                     //debug! Need to re-do this key construction
                     String destination_id = null;
@@ -534,8 +572,8 @@ public class MsgRouter extends AbstractVerticle {
                     }
                     catch (Exception NullPointerException)
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" no entry for sensor in in-memory cache");
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" no entry for sensor in in-memory cache");
                         return;
                     }
 
@@ -549,22 +587,68 @@ public class MsgRouter extends AbstractVerticle {
                     }
                     catch (Exception NullPointerException)
                     {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" invalid destination in in-memory cache");
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": ignoring sensor data from "+msg_sensor_type+"/"+msg_sensor_id+" invalid destination in in-memory cache");
                         return;
                     }
                 }
             }
             else
             {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": "+msg.getString("sensor_type")+"/"+msg.getString("sensor_id")+" msg skipped - no match "+
-                           router_config.getJsonObject("source_filter").toString());
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                 ": "+msg.getString("sensor_type")+"/"+msg.getString("sensor_id")+" msg skipped - no match "+
+                                 router_config.getJsonObject("source_filter").toString());
             }
+        };
+    } // end router_handler()
 
-        });
+    //**************************************************************************
+    // unbatch()
+    // Split a micro-batch message (a "request_data" of more than one record, each with its own
+    // "sensor_id", see EverynetFeed batch_ms) into one message per record, with the record's
+    // values for the message properties it also has (e.g. "sensor_id", "decoded_payload",
+    // "filename") and "ts" from its "received_ms", so each uplink is filtered and routed by its
+    // own sensor. Any other message is returned as it is.
+    //**************************************************************************
+    static List<JsonObject> unbatch(JsonObject msg)
+    {
+        JsonArray request_data = msg.getJsonArray("request_data");
+        if (request_data == null || request_data.size() < 2)
+        {
+            return Collections.singletonList(msg);
+        }
+        for (int i=0; i<request_data.size(); i++)
+        {
+            Object record = request_data.getValue(i);
+            if (!(record instanceof JsonObject) || !((JsonObject) record).containsKey("sensor_id"))
+            {
+                return Collections.singletonList(msg);
+            }
+        }
 
-    } // end start_router
+        ArrayList<JsonObject> msgs = new ArrayList<JsonObject>();
+        for (int i=0; i<request_data.size(); i++)
+        {
+            JsonObject record = request_data.getJsonObject(i);
+            JsonObject record_msg = new JsonObject();
+            for (Map.Entry<String,Object> property : msg)
+            {
+                String key = property.getKey();
+                if (!key.equals("request_data"))
+                {
+                    record_msg.put(key, record.containsKey(key) ? record.getValue(key) : property.getValue());
+                }
+            }
+            Long received_ms = record.getLong("received_ms");
+            if (received_ms != null)
+            {
+                record_msg.put("ts", received_ms / 1000);
+            }
+            record_msg.put("request_data", new JsonArray().add(record));
+            msgs.add(record_msg);
+        }
+        return msgs;
+    }
 
     //**************************************************************************
     //**************************************************************************
@@ -684,6 +768,7 @@ public class MsgRouter extends AbstractVerticle {
                                          // or PostgreSQL csn_destination table
 
         public WebClient web_client;   // We pre-define an WebClient for each Destination. Hopefully this is more efficient.
+        private AtomicLong in_flight = new AtomicLong(); // POSTs sent but not yet responded to
         UrlParts u;                      // To hold the results of the parse_url()
 
         private class UrlParts {         // The results from using Java URL parsing in parse_url
@@ -739,6 +824,9 @@ public class MsgRouter extends AbstractVerticle {
 
             web_client = WebClient.create(vertx, options);
 
+            // queue depth of this destination, reported in the status heartbeat
+            metrics.gauge("in_flight", destination_id, () -> in_flight.get());
+
             //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
             //     ": created destination "+this.toString());
         }
@@ -793,13 +881,18 @@ public class MsgRouter extends AbstractVerticle {
         // Here is where we POST the data to the destination
         public void send(String msg)
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": sending to "+destination_type+"/"+destination_id+": " + msg);
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": sending to "+destination_type+"/"+destination_id+": " + msg);
 
             try
             {
                 Buffer post_body = Buffer.buffer(msg);
 
+                metrics.inc("msgs_out", destination_id);
+                metrics.add("bytes_out", destination_id, post_body.length());
+                in_flight.incrementAndGet();
+                long post_start = System.nanoTime();
+
                 // Build request
                 HttpRequest<Buffer> request = web_client.post(u.http_path);
 
@@ -818,30 +911,34 @@ public class MsgRouter extends AbstractVerticle {
                     .timeout(15000) // give up after 15 seconds
                     // send this POST...
                     .sendBuffer( post_body, async_response -> {
+                        in_flight.decrementAndGet();
+                        metrics.time("post", destination_id, System.nanoTime() - post_start);
                         if (async_response.succeeded())
                         {
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": msg posted to " + this.toString());
+                            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                             ": msg posted to " + this.toString());
 
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": response was " + async_response.result().statusCode());
+                            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                             ": response was " + async_response.result().statusCode());
                         }
                         else // async_response failed
                         {
+                            metrics.inc("errors", destination_id);
                             logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                                        ": Destination HttpClientRequest error for "+destination_id);
 
-                            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                       ": POST FAILED " + async_response.cause().getMessage() );
+                            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                             ": POST FAILED " + async_response.cause().getMessage() );
                         }
                     }); // end .send
 
             }
             catch (Exception e)
             {
+                metrics.inc("errors", destination_id);
                 logger.log(Constants.LOG_WARN, MODULE_NAME+"."+MODULE_ID+
                            ": Destination send error for "+destination_type+"/"+destination_id);
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": "+e.getMessage());
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+": "+e.getMessage());
             }
         }
 
@@ -88,9 +88,9 @@ import uk.ac.cam.tfc_server.util.Log;
 
             subscriptions.put(request_id, s);
 
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": Client.add_subscription "+UUID+ " " +sock_msg.toString()+
-                       " key_is_record_index="+s.key_is_record_index);
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": Client.add_subscription "+UUID+ " " +sock_msg.toString()+
+                             " key_is_record_index="+s.key_is_record_index);
             return;
         }
 
@@ -116,8 +116,8 @@ import uk.ac.cam.tfc_server.util.Log;
                 RTMonitor.send_nok(sock, request_id, "request_id failed to match existing subscription");
                 return;
             }
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                    ": Client.remove_subscription() OK for "+UUID+" "+s.toString());
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                          ": Client.remove_subscription() OK for "+UUID+" "+s.toString());
         }
 
         // Update this client based on incoming eventbus message
@@ -141,14 +141,14 @@ import uk.ac.cam.tfc_server.util.Log;
                 if (m.records_array.size() == 0)
                 {
                     // The whole message is considered the 'record'
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Client.update apply filters to whole eventbus msg");
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": Client.update apply filters to whole eventbus msg");
 
                     if (filters.test(eventbus_msg))
                     {
                         // filter succeeded, so send whole message
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                   ": Client.update filters succeeded, sending whole eventbus msg");
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                         ": Client.update filters succeeded, sending whole eventbus msg");
                         // update count for this subscription
                         s.record_count += 1;
                         sock.write(Buffer.buffer(eventbus_msg.toString()));
@@ -160,8 +160,8 @@ import uk.ac.cam.tfc_server.util.Log;
                     // Extract the 'data records' from the eventbus message
                     JsonArray records = m.get_records(eventbus_msg);
 
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Client.update processing "+records.size()+" records");
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": Client.update processing "+records.size()+" records");
 
                     // Prepare a JsonArray to hold the filtered records
                     JsonArray filtered_records = new JsonArray();
@@ -183,9 +183,9 @@ import uk.ac.cam.tfc_server.util.Log;
                         s.record_count += filtered_records.size();
 
                         // Woo we have successfully found records within the filter scope
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Client.update sending "+filtered_records.size()+
-                               " filtered records (subscription total "+s.record_count+")");
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": Client.update sending "+filtered_records.size()+
+                                     " filtered records (subscription total "+s.record_count+")");
 
                         // Build the data object to be sent in response to this subscription
                         JsonObject rt_data = new JsonObject();
@@ -197,9 +197,9 @@ import uk.ac.cam.tfc_server.util.Log;
                     else
                     {
                         // If we have NO filtered records then do nothing (and move on to next subscription)
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                               ": Client.update 0 filtered records"+
-                               " (subscription total "+s.record_count+")");
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                     ": Client.update 0 filtered records"+
+                                     " (subscription total "+s.record_count+")");
                     }
 
                 }
@@ -209,9 +209,9 @@ import uk.ac.cam.tfc_server.util.Log;
         // Handle an incoming "rt_request" for one-off pull of data
         public void handle_rt_request(JsonObject sock_msg, Monitor m, boolean key_is_record_index)
         {
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": Client.handle_rt_request "+UUID+ " " +sock_msg.toString()+
-                       " key_is_record_index="+key_is_record_index);
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": Client.handle_rt_request "+UUID+ " " +sock_msg.toString()+
+                             " key_is_record_index="+key_is_record_index);
 
             String request_id  = sock_msg.getString("request_id");
             if (request_id == null)
@@ -264,8 +264,8 @@ import uk.ac.cam.tfc_server.util.Log;
             // Requests for "latest_msg" and "previous_msg" are not filtered
             if (options.contains("previous_msg"))
             {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                        ": Client.handle_rt_request for previous_msg");
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                              ": Client.handle_rt_request for previous_msg");
 
                 reply_messages.add(m.previous_msg);
             }
@@ -273,8 +273,8 @@ import uk.ac.cam.tfc_server.util.Log;
             // "latest_msg" is the default if no "options" specified
             if (options.size() == 0 || options.contains("latest_msg"))
             {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                        ": Client.handle_rt_request for latest_msg");
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                              ": Client.handle_rt_request for latest_msg");
 
                 reply_messages.add(m.latest_msg);
             }
@@ -305,8 +305,8 @@ import uk.ac.cam.tfc_server.util.Log;
                 // Add the reply message to the list of messages to be sent
                 reply_messages.add(msg_previous_records);
 
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                        ": Client.handle_rt_request for "+filtered_previous_records.size()+" previous_records");
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                              ": Client.handle_rt_request for "+filtered_previous_records.size()+" previous_records");
 
             }
 
@@ -336,8 +336,8 @@ import uk.ac.cam.tfc_server.util.Log;
                 // Add the reply message to the list of messages to be sent
                 reply_messages.add(msg_latest_records);
 
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                        ": Client.handle_rt_request for "+filtered_latest_records.size()+" latest_records");
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                              ": Client.handle_rt_request for "+filtered_latest_records.size()+" latest_records");
 
             }
 
@@ -49,8 +49,8 @@ import uk.ac.cam.tfc_server.util.Log;
             // create new entry for sock_data
             Client client = new Client(UUID, sock, sock_msg, token);
 
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": ClientTable.add "+UUID);
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": ClientTable.add "+UUID);
             // push this entry onto the array
             client_table.put(UUID, client);
             return UUID;
@@ -134,8 +134,8 @@ import uk.ac.cam.tfc_server.util.Log;
                 return;
             }
 
-            logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": "+m.address+" updating "+ client_table.size()+" clients");
+            logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": "+m.address+" updating "+ client_table.size()+" clients");
 
             // for each client socket entry in sock_info
             //   if sock_data is not null
@@ -147,8 +147,8 @@ import uk.ac.cam.tfc_server.util.Log;
             // iterate the clients
             for (String UUID: client_table.keySet())
             {
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                       ": updating client "+UUID);
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                             ": updating client "+UUID);
 
                 Client client = client_table.get(UUID);
                 
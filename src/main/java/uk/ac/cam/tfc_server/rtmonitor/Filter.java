@@ -9,6 +9,7 @@ import uk.ac.cam.tfc_server.util.Constants;
 
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Position;
+import uk.ac.cam.tfc_server.util.Polygon;
 import uk.ac.cam.tfc_server.util.Log;
 
     // Client subscription filter e.g. { "test": "=", "key": "A>B", "value": "X" }
@@ -20,6 +21,8 @@ import uk.ac.cam.tfc_server.util.Log;
 
         public JsonObject msg;
 
+        private Polygon polygon; // for an "inside" filter, prepared from msg "points"
+
         Filter(JsonObject msg)
         {
             logger = new Log(RTMonitor.LOG_LEVEL);
@@ -95,18 +98,23 @@ import uk.ac.cam.tfc_server.util.Log;
             //     ]
             //   }
 
-            //DEBUG TODO move this into the Subscription constructor for speedup
             String lat_key = msg.getString("lat_key", "acp_lat");
 
             String lng_key = msg.getString("lng_key", "acp_lng");
 
-            JsonArray points = msg.getJsonArray("points");
+            // the polygon is prepared on the first test, and kept for the following records
+            if (polygon == null)
+            {
+                JsonArray points = msg.getJsonArray("points");
+
+                ArrayList<Position> path = new ArrayList<Position>();
 
-            ArrayList<Position> polygon = new ArrayList<Position>();
+                for (int i=0; i<points.size(); i++)
+                {
+                    path.add(new Position(points.getJsonObject(i)));
+                }
 
-            for (int i=0; i<points.size(); i++)
-            {
-                polygon.add(new Position(points.getJsonObject(i)));
+                polygon = new Polygon(path);
             }
 
             double lat;
@@ -120,8 +120,8 @@ import uk.ac.cam.tfc_server.util.Log;
                 {
                     update_record(records.getJsonObject(i));
                 }
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": Monitor "+address+" processed "+records.size()+" records, total "+latest_records.size());
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                 ": Monitor "+address+" processed "+records.size()+" records, total "+latest_records.size());
             }
         }        
 
@@ -157,7 +157,8 @@ import uk.ac.cam.tfc_server.util.Log;
             // The message contains multiple records, so follow records_array path 
             // of JsonObjects and assume final element on path is JsonArray
             // containing data records of interest. Start with original message
-            JsonObject records_parent = msg.copy();
+            // (only read, so not copied)
+            JsonObject records_parent = msg;
             // step through the 'records_array' properties excluding the last
             for (int i=0; i<records_array.size()-1; i++)
             {
@@ -174,8 +175,9 @@ import uk.ac.cam.tfc_server.util.Log;
         {
             // The message contains multiple records, so follow records_array path 
             // of JsonObjects and assume final element on path is JsonArray
-            // containing data records of interest. Start with original message
-            JsonObject index_parent = record.copy();
+            // containing data records of interest. Start with original record
+            // (only read, so not copied)
+            JsonObject index_parent = record;
             // step through the 'record_index' properties excluding the last
             for (int i=0; i<record_index.size()-1; i++)
             {
@@ -202,8 +204,8 @@ import uk.ac.cam.tfc_server.util.Log;
                     if (key_match(key, record_index))
                     {
                         key_is_record_index = true;
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": subscription key "+key+" matches record_index");                        
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                 ": subscription key "+key+" matches record_index");                        
                         break;
                     }
                 }
@@ -49,13 +49,17 @@ import java.util.*;
 
 // other tfc_server classes
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.LatencyProbe;
 import uk.ac.cam.tfc_server.util.Position;
 import uk.ac.cam.tfc_server.util.RTCrypto;
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
 
 public class RTMonitor extends AbstractVerticle {
 
-    private final String VERSION = "1.31";
+    private final String VERSION = "1.33";
 
     // from config()
     public static int LOG_LEVEL;             // optional in config(), defaults to Constants.LOG_INFO
@@ -75,6 +79,10 @@ public class RTMonitor extends AbstractVerticle {
     private final int SYSTEM_PURGE_SECONDS = 5*60; // check for client purge every 5 mins
 
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("uri");
+
     private Log logger;
 
     // monitor configs:
@@ -140,6 +148,8 @@ public class RTMonitor extends AbstractVerticle {
                    " started on port "+HTTP_PORT+" "+ key_message+" (log_level="+LOG_LEVEL+")");
 
         eb = vertx.eventBus();
+        // feed messages use the FeedMessageCodec on the eventbus
+        FeedMessageCodec.register(vertx);
 
         // send periodic "system_status" messages
         init_system_status();
@@ -203,6 +213,7 @@ public class RTMonitor extends AbstractVerticle {
                            "{ \"module_name\": \""+MODULE_NAME+"\"," +
                            "\"module_id\": \""+MODULE_ID+"\"," +
                            "\"status\": \"UP\"," +
+                           "\"metrics\": "+metrics.to_json()+"," +
                            "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                            "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                            "}" );
@@ -228,15 +239,23 @@ public class RTMonitor extends AbstractVerticle {
 
         final String RECORD_INDEX = config.getString("record_index");
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                   ": setting up monitor for "+ADDRESS+" at "+HTTP_PORT+":"+URI);
+        // optional "feed_id": subscribe to just that feed's partition of ADDRESS (see FeedPartitioner)
+        final String FEED_ID = config.getString("feed_id");
+
+        final String SOURCE_ADDRESS = FEED_ID == null ? ADDRESS : FeedPartitioner.feed_address(ADDRESS, FEED_ID);
+
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                         ": setting up monitor for "+SOURCE_ADDRESS+" at "+HTTP_PORT+":"+URI);
 
         // create Monitor entry
         monitors.add(URI, ADDRESS, RECORDS_ARRAY, RECORD_INDEX);
 
+        // number of connected clients of this monitor, reported in the status heartbeat
+        metrics.gauge("clients", URI, () -> monitors.get(URI).clients.size());
+
         // and set up consumer for eventbus messages
-        eb.consumer(ADDRESS, message -> {
-                        handle_message(URI, message.body().toString());
+        eb.consumer(SOURCE_ADDRESS, message -> {
+                        handle_message(URI, FeedMessageCodec.json_body(message.body()));
 
             });
 
@@ -250,8 +269,8 @@ public class RTMonitor extends AbstractVerticle {
 
         sock_handler.socketHandler( sock -> {
                 // received new socket CONNECTION
-                logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                        ": "+URI+" sock connection received with "+sock.writeHandlerID());
+                logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                              ": "+URI+" sock connection received with "+sock.writeHandlerID());
 
                 MultiMap headers = sock.headers();
 
@@ -260,20 +279,20 @@ public class RTMonitor extends AbstractVerticle {
                     for (String header_name : headers.names())
                     {
                         String header_values = String.join(";; ", headers.getAll(header_name));
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                            ": Header "+header_name+": "+header_values);
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                  ": Header "+header_name+": "+header_values);
                     }
                 }
                 else
                 {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                            ": No Sock headers");
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                  ": No Sock headers");
                 }
 
                 // Assign a handler function to RECEIVE DATA
                 sock.handler( buf -> {
-                    logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": sock received '"+buf+"'");
+                    logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                 ": sock received '"+buf+"'");
 
                     JsonObject sock_msg;
 
@@ -344,8 +363,8 @@ public class RTMonitor extends AbstractVerticle {
 
                 // Assign handler for socket CLOSED
                 sock.endHandler( (Void v) -> {
-                        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                                ": sock closed "+sock.writeHandlerID());
+                        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                      ": sock closed "+sock.writeHandlerID());
                         // remove the client
                         remove_rt_client(URI, sock.writeHandlerID());
                     });
@@ -353,8 +372,8 @@ public class RTMonitor extends AbstractVerticle {
 
         router.route(URI+"/*").handler(sock_handler);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                           ": socket handler setup on '"+URI+"/*"+"'");
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                                 ": socket handler setup on '"+URI+"/*"+"'");
 
     } // end start_monitor()
 
@@ -377,14 +396,22 @@ public class RTMonitor extends AbstractVerticle {
     // *************  Handle eventbus messages that a consumer has received ********************
     // *****************************************************************************************
     // *****************************************************************************************
-    private void handle_message(String URI, String msg)
+    // The message (shared with the other local consumers, see FeedMessageCodec) is only read:
+    // the monitor state keeps references to it and its records, and the clients are sent it
+    // (or its filtered records) as JSON text.
+    private void handle_message(String URI, JsonObject msg)
     {
         //logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+": eventbus message for "+URI);
+        metrics.inc("msgs_in", URI);
 
         // Update the state of the relevant monitor, e.g. accumulate the latest and previous records
-        monitors.update_state(URI, new JsonObject(msg));
+        monitors.update_state(URI, msg);
         // Update the relevant clients that have subscribed
-        monitors.update_clients(URI, new JsonObject(msg));
+        long update_start = System.nanoTime();
+        monitors.update_clients(URI, msg);
+        metrics.time("update_clients", URI, System.nanoTime() - update_start);
+
+        LatencyProbe.record("rtmonitor", msg);
     }
 
     // *****************************************************************************************
@@ -510,8 +537,8 @@ public class RTMonitor extends AbstractVerticle {
         // create entry in client table for correct monitor
         monitors.add_client(URI, UUID, sock, sock_msg, token);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                ": adding client "+UUID+" with "+sock_msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                      ": adding client "+UUID+" with "+sock_msg.toString());
     }
 
     // *****************************************************************************************
@@ -522,8 +549,8 @@ public class RTMonitor extends AbstractVerticle {
         // create entry in client table for correct monitor
         monitors.add_subscription(URI, UUID, sock_msg);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                ": subscribing client "+UUID+" with "+sock_msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                      ": subscribing client "+UUID+" with "+sock_msg.toString());
     }
 
     // *****************************************************************************************
@@ -534,8 +561,8 @@ public class RTMonitor extends AbstractVerticle {
         // create entry in client table for correct monitor
         monitors.remove_subscription(URI, UUID, sock_msg);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                ": removing subscription from "+UUID+" with "+sock_msg.toString());
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                      ": removing subscription from "+UUID+" with "+sock_msg.toString());
     }
 
     // *****************************************************************************************
@@ -546,8 +573,8 @@ public class RTMonitor extends AbstractVerticle {
         // remove entry in client table for correct monitor
         monitors.remove_client(URI, UUID);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                ": removed client "+UUID+" from monitor "+URI);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                      ": removed client "+UUID+" from monitor "+URI);
     }
 
     // *****************************************************************************************
@@ -557,8 +584,8 @@ public class RTMonitor extends AbstractVerticle {
     {
         monitors.handle_rt_request(URI, UUID, sock_msg);
 
-        logger.log(Constants.LOG_DEBUG, MODULE_NAME+"."+MODULE_ID+
-                ": rt_request from client "+UUID+" for monitor "+URI);
+        logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+"."+MODULE_ID+
+                      ": rt_request from client "+UUID+" for monitor "+URI);
     }
 
     // *****************************************************************************************
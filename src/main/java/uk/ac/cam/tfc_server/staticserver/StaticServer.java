@@ -33,6 +33,8 @@ import io.vertx.ext.web.Route;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.StaticHandler;
 
+import uk.ac.cam.tfc_server.util.Metrics;
+
 public class StaticServer extends AbstractVerticle {
 
     private Integer HTTP_PORT; // from config()
@@ -52,6 +54,9 @@ public class StaticServer extends AbstractVerticle {
     // Vertx event bus
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("uri");
+
     @Override
     public void start(Future<Void> fut) throws Exception
     {
@@ -124,6 +129,7 @@ public class StaticServer extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -0,0 +1,290 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// BinDir.java
+//
+// BLOCKING listing of a single data_bin/yyyy/MM/dd directory, returning the raw feed data items
+// in timestamp order regardless of whether they are stored as individual files (the original
+// <UTC ts>_YYYY-MM-DD-hh-mm-ss.bin layout) or as records in segment files (*.seg, written by
+// SegmentWriter).
+//
+// Each item is a BinDir.Entry, and the data for an entry is read with bin_dir.read(entry).
+// Segment files are opened once (in the constructor) and held open until close().
+//
+// If the directory has an up-to-date time index (see BinIndex) it is used instead of listing the
+// directory and parsing each filename. A reader does not write the index (the directory may be
+// being written by the ingest process), it is only rebuilt when BinDir is created with
+// write_index true, by the offline SegmentConvert.
+// seek(ts_ms) binary-searches the sorted entries for a start time.
+//
+// Used by BatcherWorker and FeedPlayer.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+
+public class BinDir {
+
+    // A single raw data item, either a file or a record in a segment
+    public static class Entry {
+        public long ts;        // receive timestamp, UTC milliseconds
+        public String name;    // filename without suffix, e.g. "1459762951.123_2016-04-04-10-42-31"
+                               // (null for a segment record until it has been read)
+        public String path;    // path of the file, or of the segment containing the record
+        public long offset;    // record offset within segment, or -1 for an individual file
+
+        public Entry(long ts, String name, String path, long offset)
+        {
+            this.ts = ts;
+            this.name = name;
+            this.path = path;
+            this.offset = offset;
+        }
+    }
+
+    public String dir_path;
+
+    public String yyyymmdd;  // "yyyy/MM/dd" from the last three elements of dir_path
+
+    public ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    private HashMap<String,SegmentReader> segments = new HashMap<String,SegmentReader>();
+
+    private final boolean write_index; // rebuild the index if it is not up to date
+
+    // List the directory 'path', including the records of any segment files.
+    // Unreadable segments are logged and skipped.
+    public BinDir(String path) throws IOException
+    {
+        this(path, false);
+    }
+
+    // As above, and if write_index, rebuild the directory index if it is not up to date
+    // (only for a directory not being written, e.g. by SegmentConvert)
+    public BinDir(String path, boolean write_index) throws IOException
+    {
+        dir_path = path;
+        this.write_index = write_index;
+
+        Path dir = Paths.get(path);
+        int n = dir.getNameCount();
+        yyyymmdd = n < 3 ? "" : dir.subpath(n-3, n).toString().replace('\\','/');
+
+        List<String[]> index = BinIndex.load(path);
+        if (index != null)
+        {
+            for (String[] line : index)
+            {
+                add_file(path+"/"+line[1], line[1], Long.parseLong(line[0]));
+            }
+        }
+        else
+        {
+            list_dir(dir);
+        }
+
+        // stable sort, so records with equal timestamps stay in the order stored
+        Collections.sort(entries, Comparator.comparingLong(e -> e.ts));
+    }
+
+    // ****************************************************************************
+    // seek()
+    // Return the index of the first entry with ts >= ts_ms (binary search),
+    // or entries.size() if all entries are earlier.
+    // ****************************************************************************
+    public int seek(long ts_ms)
+    {
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (entries.get(mid).ts < ts_ms)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // list the directory, and if write_index rebuild its index
+    private void list_dir(Path dir) throws IOException
+    {
+        ArrayList<String[]> index = new ArrayList<String[]>();
+
+        FileTime listed_time = Files.getLastModifiedTime(dir);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+        {
+            for (Path p : stream)
+            {
+                if (!Files.isRegularFile(p))
+                {
+                    continue;
+                }
+
+                String file_name = p.getFileName().toString();
+
+                // skip hidden/temporary files (including the index itself)
+                if (file_name.startsWith("."))
+                {
+                    continue;
+                }
+
+                // a segment is indexed with the ts of its first record
+                if (file_name.endsWith(SegmentWriter.SEGMENT_SUFFIX))
+                {
+                    int first = entries.size();
+                    if (add_segment(p.toString()))
+                    {
+                        long ts = first < entries.size() ? entries.get(first).ts : 0;
+                        index.add(new String[] { String.valueOf(ts), file_name });
+                    }
+                    continue;
+                }
+
+                long ts = get_ts_ms(get_basename(file_name));
+
+                if (add_file(p.toString(), file_name, ts))
+                {
+                    index.add(new String[] { String.valueOf(ts), file_name });
+                }
+            }
+        }
+
+        if (write_index)
+        {
+            BinIndex.write(dir_path, index, listed_time);
+        }
+    }
+
+    // add a file, or a segment's records, to entries, returning false if it is not a data file
+    private boolean add_file(String file_path, String file_name, long ts)
+    {
+        if (file_name.endsWith(SegmentWriter.SEGMENT_SUFFIX))
+        {
+            return add_segment(file_path);
+        }
+
+        if (ts < 0)
+        {
+            return false;
+        }
+        entries.add(new Entry(ts, get_basename(file_name), file_path, -1));
+        return true;
+    }
+
+    // Return the number of segment files found in the directory
+    public int segment_count()
+    {
+        return segments.size();
+    }
+
+    // ****************************************************
+    // read()
+    // BLOCKING read of the data for an entry
+    // (also sets entry.name for a segment record)
+    // ****************************************************
+    public Buffer read(Entry entry) throws IOException
+    {
+        if (entry.offset < 0)
+        {
+            return Buffer.buffer(Files.readAllBytes(Paths.get(entry.path)));
+        }
+
+        SegmentReader.Record record = segments.get(entry.path).read_at(entry.offset);
+        entry.name = record.name;
+        return record.data;
+    }
+
+    // close any open segment files
+    public void close()
+    {
+        for (SegmentReader reader : segments.values())
+        {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.log_err("BinDir: error closing "+reader.get_path());
+            }
+        }
+        segments.clear();
+    }
+
+    // return filename without suffix, e.g. 1459762951.123_2016-04-04-10-42-31.bin -> 1459762951.123_2016-04-04-10-42-31
+    public static String get_basename(String file_name)
+    {
+        int dot = file_name.lastIndexOf('.');
+        int underscore = file_name.indexOf('_');
+        // only strip a suffix that follows the utc timestamp
+        return dot > underscore ? file_name.substring(0, dot) : file_name;
+    }
+
+    // *****************************************************************************************
+    // get_ts_ms()
+    // Return the UTC timestamp in milliseconds from a filename such as "1459762951_2016-04-04-10-42-31"
+    // or "1459762951.123_2016-04-04-10-42-31", or -1 if the name does not start with a timestamp
+    // *****************************************************************************************
+    public static long get_ts_ms(String name)
+    {
+        int underscore = name.indexOf('_');
+        String ts_str = underscore < 0 ? name : name.substring(0, underscore);
+        try
+        {
+            int dot = ts_str.indexOf('.');
+            if (dot < 0)
+            {
+                return Long.parseLong(ts_str) * 1000;
+            }
+            long secs = Long.parseLong(ts_str.substring(0, dot));
+            String frac = (ts_str.substring(dot + 1) + "000").substring(0, 3);
+            return secs * 1000 + Long.parseLong(frac);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private boolean add_segment(String segment_path)
+    {
+        if (segments.containsKey(segment_path))
+        {
+            return true;
+        }
+
+        SegmentReader reader;
+        try {
+            reader = new SegmentReader(segment_path);
+        } catch (IOException e) {
+            Log.log_err("BinDir: skipping "+segment_path+" "+e.getMessage());
+            return false;
+        }
+
+        segments.put(segment_path, reader);
+
+        for (int i=0; i<reader.size(); i++)
+        {
+            entries.add(new Entry(reader.get_ts(i), null, segment_path, reader.get_offset(i)));
+        }
+        return true;
+    }
+
+} // end class BinDir
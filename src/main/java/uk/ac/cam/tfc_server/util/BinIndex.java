@@ -0,0 +1,302 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// BinIndex.java
+//
+// Per-day time index of a data_bin/yyyy/MM/dd directory, so replays (BatcherWorker, FeedPlayer)
+// do not have to list the directory and parse every filename.
+//
+// The index is the text file <day dir>/.index, one line per data file in the directory:
+//   <receive ts, UTC milliseconds> <filename>
+// e.g.
+//   1459762951123 1459762951.123_2016-04-04-10-42-31.bin
+//   1459728000456 2016-04-04.seg
+// A segment file (*.seg) is listed once (with the ts of its first record), its records being
+// indexed within the segment itself (see SegmentWriter).
+//
+// Maintenance:
+//   At ingest time a BinIndex (one per feed data_bin) appends a line after each file is written,
+//   and SegmentWriter appends a line when it creates a segment.
+//   BinDir uses the index only if it is 'fresh', i.e. last modified no earlier than the directory
+//   itself (adding or removing a file updates the directory mtime, and the index line is appended
+//   after the file is created), so a reader never lists the directory when the index is up to date.
+//   The mtime alone would not catch a lost append (crash, I/O error), as the next append makes the
+//   index newer than the directory again, so the writer reconciles instead: the first append to a
+//   day directory by a process (after a restart, or a failed append) first lists the directory
+//   once and appends a line for any data file the index is missing.
+//   Otherwise BinDir lists the directory, and does not write the index itself: readers must not
+//   rewrite the index of a live archive under the ingest process. The index is rebuilt offline
+//   (written to a temporary file and atomically renamed) by SegmentConvert -index.
+//
+// append() is BLOCKING, append_async() runs it via vertx.executeBlocking().
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import io.vertx.core.Vertx;
+
+public class BinIndex {
+
+    public static final String INDEX_NAME = ".index";
+
+    private static final String TMP_NAME = ".index.tmp";
+
+    private String current_dir = null;   // day directory of the index currently open
+    private FileChannel channel = null;
+
+    // ******************************************************************************
+    // append()
+    // BLOCKING append of 'ts_ms file_name' to the index of day directory 'dir_path'
+    // The index file is held open until the day directory changes, or an append fails.
+    // ******************************************************************************
+    public synchronized void append(String dir_path, long ts_ms, String file_name) throws IOException
+    {
+        if (!dir_path.equals(current_dir))
+        {
+            close();
+            reconcile(dir_path, file_name);
+            channel = FileChannel.open(Paths.get(dir_path, INDEX_NAME),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.APPEND);
+            current_dir = dir_path;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap((ts_ms+" "+file_name+"\n").getBytes(StandardCharsets.UTF_8));
+        try
+        {
+            while (bb.hasRemaining())
+            {
+                channel.write(bb);
+            }
+        }
+        catch (IOException e)
+        {
+            // drop the channel, so the next append re-opens the index and reconciles it
+            try {
+                close();
+            } catch (IOException close_e) {
+                channel = null;
+                current_dir = null;
+            }
+            throw e;
+        }
+    }
+
+    // Non-blocking append(), errors are logged
+    public void append_async(Vertx vertx, String dir_path, long ts_ms, String file_name)
+    {
+        vertx.<Void>executeBlocking(fut -> {
+            try {
+                append(dir_path, ts_ms, file_name);
+                fut.complete();
+            } catch (IOException e) {
+                fut.fail(e);
+            }
+        }, res -> {
+            if (res.failed())
+            {
+                Log.log_err("BinIndex: error appending to "+dir_path+"/"+INDEX_NAME+" "+res.cause());
+            }
+        });
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+            current_dir = null;
+        }
+    }
+
+    // BLOCKING one-off append (reconcile, open, write, close), e.g. when a segment is created
+    public static void append_line(String dir_path, long ts_ms, String file_name) throws IOException
+    {
+        reconcile(dir_path, file_name);
+        Files.write(Paths.get(dir_path, INDEX_NAME),
+                    (ts_ms+" "+file_name+"\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+    }
+
+    // ****************************************************************************
+    // load()
+    // BLOCKING read of the index of 'dir_path', returning null if there is no
+    // index or it is older than the directory (i.e. files have been added since).
+    // The directory itself is not listed.
+    // Each element is { ts_ms, file_name }, a file listed twice is returned once.
+    // ****************************************************************************
+    public static List<String[]> load(String dir_path)
+    {
+        Path index_path = Paths.get(dir_path, INDEX_NAME);
+        try
+        {
+            FileTime index_time = Files.getLastModifiedTime(index_path);
+            FileTime dir_time = Files.getLastModifiedTime(Paths.get(dir_path));
+            if (index_time.compareTo(dir_time) < 0)
+            {
+                return null;
+            }
+
+            ArrayList<String[]> lines = new ArrayList<String[]>();
+            HashSet<String> names = new HashSet<String>();
+            for (String line : Files.readAllLines(index_path, StandardCharsets.UTF_8))
+            {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                {
+                    Long.parseLong(line.substring(0, space));
+                    String file_name = line.substring(space + 1);
+                    if (names.add(file_name))
+                    {
+                        lines.add(new String[] { line.substring(0, space), file_name });
+                    }
+                }
+            }
+            return lines;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            // missing or corrupt index, will be rebuilt
+            return null;
+        }
+    }
+
+    // *****************************************************************************
+    // reconcile()
+    // BLOCKING (ingest side) append to the index of 'dir_path' a line for each data
+    // file in the directory that the index does not list, i.e. whose append was lost
+    // in a crash or I/O error. 'skip_name' is the file about to be appended by the
+    // caller. A file written concurrently may then be listed twice, which load() ignores.
+    // *****************************************************************************
+    private static void reconcile(String dir_path, String skip_name) throws IOException
+    {
+        Path index_path = Paths.get(dir_path, INDEX_NAME);
+
+        HashSet<String> names = new HashSet<String>();
+        if (Files.exists(index_path))
+        {
+            for (String line : Files.readAllLines(index_path, StandardCharsets.UTF_8))
+            {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                {
+                    names.add(line.substring(space + 1));
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir_path)))
+        {
+            for (Path p : stream)
+            {
+                String file_name = p.getFileName().toString();
+                if (file_name.startsWith(".") ||
+                    file_name.equals(skip_name) ||
+                    names.contains(file_name) ||
+                    !Files.isRegularFile(p))
+                {
+                    continue;
+                }
+                long ts = file_ts(p);
+                if (ts >= 0)
+                {
+                    sb.append(ts).append(' ').append(file_name).append('\n');
+                }
+            }
+        }
+
+        if (sb.length() > 0)
+        {
+            Log.log_err("BinIndex: adding missing files to "+index_path);
+            Files.write(index_path,
+                        sb.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+        }
+    }
+
+    // index ts of a data file: the ts of the first record of a segment (0 if it has none
+    // or is unreadable), the ts in the filename otherwise, or -1 if not a data file
+    private static long file_ts(Path p)
+    {
+        String file_name = p.getFileName().toString();
+        if (!file_name.endsWith(SegmentWriter.SEGMENT_SUFFIX))
+        {
+            return BinDir.get_ts_ms(BinDir.get_basename(file_name));
+        }
+
+        try
+        {
+            SegmentReader reader = new SegmentReader(p.toString());
+            long ts = reader.size() > 0 ? reader.get_ts(0) : 0;
+            reader.close();
+            return ts;
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
+    // *****************************************************************************
+    // write()
+    // BLOCKING rebuild of the index of 'dir_path' from { ts_ms, file_name } lines,
+    // written to a temporary file then atomically renamed, so readers never see a
+    // partial index. 'listed_time' is the directory mtime before it was listed, and
+    // the index is not written if files have been added since (e.g. during ingest).
+    // Returns false if the index was not written.
+    // *****************************************************************************
+    public static boolean write(String dir_path, List<String[]> lines, FileTime listed_time)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String[] line : lines)
+        {
+            sb.append(line[0]).append(' ').append(line[1]).append('\n');
+        }
+
+        Path tmp_path = Paths.get(dir_path, TMP_NAME);
+        try
+        {
+            if (!Files.getLastModifiedTime(Paths.get(dir_path)).equals(listed_time))
+            {
+                // directory has changed since it was listed, so the listing may be incomplete
+                return false;
+            }
+            Files.write(tmp_path, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp_path,
+                       Paths.get(dir_path, INDEX_NAME),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            // the rename updates the directory mtime, so bring the index up to date with it
+            Files.setLastModifiedTime(Paths.get(dir_path, INDEX_NAME),
+                                      Files.getLastModifiedTime(Paths.get(dir_path)));
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+} // end class BinIndex
@@ -0,0 +1,184 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// BinPrefetcher.java
+//
+// Reads raw feed data (individual files and/or segment records, via BinDir) from a list of
+// data_bin/yyyy/MM/dd directories on its own I/O thread, into a bounded queue, so that the
+// consumer (e.g. BatcherWorker running ZoneCompute) can process one item while the following
+// items are being read.
+//
+// Usage:
+//   BinPrefetcher prefetcher = new BinPrefetcher(dir_paths, start_ts, finish_ts, queue_size);
+//   prefetcher.start();
+//   BinPrefetcher.Item item;
+//   while ((item = prefetcher.take()) != null) { ... item.data ... }
+//
+// Only entries with start_ts < ts < finish_ts (UTC seconds) are returned.
+// The queue holds at most queue_size items, so memory is bounded while the reader runs ahead.
+//
+// Counters (read_nanos, bytes_read, items_read, read_errors) are updated by the I/O thread
+// and can be read at any time for progress/throughput reporting.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.buffer.Buffer;
+
+public class BinPrefetcher implements Runnable {
+
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    // A single prefetched item
+    public static class Item {
+        public BinDir.Entry entry;  // ts, name and path of data
+        public String yyyymmdd;     // "yyyy/MM/dd" of the directory the entry came from
+        public Buffer data;         // data as received
+
+        public Item(BinDir.Entry entry, String yyyymmdd, Buffer data)
+        {
+            this.entry = entry;
+            this.yyyymmdd = yyyymmdd;
+            this.data = data;
+        }
+    }
+
+    // queued after the last item
+    private static final Item END = new Item(null, null, null);
+
+    private List<String> dir_paths;
+    private long start_ts;
+    private long finish_ts;
+
+    private BlockingQueue<Item> queue;
+
+    private volatile boolean stopped = false;
+
+    private boolean finished = false; // consumer has taken END
+
+    // counters
+    public final AtomicLong read_nanos = new AtomicLong();  // time spent listing and reading
+    public final AtomicLong bytes_read = new AtomicLong();
+    public final AtomicLong items_read = new AtomicLong();
+    public final AtomicLong read_errors = new AtomicLong();
+
+    public BinPrefetcher(List<String> dir_paths, long start_ts, long finish_ts, int queue_size)
+    {
+        this.dir_paths = dir_paths;
+        this.start_ts = start_ts;
+        this.finish_ts = finish_ts;
+        queue = new ArrayBlockingQueue<Item>(Math.max(queue_size, 1));
+    }
+
+    // start the I/O thread
+    public void start()
+    {
+        Thread t = new Thread(this, "BinPrefetcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ****************************************************************************
+    // take()
+    // BLOCKING return of the next item, or null when all directories are done
+    // ****************************************************************************
+    public Item take() throws InterruptedException
+    {
+        if (finished)
+        {
+            return null;
+        }
+
+        Item item = queue.take();
+        if (item == END)
+        {
+            finished = true;
+            return null;
+        }
+        return item;
+    }
+
+    // Abandon prefetching, e.g. if the consumer fails
+    public void stop()
+    {
+        stopped = true;
+        queue.clear();
+    }
+
+    // I/O thread
+    public void run()
+    {
+        try
+        {
+            for (String dir_path : dir_paths)
+            {
+                if (stopped)
+                {
+                    break;
+                }
+                read_dir(dir_path);
+            }
+            queue.put(END);
+        }
+        catch (InterruptedException e)
+        {
+            Log.log_err("BinPrefetcher: interrupted");
+        }
+    }
+
+    private void read_dir(String dir_path) throws InterruptedException
+    {
+        long t0 = System.nanoTime();
+
+        BinDir bin_dir;
+        try
+        {
+            bin_dir = new BinDir(dir_path);
+        }
+        catch (Exception e)
+        {
+            // missing day directories are expected
+            read_nanos.addAndGet(System.nanoTime() - t0);
+            return;
+        }
+
+        read_nanos.addAndGet(System.nanoTime() - t0);
+
+        // binary search for the first entry with ts > start_ts (seconds), entries are in ts order
+        for (int i = bin_dir.seek((start_ts + 1) * 1000); i < bin_dir.entries.size(); i++)
+        {
+            BinDir.Entry entry = bin_dir.entries.get(i);
+
+            if (stopped || entry.ts / 1000 >= finish_ts)
+            {
+                break;
+            }
+
+            t0 = System.nanoTime();
+            Buffer data;
+            try
+            {
+                data = bin_dir.read(entry);
+            }
+            catch (Exception e)
+            {
+                read_errors.incrementAndGet();
+                Log.log_err("BinPrefetcher: error reading "+entry.path+" "+e.getMessage());
+                continue;
+            }
+            read_nanos.addAndGet(System.nanoTime() - t0);
+            bytes_read.addAndGet(data.length());
+            items_read.incrementAndGet();
+
+            queue.put(new Item(entry, bin_dir.yyyymmdd, data));
+        }
+
+        bin_dir.close();
+    }
+
+} // end class BinPrefetcher
@@ -32,6 +32,7 @@ public class Constants {
     public static final String ZONE_EXIT = "zone_exit"; // vehicle exitted zone not via finish line
     public static final String ZONE_UPDATE = "zone_update"; // zone_update msg (all completions so far today)
     public static final String ZONE_INFO = "zone_info"; // zone_info msg (zone details, such as boundary polygon)
+    public static final String ZONE_STATS = "zone_stats"; // zone_stats msg (rolling travel time percentiles)
 
     // Manager msg_type values
     public static final String ZONE_SUBSCRIBE = "zone_subscribe"; // request zone to subscribe to feed
@@ -0,0 +1,306 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// DirCache.java
+//
+// Process-wide cache of directories known to exist, used by the modules that write
+// date-partitioned files (e.g. data_bin/yyyy/MM/dd/<filename>.bin) so they do not have to
+// call fs.exists() (and possibly fs.mkdirs()) for every message written.
+//
+// write_file(vertx, dir, file_path, buf, handler):
+//   if 'dir' is cached, the file is written immediately (one filesystem call per message).
+//   Only if that write fails with ENOENT (i.e. the directory has been removed since) is the
+//   directory re-created and the write retried once.
+//   If 'dir' is not yet cached, mkdirs() is called first (once) and 'dir' is cached.
+//   write_fileBlocking() is the same, synchronously (e.g. for a verticle's stop()).
+//
+// add_daily(vertx, base_path):
+//   registers a base path written to as base_path/yyyy/MM/dd, and a few minutes before local
+//   midnight tomorrow's directory will be created in advance, so the first write of the day
+//   also avoids the mkdirs(). Only fixed (e.g. per feed) base paths should be registered, not
+//   paths that grow with the data (e.g. per device), as their directories are created every day.
+//   The registrations and precreate timer belong to the calling verticle's context (a timer set
+//   by a verticle is cancelled when it is undeployed), and the verticle calls
+//   remove_daily(vertx) in its stop().
+//
+// Counters mkdirs_count, write_count and retry_count are kept for status reporting.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.FileSystemException;
+
+public class DirCache {
+
+    // tomorrow's directories are created this many minutes before local midnight
+    public static final int PRECREATE_MINUTES = 5;
+
+    private static final DateTimeFormatter DAY_PATH = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+
+    // directories known to exist
+    private static final Set<String> dirs = ConcurrentHashMap.newKeySet();
+
+    // base paths of yyyy/MM/dd partitioned directories registered with add_daily() by one
+    // verticle context, and the timer that creates their directories for tomorrow
+    private static class Daily {
+        final Set<String> base_paths = ConcurrentHashMap.newKeySet();
+        long timer_id = -1;
+    }
+
+    private static final Map<Context,Daily> daily = new ConcurrentHashMap<Context,Daily>();
+
+    // counters
+    public static final AtomicLong mkdirs_count = new AtomicLong(); // actual mkdirs() calls
+    public static final AtomicLong write_count = new AtomicLong();  // files written via write_file()
+    public static final AtomicLong retry_count = new AtomicLong();  // writes retried after ENOENT
+
+    // return true if 'dir' is known to exist
+    public static boolean known(String dir)
+    {
+        return dirs.contains(dir);
+    }
+
+    // remove 'dir' from the cache, e.g. after a write fails because it has been deleted
+    public static void forget(String dir)
+    {
+        dirs.remove(dir);
+    }
+
+    // ************************************************************************
+    // mkdirs()
+    // Ensure 'dir' exists (non-blocking), calling handler when done.
+    // A cached directory completes immediately with no filesystem access.
+    // ************************************************************************
+    public static void mkdirs(Vertx vertx, String dir, Handler<AsyncResult<Void>> handler)
+    {
+        if (dirs.contains(dir))
+        {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+
+        mkdirs_count.incrementAndGet();
+
+        // fs.mkdirs() succeeds if the directory already exists
+        vertx.fileSystem().mkdirs(dir, result -> {
+            if (result.succeeded())
+            {
+                dirs.add(dir);
+            }
+            handler.handle(result);
+        });
+    }
+
+    // *************************************************************
+    // mkdirsBlocking()
+    // SYNCHRONOUS version of mkdirs(), throws FileSystemException
+    // *************************************************************
+    public static void mkdirsBlocking(Vertx vertx, String dir)
+    {
+        if (dirs.contains(dir))
+        {
+            return;
+        }
+
+        mkdirs_count.incrementAndGet();
+
+        vertx.fileSystem().mkdirsBlocking(dir);
+
+        dirs.add(dir);
+    }
+
+    // ***********************************************************************************
+    // write_file()
+    // Write 'buf' to 'file_path' in directory 'dir' (non-blocking), creating 'dir' only
+    // if it is not already cached, or if the write fails with ENOENT.
+    // ***********************************************************************************
+    public static void write_file(Vertx vertx,
+                                  String dir,
+                                  String file_path,
+                                  Buffer buf,
+                                  Handler<AsyncResult<Void>> handler)
+    {
+        FileSystem fs = vertx.fileSystem();
+
+        if (!dirs.contains(dir))
+        {
+            mkdirs(vertx, dir, mkdirs_result -> {
+                if (mkdirs_result.succeeded())
+                {
+                    write_count.incrementAndGet();
+                    fs.writeFile(file_path, buf, handler);
+                }
+                else
+                {
+                    handler.handle(mkdirs_result);
+                }
+            });
+            return;
+        }
+
+        write_count.incrementAndGet();
+
+        fs.writeFile(file_path, buf, result -> {
+            if (result.succeeded() || !(result.cause().getCause() instanceof NoSuchFileException))
+            {
+                handler.handle(result);
+                return;
+            }
+            // directory has gone away since it was cached, so re-create and retry once
+            retry_count.incrementAndGet();
+            forget(dir);
+            mkdirs(vertx, dir, mkdirs_result -> {
+                if (mkdirs_result.succeeded())
+                {
+                    fs.writeFile(file_path, buf, handler);
+                }
+                else
+                {
+                    handler.handle(mkdirs_result);
+                }
+            });
+        });
+    }
+
+    // ***********************************************************************************
+    // write_fileBlocking()
+    // SYNCHRONOUS version of write_file(), throws FileSystemException
+    // ***********************************************************************************
+    public static void write_fileBlocking(Vertx vertx, String dir, String file_path, Buffer buf)
+    {
+        FileSystem fs = vertx.fileSystem();
+
+        mkdirsBlocking(vertx, dir);
+
+        write_count.incrementAndGet();
+
+        try {
+            fs.writeFileBlocking(file_path, buf);
+        } catch (FileSystemException e) {
+            if (!(e.getCause() instanceof NoSuchFileException))
+            {
+                throw e;
+            }
+            // directory has gone away since it was cached, so re-create and retry once
+            retry_count.incrementAndGet();
+            forget(dir);
+            mkdirsBlocking(vertx, dir);
+            fs.writeFileBlocking(file_path, buf);
+        }
+    }
+
+    // return the "yyyy/MM/dd" sub-path for a given local date
+    public static String day_path(LocalDate date)
+    {
+        return date.format(DAY_PATH);
+    }
+
+    // ***********************************************************************************
+    // add_daily()
+    // Register 'base_path' as a root of base_path/yyyy/MM/dd directories, so tomorrow's
+    // directory will be created shortly before local midnight (by a timer on the calling
+    // verticle's context, started with its first add_daily()).
+    // ***********************************************************************************
+    public static synchronized void add_daily(Vertx vertx, String base_path)
+    {
+        Context context = vertx.getOrCreateContext();
+
+        Daily d = daily.get(context);
+        if (d == null)
+        {
+            d = new Daily();
+            daily.put(context, d);
+        }
+
+        if (!d.base_paths.add(base_path))
+        {
+            return;
+        }
+
+        // if we're already inside the precreate window, create tomorrow's directory now
+        LocalDateTime now = LocalDateTime.now();
+        if (now.plusMinutes(PRECREATE_MINUTES).toLocalDate().isAfter(now.toLocalDate()))
+        {
+            precreate(vertx, base_path, now.toLocalDate().plusDays(1));
+        }
+
+        if (d.timer_id < 0)
+        {
+            schedule_precreate(vertx, context, d);
+        }
+    }
+
+    // ***********************************************************************************
+    // remove_daily()
+    // Cancel the precreate timer of the calling verticle's context and drop its base paths,
+    // called from the verticle's stop().
+    // ***********************************************************************************
+    public static synchronized void remove_daily(Vertx vertx)
+    {
+        Daily d = daily.remove(vertx.getOrCreateContext());
+        if (d != null && d.timer_id >= 0)
+        {
+            vertx.cancelTimer(d.timer_id);
+        }
+    }
+
+    // set a timer to fire PRECREATE_MINUTES before the next local midnight
+    private static void schedule_precreate(Vertx vertx, Context context, Daily d)
+    {
+        LocalDateTime now = LocalDateTime.now();
+
+        LocalDateTime next = now.toLocalDate().plusDays(1).atStartOfDay().minusMinutes(PRECREATE_MINUTES);
+        if (!next.isAfter(now))
+        {
+            next = next.plusDays(1);
+        }
+
+        long delay = Duration.between(now, next).toMillis();
+
+        d.timer_id = vertx.setTimer(Math.max(delay, 1), id -> {
+            LocalDate tomorrow = LocalDate.now().plusDays(1);
+            for (String base_path : d.base_paths)
+            {
+                precreate(vertx, base_path, tomorrow);
+            }
+            synchronized (DirCache.class)
+            {
+                // not if remove_daily() has been called meanwhile
+                if (daily.get(context) == d)
+                {
+                    schedule_precreate(vertx, context, d);
+                }
+            }
+        });
+    }
+
+    private static void precreate(Vertx vertx, String base_path, LocalDate date)
+    {
+        String dir = base_path + "/" + day_path(date);
+
+        mkdirs(vertx, dir, result -> {
+            if (!result.succeeded())
+            {
+                Log.log_err("DirCache: error creating "+dir);
+            }
+        });
+    }
+
+} // end class DirCache
@@ -0,0 +1,81 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FeedBatcher.java
+//
+// Groups the records received by a feed into micro-batches, so a burst of messages (e.g. MQTT or
+// LoRaWAN uplinks) can be stored and published as one batch instead of one message each.
+//
+// add() starts a timer of 'batch_ms' on the first record of a batch, and the batch is passed to
+// the flush handler when the timer fires or when it reaches 'batch_max' records, whichever is first.
+// So no record waits more than batch_ms, and a quiet feed still gets one message per record.
+//
+// A FeedBatcher is used on a single event loop (that of the verticle that created it), so it needs
+// no locking.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+public class FeedBatcher<T> {
+
+    private final Vertx vertx;
+
+    private final long batch_ms;   // maximum time a record waits for its batch
+
+    private final int batch_max;   // maximum records in a batch
+
+    private final Handler<List<T>> flush_handler;
+
+    private ArrayList<T> batch = new ArrayList<T>();
+
+    private long timer_id = -1;    // batch timer, -1 if none
+
+    public FeedBatcher(Vertx vertx, long batch_ms, int batch_max, Handler<List<T>> flush_handler)
+    {
+        this.vertx = vertx;
+        this.batch_ms = batch_ms;
+        this.batch_max = Math.max(1, batch_max);
+        this.flush_handler = flush_handler;
+    }
+
+    // add a record to the current batch
+    public void add(T record)
+    {
+        batch.add(record);
+        if (batch.size() >= batch_max)
+        {
+            flush();
+        }
+        else if (timer_id < 0)
+        {
+            timer_id = vertx.setTimer(batch_ms, id -> {
+                timer_id = -1;
+                flush();
+            });
+        }
+    }
+
+    // pass the current batch (if any) to the flush handler now
+    public void flush()
+    {
+        if (timer_id >= 0)
+        {
+            vertx.cancelTimer(timer_id);
+            timer_id = -1;
+        }
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        List<T> records = batch;
+        batch = new ArrayList<T>(records.size());
+        flush_handler.handle(records);
+    }
+
+} // end class FeedBatcher
@@ -0,0 +1,396 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FeedMessageCodec.java
+//
+// Vert.x eventbus MessageCodec for the JsonObject feed messages (e.g. the FeedHandler, FeedPlayer
+// and FeedMaker position batches), registered with the name "feed_message".
+//
+// A feed module publishes with
+//   eb.publish(address, msg, FeedMessageCodec.DELIVERY_OPTIONS);
+// and a consumer reads the message with
+//   JsonObject msg = FeedMessageCodec.json_body(message.body());
+//
+// Local delivery passes the published JsonObject itself to the consumers (no copy), so neither the
+// publisher nor the consumers may modify a feed message once it has been published (a consumer that
+// needs to change it must copy() it first).
+//
+// Clustered delivery uses a compact binary encoding instead of JSON text:
+//
+//   int32 length, then the value:
+//     tag byte, then
+//       NULL, TRUE, FALSE            nothing
+//       INT, LONG                    zig-zag varint
+//       FLOAT, DOUBLE                4 / 8 bytes
+//       STRING                       varint byte length, UTF-8 bytes
+//       STRING_REF                   varint index of an earlier STRING in this message
+//       OBJECT                       varint size, then size * (key, value), key as STRING or STRING_REF
+//       ARRAY                        varint size, then size * value
+//       JSON                         any other value (e.g. byte[], Instant) as a one-value JSON array
+//
+// Each distinct string (property names included) is written once per message, so a batch of position
+// records carries its keys (and repeated values such as route_id) once, and numbers are not formatted
+// and re-parsed as decimal text. The decoded JsonObject holds the same value types as the original
+// (Integer, Long, Float, Double...).
+//
+// Every Vertx instance (i.e. cluster node) that sends or receives these messages must register the codec
+// (see register()), which each feed and consumer module does in its start().
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class FeedMessageCodec implements MessageCodec<JsonObject, JsonObject> {
+
+    public static final String NAME = "feed_message";
+
+    // options for eb.publish() of a feed message
+    public static final DeliveryOptions DELIVERY_OPTIONS = new DeliveryOptions().setCodecName(NAME);
+
+    // value tags
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte FLOAT = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte STRING = 7;
+    private static final byte STRING_REF = 8;
+    private static final byte OBJECT = 9;
+    private static final byte ARRAY = 10;
+    private static final byte JSON = 11;
+
+    // ***********************************************************************
+    // register()
+    // Register the codec with this Vertx instance, if not already registered
+    // (by another module deployed in the same instance)
+    // ***********************************************************************
+    public static void register(Vertx vertx)
+    {
+        synchronized (FeedMessageCodec.class)
+        {
+            try {
+                vertx.eventBus().registerCodec(new FeedMessageCodec());
+            } catch (IllegalStateException e) {
+                // already registered
+            }
+        }
+    }
+
+    // ***********************************************************************
+    // json_body()
+    // The JsonObject of an eventbus message body, parsed only if it was sent as text
+    // ***********************************************************************
+    public static JsonObject json_body(Object body)
+    {
+        if (body instanceof JsonObject)
+        {
+            return (JsonObject) body;
+        }
+        return new JsonObject(body.toString());
+    }
+
+    // ***********************************************************************
+    // MessageCodec
+    // ***********************************************************************
+
+    @Override
+    public String name()
+    {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID()
+    {
+        return -1;
+    }
+
+    @Override
+    public JsonObject transform(JsonObject msg)
+    {
+        return msg;
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, JsonObject msg)
+    {
+        int length_pos = buffer.length();
+        buffer.appendInt(0);
+        new Encoder(buffer).write_object(msg.getMap());
+        buffer.setInt(length_pos, buffer.length() - length_pos - 4);
+    }
+
+    @Override
+    public JsonObject decodeFromWire(int pos, Buffer buffer)
+    {
+        Decoder decoder = new Decoder(buffer, pos + 4);
+        return (JsonObject) decoder.read_value();
+    }
+
+    // ***********************************************************************
+    // Encoder, writes one message
+    // ***********************************************************************
+    private static class Encoder {
+
+        private final Buffer buffer;
+
+        // index of each string already written
+        private final HashMap<String,Integer> strings = new HashMap<String,Integer>();
+
+        Encoder(Buffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @SuppressWarnings("unchecked")
+        void write_value(Object value)
+        {
+            if (value == null)
+            {
+                buffer.appendByte(NULL);
+            }
+            else if (value instanceof String)
+            {
+                write_string((String) value);
+            }
+            else if (value instanceof Integer)
+            {
+                buffer.appendByte(INT);
+                write_varlong(zigzag((Integer) value));
+            }
+            else if (value instanceof Long)
+            {
+                buffer.appendByte(LONG);
+                write_varlong(zigzag((Long) value));
+            }
+            else if (value instanceof Float)
+            {
+                buffer.appendByte(FLOAT);
+                buffer.appendFloat((Float) value);
+            }
+            else if (value instanceof Double)
+            {
+                buffer.appendByte(DOUBLE);
+                buffer.appendDouble((Double) value);
+            }
+            else if (value instanceof Boolean)
+            {
+                buffer.appendByte((Boolean) value ? TRUE : FALSE);
+            }
+            else if (value instanceof JsonObject)
+            {
+                write_object(((JsonObject) value).getMap());
+            }
+            else if (value instanceof Map)
+            {
+                write_object((Map<String,Object>) value);
+            }
+            else if (value instanceof JsonArray)
+            {
+                write_array(((JsonArray) value).getList());
+            }
+            else if (value instanceof List)
+            {
+                write_array((List<Object>) value);
+            }
+            else
+            {
+                // as the JSON codec would send it, e.g. byte[] as a base64 string
+                buffer.appendByte(JSON);
+                write_chars(new JsonArray().add(value).encode());
+            }
+        }
+
+        void write_object(Map<String,Object> map)
+        {
+            buffer.appendByte(OBJECT);
+            write_varlong(map.size());
+            for (Map.Entry<String,Object> entry : map.entrySet())
+            {
+                write_string(entry.getKey());
+                write_value(entry.getValue());
+            }
+        }
+
+        void write_array(List<Object> list)
+        {
+            buffer.appendByte(ARRAY);
+            write_varlong(list.size());
+            for (Object value : list)
+            {
+                write_value(value);
+            }
+        }
+
+        void write_string(String s)
+        {
+            Integer index = strings.get(s);
+            if (index != null)
+            {
+                buffer.appendByte(STRING_REF);
+                write_varlong(index);
+                return;
+            }
+            strings.put(s, strings.size());
+            buffer.appendByte(STRING);
+            write_chars(s);
+        }
+
+        void write_chars(String s)
+        {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            write_varlong(bytes.length);
+            buffer.appendBytes(bytes);
+        }
+
+        void write_varlong(long v)
+        {
+            while ((v & ~0x7FL) != 0)
+            {
+                buffer.appendByte((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buffer.appendByte((byte) v);
+        }
+
+        static long zigzag(long v)
+        {
+            return (v << 1) ^ (v >> 63);
+        }
+    }
+
+    // ***********************************************************************
+    // Decoder, reads one message
+    // ***********************************************************************
+    private static class Decoder {
+
+        private final Buffer buffer;
+
+        private int pos;
+
+        // strings read so far, by index
+        private final ArrayList<String> strings = new ArrayList<String>();
+
+        Decoder(Buffer buffer, int pos)
+        {
+            this.buffer = buffer;
+            this.pos = pos;
+        }
+
+        Object read_value()
+        {
+            byte tag = buffer.getByte(pos++);
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+
+                case TRUE:
+                    return Boolean.TRUE;
+
+                case FALSE:
+                    return Boolean.FALSE;
+
+                case INT:
+                    return (int) unzigzag(read_varlong());
+
+                case LONG:
+                    return unzigzag(read_varlong());
+
+                case FLOAT:
+                {
+                    float f = buffer.getFloat(pos);
+                    pos += 4;
+                    return f;
+                }
+
+                case DOUBLE:
+                {
+                    double d = buffer.getDouble(pos);
+                    pos += 8;
+                    return d;
+                }
+
+                case STRING:
+                {
+                    String s = read_chars();
+                    strings.add(s);
+                    return s;
+                }
+
+                case STRING_REF:
+                    return strings.get((int) read_varlong());
+
+                case OBJECT:
+                {
+                    int size = (int) read_varlong();
+                    JsonObject jo = new JsonObject();
+                    for (int i=0; i<size; i++)
+                    {
+                        String key = (String) read_value();
+                        jo.put(key, read_value());
+                    }
+                    return jo;
+                }
+
+                case ARRAY:
+                {
+                    int size = (int) read_varlong();
+                    ArrayList<Object> list = new ArrayList<Object>(size);
+                    for (int i=0; i<size; i++)
+                    {
+                        list.add(read_value());
+                    }
+                    return new JsonArray(list);
+                }
+
+                case JSON:
+                    return new JsonArray(read_chars()).getValue(0);
+
+                default:
+                    throw new IllegalStateException("FeedMessageCodec: bad value tag "+tag+" at "+(pos-1));
+            }
+        }
+
+        String read_chars()
+        {
+            int length = (int) read_varlong();
+            String s = buffer.getString(pos, pos + length, "UTF-8");
+            pos += length;
+            return s;
+        }
+
+        long read_varlong()
+        {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.getByte(pos++);
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        static long unzigzag(long v)
+        {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+} // end class FeedMessageCodec
@@ -0,0 +1,223 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// FeedPartitioner.java
+//
+// Publishes feed messages to partitioned eventbus addresses as well as the feed address, so that in a
+// clustered deployment a consumer can subscribe to just the part of a feed it needs, and a node only
+// receives that part (a clustered publish is only sent to the nodes with a consumer of the address).
+//
+// Partition modes:
+//
+//   "none"     only the feed address, as before
+//
+//   "feed_id"  also <address>.feed.<feed_id>, e.g. for an RTMonitor monitor of one of the feeds that
+//              share a FeedMaker address. The feed_id is the message "feed_id" (or "module_id").
+//
+//   "grid"     the position records ("entities" or "request_data") are grouped by the grid cell of
+//              their position, and each group is also published as a message with the same properties
+//              (plus "partition": "<row>.<col>") to <address>.grid.<row>.<col>. The cells are grid_deg
+//              degrees of latitude by grid_deg degrees of longitude, so a Zone subscribes to the
+//              cells around its path (see grid_addresses()). Records without a numeric position
+//              ("acp_lat"/"acp_lng" or "latitude"/"longitude") are only in the full message.
+//
+// The full message is always published to the feed address, so consumers of the whole feed (e.g.
+// MsgFiler) are unchanged, and cost no cross-node traffic if they run on the publishing node.
+// Partition messages share the records of the full message, so like it they must not be modified
+// (see FeedMessageCodec).
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class FeedPartitioner {
+
+    public static final String NONE = "none";
+    public static final String FEED_ID = "feed_id";
+    public static final String GRID = "grid";
+
+    public static final double GRID_DEG_DEFAULT = 0.05; // ~5.6km N-S, ~3.4km E-W at 52N
+
+    private static final double METRES_PER_DEGREE = 111320.0; // of latitude
+
+    private final String mode;
+
+    private final double grid_deg;
+
+    public FeedPartitioner(String mode, double grid_deg)
+    {
+        this.mode = mode == null ? NONE : mode;
+        this.grid_deg = grid_deg;
+    }
+
+    public static boolean valid_mode(String mode)
+    {
+        return mode == null || mode.equals(NONE) || mode.equals(FEED_ID) || mode.equals(GRID);
+    }
+
+    public String get_mode()
+    {
+        return mode;
+    }
+
+    // ***********************************************************************
+    // publish()
+    // Publish 'msg' to 'address' and to its partition addresses,
+    // returning the number of partition messages published
+    // ***********************************************************************
+    public int publish(EventBus eb, String address, JsonObject msg, DeliveryOptions options)
+    {
+        eb.publish(address, msg, options);
+
+        if (mode.equals(FEED_ID))
+        {
+            String feed_id = msg.getString("feed_id", msg.getString("module_id"));
+            if (feed_id == null)
+            {
+                return 0;
+            }
+            eb.publish(feed_address(address, feed_id), msg, options);
+            return 1;
+        }
+
+        if (mode.equals(GRID))
+        {
+            String records_key = msg.containsKey("entities") ? "entities" : "request_data";
+            JsonArray records = msg.getJsonArray(records_key);
+            if (records == null)
+            {
+                return 0;
+            }
+
+            // group the records by grid cell, "<row>.<col>"
+            LinkedHashMap<String,JsonArray> cells = new LinkedHashMap<String,JsonArray>();
+            for (int i=0; i<records.size(); i++)
+            {
+                Object record = records.getValue(i);
+                if (!(record instanceof JsonObject))
+                {
+                    continue;
+                }
+                String cell = cell((JsonObject) record);
+                if (cell == null)
+                {
+                    continue;
+                }
+                JsonArray cell_records = cells.get(cell);
+                if (cell_records == null)
+                {
+                    cell_records = new JsonArray();
+                    cells.put(cell, cell_records);
+                }
+                cell_records.add((JsonObject) record);
+            }
+
+            for (Map.Entry<String,JsonArray> entry : cells.entrySet())
+            {
+                JsonObject cell_msg = new JsonObject();
+                for (Map.Entry<String,Object> property : msg)
+                {
+                    if (!property.getKey().equals(records_key))
+                    {
+                        cell_msg.put(property.getKey(), property.getValue());
+                    }
+                }
+                cell_msg.put("partition", entry.getKey());
+                cell_msg.put(records_key, entry.getValue());
+                eb.publish(address+".grid."+entry.getKey(), cell_msg, options);
+            }
+            return cells.size();
+        }
+
+        return 0;
+    }
+
+    // grid cell "<row>.<col>" of a position record, or null if it has no numeric position
+    private String cell(JsonObject record)
+    {
+        Object lat = record.getValue(Constants.PLATFORM_PREFIX+"lat");
+        if (lat == null)
+        {
+            lat = record.getValue("latitude");
+        }
+        Object lng = record.getValue(Constants.PLATFORM_PREFIX+"lng");
+        if (lng == null)
+        {
+            lng = record.getValue("longitude");
+        }
+        if (!(lat instanceof Number) || !(lng instanceof Number))
+        {
+            return null;
+        }
+        return grid_row(((Number) lat).doubleValue(), grid_deg)+"."+grid_col(((Number) lng).doubleValue(), grid_deg);
+    }
+
+    private static long grid_row(double lat, double grid_deg)
+    {
+        return (long) Math.floor(lat / grid_deg);
+    }
+
+    private static long grid_col(double lng, double grid_deg)
+    {
+        return (long) Math.floor(lng / grid_deg);
+    }
+
+    // ***********************************************************************
+    // feed_address()
+    // The "feed_id" partition address of feed_id on address
+    // ***********************************************************************
+    public static String feed_address(String address, String feed_id)
+    {
+        return address+".feed."+feed_id;
+    }
+
+    // ***********************************************************************
+    // grid_addresses()
+    // The "grid" partition addresses on 'address' of the cells within 'margin' metres
+    // of the bounding box of 'path'
+    // ***********************************************************************
+    public static List<String> grid_addresses(String address, List<Position> path, double margin, double grid_deg)
+    {
+        double lat_min = Double.MAX_VALUE;
+        double lat_max = -Double.MAX_VALUE;
+        double lng_min = Double.MAX_VALUE;
+        double lng_max = -Double.MAX_VALUE;
+        for (Position p : path)
+        {
+            lat_min = Math.min(lat_min, p.lat);
+            lat_max = Math.max(lat_max, p.lat);
+            lng_min = Math.min(lng_min, p.lng);
+            lng_max = Math.max(lng_max, p.lng);
+        }
+
+        ArrayList<String> addresses = new ArrayList<String>();
+        if (path.isEmpty())
+        {
+            return addresses;
+        }
+
+        double lat_margin = margin / METRES_PER_DEGREE;
+        // longitude degrees are shorter away from the equator, so use the widest latitude of the box
+        double max_abs_lat = Math.min(89.0, Math.max(Math.abs(lat_min), Math.abs(lat_max)) + lat_margin);
+        double lng_margin = margin / (METRES_PER_DEGREE * Math.cos(Math.toRadians(max_abs_lat)));
+
+        for (long row = grid_row(lat_min - lat_margin, grid_deg); row <= grid_row(lat_max + lat_margin, grid_deg); row++)
+        {
+            for (long col = grid_col(lng_min - lng_margin, grid_deg); col <= grid_col(lng_max + lng_margin, grid_deg); col++)
+            {
+                addresses.add(address+".grid."+row+"."+col);
+            }
+        }
+        return addresses;
+    }
+
+} // end class FeedPartitioner
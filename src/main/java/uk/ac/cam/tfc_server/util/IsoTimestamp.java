@@ -0,0 +1,249 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// IsoTimestamp.java
+//
+// Parses ISO 8601 date-times with an offset, e.g. the SiriVM RecordedAtTime "2017-11-20T09:30:40.000+00:00",
+// as DateTimeFormatter.ISO_DATE_TIME followed by Instant.from() would, but without the java.time parsing
+// machinery for the common fixed layout:
+//
+//   yyyy-MM-ddTHH:mm:ss[.fffffffff](Z|+HH:MM|-HH:MM)
+//
+// which is read directly from the string. The epoch second of the date at the offset is held in a small
+// cache keyed by the date and offset, so as every timestamp in a feed page (or a day of messages) shares
+// a few dates and one offset, the usual cost is a cache check and reading the time digits.
+//
+// Any other form (e.g. a "[Europe/London]" zone, a year beyond 9999, lower case 't'/'z', a leap second)
+// falls back to java.time, which also provides the DateTimeException for invalid input.
+//
+// An IsoTimestamp can be shared between threads: cache entries are immutable, so a racing update at worst
+// loses an entry. But each parser (e.g. a feed's ParseFeedXMLFlat) normally holds its own.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+public class IsoTimestamp {
+
+    private static final int CACHE_SIZE = 8;
+
+    private static final long FAIL = Long.MIN_VALUE;
+
+    private static final int[] NANO_SCALE = { 1000000000, 100000000, 10000000, 1000000, 100000,
+                                              10000, 1000, 100, 10, 1 };
+
+    // epoch second of midnight on 'date' (yyyy-MM-dd) at 'offset' (Z or +HH:MM)
+    private static class DayBase {
+        final String date;
+        final String offset;
+        final long epoch_second;
+
+        DayBase(String date, String offset, long epoch_second)
+        {
+            this.date = date;
+            this.offset = offset;
+            this.epoch_second = epoch_second;
+        }
+    }
+
+    private final DayBase[] cache = new DayBase[CACHE_SIZE];
+
+    private int cache_next = 0; // cache slot to replace next
+
+    // ***********************************************************************
+    // epoch_second()
+    // "2017-09-29T09:45:38+01:00" -> 1506674738
+    // throws DateTimeException if 's' is not an ISO date-time with an offset
+    // ***********************************************************************
+    public long epoch_second(String s)
+    {
+        long second = fast_epoch_second(s);
+        if (second != FAIL)
+        {
+            return second;
+        }
+        return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(s)).getEpochSecond();
+    }
+
+    // ***********************************************************************
+    // instant()
+    // "2017-09-29T09:45:38.5+01:00" -> Instant 2017-09-29T08:45:38.500Z
+    // throws DateTimeException if 's' is not an ISO date-time with an offset
+    // ***********************************************************************
+    public Instant instant(String s)
+    {
+        long second = fast_epoch_second(s);
+        if (second != FAIL)
+        {
+            return Instant.ofEpochSecond(second, fraction_nanos(s));
+        }
+        return Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(s));
+    }
+
+    // epoch second of 's' if it has the fixed layout, else FAIL
+    private long fast_epoch_second(String s)
+    {
+        int len = s.length();
+        // shortest is "yyyy-MM-ddTHH:mm:ssZ"
+        if (len < 20 ||
+            s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' ||
+            s.charAt(13) != ':' || s.charAt(16) != ':')
+        {
+            return FAIL;
+        }
+
+        int hour = digits2(s, 11);
+        int minute = digits2(s, 14);
+        int second = digits2(s, 17);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+        {
+            return FAIL;
+        }
+
+        // optional fraction, 1..9 digits
+        int i = 19;
+        if (s.charAt(i) == '.')
+        {
+            int fraction_start = ++i;
+            while (i < len && is_digit(s.charAt(i)))
+            {
+                i++;
+            }
+            if (i == fraction_start || i - fraction_start > 9)
+            {
+                return FAIL;
+            }
+        }
+
+        // offset, "Z" or "+HH:MM"
+        int offset_length = len - i;
+        if (offset_length == 1)
+        {
+            if (s.charAt(i) != 'Z')
+            {
+                return FAIL;
+            }
+        }
+        else if (offset_length == 6)
+        {
+            char sign = s.charAt(i);
+            if ((sign != '+' && sign != '-') || s.charAt(i + 3) != ':')
+            {
+                return FAIL;
+            }
+        }
+        else
+        {
+            return FAIL;
+        }
+
+        long day_base = day_base(s, i);
+        if (day_base == FAIL)
+        {
+            return FAIL;
+        }
+        return day_base + hour * 3600 + minute * 60 + second;
+    }
+
+    // epoch second of midnight on the date of 's' at its offset (starting at 'offset_start'),
+    // from the cache if possible, or FAIL if the date or offset is invalid
+    private long day_base(String s, int offset_start)
+    {
+        int offset_length = s.length() - offset_start;
+        for (DayBase entry : cache)
+        {
+            if (entry != null &&
+                entry.offset.length() == offset_length &&
+                s.regionMatches(offset_start, entry.offset, 0, offset_length) &&
+                s.regionMatches(0, entry.date, 0, 10))
+            {
+                return entry.epoch_second;
+            }
+        }
+
+        int year = digits4(s, 0);
+        int month = digits2(s, 5);
+        int day = digits2(s, 8);
+        if (year < 0 || month < 0 || day < 0)
+        {
+            return FAIL;
+        }
+
+        int offset_seconds = 0;
+        if (offset_length == 6)
+        {
+            int offset_hours = digits2(s, offset_start + 1);
+            int offset_minutes = digits2(s, offset_start + 4);
+            // as ZoneOffset, up to +/-18:00
+            if (offset_hours < 0 || offset_minutes < 0 || offset_minutes > 59 ||
+                offset_hours * 60 + offset_minutes > 18 * 60)
+            {
+                return FAIL;
+            }
+            offset_seconds = offset_hours * 3600 + offset_minutes * 60;
+            if (s.charAt(offset_start) == '-')
+            {
+                offset_seconds = -offset_seconds;
+            }
+        }
+
+        long epoch_second;
+        try {
+            epoch_second = LocalDate.of(year, month, day).toEpochDay() * 86400 - offset_seconds;
+        } catch (DateTimeException e) {
+            return FAIL; // e.g. 2017-02-30, let java.time report it
+        }
+
+        cache[cache_next] = new DayBase(s.substring(0, 10), s.substring(offset_start), epoch_second);
+        cache_next = (cache_next + 1) % CACHE_SIZE;
+
+        return epoch_second;
+    }
+
+    // nanoseconds of the fraction of a fixed layout 's', 0 if none
+    private static int fraction_nanos(String s)
+    {
+        if (s.charAt(19) != '.')
+        {
+            return 0;
+        }
+        int nanos = 0;
+        int i = 20;
+        while (is_digit(s.charAt(i)))
+        {
+            nanos = nanos * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        return nanos * NANO_SCALE[i - 20];
+    }
+
+    private static boolean is_digit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    // value of the 2 digits at s[i], or -1
+    private static int digits2(String s, int i)
+    {
+        char c1 = s.charAt(i);
+        char c2 = s.charAt(i + 1);
+        if (!is_digit(c1) || !is_digit(c2))
+        {
+            return -1;
+        }
+        return (c1 - '0') * 10 + (c2 - '0');
+    }
+
+    // value of the 4 digits at s[i], or -1
+    private static int digits4(String s, int i)
+    {
+        int high = digits2(s, i);
+        int low = digits2(s, i + 2);
+        return high < 0 || low < 0 ? -1 : high * 100 + low;
+    }
+
+} // end class IsoTimestamp
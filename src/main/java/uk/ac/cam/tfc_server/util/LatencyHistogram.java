@@ -0,0 +1,262 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// LatencyHistogram.java
+//
+// Fixed-size log-linear histogram of latency values (nanoseconds), in the style of HdrHistogram:
+// values are counted in SUB_BUCKETS linear sub-buckets per power of two, so every recorded value
+// is held to within 1/SUB_BUCKETS (~3%) relative precision, across the full long range, with no
+// allocation per recorded value.
+//
+// record() and the report methods are synchronized, as sinks on different event loops may share
+// a histogram.
+//
+// Reports:
+//   to_json()                     count, mean, min, max and the standard percentiles in ms
+//   percentile_distribution()     text table in the HdrHistogram outputPercentileDistribution()
+//                                 format (Value, Percentile, TotalCount, 1/(1-Percentile)), values
+//                                 in ms, which can be plotted with the usual HdrHistogram tools.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import io.vertx.core.json.JsonObject;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 32 per power of two
+
+    // enough buckets for any non-negative long
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // percentiles included in the json report
+    public static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private static final double NANOS_PER_MS = 1000000.0;
+
+    private long[] counts = new long[BUCKET_COUNT];
+
+    private long total_count = 0;
+    private long total_nanos = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    // record a single latency value, negative values are counted as zero
+    public synchronized void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        counts[bucket_index(nanos)]++;
+        total_count++;
+        total_nanos += nanos;
+        if (nanos < min)
+        {
+            min = nanos;
+        }
+        if (nanos > max)
+        {
+            max = nanos;
+        }
+    }
+
+    public synchronized void reset()
+    {
+        counts = new long[BUCKET_COUNT];
+        total_count = 0;
+        total_nanos = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public synchronized long get_count()
+    {
+        return total_count;
+    }
+
+    // mean value, nanoseconds
+    public synchronized double get_mean()
+    {
+        return total_count == 0 ? 0 : (double) total_nanos / total_count;
+    }
+
+    public synchronized long get_max()
+    {
+        return max;
+    }
+
+    // ***********************************************************************************
+    // get_percentile()
+    // Return the value (nanoseconds) at percentile p (0..100), i.e. the highest value
+    // equivalent to the bucket containing the p'th percentile, capped at the recorded max
+    // ***********************************************************************************
+    public synchronized long get_percentile(double p)
+    {
+        if (total_count == 0)
+        {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(p, 100) / 100 * total_count);
+        if (target < 1)
+        {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(highest_equivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    // count, mean, min, max and PERCENTILES, values in milliseconds
+    public synchronized JsonObject to_json()
+    {
+        JsonObject json = new JsonObject();
+        json.put("count", total_count);
+        json.put("mean_ms", round_ms(get_mean()));
+        json.put("min_ms", total_count == 0 ? 0 : round_ms(min));
+        json.put("max_ms", round_ms(max));
+        for (double p : PERCENTILES)
+        {
+            json.put(percentile_key(p), round_ms(get_percentile(p)));
+        }
+        return json;
+    }
+
+    // json key for percentile p, e.g. 99.9 -> "p99_9_ms"
+    public static String percentile_key(double p)
+    {
+        String s = p == Math.floor(p) ? String.valueOf((long) p) : String.valueOf(p).replace('.', '_');
+        return "p"+s+"_ms";
+    }
+
+    // ***********************************************************************************
+    // percentile_distribution()
+    // Text table in HdrHistogram format, with ticks_per_half_distance percentile steps
+    // in each halving of the distance to 100%, values in milliseconds
+    // ***********************************************************************************
+    public synchronized String percentile_distribution(int ticks_per_half_distance)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+
+        if (total_count > 0)
+        {
+            double half_distance = 100;
+            double p = 0;
+            while (true)
+            {
+                append_line(sb, p);
+
+                // stop once the percentile step is finer than a single value
+                if (half_distance / 100 * total_count < 1)
+                {
+                    break;
+                }
+                p += half_distance / 2 / ticks_per_half_distance;
+                if (p >= 100 - half_distance / 2)
+                {
+                    half_distance /= 2;
+                }
+            }
+            append_line(sb, 100);
+        }
+
+        sb.append(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", get_mean() / NANOS_PER_MS, std_deviation() / NANOS_PER_MS));
+        sb.append(String.format("#[Max     = %12.3f, Total count    = %12d]%n", max / NANOS_PER_MS, total_count));
+        sb.append(String.format("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKET_COUNT / SUB_BUCKETS, SUB_BUCKETS));
+        return sb.toString();
+    }
+
+    private void append_line(StringBuilder sb, double p)
+    {
+        long value = get_percentile(p);
+        long count_at = count_at_or_below(value);
+        if (p < 100)
+        {
+            sb.append(String.format("%12.3f %14.12f %10d %14.2f%n", value / NANOS_PER_MS, p / 100, count_at, 1 / (1 - p / 100)));
+        }
+        else
+        {
+            sb.append(String.format("%12.3f %14.12f %10d%n", value / NANOS_PER_MS, 1.0, count_at));
+        }
+    }
+
+    private long count_at_or_below(long value)
+    {
+        int last = bucket_index(value);
+        long n = 0;
+        for (int i=0; i<=last; i++)
+        {
+            n += counts[i];
+        }
+        return n;
+    }
+
+    // standard deviation estimated from bucket midpoints
+    private double std_deviation()
+    {
+        if (total_count == 0)
+        {
+            return 0;
+        }
+        double mean = get_mean();
+        double sum = 0;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            if (counts[i] > 0)
+            {
+                double mid = (lowest_equivalent(i) + highest_equivalent(i)) / 2.0;
+                sum += counts[i] * (mid - mean) * (mid - mean);
+            }
+        }
+        return Math.sqrt(sum / total_count);
+    }
+
+    // bucket holding value v >= 0
+    private static int bucket_index(long v)
+    {
+        if (v < SUB_BUCKETS)
+        {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // lowest value counted in bucket i
+    private static long lowest_equivalent(int i)
+    {
+        if (i < SUB_BUCKETS)
+        {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + i % SUB_BUCKETS)) << shift;
+    }
+
+    // highest value counted in bucket i
+    private static long highest_equivalent(int i)
+    {
+        if (i < SUB_BUCKETS)
+        {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return lowest_equivalent(i) + (1L << shift) - 1;
+    }
+
+    private static double round_ms(double nanos)
+    {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+} // end class LatencyHistogram
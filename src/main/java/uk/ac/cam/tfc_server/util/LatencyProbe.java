@@ -0,0 +1,88 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// LatencyProbe.java
+//
+// Process-wide end-to-end latency measurement for the eventbus pipeline, used by the LoadGen
+// benchmark module (see loadgen/README.md).
+//
+// LoadGen stamps each message it publishes with System.nanoTime() in the field SEND_NANOS
+// ("acp_send_nanos"). The sink modules (Zone, MsgFiler, MsgRouter, RTMonitor) call
+//   LatencyProbe.record("zone", msg);
+// once they have processed a message, which adds (now - stamp) to the LatencyHistogram for that
+// sink. record() returns immediately unless the probe has been enabled (by LoadGen), and ignores
+// messages without a stamp, so the sinks are unaffected in normal operation.
+//
+// System.nanoTime() is only comparable within a single JVM, so the sinks must be deployed in the
+// same (non-clustered) Vertx instance as LoadGen.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.json.JsonObject;
+
+public class LatencyProbe {
+
+    public static final String SEND_NANOS = Constants.PLATFORM_PREFIX+"send_nanos";
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public static void enable()
+    {
+        enabled = true;
+    }
+
+    public static void disable()
+    {
+        enabled = false;
+    }
+
+    public static boolean is_enabled()
+    {
+        return enabled;
+    }
+
+    // Record the latency of msg at 'sink', if the probe is enabled and msg has a SEND_NANOS stamp
+    public static void record(String sink, JsonObject msg)
+    {
+        if (!enabled || msg == null)
+        {
+            return;
+        }
+        Object stamp = msg.getValue(SEND_NANOS);
+        if (!(stamp instanceof Number))
+        {
+            return;
+        }
+        get_histogram(sink).record(System.nanoTime() - ((Number) stamp).longValue());
+    }
+
+    // Return the histogram for 'sink', creating it if necessary
+    public static LatencyHistogram get_histogram(String sink)
+    {
+        return histograms.computeIfAbsent(sink, k -> new LatencyHistogram());
+    }
+
+    // All histograms, in sink name order
+    public static Map<String, LatencyHistogram> get_histograms()
+    {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    // clear all recorded values, e.g. at the end of a warmup period
+    public static void reset()
+    {
+        for (LatencyHistogram h : histograms.values())
+        {
+            h.reset();
+        }
+    }
+
+} // end class LatencyProbe
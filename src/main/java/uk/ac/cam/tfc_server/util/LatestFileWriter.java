@@ -0,0 +1,234 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// LatestFileWriter.java
+//
+// Maintains a single 'latest data' file in a monitor directory, e.g. {{data_monitor}}/post_data.bin
+//
+// Used by the feed modules (FeedMaker, FeedHandler, FeedMQTT, EverynetFeed) so that a separate
+// 'inotifywait' process can watch the monitor directory and trigger onward processing.
+//
+// Each write goes to a temporary file (".<name><suffix>.tmp") which is then atomically renamed
+// over the stable name <name><suffix>, so a watcher never sees a partially written file and the
+// directory never needs to be listed.  Watchers should listen for 'moved_to' (as well as
+// 'close_write') events on <name><suffix>.
+//
+// Only the first write to a directory lists it (creating it if necessary) to remove any
+// leftover files with the same suffix, e.g. the per-timestamp files written by earlier versions.
+// After that every write costs a constant writeFile + rename.
+//
+// If coalesce_ms > 0, writes arriving within coalesce_ms of the previous write are held back and
+// only the most recent is written when the window expires, i.e. bursts are coalesced into one write.
+// Writes to the same file are never overlapped.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.File;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+
+public class LatestFileWriter {
+
+    public static final String DEFAULT_NAME = "post_data"; // default stable filename (without suffix)
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private Vertx vertx;
+    private String dir_path;    // directory holding the monitor file
+    private String file_suffix; // e.g. ".bin", also used to identify old files to be removed
+    private String file_name;   // stable filename, name+suffix
+    private String file_path;   // full stable path of monitor file, dir_path/name+suffix
+    private String tmp_path;    // full path of temporary file, renamed over file_path
+    private long coalesce_ms;   // writes within this window are coalesced, 0 = write every message
+
+    private Log logger;
+    private String log_prefix;  // e.g. MODULE_NAME+"."+MODULE_ID
+
+    private CopyOptions move_options;
+
+    private boolean initialized = false; // true after first write has tidied the directory
+    private boolean writing = false;     // true while a writeFile/move is in progress
+    private long timer_id = -1;          // coalescing window timer, -1 when no window open
+    private Buffer pending = null;       // most recent buffer not yet written
+
+    // counters available for status reporting
+    public long write_count = 0;       // number of files actually written
+    public long coalesced_count = 0;   // number of buffers superseded before being written
+
+    public LatestFileWriter(Vertx v,
+                            String path,
+                            String name,
+                            String suffix,
+                            long coalesce,
+                            Log l,
+                            String prefix)
+    {
+        vertx = v;
+        dir_path = path;
+        file_suffix = suffix;
+        file_name = name + suffix;
+        file_path = path + "/" + file_name;
+        tmp_path = path + "/." + name + suffix + TMP_SUFFIX;
+        coalesce_ms = coalesce;
+        logger = l;
+        log_prefix = prefix;
+
+        move_options = new CopyOptions().setReplaceExisting(true).setAtomicMove(true);
+    }
+
+    // Return full path of the monitor file, i.e. <path>/<name><suffix>
+    public String get_path()
+    {
+        return file_path;
+    }
+
+    // ***********************************************************************
+    // write()
+    // Request 'buf' to be written as the latest monitor file (non-blocking).
+    // ***********************************************************************
+    public void write(Buffer buf)
+    {
+        if (pending != null)
+        {
+            coalesced_count++;
+        }
+        pending = buf;
+
+        // if a write is in progress or a coalescing window is open, the pending
+        // buffer will be picked up when that completes.
+        if (writing || timer_id != -1)
+        {
+            return;
+        }
+
+        flush();
+    }
+
+    // Write the pending buffer (if any), opening a coalescing window if configured
+    private void flush()
+    {
+        if (pending == null)
+        {
+            return;
+        }
+
+        Buffer buf = pending;
+        pending = null;
+        writing = true;
+
+        if (coalesce_ms > 0)
+        {
+            timer_id = vertx.setTimer(coalesce_ms, id -> {
+                timer_id = -1;
+                if (!writing)
+                {
+                    flush();
+                }
+            });
+        }
+
+        if (initialized)
+        {
+            write_file(buf);
+        }
+        else
+        {
+            init_dir(buf);
+        }
+    }
+
+    // Called when a write completes, writes any buffer that arrived meanwhile
+    private void write_done()
+    {
+        writing = false;
+        if (timer_id == -1)
+        {
+            flush();
+        }
+    }
+
+    // ***************************************************************************
+    // init_dir()
+    // One-off on first write: ensure directory exists and remove any prior files
+    // with the same suffix (other than the stable file itself).
+    // ***************************************************************************
+    private void init_dir(Buffer buf)
+    {
+        FileSystem fs = vertx.fileSystem();
+
+        fs.readDir(dir_path, ".*\\"+file_suffix, read_result -> {
+            if (read_result.succeeded())
+            {
+                for (String f: read_result.result())
+                {
+                    if (new File(f).getName().equals(file_name))
+                    {
+                        continue;
+                    }
+                    logger.log(Constants.LOG_DEBUG, () -> log_prefix+": LatestFileWriter deleting "+f);
+                    fs.delete(f, delete_result -> {
+                        if (!delete_result.succeeded())
+                        {
+                            logger.log(Constants.LOG_WARN, log_prefix+
+                                       ": LatestFileWriter error deleting file: "+f);
+                        }
+                    });
+                }
+                initialized = true;
+                write_file(buf);
+            }
+            else
+            {
+                fs.mkdirs(dir_path, mkdirs_result -> {
+                    if (mkdirs_result.succeeded())
+                    {
+                        logger.log(Constants.LOG_INFO, log_prefix+
+                                   ": LatestFileWriter created monitor path "+dir_path);
+                        initialized = true;
+                        write_file(buf);
+                    }
+                    else
+                    {
+                        logger.log(Constants.LOG_WARN, log_prefix+
+                                   ": LatestFileWriter error creating monitor path "+dir_path);
+                        write_done();
+                    }
+                });
+            }
+        });
+    }
+
+    // Write buf to the temporary file, then atomically rename it to the stable name
+    private void write_file(Buffer buf)
+    {
+        FileSystem fs = vertx.fileSystem();
+
+        fs.writeFile(tmp_path, buf, write_result -> {
+            if (!write_result.succeeded())
+            {
+                Log.log_err(log_prefix+": LatestFileWriter write error "+tmp_path+" "+write_result.cause());
+                // directory may have been removed, so re-check on next write
+                initialized = false;
+                write_done();
+                return;
+            }
+            fs.move(tmp_path, file_path, move_options, move_result -> {
+                if (move_result.succeeded())
+                {
+                    write_count++;
+                    logger.log(Constants.LOG_DEBUG, () -> log_prefix+": File "+file_path+" written");
+                }
+                else
+                {
+                    Log.log_err(log_prefix+": LatestFileWriter rename error "+file_path+" "+move_result.cause());
+                }
+                write_done();
+            });
+        });
+    }
+
+} // end class LatestFileWriter
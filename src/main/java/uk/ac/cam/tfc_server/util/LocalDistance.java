@@ -0,0 +1,91 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// LocalDistance.java
+//
+// Fast distance between nearby positions (e.g. consecutive positions of a vehicle in a zone), as an
+// alternative to the haversine formula of Position.distance() (sin, cos, atan2, sqrt per call).
+//
+// The equirectangular approximation
+//
+//   d = R * sqrt( dlat^2 + (cos(lat_m) * dlng)^2 )      (angles in radians, lat_m the mid latitude)
+//
+// differs from the haversine distance by a relative error under (d/R)^2, i.e. 1e-7 for a 2km hop.
+// Rather than a cos() per call, cos(lat_m) is taken from the cos and sin of a reference latitude (e.g.
+// the zone center), cached per reference, to second order in the offset e = lat_m - lat_ref:
+//
+//   cos(lat_m) ~= cos(lat_ref) * (1 - e^2/2) - sin(lat_ref) * e
+//
+// with relative error under |e|^3 * (1 + tan(lat_ref)) / 6, e.g. 3e-10 within 5km of the reference at 52N
+// and 4e-7 at MAX_OFFSET. In all, the relative error is under (d/R)^2 + |e|^3 * (1 + tan(lat_ref)) / 6.
+//
+// Measured against Position.distance() for hops of 10m..2km from the recorded bus positions of
+// feedhandler/post_data.bin and the SiriVM bench fixture (up to 64km from the reference), the largest
+// relative difference is 1.8e-7, from the cos() of positions ~60km from the reference, and the largest
+// absolute difference 0.34mm on a 2km hop, so this can replace haversine for the zone distance totals.
+// LocalDistanceTest checks each of these hops against the bound.
+//
+// Positions more than MAX_OFFSET (~64km) from the reference latitude, or hops longer than MAX_HOP,
+// fall back to the haversine formula.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LocalDistance {
+
+    public static final double EARTH_RADIUS = 6380000.0; // as Position.distance(), radius at lat 52 deg
+
+    private static final double MAX_OFFSET = 0.01; // radians of latitude from the reference (~64km)
+
+    private static final double MAX_HOP = 0.01; // radians of lat or lng difference between the positions
+
+    // LocalDistance for each reference latitude, shared e.g. by the zones with the same center
+    private static final ConcurrentHashMap<Double, LocalDistance> cache = new ConcurrentHashMap<Double, LocalDistance>();
+
+    private final double lat_ref; // radians
+    private final double cos_ref;
+    private final double sin_ref;
+
+    private LocalDistance(double lat)
+    {
+        lat_ref = Math.toRadians(lat);
+        cos_ref = Math.cos(lat_ref);
+        sin_ref = Math.sin(lat_ref);
+    }
+
+    // ***********************************************************************************
+    // of()
+    // The (cached) LocalDistance with reference latitude of 'center', e.g. a zone center
+    // ***********************************************************************************
+    public static LocalDistance of(Position center)
+    {
+        return cache.computeIfAbsent(center.lat, LocalDistance::new);
+    }
+
+    // ***********************************************************************************
+    // distance()
+    // Return distance in m between positions p1 and p2
+    // ***********************************************************************************
+    public double distance(Position p1, Position p2)
+    {
+        double lat1 = Math.toRadians(p1.lat);
+        double lat2 = Math.toRadians(p2.lat);
+        double d_lat = lat2 - lat1;
+        double d_lng = Math.toRadians(p2.lng - p1.lng);
+
+        // offset of the mid latitude from the reference
+        double e = (lat1 + lat2) * 0.5 - lat_ref;
+
+        if (Math.abs(e) > MAX_OFFSET || Math.abs(d_lat) > MAX_HOP || Math.abs(d_lng) > MAX_HOP)
+        {
+            return p1.distance(p2);
+        }
+
+        double cos_mid = cos_ref * (1 - e * e * 0.5) - sin_ref * e;
+        double x = d_lng * cos_mid;
+        return EARTH_RADIUS * Math.sqrt(d_lat * d_lat + x * x);
+    }
+
+} // end class LocalDistance
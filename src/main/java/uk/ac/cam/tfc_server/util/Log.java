@@ -1,9 +1,33 @@
 package uk.ac.cam.tfc_server.util;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.time.format.DateTimeFormatter;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 // Basic logging utility, may replace with log4j at some point...
+//
+// Log lines are not written on the calling (e.g. event loop) thread: log() checks the level,
+// formats the line and adds it to a fixed-size lock-free ring buffer, which is drained to
+// stdout by a background daemon thread. If the buffer is full the line is dropped and counted,
+// and the writer reports the number of dropped lines when it next catches up. Error lines
+// (log_err) are never dropped: if the buffer is full the caller waits for the writer to free a
+// slot. Remaining lines are written by a shutdown hook when the JVM exits.
+//
+// To avoid building messages that will be filtered out, pass a Supplier:
+//     logger.log(Constants.LOG_DEBUG, () -> MODULE_NAME+": prepared msg "+msg.toString());
+// or key/value fields, which are only formatted if the level is enabled:
+//     logger.log_kv(Constants.LOG_INFO, MODULE_NAME+"."+MODULE_ID+": published", "feed_id", feed_id, "records", n);
+// giving "2019-03-21 10:15:01: feedmaker.A: published feed_id=cam_park_rss records=27"
 
 public class Log {
 
@@ -18,24 +42,217 @@ public class Log {
     {
         level = l;
     }
-    
+
+    // true if messages at level l will be logged
+    public boolean is_enabled(int l)
+    {
+        return l >= level;
+    }
+
+    // *****************************************************************
+    // Timestamps
+    // The formatted time is cached, and only re-formatted when the second changes
+    // *****************************************************************
+
+    private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static class CachedTime {
+        final long second;
+        final String text;
+
+        CachedTime(long second, String text)
+        {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static volatile CachedTime cached_time = new CachedTime(-1, "");
+
     // get current local time as "YYYY-MM-DD hh:mm:ss"
     public static String local_datetime_string()
     {
-        LocalDateTime local_time = LocalDateTime.now();
-        return local_time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        long second = System.currentTimeMillis() / 1000;
+        CachedTime t = cached_time;
+        if (t.second != second)
+        {
+            t = new CachedTime(second, LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZONE).format(DATETIME_FORMAT));
+            cached_time = t;
+        }
+        return t.text;
     }
 
-    // print msg to stderr prepended with local time
+    // *****************************************************************
+    // Logging methods
+    // *****************************************************************
+
+    // print msg prepended with local time, waiting for buffer space rather than dropping it
     public static void log_err(String msg)
     {
-        System.out.println(local_datetime_string()+" ERROR: "+msg);
+        WRITER.write(local_datetime_string()+" ERROR: "+msg, true);
     }
-    
+
     public void log(int l, String msg) {
         if (l >= level)
             {
-                System.out.println(local_datetime_string()+ ": "+msg );
+                WRITER.write(local_datetime_string()+ ": "+msg, false);
             }
     }
+
+    // msg is only built if level l is enabled
+    public void log(int l, Supplier<String> msg) {
+        if (l >= level)
+            {
+                WRITER.write(local_datetime_string()+ ": "+msg.get(), false);
+            }
+    }
+
+    // log msg followed by " key=value" for each pair in fields (key1, value1, key2, value2, ...)
+    public void log_kv(int l, String msg, Object... fields) {
+        if (l >= level)
+            {
+                StringBuilder sb = new StringBuilder(local_datetime_string()).append(": ").append(msg);
+                for (int i=0; i+1<fields.length; i+=2)
+                {
+                    sb.append(' ').append(fields[i]).append('=').append(fields[i+1]);
+                }
+                WRITER.write(sb.toString(), false);
+            }
+    }
+
+    // number of log lines dropped because the ring buffer was full
+    public static long get_dropped()
+    {
+        return WRITER.dropped.get();
+    }
+
+    // *****************************************************************
+    // AsyncWriter
+    // Bounded multi-producer / single-consumer ring buffer of log lines (after D. Vyukov's
+    // bounded MPMC queue): each slot has a sequence number, so producers claim a slot with a
+    // single CAS on 'tail' and never block. The writer thread drains the buffer to stdout.
+    // *****************************************************************
+
+    private static final AsyncWriter WRITER = new AsyncWriter(8192);
+
+    private static class AsyncWriter implements Runnable {
+
+        private static final long IDLE_PARK_NANOS = 2000000; // 2 ms poll when the buffer is empty
+
+        private static final long FULL_PARK_NANOS = 50000; // 50 us wait for a free slot, for a line that must not be dropped
+
+        private final int mask;
+        private final AtomicReferenceArray<String> lines;
+        private final AtomicLongArray sequences;
+
+        private final AtomicLong tail = new AtomicLong(); // next slot for producers
+        private long head = 0;                            // next slot for the writer thread
+
+        final AtomicLong dropped = new AtomicLong();
+        private long dropped_reported = 0;
+
+        private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+
+        AsyncWriter(int capacity)
+        {
+            // capacity is rounded up to a power of 2
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            mask = size - 1;
+            lines = new AtomicReferenceArray<String>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i=0; i<size; i++)
+            {
+                sequences.set(i, i);
+            }
+
+            Thread t = new Thread(this, "tfc-log-writer");
+            t.setDaemon(true);
+            t.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(), "tfc-log-flush"));
+        }
+
+        // add line to the buffer. If the buffer is full, wait for a free slot if 'wait',
+        // otherwise count the line as dropped
+        void write(String line, boolean wait)
+        {
+            while (true)
+            {
+                long pos = tail.get();
+                int index = (int) pos & mask;
+                long seq = sequences.get(index);
+                if (seq == pos)
+                {
+                    if (tail.compareAndSet(pos, pos + 1))
+                    {
+                        lines.set(index, line);
+                        sequences.set(index, pos + 1); // publish to the writer
+                        return;
+                    }
+                }
+                else if (seq < pos)
+                {
+                    // the writer has not yet consumed this slot, i.e. the buffer is full
+                    if (!wait)
+                    {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(FULL_PARK_NANOS);
+                }
+                // else another producer claimed pos, retry with the new tail
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                if (!drain())
+                {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        // write all available lines, returning false if there were none
+        synchronized boolean drain()
+        {
+            boolean wrote = false;
+            try {
+                while (true)
+                {
+                    int index = (int) head & mask;
+                    if (sequences.get(index) != head + 1)
+                    {
+                        break; // empty, or the producer of this slot has not yet published it
+                    }
+                    String line = lines.get(index);
+                    lines.set(index, null);
+                    sequences.set(index, head + mask + 1); // free the slot for the next lap
+                    head++;
+
+                    out.write(line);
+                    out.write('\n');
+                    wrote = true;
+                }
+                long d = dropped.get();
+                if (d != dropped_reported)
+                {
+                    out.write(local_datetime_string()+" WARN: Log dropped "+(d - dropped_reported)+" lines (buffer full)\n");
+                    dropped_reported = d;
+                    wrote = true;
+                }
+                if (wrote)
+                {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // stdout has gone, nothing useful to do
+            }
+            return wrote;
+        }
+    } // end class AsyncWriter
 }
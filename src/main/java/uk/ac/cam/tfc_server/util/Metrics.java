@@ -0,0 +1,261 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// Metrics.java
+//
+// Per-module registry of counters, gauges and timers, reported in the module's periodic
+// system_status heartbeat (as the "metrics" property) so the Console can aggregate them and
+// serve them in Prometheus text format (see console/README.md).
+//
+// Each metric value is held per 'key', where the meaning of the key is given by the registry's
+// label, e.g. a FeedMaker creates
+//     Metrics metrics = new Metrics("feed_id");
+// and records
+//     metrics.inc("msgs_in", feed_id);
+//     metrics.add("bytes_in", feed_id, buf.length());
+//     metrics.time("parse", feed_id, System.nanoTime() - start_nanos);
+// A null key is recorded as "".
+//
+// Conventional names (so the Console can compare like with like across modules):
+//   counters   msgs_in, msgs_out, bytes_in, bytes_out, errors
+//   timers     parse, write
+//   gauges     queue depths and similar current values
+//
+// Counters are cumulative since the module started (Prometheus counter semantics). Timers report
+// a cumulative count and sum, plus the mean/p50/p99/max of the values recorded since the previous
+// to_json() call, i.e. over the most recent heartbeat interval.
+//
+// All methods are safe to call from any thread (the event loop and executeBlocking workers).
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.vertx.core.json.JsonObject;
+
+public class Metrics {
+
+    private static final double NANOS_PER_MS = 1000000.0;
+
+    private final String label;
+
+    // name -> key -> value
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> counters =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Supplier<Number>>> gauges =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Supplier<Number>>>();
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Timer>> timers =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Timer>>();
+
+    // label is the name of the key dimension, e.g. "feed_id" or "destination_id"
+    public Metrics(String label)
+    {
+        this.label = label;
+    }
+
+    public String get_label()
+    {
+        return label;
+    }
+
+    // *****************************************************************
+    // Counters
+    // *****************************************************************
+
+    public void inc(String name, String key)
+    {
+        counter(name, key).increment();
+    }
+
+    public void add(String name, String key, long n)
+    {
+        counter(name, key).add(n);
+    }
+
+    public long get_count(String name, String key)
+    {
+        Map<String, LongAdder> m = counters.get(name);
+        if (m == null)
+        {
+            return 0;
+        }
+        LongAdder c = m.get(key == null ? "" : key);
+        return c == null ? 0 : c.sum();
+    }
+
+    private LongAdder counter(String name, String key)
+    {
+        return counters.computeIfAbsent(name, k -> new ConcurrentHashMap<String, LongAdder>())
+                       .computeIfAbsent(key == null ? "" : key, k -> new LongAdder());
+    }
+
+    // *****************************************************************
+    // Gauges
+    // *****************************************************************
+
+    // set the current value of gauge name/key
+    public void set(String name, String key, long value)
+    {
+        Supplier<Number> s = gauge_map(name).computeIfAbsent(key == null ? "" : key, k -> new GaugeValue());
+        if (s instanceof GaugeValue)
+        {
+            ((GaugeValue) s).set(value);
+        }
+    }
+
+    // gauge name/key will be read from 'supplier' each time the metrics are reported,
+    // e.g. metrics.gauge("queue_depth", feed_id, () -> queue.size())
+    public void gauge(String name, String key, Supplier<Number> supplier)
+    {
+        gauge_map(name).put(key == null ? "" : key, supplier);
+    }
+
+    private ConcurrentHashMap<String, Supplier<Number>> gauge_map(String name)
+    {
+        return gauges.computeIfAbsent(name, k -> new ConcurrentHashMap<String, Supplier<Number>>());
+    }
+
+    // *****************************************************************
+    // Timers
+    // *****************************************************************
+
+    // record a duration (nanoseconds), e.g. time("parse", feed_id, System.nanoTime() - start)
+    public void time(String name, String key, long nanos)
+    {
+        timers.computeIfAbsent(name, k -> new ConcurrentHashMap<String, Timer>())
+              .computeIfAbsent(key == null ? "" : key, k -> new Timer())
+              .record(nanos);
+    }
+
+    // *****************************************************************
+    // to_json()
+    // Snapshot of all metrics, as included in the system_status heartbeat:
+    // { "label": "feed_id",
+    //   "counters": { "msgs_in": { "<key>": 42, ... }, ... },
+    //   "gauges":   { "<name>":  { "<key>": 3, ... }, ... },
+    //   "timers":   { "parse":   { "<key>": { "count": 42, "sum_ms": 12.5,
+    //                                          "mean_ms": 0.3, "p50_ms": 0.25, "p99_ms": 1.2,
+    //                                          "max_ms": 1.4 }, ... }, ... }
+    // }
+    // Timer mean/p50/p99/max cover the values recorded since the previous to_json()
+    // *****************************************************************
+    public JsonObject to_json()
+    {
+        JsonObject json = new JsonObject();
+        json.put("label", label);
+
+        JsonObject counters_json = new JsonObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> e : sorted(counters).entrySet())
+        {
+            JsonObject values = new JsonObject();
+            for (Map.Entry<String, LongAdder> v : sorted(e.getValue()).entrySet())
+            {
+                values.put(v.getKey(), v.getValue().sum());
+            }
+            counters_json.put(e.getKey(), values);
+        }
+        json.put("counters", counters_json);
+
+        JsonObject gauges_json = new JsonObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, Supplier<Number>>> e : sorted(gauges).entrySet())
+        {
+            JsonObject values = new JsonObject();
+            for (Map.Entry<String, Supplier<Number>> v : sorted(e.getValue()).entrySet())
+            {
+                Number n;
+                try {
+                    n = v.getValue().get();
+                } catch (Exception ex) {
+                    n = null;
+                }
+                if (n != null)
+                {
+                    values.put(v.getKey(), n);
+                }
+            }
+            gauges_json.put(e.getKey(), values);
+        }
+        json.put("gauges", gauges_json);
+
+        JsonObject timers_json = new JsonObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, Timer>> e : sorted(timers).entrySet())
+        {
+            JsonObject values = new JsonObject();
+            for (Map.Entry<String, Timer> v : sorted(e.getValue()).entrySet())
+            {
+                values.put(v.getKey(), v.getValue().to_json());
+            }
+            timers_json.put(e.getKey(), values);
+        }
+        json.put("timers", timers_json);
+
+        return json;
+    }
+
+    private static <V> TreeMap<String, V> sorted(Map<String, V> m)
+    {
+        return new TreeMap<String, V>(m);
+    }
+
+    private static double round_ms(double nanos)
+    {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    // *****************************************************************
+    // Gauge holding a value set with set()
+    private static class GaugeValue implements Supplier<Number> {
+        private final AtomicLong value = new AtomicLong();
+
+        void set(long v)
+        {
+            value.set(v);
+        }
+
+        public Number get()
+        {
+            return value.get();
+        }
+    }
+
+    // *****************************************************************
+    // Timer: cumulative count and sum, plus a histogram of the current interval
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum_nanos = new LongAdder();
+
+        private volatile LatencyHistogram interval = new LatencyHistogram();
+
+        void record(long nanos)
+        {
+            count.increment();
+            sum_nanos.add(nanos);
+            interval.record(nanos);
+        }
+
+        JsonObject to_json()
+        {
+            // swap in a fresh histogram, so the next report covers the next interval
+            LatencyHistogram h = interval;
+            interval = new LatencyHistogram();
+
+            JsonObject json = new JsonObject();
+            json.put("count", count.sum());
+            json.put("sum_ms", round_ms(sum_nanos.sum()));
+            json.put("mean_ms", round_ms(h.get_mean()));
+            json.put("p50_ms", round_ms(h.get_percentile(50)));
+            json.put("p99_ms", round_ms(h.get_percentile(99)));
+            json.put("max_ms", round_ms(h.get_max()));
+            return json;
+        }
+    }
+
+} // end class Metrics
@@ -0,0 +1,215 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// Polygon.java
+//
+// A lat/lng polygon prepared for fast point-in-polygon tests, used by ZoneCompute.inside() (the zone
+// boundary) and Position.inside() (e.g. RTMonitor "inside" filters).
+//
+// The test is the usual ray-casting one (count the edges crossed by a line North from the point, odd
+// => inside, see http://stackoverflow.com/questions/13950062), as previously in both those methods,
+// but the polygon is held as packed double[] arrays of each edge's start lng/lat, end lng and gradient,
+// all computed once here:
+//
+//   - an edge that jumps the dateline (lng difference > 180) is normalised at load rather than per test,
+//     into two versions of the edge arrays, for points with lng > 0 and for points with lng <= 0
+//   - the gradient of each edge is computed once, rather than for each crossing edge of each test
+//   - the crossings are counted in a loop of array reads and arithmetic with no object dereferences,
+//     which the JIT can unroll
+//
+// contains(lats, lngs, count, inside) tests many points against the polygon in one call, e.g. the
+// positions of a feed message against a zone.
+//
+// The static contains(path, lat, lng) is the same test of a polygon that is only used once, without
+// preparing it (e.g. Position.inside(ArrayList<Position>)).
+//
+// A point exactly on the bounding box of the polygon is tested by ray-casting (as ZoneCompute did), i.e.
+// only points strictly outside the box are rejected by the box test.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.util.List;
+
+public class Polygon {
+
+    private final int size; // number of edges (= vertices)
+
+    // edge i is from vertex i-1 (i.e. size-1 for i==0) to vertex i, as the original loop
+
+    private final double[] lat1;     // lat of the edge start
+    private final double[] grad;     // d(lat)/d(lng) of the edge
+
+    private final double[] lng1_pos; // lng of the edge start, for points with lng > 0
+    private final double[] lng2_pos; // lng of the edge end, for points with lng > 0
+    private final double[] lng1_neg; // as above, for points with lng <= 0
+    private final double[] lng2_neg;
+
+    // bounding box
+    public final double north;
+    public final double south;
+    public final double east;
+    public final double west;
+
+    public Polygon(List<Position> path)
+    {
+        size = path.size();
+
+        lat1 = new double[size];
+        grad = new double[size];
+        lng1_pos = new double[size];
+        lng2_pos = new double[size];
+        lng1_neg = new double[size];
+        lng2_neg = new double[size];
+
+        double n = -90;
+        double s = 90;
+        double e = -180;
+        double w = 180;
+
+        for (int i=0; i<size; i++)
+        {
+            Position last_point = path.get(i == 0 ? size - 1 : i - 1);
+            Position point = path.get(i);
+
+            if (point.lat > n) n = point.lat;
+            if (point.lat < s) s = point.lat;
+            if (point.lng > e) e = point.lng;
+            if (point.lng < w) w = point.lng;
+
+            double x1 = last_point.lng;
+            double x2 = point.lng;
+
+            lat1[i] = last_point.lat;
+            lng1_pos[i] = x1;
+            lng2_pos[i] = x2;
+            lng1_neg[i] = x1;
+            lng2_neg[i] = x2;
+
+            double dx = x2 - x1;
+            if (Math.abs(dx) > 180.0)
+            {
+                // we have, most likely, just jumped the dateline.  Normalise the numbers.
+                lng1_pos[i] = x1 < 0 ? x1 + 360 : x1;
+                lng2_pos[i] = x2 < 0 ? x2 + 360 : x2;
+                lng1_neg[i] = x1 > 0 ? x1 - 360 : x1;
+                lng2_neg[i] = x2 > 0 ? x2 - 360 : x2;
+                dx = lng2_pos[i] - lng1_pos[i]; // the same for the _neg values
+            }
+            grad[i] = (point.lat - last_point.lat) / dx;
+        }
+
+        north = n;
+        south = s;
+        east = e;
+        west = w;
+    }
+
+    // number of vertices
+    public int size()
+    {
+        return size;
+    }
+
+    // ***********************************************************************************
+    // contains()
+    // Return true if lat, lng is inside the polygon
+    // ***********************************************************************************
+    public boolean contains(double lat, double lng)
+    {
+        // easy optimization - return false if position is outside bounding rectangle (box)
+        if (lat > north || lat < south || lng < west || lng > east)
+        {
+            return false;
+        }
+        return (crossings(lat, lng) & 1) == 1;
+    }
+
+    // ***********************************************************************************
+    // contains()
+    // Batch test of count points lats[i], lngs[i], setting inside[i] to whether each point
+    // is inside the polygon, and returning the number inside
+    // ***********************************************************************************
+    public int contains(double[] lats, double[] lngs, int count, boolean[] inside)
+    {
+        int inside_count = 0;
+        for (int j=0; j<count; j++)
+        {
+            double lat = lats[j];
+            double lng = lngs[j];
+            inside[j] = !(lat > north || lat < south || lng < west || lng > east) &&
+                        (crossings(lat, lng) & 1) == 1;
+            inside_count += inside[j] ? 1 : 0;
+        }
+        return inside_count;
+    }
+
+    // ***********************************************************************************
+    // contains()
+    // Return true if lat, lng is inside the polygon 'path', as new Polygon(path).contains(lat, lng)
+    // but without preparing the polygon, for a polygon only tested once
+    // ***********************************************************************************
+    public static boolean contains(List<Position> path, double lat, double lng)
+    {
+        int size = path.size();
+
+        // bounding box test
+        double n = -90;
+        double s = 90;
+        double e = -180;
+        double w = 180;
+        for (int i=0; i<size; i++)
+        {
+            Position point = path.get(i);
+            if (point.lat > n) n = point.lat;
+            if (point.lat < s) s = point.lat;
+            if (point.lng > e) e = point.lng;
+            if (point.lng < w) w = point.lng;
+        }
+        if (lat > n || lat < s || lng < w || lng > e)
+        {
+            return false;
+        }
+
+        int crossings = 0;
+        Position last_point = path.get(size - 1);
+        for (int i=0; i<size; i++)
+        {
+            Position point = path.get(i);
+            double x1 = last_point.lng;
+            double x2 = point.lng;
+            double dx = x2 - x1;
+            if (Math.abs(dx) > 180.0)
+            {
+                // dateline edge, normalised as in the constructor
+                x1 = lng > 0 ? (x1 < 0 ? x1 + 360 : x1) : (x1 > 0 ? x1 - 360 : x1);
+                x2 = lng > 0 ? (x2 < 0 ? x2 + 360 : x2) : (x2 > 0 ? x2 - 360 : x2);
+                dx = x2 - x1;
+            }
+            if ((x1 <= lng && x2 > lng) || (x1 >= lng && x2 < lng))
+            {
+                crossings += last_point.lat + (lng - x1) * ((point.lat - last_point.lat) / dx) > lat ? 1 : 0;
+            }
+            last_point = point;
+        }
+        return (crossings & 1) == 1;
+    }
+
+    // number of edges crossing the line North from lat, lng
+    private int crossings(double lat, double lng)
+    {
+        double[] x1s = lng > 0 ? lng1_pos : lng1_neg;
+        double[] x2s = lng > 0 ? lng2_pos : lng2_neg;
+
+        int crossings = 0;
+        for (int i=0; i<size; i++)
+        {
+            double x1 = x1s[i];
+            double x2 = x2s[i];
+            crossings += ((x1 <= lng && x2 > lng) || (x1 >= lng && x2 < lng)) &&
+                         lat1[i] + (lng - x1) * grad[i] > lat ? 1 : 0;
+        }
+        return crossings;
+    }
+
+} // end class Polygon
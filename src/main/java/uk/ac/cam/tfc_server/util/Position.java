@@ -86,67 +86,16 @@ public class Position {
     // Return true if this Position is INSIDE the polygon (clockwise ArrayList of Positions)
     // The fast algorithm is to count the number of times a line North from this point
     // intersects an edge of the polygon. Odd # of intersections => inside. (try it on paper..)
+    // To test many positions against the same polygon, prepare it once as a Polygon and use inside(Polygon)
     public boolean inside(ArrayList<Position> polygon) 
     {
-        // First we'll do a bounding box test, as an optimization:
-        Position sw = polygon.get(0).copy(); // we'll find the bottom-left corner in 'sw'
-        Position ne = polygon.get(0).copy(); // and the top-right corner in 'ne'
-        for (int i=1; i<polygon.size(); i++)
-        {
-            Position vertex = polygon.get(i);
-            sw.lat = Math.min(sw.lat, vertex.lat);
-            sw.lng = Math.min(sw.lng, vertex.lng);
-            ne.lat = Math.max(ne.lat, vertex.lat);
-            ne.lng = Math.max(ne.lng, vertex.lng);
-        }
-        if (!inside_box(sw, ne))
-        {
-            return false;
-        }
-
-        // ok... so we're inside the bounding box so let's do the full check
-        Position lastPoint = polygon.get(polygon.size() - 1);
-        boolean isInside = false;
-        double x = lng;
-        for (int i=0; i<polygon.size(); i++)
-        {
-            Position point = polygon.get(i);
-            double x1 = lastPoint.lng;
-            double x2 = point.lng;
-            double dx = x2 - x1;
-
-            if (Math.abs(dx) > 180.0)
-            {
-                // we have, most likely, just jumped the dateline.  Normalise the numbers.
-                if (x > 0)
-                {
-                    while (x1 < 0)
-                    x1 += 360;
-                    while (x2 < 0)
-                    x2 += 360;
-                }
-                else
-                {
-                    while (x1 > 0)
-                    x1 -= 360;
-                    while (x2 > 0)
-                    x2 -= 360;
-                }
-                dx = x2 - x1;
-            }
-
-            if ((x1 <= x && x2 > x) || (x1 >= x && x2 < x))
-            {
-                double grad = (point.lat - lastPoint.lat) / dx;
-                double intersectAtLat = lastPoint.lat + ((x - x1) * grad);
-
-                if (intersectAtLat > lat)
-                isInside = !isInside;
-            }
-            lastPoint = point;
-        }
+        return Polygon.contains(polygon, lat, lng);
+    }
 
-        return isInside;
+    // Return true if this Position is INSIDE the prepared polygon
+    public boolean inside(Polygon polygon)
+    {
+        return polygon.contains(lat, lng);
     }
 
 }
@@ -0,0 +1,202 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// SegmentConvert.java
+//
+// Command-line tool to convert existing data_bin/yyyy/MM/dd directories of individual
+// <UTC ts>_YYYY-MM-DD-hh-mm-ss.bin files into segment files (see SegmentWriter.java).
+//
+// Usage:
+//   java -cp tfc.jar uk.ac.cam.tfc_server.util.SegmentConvert [-hourly] [-delete] [-index] <dir> ...
+//
+// where each <dir> is either a single day directory (e.g. /media/tfc/vix/data_bin/2017/05/01) or
+// any parent of day directories (e.g. /media/tfc/vix/data_bin/2017), which will be searched for
+// yyyy/MM/dd directories.
+//
+//   -hourly  write hourly segments (default daily)
+//   -delete  delete the individual files once their day has been converted successfully
+//   -index   only rebuild the .index time index of each day directory (see BinIndex), no conversion
+//
+// After a day is converted its index is rebuilt, as readers (BinDir) do not rewrite an index.
+// Neither should be run on a directory still being written by the ingest process.
+//
+// Files are appended in timestamp order using the timestamp and name from the filename, so the
+// converted data is read by BatcherWorker and FeedPlayer exactly as the original files were.
+// Existing segments are appended to, so a partly-converted day should be converted with -delete
+// or the segment removed first, otherwise the records would be duplicated.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SegmentConvert {
+
+    public static void main(String[] args)
+    {
+        String period = SegmentWriter.DAILY;
+        boolean delete = false;
+        boolean index_only = false;
+        ArrayList<String> dirs = new ArrayList<String>();
+
+        for (String arg : args)
+        {
+            if (arg.equals("-hourly"))
+            {
+                period = SegmentWriter.HOURLY;
+            }
+            else if (arg.equals("-delete"))
+            {
+                delete = true;
+            }
+            else if (arg.equals("-index"))
+            {
+                index_only = true;
+            }
+            else
+            {
+                dirs.add(arg);
+            }
+        }
+
+        if (dirs.size() == 0)
+        {
+            System.err.println("Usage: SegmentConvert [-hourly] [-delete] [-index] <dir> ...");
+            System.exit(1);
+        }
+
+        int errors = 0;
+
+        for (String dir : dirs)
+        {
+            List<Path> day_dirs;
+            try (Stream<Path> paths = Files.walk(Paths.get(dir)))
+            {
+                day_dirs = paths.filter(Files::isDirectory)
+                                .filter(SegmentConvert::is_day_dir)
+                                .sorted()
+                                .collect(Collectors.toList());
+            }
+            catch (IOException e)
+            {
+                System.err.println("SegmentConvert: error reading "+dir+" "+e.getMessage());
+                errors++;
+                continue;
+            }
+
+            for (Path day_dir : day_dirs)
+            {
+                if (index_only ? !rebuild_index(day_dir) : !convert_day(day_dir, period, delete))
+                {
+                    errors++;
+                }
+            }
+        }
+
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    // *************************************************************************
+    // convert_day()
+    // Append every individual file in day_dir to the segment(s) for that day,
+    // returning false on error (in which case no files are deleted)
+    // *************************************************************************
+    public static boolean convert_day(Path day_dir, String period, boolean delete)
+    {
+        // data_bin root is three levels above yyyy/MM/dd
+        String base_path = day_dir.getParent().getParent().getParent().toString();
+
+        BinDir bin_dir;
+        try
+        {
+            bin_dir = new BinDir(day_dir.toString());
+        }
+        catch (IOException e)
+        {
+            System.err.println("SegmentConvert: error reading "+day_dir+" "+e.getMessage());
+            return false;
+        }
+
+        // the day's index is rebuilt after the conversion, so not appended per segment
+        SegmentWriter writer = new SegmentWriter(base_path, period, false);
+
+        ArrayList<Path> converted = new ArrayList<Path>();
+
+        try
+        {
+            for (BinDir.Entry entry : bin_dir.entries)
+            {
+                if (entry.offset >= 0)
+                {
+                    continue; // already a segment record
+                }
+                writer.append(entry.ts, entry.name, bin_dir.read(entry));
+                converted.add(Paths.get(entry.path));
+            }
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("SegmentConvert: error converting "+day_dir+" "+e.getMessage());
+            bin_dir.close();
+            return false;
+        }
+
+        bin_dir.close();
+
+        System.out.println("SegmentConvert: "+day_dir+" "+converted.size()+" files converted");
+
+        if (delete)
+        {
+            for (Path p : converted)
+            {
+                try
+                {
+                    Files.delete(p);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("SegmentConvert: error deleting "+p);
+                }
+            }
+        }
+
+        return rebuild_index(day_dir);
+    }
+
+    // *************************************************************************
+    // rebuild_index()
+    // Rewrite the .index of day_dir if it is not up to date, returning false on error
+    // *************************************************************************
+    public static boolean rebuild_index(Path day_dir)
+    {
+        try
+        {
+            new BinDir(day_dir.toString(), true).close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.err.println("SegmentConvert: error indexing "+day_dir+" "+e.getMessage());
+            return false;
+        }
+    }
+
+    // true if path ends in yyyy/MM/dd
+    private static boolean is_day_dir(Path p)
+    {
+        int n = p.getNameCount();
+        return n >= 3 &&
+               p.getName(n-3).toString().matches("\\d{4}") &&
+               p.getName(n-2).toString().matches("\\d{2}") &&
+               p.getName(n-1).toString().matches("\\d{2}");
+    }
+
+} // end class SegmentConvert
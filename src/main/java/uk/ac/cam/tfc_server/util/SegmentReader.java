@@ -0,0 +1,285 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// SegmentReader.java
+//
+// BLOCKING reader for the segment files written by SegmentWriter (see SegmentWriter.java for the
+// file format).
+//
+// On open the index footer is loaded if the segment has been closed, otherwise the records are
+// scanned (headers only) to build the same index, stopping at any partial final record.
+// Records can then be read sequentially (read(i) for i = 0..size()-1) or from a given time
+// using seek(ts_ms), which binary-searches the index.
+// The records are memory-mapped (read-only) on the first read, so reading a segment record
+// is a copy from the page cache rather than a read() syscall per record.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import io.vertx.core.buffer.Buffer;
+
+public class SegmentReader {
+
+    // A single record read from a segment
+    public static class Record {
+        public long ts;        // receive timestamp, UTC milliseconds
+        public String name;    // original filename without suffix
+        public Buffer data;    // data as received
+
+        public Record(long ts, String name, Buffer data)
+        {
+            this.ts = ts;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    private String path;
+    private FileChannel channel;
+
+    private long[] ts_index = new long[0];     // receive timestamp of each record
+    private long[] offset_index = new long[0]; // file offset of each record
+    private int count = 0;                     // number of records
+
+    private long data_end;  // offset after the last complete record
+
+    private MappedByteBuffer map = null; // records mapped on first read, if < 2GB
+
+    public SegmentReader(String segment_path) throws IOException
+    {
+        path = segment_path;
+
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+
+        ByteBuffer header = read_bytes(0, SegmentWriter.HEADER_SIZE);
+        if (header == null || !Arrays.equals(header.array(), SegmentWriter.MAGIC))
+        {
+            channel.close();
+            throw new IOException("SegmentReader: "+path+" is not a segment file");
+        }
+
+        if (!load_index())
+        {
+            scan_index();
+        }
+    }
+
+    // Return the path of this segment
+    public String get_path()
+    {
+        return path;
+    }
+
+    // Number of records in the segment
+    public int size()
+    {
+        return count;
+    }
+
+    // receive timestamp (UTC milliseconds) of record i
+    public long get_ts(int i)
+    {
+        return ts_index[i];
+    }
+
+    // file offset of record i
+    public long get_offset(int i)
+    {
+        return offset_index[i];
+    }
+
+    // file offset after the last complete record, i.e. where the next append would go
+    public long data_end()
+    {
+        return data_end;
+    }
+
+    // **********************************************************************
+    // seek()
+    // Return the index of the first record with ts >= ts_ms (binary search),
+    // or size() if all records are earlier.
+    // **********************************************************************
+    public int seek(long ts_ms)
+    {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (ts_index[mid] < ts_ms)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Read record i
+    public Record read(int i) throws IOException
+    {
+        return read_at(offset_index[i]);
+    }
+
+    // Read the record at file offset 'offset'
+    public Record read_at(long offset) throws IOException
+    {
+        if (map == null && data_end <= Integer.MAX_VALUE)
+        {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, data_end);
+        }
+
+        if (map != null && offset + SegmentWriter.RECORD_HEADER_SIZE <= data_end)
+        {
+            int p = (int) offset;
+            int data_length = map.getInt(p);
+            long ts = map.getLong(p + 4);
+            int name_length = map.getShort(p + 12) & 0xFFFF;
+
+            if (data_length < 0 || p + SegmentWriter.RECORD_HEADER_SIZE + name_length + (long) data_length > data_end)
+            {
+                throw new IOException("SegmentReader: "+path+" truncated record at "+offset);
+            }
+
+            ByteBuffer bb = map.duplicate();
+            bb.position(p + SegmentWriter.RECORD_HEADER_SIZE);
+
+            byte[] name_bytes = new byte[name_length];
+            bb.get(name_bytes);
+            byte[] data = new byte[data_length];
+            bb.get(data);
+
+            return new Record(ts, new String(name_bytes, StandardCharsets.UTF_8), Buffer.buffer(data));
+        }
+
+        ByteBuffer header = read_bytes(offset, SegmentWriter.RECORD_HEADER_SIZE);
+        if (header == null)
+        {
+            throw new IOException("SegmentReader: "+path+" bad record offset "+offset);
+        }
+        int data_length = header.getInt();
+        long ts = header.getLong();
+        int name_length = header.getShort() & 0xFFFF;
+
+        ByteBuffer body = read_bytes(offset + SegmentWriter.RECORD_HEADER_SIZE, name_length + data_length);
+        if (body == null)
+        {
+            throw new IOException("SegmentReader: "+path+" truncated record at "+offset);
+        }
+
+        String name = new String(body.array(), 0, name_length, StandardCharsets.UTF_8);
+
+        Buffer data = Buffer.buffer(Arrays.copyOfRange(body.array(), name_length, name_length + data_length));
+
+        return new Record(ts, name, data);
+    }
+
+    public void close() throws IOException
+    {
+        map = null;
+        channel.close();
+    }
+
+    // Load the index footer if the segment has a valid trailer, return false otherwise
+    private boolean load_index() throws IOException
+    {
+        long file_size = channel.size();
+        if (file_size < SegmentWriter.HEADER_SIZE + SegmentWriter.TRAILER_SIZE)
+        {
+            return false;
+        }
+
+        ByteBuffer trailer = read_bytes(file_size - SegmentWriter.TRAILER_SIZE, SegmentWriter.TRAILER_SIZE);
+        long index_offset = trailer.getLong();
+        int index_count = trailer.getInt();
+        byte[] magic = new byte[SegmentWriter.INDEX_MAGIC.length];
+        trailer.get(magic);
+
+        if (!Arrays.equals(magic, SegmentWriter.INDEX_MAGIC) ||
+            index_offset + (long) index_count * SegmentWriter.INDEX_ENTRY_SIZE + SegmentWriter.TRAILER_SIZE != file_size)
+        {
+            return false;
+        }
+
+        ByteBuffer bb = read_bytes(index_offset, index_count * SegmentWriter.INDEX_ENTRY_SIZE);
+
+        ts_index = new long[index_count];
+        offset_index = new long[index_count];
+        for (int i=0; i<index_count; i++)
+        {
+            ts_index[i] = bb.getLong();
+            offset_index[i] = bb.getLong();
+        }
+        count = index_count;
+        data_end = index_offset;
+        return true;
+    }
+
+    // Build the index by scanning the record headers from the start of the segment
+    private void scan_index() throws IOException
+    {
+        long file_size = channel.size();
+        long offset = SegmentWriter.HEADER_SIZE;
+
+        int capacity = 1024;
+        ts_index = new long[capacity];
+        offset_index = new long[capacity];
+        count = 0;
+
+        while (offset + SegmentWriter.RECORD_HEADER_SIZE <= file_size)
+        {
+            ByteBuffer header = read_bytes(offset, SegmentWriter.RECORD_HEADER_SIZE);
+            int data_length = header.getInt();
+            long ts = header.getLong();
+            int name_length = header.getShort() & 0xFFFF;
+
+            long next = offset + SegmentWriter.RECORD_HEADER_SIZE + name_length + data_length;
+            if (data_length < 0 || next > file_size)
+            {
+                break; // partial final record
+            }
+
+            if (count == capacity)
+            {
+                capacity *= 2;
+                ts_index = Arrays.copyOf(ts_index, capacity);
+                offset_index = Arrays.copyOf(offset_index, capacity);
+            }
+            ts_index[count] = ts;
+            offset_index[count] = offset;
+            count++;
+
+            offset = next;
+        }
+        data_end = offset;
+    }
+
+    // read 'length' bytes at 'offset', returning null if the file is too short
+    private ByteBuffer read_bytes(long offset, int length) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining())
+        {
+            int n = channel.read(bb, offset + bb.position());
+            if (n < 0)
+            {
+                return null;
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+} // end class SegmentReader
@@ -0,0 +1,369 @@
+package uk.ac.cam.tfc_server.util;
+
+// **********************************************************************************************
+// **********************************************************************************************
+// SegmentWriter.java
+//
+// Appends raw feed data records to 'segment' files, as an alternative to writing every received
+// message as its own file in data_bin/yyyy/MM/dd.
+//
+// A segment covers one local day ("daily") or one local hour ("hourly") and is stored as
+//   <data_bin>/yyyy/MM/dd/yyyy-MM-dd.seg      (daily)
+//   <data_bin>/yyyy/MM/dd/yyyy-MM-dd-HH.seg   (hourly)
+//
+// Segment file format (all integers big-endian):
+//
+//   header:  8 bytes  MAGIC "TFCSEG01"
+//
+//   records, each:
+//            int32    data length (n)
+//            int64    receive timestamp, UTC milliseconds
+//            int16    name length (m)
+//            m bytes  name (UTF-8), i.e. the filename the data would have had without its suffix,
+//                     e.g. "1459762951.123_2016-04-04-10-42-31"
+//            n bytes  data, exactly as received
+//
+//   index footer (written when the segment is closed, i.e. on rotation or close()), one entry per record:
+//            int64    receive timestamp, UTC milliseconds
+//            int64    file offset of record
+//
+//   trailer: int64    file offset of index footer
+//            int32    number of index entries
+//            8 bytes  INDEX_MAGIC "TFCSIDX1"
+//
+// A segment still being written (or left open after a crash) has no footer, and SegmentReader
+// will rebuild the index by scanning the records, ignoring any partial final record.
+// Re-opening an existing segment for append (e.g. after a restart) truncates any footer or partial
+// record and continues appending.
+// A new segment is added to the day directory's time index (see BinIndex), unless the
+// SegmentWriter is created with write_index false (e.g. the feed's data_index config is false).
+//
+// close() writes the footer of the current segment and ends the SegmentWriter: later appends
+// throw IOException, rather than re-opening a segment that would then never get its footer.
+// The writing verticle calls close() in its stop(), after its pending appends.
+//
+// The append() methods are BLOCKING, append_async() runs append() via vertx.executeBlocking()
+// (ordered, so records from one verticle are appended in the order received).
+// append_all() / append_all_async() append a batch of records, with one write per segment
+// (rather than per record) and one executeBlocking() for the batch.
+// **********************************************************************************************
+// **********************************************************************************************
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+public class SegmentWriter {
+
+    // values for the 'data_segment' config parameter
+    public static final String DAILY = "daily";
+    public static final String HOURLY = "hourly";
+
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final byte[] MAGIC = "TFCSEG01".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] INDEX_MAGIC = "TFCSIDX1".getBytes(StandardCharsets.US_ASCII);
+
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 14;  // int32 + int64 + int16
+    public static final int INDEX_ENTRY_SIZE = 16;    // int64 + int64
+    public static final int TRAILER_SIZE = 20;        // int64 + int32 + 8 bytes magic
+
+    private static final DateTimeFormatter DAY_DIR = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+    private static final DateTimeFormatter DAILY_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter HOURLY_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH");
+
+    private String base_path;  // data_bin root
+    private String period;     // DAILY | HOURLY
+    private boolean write_index; // add new segments to the day directory index
+
+    private String current_path = null;   // path of segment currently open, or null
+    private FileChannel channel = null;
+    private long position;                 // offset at which next record will be written
+
+    // in-memory index of current segment, written as the footer on close()
+    private ArrayList<long[]> index = new ArrayList<long[]>();
+
+    private boolean closed = false;        // set by close(), no more appends
+
+    public SegmentWriter(String base, String segment_period)
+    {
+        this(base, segment_period, true);
+    }
+
+    public SegmentWriter(String base, String segment_period, boolean write_index)
+    {
+        base_path = base;
+        period = HOURLY.equals(segment_period) ? HOURLY : DAILY;
+        this.write_index = write_index;
+    }
+
+    // return true if 'segment_period' is a valid 'data_segment' config value
+    public static boolean valid_period(String segment_period)
+    {
+        return DAILY.equals(segment_period) || HOURLY.equals(segment_period);
+    }
+
+    // return the segment path (relative to data_bin) for a given timestamp and period
+    // e.g. "2016/04/04/2016-04-04-10.seg"
+    public static String segment_path(long ts_ms, String segment_period)
+    {
+        ZonedDateTime local_time = Instant.ofEpochMilli(ts_ms).atZone(ZoneId.systemDefault());
+
+        DateTimeFormatter name_format = HOURLY.equals(segment_period) ? HOURLY_NAME : DAILY_NAME;
+
+        return local_time.format(DAY_DIR) + "/" + local_time.format(name_format) + SEGMENT_SUFFIX;
+    }
+
+    // *************************************************************************************
+    // append()
+    // BLOCKING append of a record to the appropriate segment, rotating to a new segment if
+    // ts_ms falls in a different day/hour from the segment currently open.
+    // *************************************************************************************
+    public synchronized void append(long ts_ms, String name, Buffer data) throws IOException
+    {
+        append(ts_ms, name, data.getBytes());
+    }
+
+    public synchronized void append(long ts_ms, String name, byte[] data) throws IOException
+    {
+        check_open();
+
+        String path = base_path + "/" + segment_path(ts_ms, period);
+
+        if (!path.equals(current_path))
+        {
+            close_segment();
+            open(path, ts_ms);
+        }
+
+        byte[] name_bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER_SIZE + name_bytes.length + data.length);
+        long record_offset = position;
+        put_record(bb, ts_ms, name_bytes, data);
+        bb.flip();
+
+        write(bb);
+
+        index.add(new long[] { ts_ms, record_offset });
+    }
+
+    // *************************************************************************************
+    // append_all()
+    // BLOCKING append of the records (ts_ms[i], names[i], data[i]), in order, rotating
+    // segments as append() would. Consecutive records for the same segment are written together.
+    // *************************************************************************************
+    public synchronized void append_all(long[] ts_ms, String[] names, Buffer[] data) throws IOException
+    {
+        check_open();
+
+        int i = 0;
+        while (i < ts_ms.length)
+        {
+            String path = base_path + "/" + segment_path(ts_ms[i], period);
+
+            if (!path.equals(current_path))
+            {
+                close_segment();
+                open(path, ts_ms[i]);
+            }
+
+            // the run of records i..end-1 for this segment
+            int end = i + 1;
+            while (end < ts_ms.length && path.equals(base_path + "/" + segment_path(ts_ms[end], period)))
+            {
+                end++;
+            }
+
+            byte[][] name_bytes = new byte[end - i][];
+            byte[][] data_bytes = new byte[end - i][];
+            int size = 0;
+            for (int r=i; r<end; r++)
+            {
+                name_bytes[r - i] = names[r].getBytes(StandardCharsets.UTF_8);
+                data_bytes[r - i] = data[r].getBytes();
+                size += RECORD_HEADER_SIZE + name_bytes[r - i].length + data_bytes[r - i].length;
+            }
+
+            ByteBuffer bb = ByteBuffer.allocate(size);
+            long record_offset = position;
+            for (int r=i; r<end; r++)
+            {
+                index.add(new long[] { ts_ms[r], record_offset + bb.position() });
+                put_record(bb, ts_ms[r], name_bytes[r - i], data_bytes[r - i]);
+            }
+            bb.flip();
+
+            write(bb);
+
+            i = end;
+        }
+    }
+
+    private void check_open() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("SegmentWriter "+base_path+" is closed");
+        }
+    }
+
+    // add a record to bb
+    private static void put_record(ByteBuffer bb, long ts_ms, byte[] name_bytes, byte[] data)
+    {
+        bb.putInt(data.length);
+        bb.putLong(ts_ms);
+        bb.putShort((short) name_bytes.length);
+        bb.put(name_bytes);
+        bb.put(data);
+    }
+
+    // write bb at the end of the current segment
+    private void write(ByteBuffer bb) throws IOException
+    {
+        while (bb.hasRemaining())
+        {
+            position += channel.write(bb, position);
+        }
+    }
+
+    // ***************************************************************************
+    // append_async()
+    // Non-blocking append(), handler is called on completion
+    // ***************************************************************************
+    public void append_async(Vertx vertx,
+                             long ts_ms,
+                             String name,
+                             Buffer data,
+                             Handler<AsyncResult<Void>> handler)
+    {
+        vertx.<Void>executeBlocking(fut -> {
+            try {
+                append(ts_ms, name, data);
+                fut.complete();
+            } catch (IOException e) {
+                fut.fail(e);
+            }
+        }, handler);
+    }
+
+    // ***************************************************************************
+    // append_all_async()
+    // Non-blocking append_all(), handler is called on completion
+    // ***************************************************************************
+    public void append_all_async(Vertx vertx,
+                                 long[] ts_ms,
+                                 String[] names,
+                                 Buffer[] data,
+                                 Handler<AsyncResult<Void>> handler)
+    {
+        vertx.<Void>executeBlocking(fut -> {
+            try {
+                append_all(ts_ms, names, data);
+                fut.complete();
+            } catch (IOException e) {
+                fut.fail(e);
+            }
+        }, handler);
+    }
+
+    // ************************************************************************
+    // close()
+    // BLOCKING write of the index footer and trailer, and close the segment.
+    // Any later append() throws IOException.
+    // ************************************************************************
+    public synchronized void close() throws IOException
+    {
+        closed = true;
+        close_segment();
+    }
+
+    // write the index footer and trailer of the current segment (if any) and close it
+    private void close_segment() throws IOException
+    {
+        if (channel == null)
+        {
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        for (long[] entry : index)
+        {
+            bb.putLong(entry[0]);
+            bb.putLong(entry[1]);
+        }
+        bb.putLong(position);
+        bb.putInt(index.size());
+        bb.put(INDEX_MAGIC);
+        bb.flip();
+
+        long p = position;
+        while (bb.hasRemaining())
+        {
+            p += channel.write(bb, p);
+        }
+
+        channel.close();
+        channel = null;
+        current_path = null;
+        index.clear();
+    }
+
+    // open (or re-open) a segment for appending, ts_ms is the timestamp of the first record
+    private void open(String path, long ts_ms) throws IOException
+    {
+        Path file_path = Paths.get(path);
+
+        Files.createDirectories(file_path.getParent());
+
+        if (Files.exists(file_path) && Files.size(file_path) > 0)
+        {
+            // existing segment: reload its index and truncate any footer or partial record
+            SegmentReader reader = new SegmentReader(path);
+            for (int i=0; i<reader.size(); i++)
+            {
+                index.add(new long[] { reader.get_ts(i), reader.get_offset(i) });
+            }
+            position = reader.data_end();
+            reader.close();
+
+            channel = FileChannel.open(file_path, StandardOpenOption.WRITE);
+            channel.truncate(position);
+        }
+        else
+        {
+            channel = FileChannel.open(file_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            ByteBuffer bb = ByteBuffer.wrap(MAGIC);
+            position = 0;
+            while (bb.hasRemaining())
+            {
+                position += channel.write(bb, position);
+            }
+
+            // add the new segment to the day directory index
+            if (write_index)
+            {
+                BinIndex.append_line(file_path.getParent().toString(), ts_ms, file_path.getFileName().toString());
+            }
+        }
+
+        current_path = path;
+    }
+
+} // end class SegmentWriter
@@ -25,10 +25,9 @@ public class Vehicle {
     // These are attributes that come from the position record
     public String vehicle_id;
 
-    // latest and previous position records
-    public JsonObject current_position_record;
-    public JsonObject prev_position_record;
-
+    // latest and previous positions (lat, lng, ts) from the position records. The records themselves
+    // are not kept, so a Vehicle is a fixed small size however long the Zone runs, and the two Position
+    // objects are reused for each update.
     public Position position;
     public Position prev_position;
     public boolean prev_within; // true if was within bounds at previous timestamp
@@ -36,20 +35,17 @@ public class Vehicle {
     // additional attributes used within this Zone
     public boolean init; // only true if this position has been initialized but not updated
     public boolean within; // true if within bounds at current timestamp
-    public Long start_ts; // timestamp of successful start (otherwise 0)
-    public Long start_ts_delta; // reliability indicator: (position.ts - prev_position.ts) at time of start
+    public long start_ts; // timestamp of successful start (otherwise 0)
+    public long start_ts_delta; // reliability indicator: (position.ts - prev_position.ts) at time of start
     public double distance; // distance travelled with zone (otherwise 0)
 
     // Initialize a new Vehicle object from a JSON position record
     Vehicle(String vehicle_id, JsonObject position_record)
     {
-        // initialize the position record 2-record stack
-        prev_position_record = new JsonObject();
-        current_position_record = position_record.copy();
-
         this.vehicle_id = vehicle_id;
 
-        position = get_position();
+        position = new Position();
+        set_position(position, position_record);
 
         init = true; // will be reset to false when this entry is updated
         within = false;
@@ -62,27 +58,24 @@ public class Vehicle {
     // update this existing Vehicle when a subsequent position_record has arrived
     public void update(JsonObject position_record)
     {
-        // push this position record onto our 2-record stack
-        prev_position_record = current_position_record.copy();
-        current_position_record = position_record.copy();
-
+        // current position becomes the previous one, and the old previous Position is reused
+        Position p = prev_position == null ? new Position() : prev_position;
         prev_position = position;
-        prev_within = within;
+        position = p;
+        set_position(position, position_record);
 
-        position = get_position();
+        prev_within = within;
 
         init = false;
     }
 
-    Position get_position()
+    // set p from position_record
+    static void set_position(Position p, JsonObject position_record)
     {
         // for ts, lat, lng we will use EITHER "acp_ts", "acp_lat", "acp_lng" (preferred) or the GTFS values
-        Position position = new Position();
-        position.ts = current_position_record.getLong(Constants.PLATFORM_PREFIX+"ts",current_position_record.getLong("timestamp"));
-        position.lat = current_position_record.getDouble(Constants.PLATFORM_PREFIX+"lat", current_position_record.getDouble("latitude"));
-        position.lng = current_position_record.getDouble(Constants.PLATFORM_PREFIX+"lng", current_position_record.getDouble("longitude"));
-        return position;
-    }    
+        p.ts = position_record.getLong(Constants.PLATFORM_PREFIX+"ts",position_record.getLong("timestamp"));
+        p.lat = position_record.getDouble(Constants.PLATFORM_PREFIX+"lat", position_record.getDouble("latitude"));
+        p.lng = position_record.getDouble(Constants.PLATFORM_PREFIX+"lng", position_record.getDouble("longitude"));
+    }
 
 } // end class Vehicle
-    
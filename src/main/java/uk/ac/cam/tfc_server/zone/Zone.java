@@ -4,12 +4,13 @@ package uk.ac.cam.tfc_server.zone;
 // *************************************************************************************************
 // *************************************************************************************************
 // Zone.java
-// Version 0.14
+// Version 0.18
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
 //
-// Subscribes to address ZONE_FEED and sends messages to ZONE_ADDRESS
+// Subscribes to address ZONE_FEED (or, with zone.feed_partition, the partitions of it around the zone,
+// see FeedPartitioner) and sends messages to ZONE_ADDRESS
 //
 // Zone sends the following messages to zone.address:
 
@@ -54,11 +55,24 @@ package uk.ac.cam.tfc_server.zone;
 //     "ts_delta": ts - prev_ts // duration of entry vector (in seconds)
 //   }
 
-// When a ZONE_UPDATE_REQUEST message is received, Zone sends the history of prior messages
+// Every zone.stats_period seconds (default 60, 0 for none), the rolling travel time statistics
+// of the completions in the last 5, 15 and 60 minutes of feed time (see ZoneStats)
+//   { "module_name": MODULE_NAME,
+//     "module_id": MODULE_ID,
+//     "msg_type": Constants.ZONE_STATS,
+//     "ts": ts, // latest position timestamp received
+//     "windows": { "5m": { "count": 3, "mean": 121.3, "p10": 97, "p50": 118, "p90": 151, "max": 151 },
+//                  "15m": {...}, "60m": {...} }
+//   }
+
+// When a ZONE_UPDATE_REQUEST message is received, Zone sends the history of prior completion messages
+// today (each with its "seq" number), or with "since_seq": N in the request only those after seq N
 //   { "module_name": MODULE_NAME,
 //        "module_id", MODULE_ID),
 //        "msg_type", Constants.ZONE_UPDATE,
-//        "msgs", [ <zone message>, <zone message> ... ]
+//        "msgs", [ <zone message>, <zone message> ... ],
+//        "seq": <seq of latest completion>,
+//        "reset": true if completions after since_seq have been dropped (new day), so replace not append
 //   }
 
 // *************************************************************************************************
@@ -71,21 +85,30 @@ import io.vertx.core.buffer.Buffer;
 import io.vertx.core.Handler;
 import io.vertx.core.file.FileSystem;
 import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
 
 import java.io.*;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 
 import uk.ac.cam.tfc_server.util.Log;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.zone.ZoneConfig; // also used by BatcherWorker for synchronous compute
 import uk.ac.cam.tfc_server.zone.ZoneCompute;// also used by BatcherWorker for synchronous compute
 import uk.ac.cam.tfc_server.zone.Vehicle;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Position;
+import uk.ac.cam.tfc_server.util.LatencyProbe;
 
 import uk.ac.cam.tfc_server.util.IMsgHandler; // Interface to provide handle_msg routine
+import uk.ac.cam.tfc_server.util.FeedMessageCodec;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
 
 // ********************************************************************************************
 // ********************************************************************************************
@@ -109,6 +132,10 @@ public class Zone extends AbstractVerticle {
     // Zone globals
     
     private EventBus eb = null;
+
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("address");
+
     private String tfc_data_zone = null;
 
     private HashMap<String, MsgHandler> msg_handlers;
@@ -137,6 +164,8 @@ public class Zone extends AbstractVerticle {
     // Initialization from config() complete
     
     eb = vertx.eventBus();
+    // feed messages use the FeedMessageCodec on the eventbus
+    FeedMessageCodec.register(vertx);
 
     msg_handlers = new HashMap<String, MsgHandler>();
 
@@ -169,6 +198,7 @@ public class Zone extends AbstractVerticle {
                  "{ \"module_name\": \""+zone_config.MODULE_NAME+"\"," +
                    "\"module_id\": \""+zone_config.MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -218,12 +248,21 @@ public class Zone extends AbstractVerticle {
 
         String ZONE_ADDRESS = request_msg.getString("zone.address");
 
+        MsgHandler mh = msg_handlers.get(ZONE_ADDRESS);
+        if (mh == null)
+        {
+            logger.log(Constants.LOG_WARN,zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                       ": update request for unknown zone.address "+ZONE_ADDRESS);
+            return;
+        }
+
         JsonObject msg = new JsonObject();
 
         msg.put("module_name", zone_config.MODULE_NAME); // "zone" don't really need this on ZONE_ADDRESS
         msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
         msg.put("msg_type", Constants.ZONE_UPDATE);
-        msg.put("msgs", msg_handlers.get(ZONE_ADDRESS).get_update());
+        // optional "since_seq": only the completions after the last one the client already has
+        mh.get_update(msg, request_msg.getLong("since_seq", 0L));
 
         // Send zone_completed message to common zone.address
         vertx.eventBus().publish(ZONE_ADDRESS, msg);
@@ -277,65 +316,156 @@ public class Zone extends AbstractVerticle {
 
               msg_handlers.put(ZONE_ADDRESS, mh);
 
+              // vehicles held by the ZoneCompute, and removed after zone.vehicle_idle seconds
+              metrics.gauge("vehicles", ZONE_ADDRESS, () -> zc.vehicle_count());
+              metrics.gauge("vehicles_evicted", ZONE_ADDRESS, () -> zc.evicted_count);
+
               // set up a handler for the actual vehicle position feed messages
-              vertx.eventBus().consumer(ZONE_FEED, eb_message -> {
+              Handler<Message<Object>> feed_handler = eb_message -> {
+
+                  metrics.inc("msgs_in", ZONE_FEED);
 
-                  JsonObject feed_message = new JsonObject(eb_message.body().toString());
+                  JsonObject feed_message = FeedMessageCodec.json_body(eb_message.body());
 
+                  long compute_start = System.nanoTime();
                   zc.handle_feed(feed_message);
-              });
+                  metrics.time("compute", ZONE_FEED, System.nanoTime() - compute_start);
+
+                  LatencyProbe.record("zone", feed_message);
+              };
+
+              for (String feed_address : feed_addresses(ZONE_FEED))
+              {
+                  vertx.eventBus().consumer(feed_address, feed_handler);
+              }
+
+              // publish the rolling travel time statistics every zone.stats_period seconds
+              if (zone_config.STATS_PERIOD > 0)
+              {
+                  vertx.setPeriodic(zone_config.STATS_PERIOD * 1000L, id -> {
+                      mh.publish_stats(zc.latest_ts);
+                  });
+              }
           }
     }
 
+    // The eventbus addresses to subscribe to for ZONE_FEED, i.e. ZONE_FEED itself or, with
+    // zone.feed_partition, the partitions of it needed by this zone (see FeedPartitioner)
+    private List<String> feed_addresses(String ZONE_FEED)
+    {
+        List<String> addresses;
+        if (zone_config.FEED_PARTITION.equals(FeedPartitioner.GRID))
+        {
+            addresses = FeedPartitioner.grid_addresses(ZONE_FEED, zone_config.PATH,
+                                                       zone_config.FEED_MARGIN, zone_config.FEED_GRID_DEG);
+        }
+        else if (zone_config.FEED_PARTITION.equals(FeedPartitioner.FEED_ID))
+        {
+            addresses = Collections.singletonList(FeedPartitioner.feed_address(ZONE_FEED, zone_config.FEED_ID));
+        }
+        else
+        {
+            addresses = Collections.singletonList(ZONE_FEED);
+        }
+
+        logger.log(Constants.LOG_INFO, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                   ": "+zone_config.FEED_PARTITION+" feed partition, "+addresses.size()+" address(es)");
+        return addresses;
+    }
+
     //*************************************************************************************
     // Class MsgBuffer
     //*************************************************************************************
     
     // Circular buffer to hold completion messages since start of day
     // Initially buffer fills with elements from buffer[0], buffer[1] etc
-    // and when buffer[SIZE] would be reached 'full' is set to 'true' and the write index is
-    // reset to zero.
+    // and when buffer[SIZE] would be reached the write index wraps to zero and each add
+    // overwrites the oldest entry.
     // So ordered complete set of entries are:
-    // full==false: buffer[0]..buffer[write_buffer-1]
-    // full==true:  buffer[write_buffer].. loop around end to buffer[write_buffer-1]
+    // count < SIZE: buffer[0]..buffer[write_index-1]
+    // count==SIZE:  buffer[write_index].. loop around end to buffer[write_index-1]
+    //
+    // Each message added is given the next sequence number (property "seq", from 1, never
+    // reused while the Zone runs), so a client can ask for just the messages after the last
+    // one it has (see json_array(since_seq)).
+    //
+    // The buffer is emptied when a message arrives with a "ts" after the end of the
+    // (PLATFORM_TIMEZONE) day of the messages held.
     class MsgBuffer {
         int SIZE;
-        JsonArray buffer;
+        JsonObject[] buffer;
+        int write_index = 0;    // where the next message will be stored
+        int count = 0;          // number of messages stored
+        long last_seq = 0;      // sequence number of the last message added
+        long day_end_ts = 0;    // end (exclusive, unix seconds) of the day of the messages held
+        long cleared_seq = 0;   // last_seq when the buffer was last cleared, i.e. the end of the previous day
 
         // initialize the object
         public MsgBuffer(int max_size)
         {
             SIZE = max_size;
-            buffer = new JsonArray();
+            buffer = new JsonObject[SIZE];
         }
 
-        // add a msg to the buffer
+        // add a msg to the buffer, overwriting the oldest if full
         public void add(JsonObject msg)
         {
-            //remove the first element if we've reached max size
-            if (buffer.size() == SIZE)
+            Long ts = msg.getLong("ts");
+            if (ts != null && ts >= day_end_ts)
+                {
+                    // first message of a new day
+                    clear();
+                    day_end_ts = Instant.ofEpochSecond(ts)
+                                        .atZone(Constants.PLATFORM_TIMEZONE)
+                                        .toLocalDate()
+                                        .plusDays(1)
+                                        .atStartOfDay(Constants.PLATFORM_TIMEZONE)
+                                        .toEpochSecond();
+                }
+
+            msg.put("seq", ++last_seq);
+
+            buffer[write_index] = msg;
+            write_index = (write_index + 1) % SIZE;
+            if (count < SIZE)
                 {
-                    buffer.remove(0);
+                    count++;
                 }
-            buffer.add(msg);
         }
 
-        // reset the buffer to empty
+        // reset the buffer to empty (sequence numbers continue)
         public void clear()
         {
-            buffer.clear();
+            cleared_seq = last_seq;
+            Arrays.fill(buffer, null);
+            write_index = 0;
+            count = 0;
         }
 
         // return the number of messages stored in the buffer
         public int size()
         {
-            return buffer.size();
+            return count;
         }
 
-        // return the entire buffer as a JsonArray in the correct order
-        public JsonArray json_array()
+        // return the sequence number of the oldest message stored (or last_seq+1 if empty)
+        public long first_seq()
         {
-            return buffer;
+            return last_seq - count + 1;
+        }
+
+        // return the messages with sequence number after since_seq as a new JsonArray,
+        // in the correct order (since_seq 0 gives the entire buffer)
+        public JsonArray json_array(long since_seq)
+        {
+            JsonArray msgs = new JsonArray();
+            // skip the messages the caller already has
+            long skip = Math.max(0L, Math.min(count, since_seq - first_seq() + 1));
+            for (long i = skip; i < count; i++)
+                {
+                    msgs.add(buffer[(int) ((write_index - count + i + SIZE) % SIZE)]);
+                }
+            return msgs;
         }
         
     } // end class MsgBuffer
@@ -355,12 +485,15 @@ public class Zone extends AbstractVerticle {
 
         MsgBuffer msg_buffer;
 
+        ZoneStats stats;
+
         MsgHandler(String s)
         {
             ZONE_ADDRESS = s;
             
             msg_buffer = new MsgBuffer(Constants.ZONE_BUFFER_SIZE);
             
+            stats = new ZoneStats();
         }
         
         // general handle_msg function, called by ZoneCompute
@@ -370,19 +503,51 @@ public class Zone extends AbstractVerticle {
                 {
                   // accumulate this Completion message in the ring buffer
                   msg_buffer.add(msg);
+                  // and in the rolling travel time statistics
+                  stats.add(msg.getLong("ts"), msg.getLong("duration"));
                 }
-            logger.log(Constants.LOG_DEBUG,zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
-                 ": sending msg to "+ ZONE_ADDRESS);
-            logger.log(Constants.LOG_DEBUG, msg.toString());
+            logger.log(Constants.LOG_DEBUG,() -> zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                       ": sending msg to "+ ZONE_ADDRESS);
+            logger.log(Constants.LOG_DEBUG, () -> msg.toString());
             //System.out.println("Zone handle_msg called with " + address);
             vertx.eventBus().publish(ZONE_ADDRESS, msg);
+            metrics.inc("msgs_out", ZONE_ADDRESS);
         }
 
         // Zone has received a ZONE_UPDATE_REQUEST message on the eb.manager eventbus address
-        // so return a JsonArray containing current message cache
-        public JsonArray get_update()
+        // so add the current message cache after since_seq to the ZONE_UPDATE msg
+        public void get_update(JsonObject msg, long since_seq)
+        {
+            // if the client's completions are from before the buffer was last cleared (a previous
+            // day, even if it has all of them), messages after since_seq are no longer held (buffer
+            // overflow), or since_seq is from before a restart of this Zone, send the whole buffer
+            // and the client should replace, rather than append to, the completions it has
+            boolean reset = since_seq <= msg_buffer.cleared_seq ||
+                            since_seq < msg_buffer.first_seq() - 1 ||
+                            since_seq > msg_buffer.last_seq;
+            msg.put("msgs", msg_buffer.json_array(reset ? 0L : since_seq));
+            msg.put("seq", msg_buffer.last_seq);
+            msg.put("reset", reset);
+        }
+
+        // publish a ZONE_STATS message with the rolling travel time statistics at now_ts
+        // (the latest feed time), if any positions have been received yet
+        public void publish_stats(long now_ts)
         {
-            return msg_buffer.json_array();
+            if (now_ts == 0)
+                {
+                    return;
+                }
+            JsonObject msg = new JsonObject();
+
+            msg.put("module_name", zone_config.MODULE_NAME);
+            msg.put("module_id", zone_config.MODULE_ID);
+            msg.put("msg_type", Constants.ZONE_STATS);
+            msg.put("ts", now_ts);
+            msg.put("windows", stats.to_json(now_ts));
+
+            vertx.eventBus().publish(ZONE_ADDRESS, msg);
+            metrics.inc("stats_out", ZONE_ADDRESS);
         }
 
     } // end class MsgHandler
@@ -5,9 +5,15 @@ package uk.ac.cam.tfc_server.zone;
 // Provides the compute/analysis elements of a Zone.
 // Used by Zone and BatcherWorker
 //
+// A Vehicle is kept for each vehicle_id in the feed, and removed when it has sent no position for
+// zone.vehicle_idle seconds of feed time (see evict_idle_vehicles()), so the memory used by a Zone
+// is bounded by the vehicles active in the feed rather than all the vehicles ever seen.
+//
 import uk.ac.cam.tfc_server.zone.ZoneConfig;
 import uk.ac.cam.tfc_server.zone.Vehicle;
 import uk.ac.cam.tfc_server.util.Position;
+import uk.ac.cam.tfc_server.util.Polygon;
+import uk.ac.cam.tfc_server.util.LocalDistance;
 import uk.ac.cam.tfc_server.util.Constants;
 import uk.ac.cam.tfc_server.util.Log;
 
@@ -19,6 +25,7 @@ import java.text.SimpleDateFormat; // for timestamp conversion to HH:MM:SS
 import java.time.LocalTime; // for timestamp duration conversion to HH:mm:ss
 import java.util.TimeZone;
 import java.util.HashMap;
+import java.util.Iterator;
 
 import uk.ac.cam.tfc_server.util.IMsgHandler; // Interface for message handling in caller
 
@@ -30,12 +37,20 @@ public class ZoneCompute {
 
     private HashMap<String, Vehicle> vehicles; // dictionary to store vehicle status updated from feed
     
-    private Box box;
+    private Polygon polygon; // the zone path, prepared for inside() tests
+
+    private LocalDistance local_distance; // for zone.distance "fast", otherwise null (haversine)
+
+    public long latest_ts = 0; // latest position record timestamp (feed time), e.g. for the ZoneStats windows
+
+    public long evicted_count = 0; // vehicles removed from 'vehicles' after zone.vehicle_idle seconds
+
+    private long next_evict_ts = 0; // feed time of the next evict_idle_vehicles() check
 
     private Log logger;
 
-    private final Long TS_DELTA_LIMIT = 350L; // if time delta (s) between consecutive position records is greater
-                                              // than TS_DELTA_LIMIT, then do NOT use record for Zone entry/exit
+    static final long TS_DELTA_LIMIT = 350L; // if time delta (s) between consecutive position records is greater
+                                             // than TS_DELTA_LIMIT, then do NOT use record for Zone entry/exit
     
     // zone_msg_buffer has a MsgBuffer entry for each zone.address
     //private HashMap<String, MsgBuffer> zone_msg_buffer; // stores zone completion messages since start of day
@@ -47,8 +62,13 @@ public class ZoneCompute {
         msg_handler = mh;
 
         vehicles = new HashMap<String, Vehicle>();
-        // create box object with boundaries of rectangle that includes this zone polygon
-        box = new Box();
+        // prepare the zone polygon (and its bounding box) for the inside() tests
+        polygon = new Polygon(zc.PATH);
+
+        if (zc.FAST_DISTANCE)
+        {
+            local_distance = LocalDistance.of(zc.CENTER);
+        }
         //zone_msg_buffer = new HashMap<String, MsgBuffer>();
 
         logger = new Log(zc.LOG_LEVEL);
@@ -73,18 +93,59 @@ public class ZoneCompute {
             position_records = feed_message.getJsonArray("request_data");
         }
 
-        logger.log(Constants.LOG_DEBUG, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
-                   ": handle_feed for "+zone_config.ZONE_NAME+" with "+position_records.size()+" position records");
+        logger.log(Constants.LOG_DEBUG, () -> zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                         ": handle_feed for "+zone_config.ZONE_NAME+" with "+position_records.size()+" position records");
 
         for (int i = 0; i < position_records.size(); i++)
             {
               JsonObject position_record = position_records.getJsonObject(i);
               update_vehicle(position_record);
             }
+
+        if (zone_config.VEHICLE_IDLE > 0 && latest_ts >= next_evict_ts)
+            {
+                evict_idle_vehicles();
+            }
+    }
+
+    // Remove the vehicles with no position record in the last zone.vehicle_idle seconds of feed time
+    // (latest_ts, so this also works for BatcherWorker replaying old data). Called from handle_feed()
+    // every quarter of the idle time, so each vehicle is removed within 1.25 * VEHICLE_IDLE of its last
+    // position. As VEHICLE_IDLE >= TS_DELTA_LIMIT, the next record of an evicted vehicle would not have
+    // been used for Zone entry/exit anyway, so it simply starts a new Vehicle. The only difference is
+    // that a vehicle silent for VEHICLE_IDLE after a zone_start loses that start, so leaving via the
+    // finish line is a zone_exit rather than a zone_completion including the silent time.
+    private void evict_idle_vehicles()
+    {
+        long idle_ts = latest_ts - zone_config.VEHICLE_IDLE;
+        int evicted = 0;
+        Iterator<Vehicle> it = vehicles.values().iterator();
+        while (it.hasNext())
+            {
+                Long ts = it.next().position.ts;
+                if (ts == null || ts < idle_ts)
+                    {
+                        it.remove();
+                        evicted++;
+                    }
+            }
+        evicted_count += evicted;
+        next_evict_ts = latest_ts + Math.max(1, zone_config.VEHICLE_IDLE / 4);
+
+        final int evicted_final = evicted;
+        logger.log(Constants.LOG_DEBUG, () -> zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
+                   ": "+zone_config.ZONE_NAME+" evicted "+evicted_final+" idle vehicles, "+vehicles.size()+" remaining");
+    }
+
+    // number of vehicles currently held
+    public int vehicle_count()
+    {
+        return vehicles.size();
     }
 
         // Update the vehicles[vehicle_id] record with this feed entry
-    private void update_vehicle(JsonObject position_record)
+        // (package-private for the bench/ ZoneComputeBenchmark)
+    void update_vehicle(JsonObject position_record)
     {
 
         // { "vehicle_id":"17147",
@@ -104,6 +165,10 @@ public class ZoneCompute {
       if (v == null)
           {
               v = new Vehicle(vehicle_id, position_record);
+              if (v.position.ts != null)
+                  {
+                      latest_ts = Math.max(latest_ts, v.position.ts);
+                  }
 
               logger.log(Constants.LOG_DEBUG, zone_config.MODULE_NAME+"."+zone_config.MODULE_ID+
                    ": "+zone_config.ZONE_NAME+" new vehicle "+vehicle_id+" at "+v.position.toString());
@@ -115,6 +180,7 @@ public class ZoneCompute {
 
       // These is existing position record for this vehicle, so update with the latest attributes from feed
       v.update(position_record);
+      latest_ts = Math.max(latest_ts, v.position.ts);
       // And set the flag for whether this vehicle is within this Zone
       v.within = inside(v.position);
 
@@ -149,16 +215,16 @@ public class ZoneCompute {
                       // i.e. the difference in timestamps between points when vehicle entered zone
                       v.start_ts_delta = v.position.ts - v.prev_position.ts;
                       // Calculate how far the vehicle has already travelled in the zone
-                      v.distance = i.position.distance(v.position);
+                      v.distance = distance(i.position, v.position);
 
                       // ZONE_START (entry via start line)
-                      zone_start(v);
+                      zone_start(v, position_record);
                       
                   }
               else
                   {
                       // ZONE_ENTRY (entry but not via start line)
-                      zone_entry(v);
+                      zone_entry(v, position_record);
                   }
           }
       // IS VEHICLE TRAVELLING WITHIN ZONE?
@@ -166,7 +232,7 @@ public class ZoneCompute {
           {
               // vehicle is continuing to travel within zone
               //System.out.println("Zone: vehicle_id("+vehicle_id+") inside zone "+ZONE_NAME);
-              v.distance += v.prev_position.distance(v.position);
+              v.distance += distance(v.prev_position, v.position);
           }
       // HAS VEHICLE EXITTED ZONE? either via the finish line (zone_completion) or not (zone_exit)
       else if (!v.within && v.prev_within)
@@ -178,24 +244,24 @@ public class ZoneCompute {
               if (i.success)
                   {
                       Long finish_ts = i.position.ts;
-                      v.distance += v.prev_position.distance(i.position);
+                      v.distance += distance(v.prev_position, i.position);
                       
                       // if we also have a good entry, then this is a successful COMPLETION
                       if (v.start_ts>0L)
                         {
                             // ZONE_COMPLETION
-                            zone_completion(v, finish_ts);
+                            zone_completion(v, position_record, finish_ts);
                         }
                       else
                         {
                             // ZONE_EXIT via finish line but no prior good start
-                            zone_finish_no_start(v, finish_ts);
+                            zone_finish_no_start(v, position_record, finish_ts);
                         }
                   }
               else
                   {
                       // ZONE EXIT but not via finish line
-                      zone_exit(v);
+                      zone_exit(v, position_record);
                   }
               
               // Reset the Zone start time for this vehicle
@@ -205,55 +271,15 @@ public class ZoneCompute {
           }
     }
 
+    // distance in m between p1 and p2, by haversine or (zone.distance "fast") LocalDistance
+    private double distance(Position p1, Position p2)
+    {
+        return local_distance == null ? p1.distance(p2) : local_distance.distance(p1, p2);
+    }
+
     // return true if Position p is INSIDE the Zone
-    // http://stackoverflow.com/questions/13950062/checking-if-a-longitude-latitude-coordinate-resides-inside-a-complex-polygon-in
     public boolean inside(Position p) {
-        // easy optimization - return false if position is outside bounding rectangle (box)
-        if (p.lat > box.north || p.lat < box.south || p.lng < box.west || p.lng > box.east)
-        return false;
-
-        Position lastPoint = zone_config.PATH.get(zone_config.PATH.size() - 1);
-        boolean isInside = false;
-        double x = p.lng;
-        for (int i=0; i<zone_config.PATH.size(); i++)
-        {
-            Position point = zone_config.PATH.get(i);
-            double x1 = lastPoint.lng;
-            double x2 = point.lng;
-            double dx = x2 - x1;
-
-            if (Math.abs(dx) > 180.0)
-            {
-                // we have, most likely, just jumped the dateline.  Normalise the numbers.
-                if (x > 0)
-                {
-                    while (x1 < 0)
-                    x1 += 360;
-                    while (x2 < 0)
-                    x2 += 360;
-                }
-                else
-                {
-                    while (x1 > 0)
-                    x1 -= 360;
-                    while (x2 > 0)
-                    x2 -= 360;
-                }
-                dx = x2 - x1;
-            }
-
-            if ((x1 <= x && x2 > x) || (x1 >= x && x2 < x))
-            {
-                double grad = (point.lat - lastPoint.lat) / dx;
-                double intersectAtLat = lastPoint.lat + ((x - x1) * grad);
-
-                if (intersectAtLat > p.lat)
-                isInside = !isInside;
-            }
-            lastPoint = point;
-        }
-
-        return isInside;
+        return polygon.contains(p.lat, p.lng);
     }
 
     // return a 'startline' Intersect
@@ -314,14 +340,16 @@ public class ZoneCompute {
     // ******************************************************************************************
     // ************* Handle each Zone event for current vehicle  ********************************
     // ************* i.e. ZONE_START, ZONE_COMPLETION, ZONE_EXIT ********************************
+    // ************* position_record is the feed record of the vehicle's latest position, ********
+    // ************* copied into the message as the feed records are shared and read-only ********
     // ******************************************************************************************
     // ******************************************************************************************
 
-    private void zone_start(Vehicle v)
+    private void zone_start(Vehicle v, JsonObject position_record)
     {
-        logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                          ") clean start at "+ts_to_time_str(v.start_ts) +
-                          " start_ts_delta " + v.start_ts_delta);
+        logger.log(Constants.LOG_DEBUG, () -> "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
+                                ") clean start at "+ts_to_time_str(v.start_ts) +
+                                " start_ts_delta " + v.start_ts_delta);
 
       // ****************************************
       // Send ZONE_START msg
@@ -333,7 +361,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_START);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record.copy());
       msg.put("ts", v.start_ts);
       msg.put("ts_delta", v.start_ts_delta);
 
@@ -341,11 +369,11 @@ public class ZoneCompute {
       msg_handler.handle_msg(msg);
     }
 
-    private void zone_entry(Vehicle v)
+    private void zone_entry(Vehicle v, JsonObject position_record)
     {
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                         ") early entry at "+ts_to_time_str(v.position.ts)+
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+      logger.log(Constants.LOG_DEBUG, () -> "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
+                               ") early entry at "+ts_to_time_str(v.position.ts)+
+                               " ts_delta " + (v.position.ts - v.prev_position.ts));
       // ****************************************
       // Send ZONE_ENTRY msg
       // ****************************************
@@ -356,7 +384,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_ENTRY);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record.copy());
       msg.put("ts", v.position.ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -364,7 +392,7 @@ public class ZoneCompute {
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_completion(Vehicle v, Long finish_ts)
+    private void zone_completion(Vehicle v, JsonObject position_record, Long finish_ts)
     {
 
       // exit completion message
@@ -381,7 +409,7 @@ public class ZoneCompute {
       String completed_log = "Zone: ,"+zone_config.MODULE_ID+",";
       completed_log += "COMPLETED,";
       completed_log += v.vehicle_id;
-      completed_log += v.current_position_record.toString()+",";
+      completed_log += position_record.toString()+",";
       completed_log += finish_ts+",";
       completed_log += duration+",";
       completed_log += v.distance+",";
@@ -404,7 +432,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_COMPLETION);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record.copy());
       msg.put("ts", finish_ts);
       msg.put("duration", duration);
       // note we send start_ts_delta + finish_ts_delta as the 'confidence' factor
@@ -417,12 +445,12 @@ public class ZoneCompute {
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_finish_no_start(Vehicle v, Long finish_ts)
+    private void zone_finish_no_start(Vehicle v, JsonObject position_record, Long finish_ts)
     {
       // output clean exit (no start) message
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                         ") clean exit (no start) at "+ts_to_time_str(finish_ts) +
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+      logger.log(Constants.LOG_DEBUG, () -> "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
+                               ") clean exit (no start) at "+ts_to_time_str(finish_ts) +
+                               " ts_delta " + (v.position.ts - v.prev_position.ts));
       // ****************************************
       // Send ZONE_EXIT msg
       // ****************************************
@@ -433,7 +461,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record.copy());
       msg.put("ts", finish_ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -441,11 +469,11 @@ public class ZoneCompute {
       msg_handler.handle_msg(msg);
     }
     
-    private void zone_exit(Vehicle v)
+    private void zone_exit(Vehicle v, JsonObject position_record)
     {
-      logger.log(Constants.LOG_DEBUG, "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
-                         ") early exit at "+ts_to_time_str(v.position.ts)+
-                         " ts_delta " + (v.position.ts - v.prev_position.ts));
+      logger.log(Constants.LOG_DEBUG, () -> "Zone: ,"+zone_config.MODULE_ID+",vehicle_id("+v.vehicle_id+
+                               ") early exit at "+ts_to_time_str(v.position.ts)+
+                               " ts_delta " + (v.position.ts - v.prev_position.ts));
       // ****************************************
       // Send ZONE_EXIT event message
       // ****************************************
@@ -456,7 +484,7 @@ public class ZoneCompute {
       msg.put("module_id", zone_config.MODULE_ID);     // e.g. "madingley_road_in"
       msg.put("msg_type", Constants.ZONE_EXIT);
       msg.put("vehicle_id", v.vehicle_id);
-      msg.put("position_record", v.current_position_record);
+      msg.put("position_record", position_record.copy());
       msg.put("ts", v.position.ts);
       msg.put("ts_delta", v.position.ts - v.prev_position.ts);
 
@@ -513,29 +541,4 @@ public class ZoneCompute {
         }
     } // end class Intersect
 
-    //*************************************************************************************
-    // Class Box - rectangle surrounding zone polygon, for fast 'within zone' exclusion
-    //*************************************************************************************
-    
-    // The Zone Boundary has a simplified boundary of a Box, i.e. a
-    // simple rectangle. This permits a fast initial test of
-    // whether a Position is outside the Zone. I.e. if
-    // a Position is outside the Box, it's outside the Zone.
-    class Box {
-        double north = -90;
-        double south = 90;
-        double east = -180;
-        double west = 180;
-
-        Box() {
-            for (int i=0; i<zone_config.PATH.size(); i++)
-            {
-                if (zone_config.PATH.get(i).lat > north) north = zone_config.PATH.get(i).lat;
-                if (zone_config.PATH.get(i).lat < south) south = zone_config.PATH.get(i).lat;
-                if (zone_config.PATH.get(i).lng > east) east = zone_config.PATH.get(i).lng;
-                if (zone_config.PATH.get(i).lng < west) west = zone_config.PATH.get(i).lng;
-            }
-        }
-    }
-
 }
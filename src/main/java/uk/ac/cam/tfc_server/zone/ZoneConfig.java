@@ -15,6 +15,7 @@ import io.vertx.core.json.JsonArray;
 import uk.ac.cam.tfc_server.util.Position;
 import uk.ac.cam.tfc_server.util.Log;
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.FeedPartitioner;
 
 public class ZoneConfig {
 
@@ -26,6 +27,18 @@ public class ZoneConfig {
     public int ZOOM;                 // config zone.zoom
     public int FINISH_INDEX;         // config zone.finish_index
 
+    // optional feed partition to subscribe to, rather than the whole of zone.feed (see FeedPartitioner)
+    public String FEED_PARTITION;    // config zone.feed_partition, "none" (default), "feed_id" or "grid"
+    public String FEED_ID;           // config zone.feed_id, for "feed_id"
+    public double FEED_GRID_DEG;     // config zone.feed_grid_deg, for "grid", as the feed publisher
+    public double FEED_MARGIN;       // config zone.feed_margin, for "grid", metres around the zone path
+
+    public boolean FAST_DISTANCE;    // config zone.distance, "fast" for LocalDistance, default "haversine"
+
+    public int STATS_PERIOD;         // config zone.stats_period, seconds between zone_stats messages, 0 for none
+
+    public long VEHICLE_IDLE;        // config zone.vehicle_idle, feed seconds before an idle vehicle is removed, 0 for never
+
     public int LOG_LEVEL;
     
     public boolean valid;
@@ -70,6 +83,57 @@ public class ZoneConfig {
         
         FINISH_INDEX = config.getInteger(MODULE_NAME+".finish_index");
 
+        FEED_PARTITION = config.getString(MODULE_NAME+".feed_partition", FeedPartitioner.NONE);
+        if (!FeedPartitioner.valid_mode(FEED_PARTITION))
+            {
+                Log.log_err("ZoneConfig: bad "+MODULE_NAME+".feed_partition "+FEED_PARTITION);
+                valid = false;
+                return;
+            }
+
+        FEED_ID = config.getString(MODULE_NAME+".feed_id");
+        if (FEED_PARTITION.equals(FeedPartitioner.FEED_ID) && FEED_ID==null)
+            {
+                Log.log_err("ZoneConfig: no "+MODULE_NAME+".feed_id for feed_partition feed_id");
+                valid = false;
+                return;
+            }
+
+        FEED_GRID_DEG = config.getDouble(MODULE_NAME+".feed_grid_deg", FeedPartitioner.GRID_DEG_DEFAULT);
+
+        // a vehicle is usually seen every 30 seconds or less, so 1km around the zone gives the
+        // positions before the start line and after the finish line
+        FEED_MARGIN = config.getDouble(MODULE_NAME+".feed_margin", 1000.0);
+
+        // distance travelled in the zone by the haversine formula or the local approximation (LocalDistance)
+        String distance = config.getString(MODULE_NAME+".distance", "haversine");
+        if (!distance.equals("haversine") && !distance.equals("fast"))
+            {
+                Log.log_err("ZoneConfig: bad "+MODULE_NAME+".distance "+distance);
+                valid = false;
+                return;
+            }
+        FAST_DISTANCE = distance.equals("fast");
+
+        STATS_PERIOD = config.getInteger(MODULE_NAME+".stats_period", 60);
+        if (STATS_PERIOD < 0)
+            {
+                Log.log_err("ZoneConfig: bad "+MODULE_NAME+".stats_period "+STATS_PERIOD);
+                valid = false;
+                return;
+            }
+
+        // a vehicle idle for longer than ZoneCompute.TS_DELTA_LIMIT has its next position ignored for
+        // entry/exit anyway, so shorter idle times are not allowed
+        VEHICLE_IDLE = config.getLong(MODULE_NAME+".vehicle_idle", 3600L);
+        if (VEHICLE_IDLE < 0 || (VEHICLE_IDLE > 0 && VEHICLE_IDLE < ZoneCompute.TS_DELTA_LIMIT))
+            {
+                Log.log_err("ZoneConfig: bad "+MODULE_NAME+".vehicle_idle "+VEHICLE_IDLE+
+                            " (0 or at least "+ZoneCompute.TS_DELTA_LIMIT+")");
+                valid = false;
+                return;
+            }
+
     }
     
 }
@@ -0,0 +1,179 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneStats.java
+//
+// Part of Zone package, rolling travel time statistics of the zone completions
+//
+// The completion durations (seconds) are counted in a histogram per minute (of the completion "ts")
+// for the last SLOTS (60) minutes, in a ring of minute slots. The statistics of a window (e.g.
+// the last 15 minutes) are those of the sum of its minute histograms, so the memory used is fixed
+// (SLOTS * BUCKET_COUNT counts) however many vehicles complete the zone.
+//
+// The histograms are log-linear as in util/LatencyHistogram, i.e. SUB_BUCKETS linear sub-buckets
+// per power of two, so durations are held to within 1/SUB_BUCKETS (~6%), and exactly below
+// SUB_BUCKETS seconds.
+//
+// Time is that of the feed (completion "ts", and the 'now' passed to to_json()), so the windows are
+// also correct when the Zone is processing a replayed feed.
+//
+// A ZoneStats is used on a single event loop (that of its Zone), so it needs no locking.
+
+import java.util.Arrays;
+
+import io.vertx.core.json.JsonObject;
+
+public class ZoneStats {
+
+    // rolling windows reported, in minutes
+    public static final int[] WINDOWS = { 5, 15, 60 };
+
+    // percentiles reported for each window
+    public static final int[] PERCENTILES = { 10, 50, 90 };
+
+    private static final int SLOTS = 60; // one per minute, at least the longest window
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 16 per power of two
+
+    private static final long MAX_DURATION = (1L << 14) - 1; // seconds (~4.5 hours), longer are counted as this
+
+    private static final int BUCKET_COUNT = (14 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final int[] counts = new int[SLOTS * BUCKET_COUNT]; // histogram of slot s at [s*BUCKET_COUNT..]
+
+    private final long[] slot_minute = new long[SLOTS];  // minute (ts/60) counted in each slot, -1 if none
+    private final int[] slot_count = new int[SLOTS];
+    private final long[] slot_sum = new long[SLOTS];
+    private final long[] slot_max = new long[SLOTS];
+
+    private final int[] window_counts = new int[BUCKET_COUNT]; // a window's histogram, reused by to_json()
+
+    public ZoneStats()
+    {
+        for (int s=0; s<SLOTS; s++)
+        {
+            slot_minute[s] = -1;
+        }
+    }
+
+    // ***********************************************************************************
+    // add()
+    // Count a completion of 'duration' seconds at 'ts'. Completions older than the minutes
+    // held are ignored.
+    // ***********************************************************************************
+    public void add(long ts, long duration)
+    {
+        long minute = ts / 60;
+        int s = (int) (minute % SLOTS);
+        if (slot_minute[s] != minute)
+        {
+            if (slot_minute[s] > minute)
+            {
+                return; // slot already holds a later minute
+            }
+            // reuse the slot for this minute
+            Arrays.fill(counts, s * BUCKET_COUNT, (s + 1) * BUCKET_COUNT, 0);
+            slot_minute[s] = minute;
+            slot_count[s] = 0;
+            slot_sum[s] = 0;
+            slot_max[s] = 0;
+        }
+
+        duration = Math.max(0, Math.min(duration, MAX_DURATION));
+        counts[s * BUCKET_COUNT + bucket_index(duration)]++;
+        slot_count[s]++;
+        slot_sum[s] += duration;
+        slot_max[s] = Math.max(slot_max[s], duration);
+    }
+
+    // ***********************************************************************************
+    // to_json()
+    // The statistics of each of the WINDOWS ending at now_ts, e.g.
+    //   { "5m":  { "count": 3, "mean": 121.3, "p10": 97, "p50": 118, "p90": 151, "max": 151 },
+    //     "15m": { ... },
+    //     "60m": { ... } }
+    // with durations in seconds (count 0 and no other properties for an empty window)
+    // ***********************************************************************************
+    public JsonObject to_json(long now_ts)
+    {
+        long now_minute = now_ts / 60;
+        JsonObject json = new JsonObject();
+        for (int window : WINDOWS)
+        {
+            Arrays.fill(window_counts, 0);
+            long count = 0;
+            long sum = 0;
+            long max = 0;
+            for (int s=0; s<SLOTS; s++)
+            {
+                // minutes now_minute-window+1 .. now_minute
+                if (slot_minute[s] > now_minute - window && slot_minute[s] <= now_minute)
+                {
+                    int base = s * BUCKET_COUNT;
+                    for (int i=0; i<BUCKET_COUNT; i++)
+                    {
+                        window_counts[i] += counts[base + i];
+                    }
+                    count += slot_count[s];
+                    sum += slot_sum[s];
+                    max = Math.max(max, slot_max[s]);
+                }
+            }
+
+            JsonObject window_json = new JsonObject();
+            window_json.put("count", count);
+            if (count > 0)
+            {
+                window_json.put("mean", Math.round(sum * 10.0 / count) / 10.0);
+                for (int p : PERCENTILES)
+                {
+                    window_json.put("p"+p, percentile(p, count, max));
+                }
+                window_json.put("max", max);
+            }
+            json.put(window+"m", window_json);
+        }
+        return json;
+    }
+
+    // the duration at percentile p of window_counts, i.e. the highest value equivalent to the
+    // bucket containing the p'th percentile, capped at the window max
+    private long percentile(int p, long count, long max)
+    {
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            seen += window_counts[i];
+            if (seen >= target)
+            {
+                return Math.min(highest_equivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    // bucket holding value v, 0 <= v <= MAX_DURATION
+    private static int bucket_index(long v)
+    {
+        if (v < SUB_BUCKETS)
+        {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // highest value counted in bucket i
+    private static long highest_equivalent(int i)
+    {
+        if (i < SUB_BUCKETS)
+        {
+            return i;
+        }
+        int shift = i / SUB_BUCKETS - 1;
+        return (((long) (SUB_BUCKETS + i % SUB_BUCKETS)) << shift) + (1L << shift) - 1;
+    }
+
+} // end class ZoneStats
@@ -4,13 +4,19 @@ package uk.ac.cam.tfc_server.zonemanager;
 // *************************************************************************************************
 // *************************************************************************************************
 // ZoneManager.java
-// Version 0.02
+// Version 0.04
 // Author: Ian Lewis ijl20@cam.ac.uk
 //
 // Forms part of the 'tfc_server' next-generation Realtime Intelligent Traffic Analysis system
 //
 // Listens to events on the EB_ZONE_MANAGER address and launches Zone verticles
 //
+// In a clustered deployment the zones can be shared between several ZoneManagers (e.g. one per node),
+// each with the same zonemanager.start list and its own zonemanager.partition_index of
+// zonemanager.partition_count: a ZoneManager only launches the zones whose zone_id hashes to its index.
+// With zonemanager.zone.feed_partition the zones subscribe to just the partitions of zone.feed
+// around them (see Zone and FeedPartitioner), so a node only receives the feed data its zones need.
+//
 // *************************************************************************************************
 // *************************************************************************************************
 // *************************************************************************************************
@@ -34,6 +40,7 @@ import java.time.format.*;
 import java.util.ArrayList;
 
 import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Metrics;
 import uk.ac.cam.tfc_server.util.Log;
 
 public class ZoneManager extends AbstractVerticle {
@@ -48,6 +55,11 @@ public class ZoneManager extends AbstractVerticle {
     
     private String ZONE_ADDRESS; // from config() - address for Zones to publish to
     private String ZONE_FEED; // from config() - address for Zones to subscribe to
+
+    private int PARTITION_INDEX; // from config() - this ZoneManager launches the zones of this partition
+    private int PARTITION_COUNT; // from config() - of this many (default 1, i.e. all the zones)
+
+    private JsonObject ZONE_OPTIONS; // from config() - optional zone.feed_* partition, zone.distance and zone.vehicle_idle settings for the Zones
     
     //debug get ZONE_NAME from Rita
     private final String ZONE_NAME = "zone"; 
@@ -60,6 +72,9 @@ public class ZoneManager extends AbstractVerticle {
     
     private EventBus eb = null;
 
+    // counters, gauges and timers reported in the system_status heartbeat
+    private Metrics metrics = new Metrics("zone_id");
+
   @Override
   public void start(Future<Void> fut) throws Exception {
 
@@ -93,12 +108,24 @@ public class ZoneManager extends AbstractVerticle {
 
     zone_conf.put(ZONE_NAME+".log_level", LOG_LEVEL);
 
+    // and optionally subscribe to partitions of that feed, use the fast distance, or set the vehicle idle time
+    for (String key : ZONE_OPTIONS.fieldNames())
+        {
+            zone_conf.put(ZONE_NAME+"."+key, ZONE_OPTIONS.getValue(key));
+        }
+
     // iterate through all the zones to be started
     for (int i=0; i<START_ZONES.size(); i++)
         {
             // get zone_id for this zone
             final String zone_id = START_ZONES.get(i);
 
+            // skip the zones launched by the ZoneManagers of the other partitions
+            if (Math.floorMod(zone_id.hashCode(), PARTITION_COUNT) != PARTITION_INDEX)
+                {
+                    continue;
+                }
+
             zone_conf.put("module.id", zone_id);
             
             // Each zone has a unique 'local' eventbus address which will be used for
@@ -127,10 +154,12 @@ public class ZoneManager extends AbstractVerticle {
 
             // rebroadcast all ZONE_COMPLETION messages from this Zone to ZONE_ADDRESS
             eb.consumer(ZONE_ADDRESS_LOCAL, msg -> {
+                    metrics.inc("msgs_in", zone_id);
                     JsonObject msg_body = new JsonObject(msg.body().toString());
                     if (msg_body.getString("msg_type").equals(Constants.ZONE_COMPLETION))
                         {
                             eb.publish(ZONE_ADDRESS, msg_body);
+                            metrics.inc("msgs_out", zone_id);
                         }
                 });
         }
@@ -141,6 +170,7 @@ public class ZoneManager extends AbstractVerticle {
                  "{ \"module_name\": \""+MODULE_NAME+"\"," +
                    "\"module_id\": \""+MODULE_ID+"\"," +
                    "\"status\": \"UP\"," +
+                   "\"metrics\": "+metrics.to_json()+"," +
                    "\"status_amber_seconds\": "+String.valueOf( SYSTEM_STATUS_AMBER_SECONDS ) + "," +
                    "\"status_red_seconds\": "+String.valueOf( SYSTEM_STATUS_RED_SECONDS ) +
                  "}" );
@@ -216,6 +246,27 @@ public class ZoneManager extends AbstractVerticle {
                                    ": no "+MODULE_NAME+".zone.feed in config()");
                 return false;
             }
+
+        PARTITION_COUNT = config().getInteger(MODULE_NAME+".partition_count", 1);
+        PARTITION_INDEX = config().getInteger(MODULE_NAME+".partition_index", 0);
+        if (PARTITION_COUNT < 1 || PARTITION_INDEX < 0 || PARTITION_INDEX >= PARTITION_COUNT)
+            {
+                System.err.println(MODULE_NAME+"."+MODULE_ID+
+                                   ": bad "+MODULE_NAME+".partition_index "+PARTITION_INDEX+
+                                   " of partition_count "+PARTITION_COUNT);
+                return false;
+            }
+
+        // zone.feed_partition, zone.feed_id, zone.feed_grid_deg, zone.feed_margin, zone.distance, zone.vehicle_idle for the Zones
+        ZONE_OPTIONS = new JsonObject();
+        for (String key : new String[] { "feed_partition", "feed_id", "feed_grid_deg", "feed_margin", "distance", "vehicle_idle" })
+            {
+                Object value = config().getValue(MODULE_NAME+".zone."+key);
+                if (value != null)
+                    {
+                        ZONE_OPTIONS.put(key, value);
+                    }
+            }
         
         return true;
     }
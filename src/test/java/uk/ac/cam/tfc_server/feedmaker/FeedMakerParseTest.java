@@ -0,0 +1,243 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// FeedMakerParseTest.java
+//
+// Two GET feeds polled by one FeedMaker from a local http server, one serving a ~10MB SiriVM-style
+// XML page (feed_xml_flat), the other a small page (feed_plain). As the feeds are parsed on the worker
+// pool (ParseQueue), the large page must not hold up the small feed: a small page served while the
+// large page is being parsed is published on the eventbus before the large page is.
+// The test checks the order of events rather than latencies, so it does not depend on the speed of
+// the machine. With the parse on the event loop the small page could only be published after the
+// large one.
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class FeedMakerParseTest extends TestCase
+{
+    static final int ROUNDS = 3; // small pages to be served while a large page is being parsed
+
+    static final long RUN_TIMEOUT_MS = 60000;
+
+    Vertx vertx;
+    File data_dir;
+
+    // "served" (a small page served while a large page is being parsed), "small" and "large"
+    // (published), appended on the http server / eventbus event loops
+    final List<String> events = new ArrayList<String>();
+
+    HttpServerResponse large_waiting = null;
+
+    final AtomicInteger served = new AtomicInteger();
+    final AtomicInteger large_published = new AtomicInteger();
+
+    // counted down when a large page is published after the last round was served
+    final CountDownLatch done = new CountDownLatch(1);
+
+    protected void setUp() throws Exception
+    {
+        vertx = Vertx.vertx();
+        data_dir = Files.createTempDirectory("feedmaker_test").toFile();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(res -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+        delete(data_dir);
+    }
+
+    public void testLargePageDoesNotDelayOtherFeed() throws Exception
+    {
+        Buffer large_page = page(40000);
+        Buffer small_page = page(10);
+        assertTrue("large page should be ~10MB", large_page.length() > 9000000);
+
+        int port = free_port();
+
+        // The feeds' polls are spread across the period, so to make them overlap the server holds
+        // each large page until the next small poll, then serves the small page as soon as the large
+        // page is seen being parsed. If the parse is missed (i.e. the large page is published first)
+        // the small page is served anyway and the round doesn't count.
+        HttpServer server = vertx.createHttpServer().requestHandler(request -> {
+            if (request.path().equals("/large"))
+            {
+                large_waiting = request.response();
+                return;
+            }
+            if (large_waiting == null || served.get() >= ROUNDS)
+            {
+                request.response().end(small_page);
+                return;
+            }
+            int published_before = large_published.get();
+            large_waiting.end(large_page);
+            large_waiting = null;
+            vertx.setPeriodic(1, id -> {
+                if (parsing(ParseFeedXMLFlat.class))
+                {
+                    vertx.cancelTimer(id);
+                    event("served");
+                    served.incrementAndGet();
+                    request.response().end(small_page);
+                }
+                else if (large_published.get() > published_before)
+                {
+                    vertx.cancelTimer(id);
+                    request.response().end(small_page);
+                }
+            });
+        });
+        CountDownLatch listening = new CountDownLatch(1);
+        server.listen(port, res -> listening.countDown());
+        assertTrue(listening.await(10, TimeUnit.SECONDS));
+
+        vertx.eventBus().consumer("test.large", msg -> {
+            event("large");
+            large_published.incrementAndGet();
+            if (served.get() >= ROUNDS)
+            {
+                done.countDown();
+            }
+        });
+        vertx.eventBus().consumer("test.small", msg -> event("small"));
+
+        JsonObject config = new JsonObject()
+            .put("module.name", "feedmaker")
+            .put("module.id", "test")
+            .put("eb.system_status", "test.system_status")
+            .put("eb.manager", "test.manager")
+            .put("feedmaker.log_level", 3)
+            .put("feedmaker.feeds", new JsonArray()
+                 .add(feed_config("large", "feed_xml_flat", port))
+                 .add(feed_config("small", "feed_plain", port)));
+
+        CountDownLatch deployed = new CountDownLatch(1);
+        vertx.deployVerticle(FeedMaker.class.getName(), new DeploymentOptions().setConfig(config), res -> {
+            if (res.succeeded())
+            {
+                deployed.countDown();
+            }
+        });
+        assertTrue("FeedMaker deployed", deployed.await(10, TimeUnit.SECONDS));
+
+        assertTrue("small page served during "+ROUNDS+" large parses "+events,
+                   done.await(RUN_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        synchronized (events)
+        {
+            // each small page served during a large parse is published, before that large page
+            int round = 0;
+            for (int i=0; i<events.size(); i++)
+            {
+                if (events.get(i).equals("served"))
+                {
+                    round++;
+                    int small = events.subList(i, events.size()).indexOf("small");
+                    int large = events.subList(i, events.size()).indexOf("large");
+                    assertTrue("round "+round+" small page published before the large page "+events,
+                               small > 0 && small < large);
+                }
+            }
+            assertEquals(events.toString(), ROUNDS, round);
+        }
+    }
+
+    void event(String event)
+    {
+        synchronized (events)
+        {
+            events.add(event);
+        }
+    }
+
+    // a thread is in parser_class.parse()
+    static boolean parsing(Class<?> parser_class)
+    {
+        for (StackTraceElement[] stack : Thread.getAllStackTraces().values())
+        {
+            for (StackTraceElement frame : stack)
+            {
+                if (frame.getClassName().equals(parser_class.getName()) && frame.getMethodName().equals("parse"))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    JsonObject feed_config(String feed_id, String feed_type, int port)
+    {
+        return new JsonObject()
+            .put("feed_id", feed_id)
+            .put("feed_type", feed_type)
+            .put("tag_record", "VehicleActivity")
+            .put("msg_type", "feed_bus_position")
+            .put("address", "test."+feed_id)
+            .put("http.get", true)
+            .put("http.host", "localhost")
+            .put("http.port", port)
+            .put("http.uri", "/"+feed_id)
+            .put("period", 1)
+            .put("period_max", 1)
+            .put("period_fail_max", 1)
+            .put("period_jitter", 0.0)
+            .put("data_bin", data_dir+"/"+feed_id+"/data_bin")
+            .put("data_monitor", data_dir+"/"+feed_id+"/data_monitor");
+    }
+
+    // SiriVM-style page of 'records' VehicleActivity records, ~250 bytes each
+    static Buffer page(int records)
+    {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><Siri><ServiceDelivery><VehicleMonitoringDelivery>\n");
+        for (int i=0; i<records; i++)
+        {
+            sb.append("<VehicleActivity><RecordedAtTime>2017-11-20T09:30:00+00:00</RecordedAtTime>")
+              .append("<VehicleRef>V").append(i).append("</VehicleRef><LineRef>").append(i % 50).append("</LineRef>")
+              .append("<Longitude>0.").append(100000 + i).append("</Longitude><Latitude>52.").append(200000 + i)
+              .append("</Latitude><Bearing>90</Bearing><Delay>PT0S</Delay></VehicleActivity>\n");
+        }
+        sb.append("</VehicleMonitoringDelivery></ServiceDelivery></Siri>\n");
+        return Buffer.buffer(sb.toString());
+    }
+
+    static int free_port() throws IOException
+    {
+        try (ServerSocket s = new ServerSocket(0))
+        {
+            return s.getLocalPort();
+        }
+    }
+
+    static void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null)
+        {
+            for (File c : children)
+            {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,335 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// ParseFeedXMLFlatTest.java
+//
+// The single-pass ParseFeedXMLFlat compared with the original String-searching parser (reference_parse()
+// below) on the SiriVM fixture and on mutated copies of it, plus the malformed input where the two
+// deliberately differ (a self-closed tag inside a record, a stray '<' in a value) and the "tag_fields"
+// projection.
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+
+public class ParseFeedXMLFlatTest extends TestCase
+{
+    static final String SIRIVM_XML = "/fixtures/sirivm.xml";
+
+    static final int MUTANTS = 200;
+
+    Log logger = new Log(Constants.LOG_WARN);
+
+    String page;
+
+    protected void setUp() throws Exception
+    {
+        page = TemplateScannerTest.resource(SIRIVM_XML);
+    }
+
+    public void testFixtureMatchesReference()
+    {
+        JsonObject config = config();
+        JsonArray records = parse(config, page);
+
+        assertEquals(120, records.size());
+        assertEquals(reference_parse(config, page).encode(), records.encode());
+
+        // without a tag_map
+        config.remove("tag_map");
+        assertEquals(reference_parse(config, page).encode(), parse(config, page).encode());
+
+        // the tag_map properties
+        JsonObject first = records.getJsonObject(0);
+        assertEquals("SCNH-18514", first.getString("acp_id"));
+        assertEquals(Long.valueOf(1511170240), first.getLong("acp_ts"));
+        assertEquals("2017-11-20T09:30:40Z", first.getString("valid_utc"));
+        assertEquals(Long.valueOf(210), first.getLong("bearing"));
+        assertEquals(52.2472208, first.getDouble("acp_lat"), 0);
+    }
+
+    // Mutations that keep each tag whole (deleted, duplicated or moved tags and text, text characters
+    // replaced, the page truncated), i.e. without a stray '<' or a self-closed tag where the parsers differ
+    public void testMutatedPagesMatchReference()
+    {
+        JsonObject config = config();
+        ParseFeedXMLFlat parser = new ParseFeedXMLFlat(config, logger);
+        Random random = new Random(41);
+
+        ArrayList<String> tokens = tokens(page);
+        for (int i=0; i<MUTANTS; i++)
+        {
+            String mutant = mutate(tokens, random);
+            assertEquals("mutant "+i,
+                         reference_parse(config, mutant).encode(),
+                         parser.parse(Buffer.buffer(mutant)).getJsonArray("request_data").encode());
+        }
+    }
+
+    // a self-closed <Empty/> is skipped, where the original parser ended the record's properties
+    public void testSelfClosedTag()
+    {
+        String xml = "<VehicleActivity><A>1</A><Empty/><B>2</B></VehicleActivity>"+
+                     "<VehicleActivity><Empty /><C>3</C></VehicleActivity>";
+
+        JsonArray records = parse(config(), xml);
+        assertEquals("[{\"A\":\"1\",\"B\":\"2\"},{\"C\":\"3\"}]", records.encode());
+
+        assertEquals("[{\"A\":\"1\"},{}]", reference_parse(config(), xml).encode());
+
+        // a self-closed record tag does not start a record
+        assertEquals("[{\"D\":\"4\"}]",
+                     parse(config(), "<VehicleActivity/><D>0</D><VehicleActivity><D>4</D></VehicleActivity>").encode());
+    }
+
+    // a stray '<' in a value no longer hides the tag that follows it
+    public void testStrayLessThan()
+    {
+        String xml = "<VehicleActivity><A>1 < 2</A><B>2</B></VehicleActivity>";
+
+        assertEquals("[{\"A\":\"1 < 2\",\"B\":\"2\"}]", parse(config(), xml).encode());
+
+        assertEquals("[{\"B\":\"2\"}]", reference_parse(config(), xml).encode());
+
+        // and an unterminated '<' ends the page
+        assertEquals("[{\"A\":\"1\"}]",
+                     parse(config(), "<VehicleActivity><A>1</A></VehicleActivity><VehicleActivity><B>2</B><C").encode());
+    }
+
+    // "tag_fields" limits the copied properties, the tag_map properties are still added
+    public void testTagFields()
+    {
+        JsonArray all = parse(config(), page);
+
+        JsonObject config = config().put("tag_fields", new JsonArray().add("VehicleRef").add("LineRef"));
+        JsonArray records = parse(config, page);
+
+        assertEquals(all.size(), records.size());
+        for (int i=0; i<records.size(); i++)
+        {
+            JsonObject full = all.getJsonObject(i);
+            JsonObject expected = new JsonObject();
+            for (String name : new String[] { "LineRef", "VehicleRef",
+                                              "acp_ts", "acp_lat", "acp_lng", "acp_id", "valid_utc", "bearing" })
+            {
+                if (full.containsKey(name))
+                {
+                    expected.put(name, full.getValue(name));
+                }
+            }
+            assertEquals("record "+i, expected, records.getJsonObject(i));
+        }
+        assertTrue(records.getJsonObject(0).containsKey("VehicleRef"));
+        assertFalse(records.getJsonObject(0).containsKey("RecordedAtTime"));
+    }
+
+    JsonArray parse(JsonObject config, String xml)
+    {
+        return new ParseFeedXMLFlat(config, logger).parse(Buffer.buffer(xml)).getJsonArray("request_data");
+    }
+
+    // the SiriVM feed config, with every tag_map format
+    static JsonObject config()
+    {
+        JsonArray tag_map = new JsonArray()
+            .add(tag("RecordedAtTime", "acp_ts", "datetime_iso_to_int_utc_seconds"))
+            .add(tag("ValidUntilTime", "valid_utc", "datetime_iso_to_utc"))
+            .add(tag("Latitude", "acp_lat", "float"))
+            .add(tag("Longitude", "acp_lng", "float"))
+            .add(tag("Bearing", "bearing", "int"))
+            .add(tag("VehicleMonitoringRef", "acp_id", "string"));
+
+        return new JsonObject()
+            .put("feed_type", Constants.FEED_XML_FLAT)
+            .put("tag_record", "VehicleActivity")
+            .put("tag_map", tag_map);
+    }
+
+    static JsonObject tag(String original_tag, String new_tag, String format)
+    {
+        return new JsonObject().put("original_tag", original_tag).put("new_tag", new_tag).put("format", format);
+    }
+
+    // split 'xml' into <..> tags and the text between them
+    static ArrayList<String> tokens(String xml)
+    {
+        ArrayList<String> tokens = new ArrayList<String>();
+        int i = 0;
+        while (i < xml.length())
+        {
+            int end = xml.charAt(i) == '<' ? xml.indexOf('>', i) + 1 : xml.indexOf('<', i);
+            if (end <= 0)
+            {
+                end = xml.length();
+            }
+            tokens.add(xml.substring(i, end));
+            i = end;
+        }
+        return tokens;
+    }
+
+    static String mutate(ArrayList<String> page_tokens, Random random)
+    {
+        final String junk = " x0.-:TZ+";
+        ArrayList<String> tokens = new ArrayList<String>(page_tokens);
+        int edits = 1 + random.nextInt(6);
+        for (int e=0; e<edits; e++)
+        {
+            int i = random.nextInt(tokens.size());
+            switch (random.nextInt(5))
+            {
+                case 0:
+                    tokens.remove(i);
+                    break;
+                case 1:
+                    tokens.add(i, tokens.get(i));
+                    break;
+                case 2:
+                    tokens.add(random.nextInt(tokens.size()), tokens.remove(i));
+                    break;
+                case 3:
+                    String text = tokens.get(i);
+                    if (text.length() > 0 && text.charAt(0) != '<')
+                    {
+                        StringBuilder sb = new StringBuilder(text);
+                        sb.setCharAt(random.nextInt(sb.length()), junk.charAt(random.nextInt(junk.length())));
+                        tokens.set(i, sb.toString());
+                    }
+                    break;
+                default:
+                    if (random.nextInt(4) == 0)
+                    {
+                        tokens.subList(i, tokens.size()).clear();
+                    }
+                    break;
+            }
+        }
+        return String.join("", tokens);
+    }
+
+    // ************************************************************************************************
+    // ParseFeedXMLFlat.parse() before the single-pass parser, without its logging
+    // ************************************************************************************************
+    static JsonArray reference_parse(JsonObject config, String page)
+    {
+        String tag_record = config.getString("tag_record", "");
+
+        HashMap<String,JsonObject> tag_map = new HashMap<String,JsonObject>();
+        JsonArray config_map = config.getJsonArray("tag_map", new JsonArray());
+        for (int i=0; i<config_map.size(); i++)
+        {
+            tag_map.put(config_map.getJsonObject(i).getString("original_tag"), config_map.getJsonObject(i));
+        }
+
+        JsonArray records = new JsonArray();
+
+        int record_cursor = 0;
+        while (record_cursor < page.length())
+        {
+            JsonObject json_record = new JsonObject();
+            record_cursor = page.indexOf("<"+tag_record+">", record_cursor);
+            if (record_cursor < 0)
+            {
+                break;
+            }
+            int record_end = page.indexOf("</"+tag_record+">", record_cursor);
+            if (record_end < 0)
+            {
+                break;
+            }
+
+            String current_tag = "";
+
+            while (record_cursor < record_end)
+            {
+                int next_cursor = page.indexOf("<", record_cursor);
+                if (next_cursor >= record_end)
+                {
+                    record_cursor = record_end;
+                    break;
+                }
+                int tag_close = page.indexOf(">", next_cursor);
+                if (tag_close < 0)
+                {
+                    record_cursor = page.length();
+                    break;
+                }
+
+                if (page.substring(tag_close - 1, tag_close).equals("/"))
+                {
+                    record_cursor = tag_close;
+                    break;
+                }
+
+                int tag_space = page.indexOf(" ", next_cursor);
+
+                int tag_end = (tag_space > 0) && (tag_space < tag_close) ? tag_space : tag_close;
+                if (tag_end < record_end)
+                {
+                    String next_tag = page.substring(++next_cursor, tag_end);
+                    if (next_tag.equals("/"+current_tag))
+                    {
+                        String current_value = page.substring(record_cursor+1, next_cursor-1);
+
+                        json_record.put(current_tag, current_value);
+
+                        if (tag_map.containsKey(current_tag))
+                        {
+                            json_record.mergeIn(transform(tag_map.get(current_tag), current_value));
+                        }
+                    }
+
+                    current_tag = next_tag;
+                    record_cursor = tag_close;
+                }
+                else
+                {
+                    record_cursor = record_end;
+                }
+            }
+
+            records.add(json_record);
+            record_cursor = record_end;
+        }
+        return records;
+    }
+
+    // the original TagTransform.transform(), with java.time for the datetime formats
+    static JsonObject transform(JsonObject tag_config, String input_value)
+    {
+        String output_tag = tag_config.getString("new_tag");
+        JsonObject jo = new JsonObject();
+        try {
+            switch (tag_config.getString("format"))
+            {
+                case "int":
+                    jo.put(output_tag, Long.parseLong(input_value));
+                    break;
+                case "float":
+                    jo.put(output_tag, Double.parseDouble(input_value));
+                    break;
+                case "datetime_iso_to_utc":
+                    jo.put(output_tag, Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).toString());
+                    break;
+                case "datetime_iso_to_int_utc_seconds":
+                    jo.put(output_tag, Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(input_value)).getEpochSecond());
+                    break;
+                default:
+                    jo.put(output_tag, input_value);
+                    break;
+            }
+        }
+        catch (Exception e) {;}
+        return jo;
+    }
+}
@@ -0,0 +1,306 @@
+package uk.ac.cam.tfc_server.feedmaker;
+
+// TemplateScannerTest.java
+//
+// The compiled TemplateScanner compared with the original ParseFeedText loop (reference_parse() below,
+// applying each RecordTemplate in turn) on the car park fixture pages and randomly mutated copies of
+// them, for each ParseFeedText feed type, and on a synthetic template set using every field type.
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+import uk.ac.cam.tfc_server.util.Log;
+
+public class TemplateScannerTest extends TestCase
+{
+    static final String[] FIXTURES = { "/fixtures/cam_park_local.html", "/fixtures/cam_park_rss.xml" };
+
+    static final String[] FEED_TYPES = { "cam_park_local", "cam_park_rss", "cam_park_carpark" };
+
+    static final int MUTANTS = 200; // mutated copies of each page
+
+    Log logger = new Log(Constants.LOG_WARN);
+
+    public void testFixturesMatchReference() throws Exception
+    {
+        for (String feed_type : FEED_TYPES)
+        {
+            List<ParseFeedText.RecordTemplate> templates = templates(feed_type);
+            TemplateScanner scanner = new TemplateScanner(templates, logger);
+
+            for (String fixture : FIXTURES)
+            {
+                String page = resource(fixture);
+                assertEquals(feed_type+" "+fixture,
+                             reference_parse(templates, page).encode(),
+                             scanner.parse(page).encode());
+            }
+        }
+
+        // and the fixtures parse to some records for their own feed type
+        assertTrue(new TemplateScanner(templates("cam_park_local"), logger)
+                       .parse(resource(FIXTURES[0])).size() > 0);
+        assertTrue(new TemplateScanner(templates("cam_park_rss"), logger)
+                       .parse(resource(FIXTURES[1])).size() > 0);
+    }
+
+    public void testMutatedPagesMatchReference() throws Exception
+    {
+        Random random = new Random(40);
+
+        for (String feed_type : FEED_TYPES)
+        {
+            List<ParseFeedText.RecordTemplate> templates = templates(feed_type);
+            TemplateScanner scanner = new TemplateScanner(templates, logger);
+
+            for (String fixture : FIXTURES)
+            {
+                String page = resource(fixture);
+                for (int i=0; i<MUTANTS; i++)
+                {
+                    String mutant = mutate(page, random);
+                    assertEquals(feed_type+" "+fixture+" mutant "+i,
+                                 reference_parse(templates, mutant).encode(),
+                                 scanner.parse(mutant).encode());
+                }
+            }
+        }
+    }
+
+    // every field type, shared tag_start, calc on missing / string operands, duplicate field names
+    public void testAllFieldTypes()
+    {
+        ArrayList<ParseFeedText.RecordTemplate> templates = new ArrayList<ParseFeedText.RecordTemplate>();
+
+        ArrayList<ParseFeedText.FieldTemplate> fields = new ArrayList<ParseFeedText.FieldTemplate>();
+        fields.add(field("id", "fixed_string", "A", 0, null, null, false));
+        fields.add(field("capacity", "fixed_int", null, 100, null, null, false));
+        fields.add(field("free", "int", null, 0, "<free>", "</free>", true));
+        fields.add(field("used", "calc_minus", null, 0, "capacity", "free", false));
+        fields.add(field("total", "calc_plus", null, 0, "used", "free", true));
+        fields.add(field("full", "conditional_fixed_int", null, 1, "FULL", null, false));
+        fields.add(field("name", "string", null, 0, "<name>", "</name>", false));
+        fields.add(field("name_calc", "calc_plus", null, 0, "name", "free", false));
+        fields.add(field("other", "unknown_type", null, 0, "<other>", "</other>", false));
+        fields.add(field("free", "string", null, 0, "<free>", "</free>", false));
+        templates.add(template("<park id=A>", "</park>", fields));
+
+        fields = new ArrayList<ParseFeedText.FieldTemplate>();
+        fields.add(field("id", "fixed_string", "A2", 0, null, null, false));
+        fields.add(field("long", "string", null, 0, "<long>", "</long>", false));
+        fields.add(field("missing", "int", null, 0, "<missing>", "</missing>", false));
+        fields.add(field("free", "int", null, 0, "<free>", "</free>", false));
+        templates.add(template("<park id=A>", "</park>", fields));
+
+        fields = new ArrayList<ParseFeedText.FieldTemplate>();
+        fields.add(field("id", "fixed_string", "B", 0, null, null, false));
+        fields.add(field("free", "int", null, 0, "<free>", "</free>", true));
+        templates.add(template("<park id=B>", "</park>", fields));
+
+        TemplateScanner scanner = new TemplateScanner(templates, logger);
+
+        String[] pages = {
+            "<park id=A><name>Grafton</name><free>42</free> FULL <other>x</other>"+
+                "<long>0123456789012345678901234567890123456789012345</long></park>"+
+                "<park id=B><free>7</free></park>",
+            "<park id=A><free>nan</free></park><park id=B><free>x</free></park>",
+            "<park id=A><free>5</free>",
+            "<park id=B><free>1</free></park><park id=A><free>2</free></park>",
+            ""
+        };
+
+        for (String page : pages)
+        {
+            assertEquals(page, reference_parse(templates, page).encode(), scanner.parse(page).encode());
+        }
+
+        JsonObject a = scanner.parse(pages[0]).getJsonObject(0);
+        assertEquals(Integer.valueOf(58), a.getInteger("used"));
+        assertEquals(Integer.valueOf(100), a.getInteger("total"));
+        assertEquals(Integer.valueOf(1), a.getInteger("full"));
+        assertEquals("42", a.getString("free"));
+    }
+
+    // ************************************************************************************************
+    // The ParseFeedText.parse() record loop before TemplateScanner, without its debug logging
+    // ************************************************************************************************
+    static JsonArray reference_parse(List<ParseFeedText.RecordTemplate> record_templates, String page)
+    {
+        JsonArray records = new JsonArray();
+
+        for (ParseFeedText.RecordTemplate record_template : record_templates)
+        {
+            int rec_start = page.indexOf(record_template.tag_start);
+            if (rec_start < 0) continue;
+
+            int rec_end = page.indexOf(record_template.tag_end, rec_start);
+            if (rec_end < 0) continue;
+
+            String record = page.substring(rec_start, rec_end);
+
+            JsonObject json_record = new JsonObject();
+
+            boolean record_ok = true;
+
+            for (ParseFeedText.FieldTemplate field_template : record_template.fields)
+            {
+                String type = field_template.field_type;
+
+                if (type.equals("fixed_int"))
+                {
+                    json_record.put(field_template.field_name, field_template.fixed_int);
+                    continue;
+                }
+                else if (type.equals("conditional_fixed_int"))
+                {
+                    if (record.indexOf(field_template.s1) >= 0)
+                    {
+                        json_record.put(field_template.field_name, field_template.fixed_int);
+                    }
+                    continue;
+                }
+                else if (type.equals("fixed_string"))
+                {
+                    json_record.put(field_template.field_name, field_template.fixed_string);
+                    continue;
+                }
+                else if (type.equals("calc_minus") || type.equals("calc_plus"))
+                {
+                    try {
+                        int v1 = json_record.getInteger(field_template.s1);
+                        int v2 = json_record.getInteger(field_template.s2);
+                        json_record.put(field_template.field_name, type.equals("calc_minus") ? v1-v2 : v1+v2);
+                    } catch (Exception e) {
+                        if (field_template.required)
+                        {
+                            record_ok = false;
+                            break;
+                        }
+                    }
+                    continue;
+                }
+
+                int field_start = record.indexOf(field_template.s1);
+                if (field_start < 0)
+                {
+                    if (field_template.required)
+                    {
+                        record_ok = false;
+                        break;
+                    }
+                    continue;
+                }
+                field_start = field_start + field_template.s1.length();
+
+                int field_end = record.indexOf(field_template.s2, field_start);
+                if (field_end < 0)
+                {
+                    if (field_template.required)
+                    {
+                        record_ok = false;
+                        break;
+                    }
+                    continue;
+                }
+                if (field_end - field_start > ParseFeedText.MAX_TAG_SIZE) continue;
+
+                String field_string = record.substring(field_start, field_end);
+                if (type.equals("int"))
+                {
+                    try {
+                        json_record.put(field_template.field_name, Integer.parseInt(field_string));
+                    } catch (NumberFormatException e) {
+                        if (field_template.required)
+                        {
+                            record_ok = false;
+                            break;
+                        }
+                    }
+                }
+                else if (type.equals("string"))
+                {
+                    json_record.put(field_template.field_name, field_string);
+                }
+            }
+
+            if (record_ok)
+            {
+                records.add(json_record);
+            }
+        }
+        return records;
+    }
+
+    // a copy of 'page' with a few random edits: deleted, duplicated or replaced runs of characters
+    static String mutate(String page, Random random)
+    {
+        final String junk = "<>/ 0123456789x-";
+        StringBuilder sb = new StringBuilder(page);
+        int edits = 1 + random.nextInt(4);
+        for (int e=0; e<edits && sb.length() > 0; e++)
+        {
+            int pos = random.nextInt(sb.length());
+            int len = Math.min(1 + random.nextInt(20), sb.length() - pos);
+            switch (random.nextInt(3))
+            {
+                case 0:
+                    sb.delete(pos, pos + len);
+                    break;
+                case 1:
+                    sb.insert(pos, sb.substring(pos, pos + len));
+                    break;
+                default:
+                    sb.setCharAt(pos, junk.charAt(random.nextInt(junk.length())));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    List<ParseFeedText.RecordTemplate> templates(String feed_type)
+    {
+        ParseFeedText parser = new ParseFeedText(new JsonObject().put("feed_type", feed_type), logger);
+        return parser.record_templates.get(feed_type);
+    }
+
+    static ParseFeedText.RecordTemplate template(String tag_start,
+                                                 String tag_end,
+                                                 ArrayList<ParseFeedText.FieldTemplate> fields)
+    {
+        ParseFeedText.RecordTemplate t = new ParseFeedText.RecordTemplate(fields);
+        t.tag_start = tag_start;
+        t.tag_end = tag_end;
+        return t;
+    }
+
+    static ParseFeedText.FieldTemplate field(String name, String type, String fixed_string, int fixed_int,
+                                             String s1, String s2, boolean required)
+    {
+        return new ParseFeedText.FieldTemplate(name, type, fixed_string, fixed_int, s1, s2, required);
+    }
+
+    static String resource(String name) throws Exception
+    {
+        try (InputStream in = TemplateScannerTest.class.getResourceAsStream(name))
+        {
+            assertNotNull(name+" not on the test classpath", in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) > 0)
+            {
+                out.write(b, 0, n);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        }
+    }
+}
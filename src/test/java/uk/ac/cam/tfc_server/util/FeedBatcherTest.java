@@ -0,0 +1,134 @@
+package uk.ac.cam.tfc_server.util;
+
+// FeedBatcherTest.java
+//
+// FeedBatcher flushes a batch when it reaches batch_max records (immediately, within add()) or when the
+// batch_ms timer started by its first record fires, and flush() sends the batch now and cancels the timer.
+// The batcher is driven on a Vert.x context, as in the verticles that use it.
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+
+public class FeedBatcherTest extends TestCase
+{
+    Vertx vertx;
+    Context context;
+
+    // batches flushed, in order
+    List<List<Integer>> flushed = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    // counted down by each flush
+    volatile CountDownLatch flushes;
+
+    volatile long flushed_ns; // System.nanoTime() of the last flush
+
+    protected void setUp()
+    {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(res -> closed.countDown());
+        closed.await(10, TimeUnit.SECONDS);
+    }
+
+    public void testFlushOnBatchMax() throws Exception
+    {
+        flushes = new CountDownLatch(3);
+        FeedBatcher<Integer> batcher = batcher(200, 3);
+
+        ArrayList<Integer> flushes_after_add = new ArrayList<Integer>();
+        on_context(() -> {
+            for (int i=0; i<7; i++)
+            {
+                batcher.add(i);
+                flushes_after_add.add(flushed.size());
+            }
+        });
+
+        // the 3rd and 6th records complete a batch within add()
+        assertEquals("[0, 0, 1, 1, 1, 2, 2]", flushes_after_add.toString());
+        assertEquals("[[0, 1, 2], [3, 4, 5]]", flushed.toString());
+
+        // the 7th waits for the timer
+        assertTrue(flushes.await(5, TimeUnit.SECONDS));
+        assertEquals("[[0, 1, 2], [3, 4, 5], [6]]", flushed.toString());
+    }
+
+    public void testFlushOnTimer() throws Exception
+    {
+        flushes = new CountDownLatch(1);
+        FeedBatcher<Integer> batcher = batcher(50, 100);
+
+        on_context(() -> {
+            batcher.add(1);
+            batcher.add(2);
+        });
+        assertTrue(flushed.isEmpty());
+
+        assertTrue(flushes.await(5, TimeUnit.SECONDS));
+        assertEquals("[[1, 2]]", flushed.toString());
+
+        // a record after the flush starts a new timer
+        flushes = new CountDownLatch(1);
+        on_context(() -> batcher.add(3));
+        assertTrue(flushes.await(5, TimeUnit.SECONDS));
+        assertEquals("[[1, 2], [3]]", flushed.toString());
+    }
+
+    // flush() cancels the timer of the batch it sends, so a record added later waits its own batch_ms
+    // (a timer never fires early, so this lower bound is not timing dependent)
+    public void testFlushCancelsTimer() throws Exception
+    {
+        flushes = new CountDownLatch(1);
+        FeedBatcher<Integer> batcher = batcher(200, 100);
+
+        on_context(() -> {
+            batcher.add(1);
+            batcher.flush();
+            batcher.flush(); // empty batch, not passed to the handler
+        });
+        assertEquals("[[1]]", flushed.toString());
+
+        // the first timer would have fired 200ms after add(1)
+        Thread.sleep(100);
+
+        flushes = new CountDownLatch(1);
+        long added_ns = System.nanoTime();
+        on_context(() -> batcher.add(2));
+        assertTrue(flushes.await(5, TimeUnit.SECONDS));
+        assertEquals("[[1], [2]]", flushed.toString());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(flushed_ns - added_ns) >= 190);
+    }
+
+    FeedBatcher<Integer> batcher(long batch_ms, int batch_max)
+    {
+        return new FeedBatcher<Integer>(vertx, batch_ms, batch_max, records -> {
+            flushed.add(records);
+            flushed_ns = System.nanoTime();
+            flushes.countDown();
+        });
+    }
+
+    // run 'r' on the test context and wait for it to complete
+    void on_context(Runnable r) throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        context.runOnContext(v -> {
+            r.run();
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,171 @@
+package uk.ac.cam.tfc_server.util;
+
+// IsoTimestampTest.java
+//
+// IsoTimestamp compared with java.time (Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse())), which
+// it replaced, on the SiriVM fixture timestamps, on generated valid and invalid timestamps taking the
+// fast path, on the forms left to the java.time fallback, and across evictions of its DayBase cache.
+
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class IsoTimestampTest extends TestCase
+{
+    static final String SIRIVM_XML = "/fixtures/sirivm.xml";
+
+    IsoTimestamp iso = new IsoTimestamp();
+
+    public void testFixtureTimestamps() throws Exception
+    {
+        String xml;
+        try (InputStream in = getClass().getResourceAsStream(SIRIVM_XML))
+        {
+            assertNotNull(SIRIVM_XML+" not on the test classpath", in);
+            xml = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+        }
+
+        Matcher m = Pattern.compile(">(\\d{4}-\\d\\d-\\d\\dT[^<]*)<").matcher(xml);
+        int count = 0;
+        while (m.find())
+        {
+            check(m.group(1));
+            count++;
+        }
+        assertTrue(count > 120);
+    }
+
+    public void testFastPath()
+    {
+        check("2017-09-29T09:45:38+01:00");
+        check("2017-09-29T09:45:38Z");                    // no fraction
+        check("2017-09-29T09:45:38.5Z");
+        check("2017-09-29T09:45:38.000+00:00");
+        check("2017-09-29T09:45:38.123456789-05:30");
+        check("2017-12-31T23:59:59.999999999+18:00");     // largest offset
+        check("2016-02-29T00:00:00-18:00");               // leap day
+        check("1970-01-01T00:00:00Z");
+        check("0001-01-01T00:00:00Z");
+
+        assertEquals(1506674738, iso.epoch_second("2017-09-29T09:45:38+01:00"));
+        assertEquals(Instant.parse("2017-09-29T08:45:38.500Z"), iso.instant("2017-09-29T09:45:38.5+01:00"));
+    }
+
+    // forms the fast path leaves to java.time, valid or not
+    public void testFallback()
+    {
+        check("2017-09-29T09:45:38+01:00[Europe/London]");
+        check("2017-09-29T09:45:38Z[UTC]");
+        check("2017-09-29t09:45:38Z");
+        check("2017-09-29T09:45:38z");
+        check("2017-09-29T09:45Z");                       // no seconds
+        check("2017-09-29T09:45:38.1234567890Z");         // 10 fraction digits
+        check("2017-09-29T09:45:38.Z");
+        check("2017-09-29T09:45:38+01");
+        check("2017-09-29T09:45:38+0100");
+        check("2017-09-29T09:45:38+01:00:30");
+        check("2017-09-29T09:45:38+18:01");
+        check("2017-09-29T09:45:38");                     // no offset
+        check("+12017-09-29T09:45:38Z");
+        check("2017-02-29T09:45:38Z");                    // not a leap year
+        check("2017-13-01T09:45:38Z");
+        check("2017-00-01T09:45:38Z");
+        check("2017-09-31T09:45:38Z");
+        check("2017-09-29T24:00:00Z");
+        check("2017-09-29T09:60:00Z");
+        check("2017-09-29T23:59:60Z");                    // leap second
+        check("2017-09-29T09:45:38+01:60");
+        check("2017-09-29 09:45:38Z");
+        check("2017-9-29T09:45:38Z");
+        check("not a timestamp at all");
+        check("");
+    }
+
+    // more than the cache's 8 date/offset pairs in turn, revisited after eviction, and entries that
+    // share the date or the offset
+    public void testCacheEviction()
+    {
+        String[] offsets = { "Z", "+00:00", "+01:00", "-01:00", "+05:30" };
+        for (int round=0; round<3; round++)
+        {
+            for (int day=1; day<=12; day++)
+            {
+                for (String offset : offsets)
+                {
+                    check(String.format("2017-10-%02dT%02d:%02d:07.25%s", day, (day + round) % 24, day * 4, offset));
+                }
+            }
+        }
+    }
+
+    public void testGenerated()
+    {
+        Random random = new Random(42);
+        for (int i=0; i<20000; i++)
+        {
+            check(generate(random));
+        }
+    }
+
+    // a timestamp in the fixed layout, with some fields out of range
+    static String generate(Random random)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%04d-%02d-%02dT%02d:%02d:%02d",
+                                1 + random.nextInt(9999),
+                                random.nextInt(20) == 0 ? random.nextInt(100) : 1 + random.nextInt(12),
+                                random.nextInt(20) == 0 ? random.nextInt(100) : 1 + random.nextInt(31),
+                                random.nextInt(20) == 0 ? random.nextInt(100) : random.nextInt(24),
+                                random.nextInt(20) == 0 ? random.nextInt(100) : random.nextInt(60),
+                                random.nextInt(20) == 0 ? random.nextInt(100) : random.nextInt(60)));
+        int fraction_digits = random.nextInt(11);
+        if (fraction_digits > 0)
+        {
+            sb.append('.');
+            for (int d=0; d<fraction_digits; d++)
+            {
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+        }
+        if (random.nextInt(4) == 0)
+        {
+            sb.append('Z');
+        }
+        else
+        {
+            sb.append(String.format("%c%02d:%02d",
+                                    random.nextBoolean() ? '+' : '-',
+                                    random.nextInt(20),
+                                    random.nextInt(10) == 0 ? random.nextInt(100) : random.nextInt(4) * 15));
+        }
+        return sb.toString();
+    }
+
+    // IsoTimestamp gives the java.time result, or also throws DateTimeException
+    void check(String s)
+    {
+        Instant expected;
+        try {
+            expected = Instant.from(DateTimeFormatter.ISO_DATE_TIME.parse(s));
+        } catch (DateTimeException e) {
+            try {
+                iso.instant(s);
+                fail("instant() accepted "+s);
+            } catch (DateTimeException ok) {}
+            try {
+                iso.epoch_second(s);
+                fail("epoch_second() accepted "+s);
+            } catch (DateTimeException ok) {}
+            return;
+        }
+        assertEquals(s, expected, iso.instant(s));
+        assertEquals(s, expected.getEpochSecond(), iso.epoch_second(s));
+    }
+}
@@ -0,0 +1,132 @@
+package uk.ac.cam.tfc_server.util;
+
+// LocalDistanceTest.java
+//
+// LocalDistance.distance() compared with the haversine Position.distance() for hops of 10m..2km
+// from recorded bus positions (the GTFS post_data.bin and SiriVM fixtures, copies of
+// feedhandler/post_data.bin and the bench sirivm.xml), which must agree to within the relative
+// error bound given in LocalDistance.java.
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class LocalDistanceTest extends TestCase
+{
+    // recorded positions, on the test classpath
+    static final String GTFS_BIN = "/fixtures/post_data.bin";
+    static final String SIRIVM_XML = "/fixtures/sirivm.xml";
+
+    static final Position CENTER = new Position(52.2113, 0.0969); // reference latitude, Cambridge
+
+    static final double[] HOPS = { 10, 50, 200, 500, 2000 }; // m
+
+    static final double R = LocalDistance.EARTH_RADIUS;
+
+    ArrayList<Position> positions = new ArrayList<Position>();
+    ArrayList<Double> bearings = new ArrayList<Double>();
+
+    protected void setUp() throws Exception
+    {
+        JsonObject gtfs = GTFS.buf_to_json(Buffer.buffer(resource(GTFS_BIN)), "post_data", "");
+        JsonArray entities = gtfs.getJsonArray("entities");
+        for (int i=0; i<entities.size(); i++)
+        {
+            JsonObject e = entities.getJsonObject(i);
+            positions.add(new Position(e.getDouble("latitude"), e.getDouble("longitude")));
+            bearings.add(e.getDouble("bearing", 0.0));
+        }
+
+        String xml = new String(resource(SIRIVM_XML), "UTF-8");
+        Matcher activity = Pattern.compile("<VehicleActivity>.*?</VehicleActivity>", Pattern.DOTALL).matcher(xml);
+        while (activity.find())
+        {
+            String record = activity.group();
+            positions.add(new Position(Double.parseDouble(tag(record, "Latitude")),
+                                       Double.parseDouble(tag(record, "Longitude"))));
+            String bearing = tag(record, "Bearing");
+            bearings.add(bearing == null ? 45.0 : Double.parseDouble(bearing));
+        }
+    }
+
+    public void testDistanceWithinBound()
+    {
+        assertTrue("recorded positions "+positions.size(), positions.size() > 100);
+
+        LocalDistance local = LocalDistance.of(CENTER);
+        double lat_ref = Math.toRadians(CENTER.lat);
+
+        for (int i=0; i<positions.size(); i++)
+        {
+            Position p1 = positions.get(i);
+            for (double d : HOPS)
+            {
+                Position p2 = destination(p1, bearings.get(i), d);
+
+                double e = Math.abs((Math.toRadians(p1.lat) + Math.toRadians(p2.lat)) / 2 - lat_ref);
+                double bound = bound(d, e, lat_ref);
+
+                double haversine = p1.distance(p2);
+                double rel = Math.abs(local.distance(p1, p2) - haversine) / haversine;
+
+                assertTrue("hop "+d+"m from "+p1+": relative error "+rel+" over bound "+bound, rel <= bound);
+            }
+        }
+    }
+
+    // The relative error bound of LocalDistance.java, for a hop of d metres with mid latitude e radians
+    // from the reference: (d/R)^2 for the equirectangular formula plus |e|^3 (1 + tan(lat_ref)) / 6
+    // for the approximated cos(), plus 1nm for rounding.
+    static double bound(double d, double e, double lat_ref)
+    {
+        return (d / R) * (d / R) + e * e * e * (1 + Math.tan(lat_ref)) / 6 + 1e-9 / d;
+    }
+
+    // The position 'd' m from 'p' on initial bearing 'bearing' degrees (great circle)
+    static Position destination(Position p, double bearing, double d)
+    {
+        double lat = Math.toRadians(p.lat);
+        double lng = Math.toRadians(p.lng);
+        double b = Math.toRadians(bearing);
+        double a = d / R;
+        double lat2 = Math.asin(Math.sin(lat) * Math.cos(a) + Math.cos(lat) * Math.sin(a) * Math.cos(b));
+        double lng2 = lng + Math.atan2(Math.sin(b) * Math.sin(a) * Math.cos(lat),
+                                       Math.cos(a) - Math.sin(lat) * Math.sin(lat2));
+        return new Position(Math.toDegrees(lat2), Math.toDegrees(lng2));
+    }
+
+    static byte[] resource(String name) throws IOException
+    {
+        try (InputStream in = LocalDistanceTest.class.getResourceAsStream(name))
+        {
+            assertNotNull(name+" not on the test classpath", in);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            for (int n; (n = in.read(b)) > 0; )
+            {
+                bytes.write(b, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    static String tag(String record, String tag)
+    {
+        int start = record.indexOf("<"+tag+">");
+        if (start < 0)
+        {
+            return null;
+        }
+        start += tag.length() + 2;
+        return record.substring(start, record.indexOf("</"+tag+">", start));
+    }
+}
@@ -0,0 +1,208 @@
+package uk.ac.cam.tfc_server.util;
+
+// SegmentWriterTest.java
+//
+// SegmentWriter.append_all() writes a batch of records, in order, rotating segments where the batch crosses
+// an hour (hourly segments), mixed with single append()s and continued after a restart. The segments
+// written are read back with SegmentReader and BinDir, and appends after close() are rejected.
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.buffer.Buffer;
+
+public class SegmentWriterTest extends TestCase
+{
+    // 10:59:58 local time, so the batches below cross into the 11:00 segment
+    static final long T0 = LocalDateTime.of(2020, 1, 15, 10, 59, 58)
+                                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+    File data_bin;
+
+    protected void setUp() throws Exception
+    {
+        data_bin = Files.createTempDirectory("segment_test").toFile();
+    }
+
+    protected void tearDown()
+    {
+        delete(data_bin);
+    }
+
+    public void testAppendAllAcrossSegments() throws Exception
+    {
+        SegmentWriter writer = new SegmentWriter(data_bin.toString(), SegmentWriter.HOURLY, false);
+
+        long[] ts = { T0, T0 + 500, T0 + 1999, T0 + 2000, T0 + 2500 };
+        writer.append_all(ts, names(ts), data(ts));
+        // a single append in the current (11:00) segment, then another batch
+        writer.append(T0 + 3000, "single", Buffer.buffer("single"));
+        long[] ts2 = { T0 + 4000, T0 + 5000 };
+        writer.append_all(ts2, names(ts2), data(ts2));
+        // an empty batch writes nothing
+        writer.append_all(new long[0], new String[0], new Buffer[0]);
+        writer.close();
+
+        SegmentReader seg10 = reader(T0);
+        SegmentReader seg11 = reader(T0 + 2000);
+        try
+        {
+            assertEquals(3, seg10.size());
+            assertEquals(5, seg11.size());
+            assertRecords(seg10, ts[0], ts[1], ts[2]);
+            assertEquals(ts[3], seg11.read(0).ts);
+            assertEquals("single", seg11.read(2).name);
+            assertEquals("single", seg11.read(2).data.toString());
+            assertEquals(ts2[1], seg11.read(4).ts);
+            assertEquals(String.valueOf(ts2[1]), seg11.read(4).data.toString());
+        }
+        finally
+        {
+            seg10.close();
+            seg11.close();
+        }
+
+        // both segments have their index footer
+        assertFooter(T0);
+        assertFooter(T0 + 2000);
+
+        // and BinDir reads the records of the day in timestamp order
+        BinDir bin_dir = new BinDir(Paths.get(data_bin.toString(), SegmentWriter.segment_path(T0, SegmentWriter.HOURLY))
+                                         .getParent().toString());
+        try
+        {
+            assertEquals(8, bin_dir.entries.size());
+            for (int i=1; i<bin_dir.entries.size(); i++)
+            {
+                assertTrue(bin_dir.entries.get(i-1).ts <= bin_dir.entries.get(i).ts);
+            }
+        }
+        finally
+        {
+            bin_dir.close();
+        }
+    }
+
+    // a new SegmentWriter (e.g. after a restart) continues the existing segment
+    public void testAppendAllContinuesSegment() throws Exception
+    {
+        long[] ts = { T0, T0 + 100 };
+        SegmentWriter writer = new SegmentWriter(data_bin.toString(), SegmentWriter.HOURLY, false);
+        writer.append_all(ts, names(ts), data(ts));
+        writer.close();
+
+        long[] ts2 = { T0 + 200, T0 + 300 };
+        writer = new SegmentWriter(data_bin.toString(), SegmentWriter.HOURLY, false);
+        writer.append_all(ts2, names(ts2), data(ts2));
+        writer.close();
+
+        SegmentReader seg = reader(T0);
+        try
+        {
+            assertRecords(seg, T0, T0 + 100, T0 + 200, T0 + 300);
+        }
+        finally
+        {
+            seg.close();
+        }
+        assertFooter(T0);
+    }
+
+    public void testAppendAfterClose() throws Exception
+    {
+        long[] ts = { T0 };
+        SegmentWriter writer = new SegmentWriter(data_bin.toString(), SegmentWriter.HOURLY, false);
+        writer.append_all(ts, names(ts), data(ts));
+        writer.close();
+
+        try {
+            writer.append_all(ts, names(ts), data(ts));
+            fail("append_all() after close()");
+        } catch (IOException e) {}
+        try {
+            writer.append(T0, "late", Buffer.buffer("late"));
+            fail("append() after close()");
+        } catch (IOException e) {}
+
+        SegmentReader seg = reader(T0);
+        try
+        {
+            assertEquals(1, seg.size());
+        }
+        finally
+        {
+            seg.close();
+        }
+        assertFooter(T0);
+    }
+
+    // each record's name and data are its ts
+    static void assertRecords(SegmentReader seg, long... ts) throws IOException
+    {
+        assertEquals(ts.length, seg.size());
+        for (int i=0; i<ts.length; i++)
+        {
+            SegmentReader.Record record = seg.read(i);
+            assertEquals(ts[i], record.ts);
+            assertEquals(String.valueOf(ts[i]), record.name);
+            assertEquals(String.valueOf(ts[i]), record.data.toString());
+        }
+    }
+
+    void assertFooter(long ts) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(segment(ts).toPath());
+        assertTrue(Arrays.equals(SegmentWriter.INDEX_MAGIC,
+                                 Arrays.copyOfRange(bytes, bytes.length - SegmentWriter.INDEX_MAGIC.length, bytes.length)));
+    }
+
+    SegmentReader reader(long ts) throws IOException
+    {
+        return new SegmentReader(segment(ts).toString());
+    }
+
+    File segment(long ts)
+    {
+        return new File(data_bin, SegmentWriter.segment_path(ts, SegmentWriter.HOURLY));
+    }
+
+    static String[] names(long[] ts)
+    {
+        String[] names = new String[ts.length];
+        for (int i=0; i<ts.length; i++)
+        {
+            names[i] = String.valueOf(ts[i]);
+        }
+        return names;
+    }
+
+    static Buffer[] data(long[] ts)
+    {
+        Buffer[] data = new Buffer[ts.length];
+        for (int i=0; i<ts.length; i++)
+        {
+            data[i] = Buffer.buffer(String.valueOf(ts[i]));
+        }
+        return data;
+    }
+
+    static void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
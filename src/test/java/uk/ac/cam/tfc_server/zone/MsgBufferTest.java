@@ -0,0 +1,110 @@
+package uk.ac.cam.tfc_server.zone;
+
+// MsgBufferTest.java
+//
+// The Zone completion message buffer and the ZONE_UPDATE reply built from it (MsgHandler.get_update()):
+// the messages after the client's since_seq, or the whole buffer with "reset" true when the client's
+// since_seq can't be continued from (before the start of day reset, lost to the buffer wrapping around,
+// or from before a Zone restart).
+
+import java.time.LocalDate;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+
+public class MsgBufferTest extends TestCase
+{
+    static final long DAY1 = LocalDate.of(2020, 1, 15).atStartOfDay(Constants.PLATFORM_TIMEZONE).toEpochSecond();
+    static final long DAY2 = DAY1 + 24 * 3600;
+
+    Zone zone = new Zone();
+    Zone.MsgHandler handler;
+
+    protected void setUp()
+    {
+        handler = zone.new MsgHandler("zone_test");
+        handler.msg_buffer = zone.new MsgBuffer(4);
+    }
+
+    public void testSinceSeq()
+    {
+        assertUpdate(0, true, "[]");
+
+        add(DAY1 + 100, DAY1 + 200, DAY1 + 300);     // seq 1..3
+
+        assertUpdate(0, true, "[1, 2, 3]");
+        assertUpdate(1, false, "[2, 3]");
+        assertUpdate(3, false, "[]");
+        // a since_seq from before a restart of the Zone
+        assertUpdate(4, true, "[1, 2, 3]");
+    }
+
+    public void testWraparound()
+    {
+        add(DAY1 + 1, DAY1 + 2, DAY1 + 3, DAY1 + 4, DAY1 + 5, DAY1 + 6, DAY1 + 7); // seq 1..7, 4..7 held
+
+        assertEquals(4, handler.msg_buffer.size());
+        assertEquals(4, handler.msg_buffer.first_seq());
+
+        assertUpdate(3, false, "[4, 5, 6, 7]");
+        assertUpdate(5, false, "[6, 7]");
+        assertUpdate(6, false, "[7]");
+        // seq 3 has been overwritten
+        assertUpdate(2, true, "[4, 5, 6, 7]");
+
+        // wrapping around again
+        add(DAY1 + 8, DAY1 + 9);                    // seq 8, 9, 6..9 held
+        assertUpdate(7, false, "[8, 9]");
+        assertUpdate(5, false, "[6, 7, 8, 9]");
+        assertUpdate(4, true, "[6, 7, 8, 9]");
+    }
+
+    public void testResetAtDayEnd()
+    {
+        add(DAY1 + 1, DAY1 + 2, DAY1 + 3);          // seq 1..3
+        add(DAY2 + 1);                              // seq 4, the buffer is cleared first
+
+        assertEquals(1, handler.msg_buffer.size());
+
+        // a client up to date with the previous day replaces its completions
+        assertUpdate(3, true, "[4]");
+        assertUpdate(2, true, "[4]");
+        assertUpdate(4, false, "[]");
+
+        add(DAY2 + 2, DAY2 + 3);                    // seq 5, 6
+        assertUpdate(4, false, "[5, 6]");
+        assertUpdate(3, true, "[4, 5, 6]");
+    }
+
+    // add a completion message for each ts
+    void add(long... ts)
+    {
+        for (long t : ts)
+        {
+            handler.msg_buffer.add(new JsonObject().put("msg_type", Constants.ZONE_COMPLETION).put("ts", t));
+        }
+    }
+
+    // the ZONE_UPDATE for since_seq has the given "reset" and the messages with sequence numbers 'seqs'
+    void assertUpdate(long since_seq, boolean reset, String seqs)
+    {
+        JsonObject msg = new JsonObject();
+        handler.get_update(msg, since_seq);
+
+        JsonArray msgs = msg.getJsonArray("msgs");
+        StringBuilder sb = new StringBuilder("[");
+        for (int i=0; i<msgs.size(); i++)
+        {
+            sb.append(i == 0 ? "" : ", ").append(msgs.getJsonObject(i).getLong("seq"));
+        }
+        sb.append("]");
+
+        assertEquals("since_seq "+since_seq, seqs, sb.toString());
+        assertEquals("since_seq "+since_seq+" reset", reset, (boolean) msg.getBoolean("reset"));
+        assertEquals(handler.msg_buffer.last_seq, (long) msg.getLong("seq"));
+    }
+}
@@ -0,0 +1,124 @@
+package uk.ac.cam.tfc_server.zone;
+
+// ZoneComputeTest.java
+//
+// ZoneCompute.evict_idle_vehicles(), via handle_feed(): a vehicle is removed once it has sent no position
+// for zone.vehicle_idle seconds of feed time (checked every quarter of vehicle_idle), an evicted vehicle
+// that reappears starts a new Vehicle, and zone.vehicle_idle 0 never evicts.
+// Uses the madingley_road_in zone config from src/main/resources, with the vehicles outside the zone.
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+import junit.framework.TestCase;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import uk.ac.cam.tfc_server.util.Constants;
+
+public class ZoneComputeTest extends TestCase
+{
+    static final String ZONE_CONFIG = "uk.ac.cam.tfc_server.zone.madingley_road_in.json";
+
+    static final long T0 = 1511170200; // 2017-11-20 09:30:00 UTC
+
+    static final long IDLE = 400;
+
+    int msgs = 0; // zone messages sent by the ZoneCompute
+
+    public void testEvictIdleVehicles() throws Exception
+    {
+        ZoneCompute zc = zone_compute(IDLE);
+
+        feed(zc, T0, "a", "b", "c");
+        assertEquals(3, zc.vehicle_count());
+
+        // b and c idle for 300s, under vehicle_idle
+        feed(zc, T0 + 300, "a");
+        assertEquals(3, zc.vehicle_count());
+
+        // b and c idle for exactly vehicle_idle are kept
+        feed(zc, T0 + IDLE, "a");
+        assertEquals(3, zc.vehicle_count());
+        assertEquals(0, zc.evicted_count);
+
+        // and not checked again until a quarter of vehicle_idle later
+        feed(zc, T0 + IDLE + 99, "a");
+        assertEquals(3, zc.vehicle_count());
+
+        feed(zc, T0 + IDLE + 100, "a");
+        assertEquals(1, zc.vehicle_count());
+        assertEquals(2, zc.evicted_count);
+
+        // an evicted vehicle that reappears is a new vehicle
+        feed(zc, T0 + IDLE + 200, "a", "b");
+        assertEquals(2, zc.vehicle_count());
+        assertEquals(2, zc.evicted_count);
+
+        // a feed with no recent positions of a vehicle still held (e.g. a replay gap) evicts it
+        feed(zc, T0 + 2000, "c");
+        assertEquals(1, zc.vehicle_count());
+        assertEquals(4, zc.evicted_count);
+
+        // no zone messages for vehicles outside the zone
+        assertEquals(0, msgs);
+    }
+
+    public void testVehicleIdleZeroNeverEvicts() throws Exception
+    {
+        ZoneCompute zc = zone_compute(0);
+
+        feed(zc, T0, "a", "b", "c");
+        feed(zc, T0 + 100000, "a");
+        feed(zc, T0 + 1000000, "d");
+
+        assertEquals(4, zc.vehicle_count());
+        assertEquals(0, zc.evicted_count);
+    }
+
+    public void testVehicleIdleConfig() throws Exception
+    {
+        assertTrue(zone_config(0).valid);
+        assertTrue(zone_config(ZoneCompute.TS_DELTA_LIMIT).valid);
+        // shorter than TS_DELTA_LIMIT, or negative
+        assertFalse(zone_config(ZoneCompute.TS_DELTA_LIMIT - 1).valid);
+        assertFalse(zone_config(-1).valid);
+    }
+
+    ZoneCompute zone_compute(long vehicle_idle) throws Exception
+    {
+        ZoneConfig zone_config = zone_config(vehicle_idle);
+        assertTrue(zone_config.valid);
+        return new ZoneCompute(zone_config, msg -> msgs++);
+    }
+
+    static ZoneConfig zone_config(long vehicle_idle) throws Exception
+    {
+        String json;
+        try (InputStream in = ZoneComputeTest.class.getClassLoader().getResourceAsStream(ZONE_CONFIG))
+        {
+            assertNotNull(ZONE_CONFIG+" not on the classpath", in);
+            json = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+        }
+        JsonObject config = new JsonObject(json).getJsonObject("options").getJsonObject("config");
+        config.put("zone.log_level", Constants.LOG_WARN);
+        config.put("zone.vehicle_idle", vehicle_idle);
+        return new ZoneConfig(config);
+    }
+
+    // a feed message with a position at 'ts' for each vehicle, well outside the zone
+    static void feed(ZoneCompute zc, long ts, String... vehicle_ids)
+    {
+        JsonArray records = new JsonArray();
+        for (String vehicle_id : vehicle_ids)
+        {
+            records.add(new JsonObject()
+                        .put("acp_id", vehicle_id)
+                        .put("acp_lat", 52.0)
+                        .put("acp_lng", -1.0)
+                        .put("acp_ts", ts));
+        }
+        zc.handle_feed(new JsonObject().put("request_data", records));
+    }
+}
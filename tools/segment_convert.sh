@@ -0,0 +1,13 @@
+#!/bin/bash
+#
+# Usage:
+#  tools/segment_convert.sh [-hourly] [-delete] <data_bin dir> ...
+#
+# Convert data_bin/yyyy/MM/dd directories of individual .bin files into daily (or hourly)
+# segment files. See src/main/java/uk/ac/cam/tfc_server/util/SegmentConvert.java
+#
+# Uses ./tfc.jar unless TFC_JAR is set.
+
+TFC_JAR=${TFC_JAR:-tfc.jar}
+
+java -cp $TFC_JAR uk.ac.cam.tfc_server.util.SegmentConvert "$@"